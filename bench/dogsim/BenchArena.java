@@ -0,0 +1,48 @@
+package dogsim;
+
+/**
+ * Builds populated arenas for the benchmarks.  The arena is scaled with
+ * the number of dogs so that every population has the density of the
+ * default simulation, 100 dogs in 1500x1000, and dogs are created with
+ * the same speed and HR ranges <code>DogManager</code> uses.
+ *
+ * @author Karel Bergmann
+ */
+final class BenchArena {
+	static final long SEED = 42;	//seed for every benchmark population
+
+	/**
+	 * Sink which accepts and discards every snapshot, so that
+	 * benchmarks not about telemetry don't measure it.
+	 */
+	static final TelemetrySink DISCARD = new TelemetrySink() {
+		public boolean emit(DogState aState) {
+			return true;
+		}
+
+		public void close() {
+		}
+	};
+
+	private BenchArena() {
+	}
+
+	/**
+	 * Creates an arena holding <code>aDogs</code> dogs.
+	 *
+	 * @param aDogs number of dogs
+	 * @return arena with its dogs added
+	 */
+	static Arena populate(int aDogs) {
+		double scale = Math.sqrt(aDogs / 100.0);
+		Arena arena = new Arena(1500 * scale, 1000 * scale, aDogs);
+		DogRandom rand = new DogRandom(SEED);
+		for (int i = 0; i < aDogs; i++) {
+			double speed = rand.nextInt(250 - 20) + 20;
+			long hr = rand.nextInt((int) (Dog.getMAX_HR() - Dog.getNORMAL_HR())) + Dog.getNORMAL_HR();
+			int id = arena.getDogs().acquireId();
+			arena.getDogs().add(new Dog(arena, hr, 25, speed, id, new DogRandom(Dog.seedFor(SEED, i))));
+		}
+		return arena;
+	}
+}
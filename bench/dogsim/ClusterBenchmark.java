@@ -0,0 +1,57 @@
+package dogsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Densest-cluster tracking, as done by the <code>ClusterTracker</code>
+ * once per tick, and the constant-time read the GUI does on every repaint.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClusterBenchmark {
+	@Param({"100", "1000", "10000", "100000"})
+	public int dogs;
+
+	private ClusterTracker fTracker;	//tracker under test
+	private int[] fSlots;				//slots of every dog
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Arena arena = BenchArena.populate(dogs);
+		fTracker = arena.getClusters();
+		fSlots = new int[dogs];
+		for (int i = 0; i < dogs; i++) {
+			fSlots[i] = i;
+		}
+		fTracker.update(fSlots, dogs);
+	}
+
+	@Benchmark
+	public void update() {
+		fTracker.update(fSlots, fSlots.length);
+	}
+
+	@Benchmark
+	public Object getDensest() {
+		return fTracker.getDensest();
+	}
+}
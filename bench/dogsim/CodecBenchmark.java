@@ -0,0 +1,82 @@
+package dogsim;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a batch of <code>DogState</code>s as a JSON array and as a
+ * binary frame, and decoding the frame.  Throughput is in batches.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({"1", "100"})
+	public int batch;
+
+	private DogState[] fStates;		//batch to encode
+	private DogState[] fDecoded;	//reused decode targets
+	private DogStateWriter fWriter;	//reused JSON writer
+	private DogStateCodec fCodec;	//reused binary encoder
+	private byte[] fFrame;			//encoded batch to decode
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Arena arena = BenchArena.populate(batch);
+		fStates = new DogState[batch];
+		fDecoded = new DogState[batch];
+		for (int i = 0; i < batch; i++) {
+			fStates[i] = arena.getDogs().get(i).getDogState();
+			fDecoded[i] = new DogState();
+		}
+		fWriter = new DogStateWriter();
+		fCodec = new DogStateCodec();
+		binary();
+		fFrame = Arrays.copyOf(fCodec.buffer(), fCodec.length());
+	}
+
+	@Benchmark
+	public int json() {
+		fWriter.reset();
+		fWriter.beginArray();
+		for (DogState ds : fStates) {
+			fWriter.write(ds);
+		}
+		fWriter.endArray();
+		return fWriter.length();
+	}
+
+	@Benchmark
+	public int binary() {
+		fCodec.reset();
+		for (DogState ds : fStates) {
+			fCodec.write(ds);
+		}
+		fCodec.finish();
+		return fCodec.length();
+	}
+
+	@Benchmark
+	public int decode() throws IOException {
+		return DogStateCodec.decode(fFrame, 0, fFrame.length, fDecoded);
+	}
+}
@@ -0,0 +1,58 @@
+package dogsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chase-target search: one <code>Dog.updateDirection</code> call for
+ * every dog in the arena per operation, with the table heading math or
+ * the original trigonometry of <code>legacyHeading</code>.  Positions are
+ * frozen after one tick, so every operation searches the same spatial
+ * index.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectionBenchmark {
+	@Param({"100", "1000", "10000", "100000"})
+	public int dogs;
+
+	@Param({"false", "true"})
+	public boolean legacy;
+
+	private Dog[] fDogs;	//every dog in the arena
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		FitBit.setSink(BenchArena.DISCARD);
+		Heading.setLegacy(legacy);
+		Arena arena = BenchArena.populate(dogs);
+		new SimulationEngine(arena).tick();
+		fDogs = new Dog[arena.getDogs().capacity()];
+		arena.getDogs().copyTo(fDogs);
+	}
+
+	@Benchmark
+	public void updateDirection() {
+		for (Dog d : fDogs) {
+			d.updateDirection();
+		}
+	}
+}
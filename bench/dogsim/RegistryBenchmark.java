@@ -0,0 +1,113 @@
+package dogsim;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Inserting and removing a dog: acquire an ID, add the dog, remove it
+ * and release the ID.  Released IDs are recycled whenever the free IDs
+ * run out, as the engine would at the start of a tick.  The
+ * <code>DogRegistry</code> is measured against
+ * the <code>Vector</code>s and global lock it replaced, on one thread and
+ * on four threads churning the same arena.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryBenchmark {
+	@Param({"1000"})
+	public int dogs;
+
+	private DogRegistry fRegistry;		//registry under test
+	private Dog[] fDogs;				//a dog for every ID
+	private Vector<Integer> fIds;		//legacy free IDs
+	private Vector<Dog> fVector;		//legacy dogs present
+	private final Object fLock = new Object();	//legacy global lock
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Arena arena = BenchArena.populate(dogs);
+		fRegistry = arena.getDogs();
+		fDogs = new Dog[dogs];
+		fRegistry.copyTo(fDogs);
+		//empty the arena again, the dogs are reused by every operation
+		for (Dog d : fDogs) {
+			fRegistry.remove(d);
+			fRegistry.releaseId(d.getID());
+		}
+		fRegistry.recycleIds();
+
+		fIds = new Vector<Integer>(dogs, 1);
+		for (int i = 0; i < dogs; i++) {
+			fIds.add(i);
+		}
+		fVector = new Vector<Dog>(dogs, 1);
+	}
+
+	@Benchmark
+	public void registry() {
+		churn();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void registryContended() {
+		churn();
+	}
+
+	@Benchmark
+	public void legacy() {
+		churnLegacy();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void legacyContended() {
+		churnLegacy();
+	}
+
+	private void churn() {
+		int id = fRegistry.acquireId();
+		while (id < 0) {
+			fRegistry.recycleIds();
+			id = fRegistry.acquireId();
+		}
+		Dog dog = fDogs[id];
+		fRegistry.add(dog);
+		fRegistry.remove(dog);
+		fRegistry.releaseId(id);
+	}
+
+	private void churnLegacy() {
+		Dog dog;
+		synchronized (fLock) {
+			Integer id = fIds.firstElement();
+			fIds.removeElementAt(0);
+			dog = fDogs[id];
+			fVector.add(dog);
+		}
+		synchronized (fLock) {
+			fVector.removeElement(dog);
+			fIds.add(dog.getID());
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package dogsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serialization of a single <code>DogState</code> to JSON, through
+ * the JSON library and through the reused-buffer writer.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	private DogState fState = state();				//typical dog
+	private DogStateWriter fWriter = new DogStateWriter();	//reused writer
+
+	private static DogState state() {
+		DogState ds = new DogState();
+		ds.fId = 42;
+		ds.fX = 812.3388416237157;
+		ds.fY = 467.05918542216836;
+		ds.fHR = 143;
+		ds.fTemp = 31;
+		return ds;
+	}
+
+	@Benchmark
+	public String toJSON() {
+		return fState.toJSON();
+	}
+
+	@Benchmark
+	public int writer() {
+		fWriter.reset();
+		fWriter.write(fState);
+		return fWriter.length();
+	}
+}
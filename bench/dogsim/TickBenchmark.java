@@ -0,0 +1,60 @@
+package dogsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full <code>SimulationEngine</code> tick: index rebuild, vitals,
+ * think, move and transmit to a discarding sink, sequentially or across
+ * a fork/join pool, with resting dogs asleep or stepped every tick.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TickBenchmark {
+	@Param({"100", "1000", "10000", "100000"})
+	public int dogs;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"true", "false"})
+	public boolean skipResting;
+
+	private SimulationEngine fEngine;	//engine stepping the arena
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		FitBit.setSink(BenchArena.DISCARD);
+		SimulationEngine.setSkipResting(skipResting);
+		fEngine = new SimulationEngine(BenchArena.populate(dogs), threads);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		fEngine.shutdown();
+	}
+
+	@Benchmark
+	public void tick() {
+		fEngine.tick();
+	}
+}
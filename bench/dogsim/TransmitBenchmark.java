@@ -0,0 +1,69 @@
+package dogsim;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <code>FitBit.transmit</code> against a local <code>DogParkStub</code>,
+ * either sending each state directly with Resty or emitting it to a
+ * <code>TelemetryUplink</code>.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransmitBenchmark {
+	@Param({"direct", "uplink"})
+	public String path;
+
+	private DogParkStub fStub;			//local update endpoint
+	private TelemetryUplink fUplink;	//uplink for the "uplink" path
+	private FitBit fFitBit;				//transmitter under test
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		fStub = new DogParkStub(0, 4);
+		fStub.start();
+		FitBit.setSERVER_URL(fStub.getUrl());
+		if (path.equals("uplink")) {
+			fUplink = new TelemetryUplink(fStub.getUrl());
+			FitBit.setSink(fUplink);
+		}
+		else {
+			FitBit.setSink(null);
+		}
+		Arena arena = BenchArena.populate(1);
+		fFitBit = new FitBit(arena.getDogs().get(0));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (fUplink != null)
+			fUplink.close();
+		FitBit.setSink(null);
+		fStub.stop();
+	}
+
+	@Benchmark
+	public void transmit() {
+		fFitBit.transmit();
+	}
+}
@@ -0,0 +1,85 @@
+package dogsim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Temp, HR and rest update of every dog in the arena per operation,
+ * one dog at a time through <code>Dog.updateVitals</code> or in one pass
+ * through <code>DogStore.updateVitals</code>.  The vitals are spread over
+ * their whole range and restored before every operation, so that dogs
+ * don't all settle into the same state and every rule is exercised.
+ *
+ * @author Karel Bergmann
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VitalsBenchmark {
+	@Param({"10000", "1000000"})
+	public int dogs;
+
+	private Arena fArena;		//arena whose store is updated
+	private Dog[] fDogs;		//every dog in the arena
+	private DogStore fStart;	//vitals restored before every operation
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		FitBit.setSink(BenchArena.DISCARD);
+		fArena = BenchArena.populate(dogs);
+		fDogs = new Dog[fArena.getDogs().capacity()];
+		fArena.getDogs().copyTo(fDogs);
+
+		DogStore s = fArena.getStore();
+		DogRandom rand = new DogRandom(BenchArena.SEED);
+		for (int i = 0; i < dogs; i++) {
+			s.fVelocity[i] = rand.nextInt((int) s.fMaxSpeed[i]);
+			s.fTemp[i] = Dog.getNORMAL_TEMP() + rand.nextInt((int) (Dog.getMAX_TEMP() - Dog.getNORMAL_TEMP()) + 2);
+			s.fHR[i] = Dog.getNORMAL_HR() + rand.nextInt((int) (Dog.getMAX_HR() - Dog.getNORMAL_HR()) + 3);
+			s.fResting[i] = (byte) rand.nextInt(2);
+			s.fChasing[i] = (byte) (rand.nextInt(2) & ~s.fResting[i]);
+		}
+		fStart = new DogStore(s.capacity());
+		copy(s, fStart);
+	}
+
+	@Setup(Level.Invocation)
+	public void restore() {
+		copy(fStart, fArena.getStore());
+	}
+
+	private static void copy(DogStore aFrom, DogStore aTo) {
+		System.arraycopy(aFrom.fVelocity, 0, aTo.fVelocity, 0, aFrom.capacity());
+		System.arraycopy(aFrom.fTemp, 0, aTo.fTemp, 0, aFrom.capacity());
+		System.arraycopy(aFrom.fHR, 0, aTo.fHR, 0, aFrom.capacity());
+		System.arraycopy(aFrom.fChasing, 0, aTo.fChasing, 0, aFrom.capacity());
+		System.arraycopy(aFrom.fResting, 0, aTo.fResting, 0, aFrom.capacity());
+	}
+
+	@Benchmark
+	public void scalar() {
+		for (Dog d : fDogs) {
+			d.updateVitals();
+		}
+	}
+
+	@Benchmark
+	public void bulk() {
+		fArena.updateVitals(0, fArena.getDogs().capacity());
+	}
+}
@@ -0,0 +1,66 @@
+package dogsim;
+
+/**
+ * Aggregates of the <code>DogState</code> stream over one period,
+ * computed by <code>StreamAnalytics</code> and sent to the server in
+ * place of the snapshots they summarize.  The arena-wide figures cover
+ * the period alone, the maximum HR of each dog covers the window ending
+ * with the period, and each dog's chase time covers everything the
+ * analytics has seen of it.
+ *
+ * @author Karel Bergmann
+ *
+ * @see StreamAnalytics
+ */
+public class AnalyticsSummary {
+	public long fFrom;			//simulated start of the period in milliseconds
+	public long fTo;			//simulated end of the period, exclusive
+	public long fWindow;		//milliseconds covered by fMaxHR
+	public long fSnapshots;		//snapshots received in the period
+	public long fHotDogs;		//dogs over MAX_TEMP at some time in the period
+	public long fChaseMillis;	//milliseconds spent chasing by all dogs in the period
+	public double fCellSize;	//width and height of a heat map cell in metres
+	public int fColumns;		//heat map cells across
+	public int fRows;			//heat map cells down
+	public int[] fHeatMap;		//snapshots taken in each cell, row by row
+	public int[] fIds;			//dogs seen in the window
+	public long[] fMaxHR;		//highest HR of each dog in the window
+	public long[] fChaseTotal;	//milliseconds each dog has spent chasing
+
+	/**
+	 * @return the summary as a JSON object.
+	 */
+	public String toJSON() {
+		StringBuilder json = new StringBuilder(256 + fHeatMap.length * 4 + fIds.length * 48);
+		json.append("{\"from\":").append(fFrom)
+			.append(",\"to\":").append(fTo)
+			.append(",\"snapshots\":").append(fSnapshots)
+			.append(",\"hotDogs\":").append(fHotDogs)
+			.append(",\"chaseSeconds\":").append(fChaseMillis / 1000.0)
+			.append(",\"heatMap\":{\"cellSize\":").append(fCellSize)
+			.append(",\"columns\":").append(fColumns)
+			.append(",\"rows\":").append(fRows)
+			.append(",\"counts\":[");
+		for (int i = 0; i < fHeatMap.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append(fHeatMap[i]);
+		}
+		json.append("]},\"window\":").append(fWindow).append(",\"dogs\":[");
+		for (int i = 0; i < fIds.length; i++) {
+			if (i > 0)
+				json.append(',');
+			json.append("{\"id\":").append(fIds[i])
+				.append(",\"maxHR\":").append(fMaxHR[i])
+				.append(",\"chaseSeconds\":").append(fChaseTotal[i] / 1000.0)
+				.append('}');
+		}
+		return json.append("]}").toString();
+	}
+
+	@Override
+	public String toString() {
+		return fFrom + "-" + fTo + " " + fSnapshots + " snapshots, " + fHotDogs + " hot, " +
+				fChaseMillis / 1000.0 + " s chasing, " + fIds.length + " dogs";
+	}
+}
@@ -1,48 +1,344 @@
 package dogsim;
 
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Class defines a 2-dimensional interaction space for
- * Dog objects.  Includes a <code>Vector</code> for
- * storing dogs present in the <code>Arena</code> which
+ * Dog objects.  Includes a <code>DogRegistry</code> of
+ * the dogs present in the <code>Arena</code> which
  * is maintained externally, in this case by the
- * <code>DogManager</code> class.
+ * <code>DogManager</code> class, and a <code>SpatialGrid</code>
+ * over those dogs for neighbour searches.  The dogs' state is held
+ * in a structure-of-arrays <code>DogStore</code>.  At the end of every
+ * tick the <code>SimulationEngine</code> publishes an
+ * <code>ArenaSnapshot</code>, which readers can use without locking.
+ * Snapshots are only captured while a reader is registered.
+ * 
+ * An arena may be one shard of a larger simulation.  Its edges are walls
+ * unless opened, and dogs cross open edges into neighbouring shards.
+ * Dogs of neighbouring shards near an open edge are mirrored into ghost
+ * slots of the <code>DogStore</code>, after the slots of the arena's own
+ * dogs, so that they are seen but not stepped.
  * @author Karel Bergmann
  * @see DogManager
- * @see Vector
+ * @see SpatialGrid
+ * @see DogStore
+ * @see ClusterTracker
+ * @see ArenaSnapshot
+ * @see DogRegistry
+ * @see Shard
  */
 public class Arena {
 	public final double MAX_X;	//horizontal extent of arena
 	public final double MAX_Y;	//vertical extent of arena
+	public static final int WEST = 1;	//wall at x = 0
+	public static final int NORTH = 2;	//wall at y = 0
+	public static final int EAST = 4;	//wall at x = MAX_X
+	public static final int SOUTH = 8;	//wall at y = MAX_Y
+	public static final int ALL_WALLS = WEST | NORTH | EAST | SOUTH;
 	
-	private Vector<Dog> fDogs;	//dogs present in the area
+	private DogRegistry fDogs;	//dogs present in the area
+	private volatile SpatialGrid fGrid;	//index over fDogs, rebuilt every tick
+	private DogStore fStore;	//state of fDogs, indexed by dog ID
+	private ClusterTracker fClusters;	//densest cluster of fDogs, updated every tick
+	private volatile long fTime;		//simulated time in milliseconds
+	private volatile ArenaSnapshot fSnapshot = ArenaSnapshot.EMPTY;	//published at the end of every tick with readers
+	private final AtomicInteger fSnapshotReaders = new AtomicInteger();	//readers registered for snapshots
+	private int fWalls;				//edges dogs can't cross
+	private double fMinX;			//smallest x-coordinate a dog may have
+	private double fMinY;			//smallest y-coordinate a dog may have
+	private double fMaxX;			//largest x-coordinate a dog may have
+	private double fMaxY;			//largest y-coordinate a dog may have
+	private int fGhosts;			//ghost slots in use
 	
 	/**
 	 * Constructor which allows specification of Arena size.
 	 * <code>fDogs</code> initialized to hold maximally 100
-	 * <code>Dog</code>s efficiently.
+	 * <code>Dog</code>s.
 	 * @param aX horizontal extent
 	 * @param aY vertical extent
 	 */
 	public Arena(double aX, double aY) {
+		this(aX, aY, 100);
+	}
+	
+	/**
+	 * Constructor which allows specification of Arena size and
+	 * the number of dogs it can hold.  Dog IDs must be less than
+	 * <code>aCapacity</code>.  The spatial index uses cells as wide
+	 * as a dog's visual range.
+	 * @param aX horizontal extent
+	 * @param aY vertical extent
+	 * @param aCapacity most dogs in the arena, must be greater than 0.
+	 */
+	public Arena(double aX, double aY, int aCapacity) {
+		this(aX, aY, aCapacity, 0, ALL_WALLS);
+	}
+	
+	/**
+	 * Constructor for an arena which is a shard of a larger simulation.
+	 * The store has <code>aGhosts</code> slots beyond <code>aCapacity</code>
+	 * for dogs of neighbouring shards.
+	 * @param aX horizontal extent
+	 * @param aY vertical extent
+	 * @param aCapacity most dogs in the arena, must be greater than 0.
+	 * @param aGhosts most dogs of other shards mirrored into the arena, must not be negative.
+	 * @param aWalls edges which are walls, any of WEST, NORTH, EAST and SOUTH.
+	 */
+	public Arena(double aX, double aY, int aCapacity, int aGhosts, int aWalls) {
 		if (aX < 0)
 			throw new IllegalArgumentException(" aX must be greater than 0.");
 		if (aY < 0)
 			throw new IllegalArgumentException(" aY must be greater than 0.");
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException(" aCapacity must be greater than 0.");
+		if (aGhosts < 0)
+			throw new IllegalArgumentException(" aGhosts must not be negative.");
 		
-		fDogs = new Vector<Dog> (100, 1);
+		fDogs = new DogRegistry(aCapacity);
+		fStore = new DogStore(aCapacity + aGhosts);
+		fGrid = new SpatialGrid(aX, aY, Dog.getVISUAL_RANGE());
 		MAX_X = aX;
 		MAX_Y = aY;
+		fClusters = new ClusterTracker(this);
+		
+		//open edges don't stop dogs
+		double buffer = Dog.getWALL_BUFFER();
+		fWalls = aWalls;
+		fMinX = (aWalls & WEST) != 0 ? buffer : Double.NEGATIVE_INFINITY;
+		fMinY = (aWalls & NORTH) != 0 ? buffer : Double.NEGATIVE_INFINITY;
+		fMaxX = (aWalls & EAST) != 0 ? aX - buffer : Double.POSITIVE_INFINITY;
+		fMaxY = (aWalls & SOUTH) != 0 ? aY - buffer : Double.POSITIVE_INFINITY;
 	}
 	
 	/**
-	 * Returns a <code>Vector</code> of Dogs in the arena.  This <code>Vector</code>
-	 * is maintained externally.
-	 * @return <code>Vector</code> of Dogs in Arena (maintained externally).
+	 * Updates the temp, HR and rest state of the dogs in store slots
+	 * <code>aFrom</code> (inclusive) to <code>aTo</code> (exclusive).
+	 * @param aFrom first slot to update
+	 * @param aTo slot after the last slot to update
+	 * @see DogStore#updateVitals(int, int, double, double, long, long)
 	 */
-	public Vector<Dog> getDogs() {
+	public void updateVitals(int aFrom, int aTo) {
+		fStore.updateVitals(aFrom, aTo, Dog.getMAX_TEMP(), Dog.getNORMAL_TEMP(), Dog.getMAX_HR(), Dog.getNORMAL_HR());
+	}
+	
+	/**
+	 * Moves the dogs in store slots <code>aFrom</code> (inclusive) to
+	 * <code>aTo</code> (exclusive), turning them around at the walls.
+	 * @param aFrom first slot to move
+	 * @param aTo slot after the last slot to move
+	 * @see DogStore#advancePositions(int, int, double, double, double, double)
+	 */
+	public void moveDogs(int aFrom, int aTo) {
+		fStore.advancePositions(aFrom, aTo, fMinX, fMinY, fMaxX, fMaxY);
+	}
+	
+	/**
+	 * Updates the temp, HR and rest state of the dogs in store slots
+	 * <code>aSlots[aFrom]</code> to <code>aSlots[aTo - 1]</code>.
+	 * @param aSlots store slots of the dogs to update
+	 * @param aFrom first index into <code>aSlots</code>
+	 * @param aTo index after the last index into <code>aSlots</code>
+	 * @see DogStore#updateVitals(int[], int, int, double, double, long, long)
+	 */
+	public void updateVitals(int[] aSlots, int aFrom, int aTo) {
+		fStore.updateVitals(aSlots, aFrom, aTo, Dog.getMAX_TEMP(), Dog.getNORMAL_TEMP(), Dog.getMAX_HR(), Dog.getNORMAL_HR());
+	}
+	
+	/**
+	 * Moves the dogs in store slots <code>aSlots[aFrom]</code> to
+	 * <code>aSlots[aTo - 1]</code>, turning them around at the walls.
+	 * @param aSlots store slots of the dogs to move
+	 * @param aFrom first index into <code>aSlots</code>
+	 * @param aTo index after the last index into <code>aSlots</code>
+	 * @see DogStore#advancePositions(int[], int, int, double, double, double, double)
+	 */
+	public void moveDogs(int[] aSlots, int aFrom, int aTo) {
+		fStore.advancePositions(aSlots, aFrom, aTo, fMinX, fMinY, fMaxX, fMaxY);
+	}
+	
+	/**
+	 * Brings a sleeping dog, which is neither updated nor moved, through
+	 * ticks of rest it has slept through.
+	 * @param aSlot store slot of the dog
+	 * @param aTicks ticks slept through since it was last updated
+	 * @see DogStore#rest(int, long, double, double, long, long, double, double, double, double)
+	 */
+	public void restDog(int aSlot, long aTicks) {
+		fStore.rest(aSlot, aTicks, Dog.getMAX_TEMP(), Dog.getNORMAL_TEMP(), Dog.getMAX_HR(), Dog.getNORMAL_HR(),
+				fMinX, fMinY, fMaxX, fMaxY);
+	}
+	
+	/**
+	 * @param aX x-coordinate
+	 * @param aY y-coordinate
+	 * @return true if the point is inside the arena.
+	 */
+	public boolean contains(double aX, double aY) {
+		return aX >= 0 && aX < MAX_X && aY >= 0 && aY < MAX_Y;
+	}
+	
+	/**
+	 * @return the edges which are walls.
+	 */
+	public int getWalls() {
+		return fWalls;
+	}
+	
+	/**
+	 * @return the first ghost slot in the store, after the slots
+	 * 				of the arena's own dogs.
+	 */
+	public int getFirstGhost() {
+		return fDogs.capacity();
+	}
+	
+	/**
+	 * @return the number of ghost slots in the store.
+	 */
+	public int getGhostCapacity() {
+		return fStore.capacity() - fDogs.capacity();
+	}
+	
+	/**
+	 * @return the number of ghost slots holding dogs of other
+	 * 				shards for the next tick.
+	 */
+	public int getGhostCount() {
+		return fGhosts;
+	}
+	
+	/**
+	 * Sets how many ghost slots, from the first, hold dogs of
+	 * other shards for the next tick.  Called by the shard stepping
+	 * the arena before each tick.
+	 * @param aCount ghost slots in use
+	 */
+	public void setGhostCount(int aCount) {
+		if (aCount < 0 || aCount > getGhostCapacity())
+			throw new IllegalArgumentException("aCount must be between 0 and " + getGhostCapacity() + ".");
+		fGhosts = aCount;
+	}
+	
+	/**
+	 * Returns the registry of Dogs in the arena.  The registry
+	 * is maintained externally, and can be read and written
+	 * concurrently without locking.
+	 * @return <code>DogRegistry</code> of Dogs in Arena (maintained externally).
+	 * @see DogRegistry
+	 */
+	public DogRegistry getDogs() {
 		return fDogs;
 	}
+	
+	/**
+	 * Returns the spatial index over the dogs in the arena.  The
+	 * index is rebuilt by the <code>SimulationEngine</code> at the
+	 * start of every tick.
+	 * @return <code>SpatialGrid</code> over the dogs in the Arena.
+	 * @see SimulationEngine
+	 */
+	public SpatialGrid getGrid() {
+		return fGrid;
+	}
+	
+	/**
+	 * Replaces the spatial index, for a live engine which builds a new
+	 * index every tick instead of rebuilding one being read.
+	 * @param aGrid index over the dogs in the Arena.
+	 */
+	void setGrid(SpatialGrid aGrid) {
+		fGrid = aGrid;
+	}
+	
+	/**
+	 * Returns the structure-of-arrays store holding the state of
+	 * the dogs in the arena, indexed by dog ID.
+	 * @return <code>DogStore</code> for the Arena.
+	 * @see DogStore
+	 */
+	public DogStore getStore() {
+		return fStore;
+	}
+	
+	/**
+	 * Returns the tracker of the densest cluster of dogs in the
+	 * arena, updated by the <code>SimulationEngine</code> every tick.
+	 * @return <code>ClusterTracker</code> for the Arena.
+	 * @see ClusterTracker
+	 */
+	public ClusterTracker getClusters() {
+		return fClusters;
+	}
+	
+	/**
+	 * Returns the arena's simulated clock, advanced by the
+	 * <code>SimulationEngine</code> on every tick.  Times are in
+	 * milliseconds, and need not follow the wall clock.
+	 * @return simulated time in milliseconds.
+	 * @see SimulationEngine
+	 */
+	public long getTime() {
+		return fTime;
+	}
+	
+	/**
+	 * Sets the arena's simulated clock.
+	 * @param aTime simulated time in milliseconds.
+	 */
+	public void setTime(long aTime) {
+		fTime = aTime;
+	}
+	
+	/**
+	 * Returns the snapshot published at the end of the latest tick.
+	 * The snapshot is never modified, so it can be read on any thread
+	 * without locking.  Nothing is published
+	 * unless a reader is registered.
+	 * @return latest <code>ArenaSnapshot</code>, never null.
+	 * @see #addSnapshotReader()
+	 * @see ArenaSnapshot
+	 */
+	public ArenaSnapshot getSnapshot() {
+		return fSnapshot;
+	}
+	
+	/**
+	 * Publishes a new snapshot, replacing the previous one.  Called
+	 * by the single thread running the simulation.
+	 * @param aSnapshot snapshot of the tick just completed.
+	 */
+	public void publish(ArenaSnapshot aSnapshot) {
+		if (aSnapshot == null)
+			throw new IllegalArgumentException("aSnapshot must not be null.");
+		fSnapshot = aSnapshot;
+	}
+	
+	/**
+	 * Registers a reader of the published snapshots, such as a display.
+	 * The <code>SimulationEngine</code> only captures snapshots while at
+	 * least one reader is registered.
+	 * @see #removeSnapshotReader()
+	 */
+	public void addSnapshotReader() {
+		fSnapshotReaders.incrementAndGet();
+	}
+	
+	/**
+	 * Unregisters a reader added by <code>addSnapshotReader()</code>.
+	 */
+	public void removeSnapshotReader() {
+		if (fSnapshotReaders.getAndDecrement() <= 0) {
+			fSnapshotReaders.incrementAndGet();
+			throw new IllegalStateException("No snapshot reader is registered.");
+		}
+	}
+	
+	/**
+	 * @return whether any reader of the snapshots is registered.
+	 */
+	public boolean hasSnapshotReaders() {
+		return fSnapshotReaders.get() > 0;
+	}
 
 }
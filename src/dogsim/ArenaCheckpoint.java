@@ -0,0 +1,229 @@
+package dogsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary checkpoint of an <code>Arena</code> between ticks: its size,
+ * walls and simulated time, every column of its <code>DogStore</code>,
+ * the ID, tag and generator state of each dog, and the order of the free
+ * IDs.  The spatial grid, clusters and snapshot are rebuilt by the next
+ * tick, so they are not saved.  Together with the ticks completed and a
+ * few values of the owner's own state, such as the generators deciding
+ * when dogs are added, a restored arena continues bit for bit as the
+ * original would have.
+ *
+ * Checkpoints are written and read through a memory-mapped file, with
+ * each store column copied in bulk.  A checkpoint is written to a
+ * temporary file and then moved over the old one, so a crash while
+ * writing leaves the previous checkpoint intact.  Only a single arena is
+ * covered; the ghosts and in-flight batches of a sharded simulation are
+ * not.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see DogStore
+ * @see DogRandom
+ * @see DogManager
+ */
+public class ArenaCheckpoint {
+	public static final int MAGIC = 0x4453434B;	//"DSCK"
+	public static final int VERSION = 1;
+
+	private final Arena fArena;		//restored arena
+	private final long fTicks;		//ticks completed when the checkpoint was written
+	private final long[] fState;	//owner's state
+
+	private ArenaCheckpoint(Arena aArena, long aTicks, long[] aState) {
+		fArena = aArena;
+		fTicks = aTicks;
+		fState = aState;
+	}
+
+	/**
+	 * Writes a checkpoint of an arena.  Must be called between ticks.
+	 *
+	 * @param aFile file to write, replaced once the checkpoint is complete
+	 * @param aArena arena to save
+	 * @param aTicks ticks completed
+	 * @param aState owner's state to save with the arena
+	 * @throws IOException if the file can't be written
+	 */
+	public static void write(File aFile, Arena aArena, long aTicks, long[] aState) throws IOException {
+		if (aFile == null)
+			throw new IllegalArgumentException("aFile must not be null.");
+		if (aArena == null)
+			throw new IllegalArgumentException("aArena must not be null.");
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		DogRegistry registry = aArena.getDogs();
+		DogStore store = aArena.getStore();
+		int capacity = registry.capacity();
+		int slots = store.capacity();
+		Dog[] dogs = new Dog[capacity];
+		int count = registry.copyTo(dogs);
+		int[] free = new int[capacity];
+		int freeCount = registry.freeIds(free);
+
+		long size = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 8 + 8 + 4 + 8L * aState.length +
+				(long) slots * (8 * 10 + 3) + 4 + 16L * count + 4 + 4L * freeCount;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("The arena is too large to checkpoint in one file.");
+
+		File tmp = new File(aFile.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+		try {
+			file.setLength(0);
+			MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+			out.putDouble(aArena.MAX_X);
+			out.putDouble(aArena.MAX_Y);
+			out.putInt(capacity);
+			out.putInt(slots - capacity);
+			out.putInt(aArena.getWalls());
+			out.putLong(aArena.getTime());
+			out.putLong(aTicks);
+			out.putInt(aState.length);
+			for (long v : aState) {
+				out.putLong(v);
+			}
+
+			putColumn(out, store.fX);
+			putColumn(out, store.fY);
+			putColumn(out, store.fPrevX);
+			putColumn(out, store.fPrevY);
+			putColumn(out, store.fDirection);
+			putColumn(out, store.fVelocity);
+			putColumn(out, store.fTemp);
+			putColumn(out, store.fMaxSpeed);
+			out.asLongBuffer().put(store.fHR);
+			out.position(out.position() + 8 * slots);
+			out.asLongBuffer().put(store.fTimeRested);
+			out.position(out.position() + 8 * slots);
+			out.put(store.fChasing);
+			out.put(store.fResting);
+			out.put(store.fPresent);
+
+			out.putInt(count);
+			for (int i = 0; i < count; i++) {
+				out.putInt(dogs[i].getID());
+				out.putInt(dogs[i].getTag());
+				out.putLong(dogs[i].getRandom().getState());
+			}
+			out.putInt(freeCount);
+			out.asIntBuffer().put(free, 0, freeCount);
+			out.force();
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), aFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a checkpoint, restoring its arena with all its dogs.
+	 *
+	 * @param aFile checkpoint file
+	 * @return the checkpoint
+	 * @throws IOException if the file can't be read or isn't a checkpoint
+	 */
+	public static ArenaCheckpoint read(File aFile) throws IOException {
+		if (aFile == null)
+			throw new IllegalArgumentException("aFile must not be null.");
+		RandomAccessFile file = new RandomAccessFile(aFile, "r");
+		try {
+			MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			if (in.remaining() < 8 || in.getInt() != MAGIC)
+				throw new IOException(aFile + " is not a checkpoint.");
+			int version = in.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + ".");
+			double width = in.getDouble();
+			double height = in.getDouble();
+			int capacity = in.getInt();
+			int ghosts = in.getInt();
+			int walls = in.getInt();
+			long time = in.getLong();
+			long ticks = in.getLong();
+			long[] state = new long[in.getInt()];
+			for (int i = 0; i < state.length; i++) {
+				state[i] = in.getLong();
+			}
+
+			Arena arena = new Arena(width, height, capacity, ghosts, walls);
+			arena.setTime(time);
+			DogStore store = arena.getStore();
+			int slots = store.capacity();
+			getColumn(in, store.fX);
+			getColumn(in, store.fY);
+			getColumn(in, store.fPrevX);
+			getColumn(in, store.fPrevY);
+			getColumn(in, store.fDirection);
+			getColumn(in, store.fVelocity);
+			getColumn(in, store.fTemp);
+			getColumn(in, store.fMaxSpeed);
+			in.asLongBuffer().get(store.fHR);
+			in.position(in.position() + 8 * slots);
+			in.asLongBuffer().get(store.fTimeRested);
+			in.position(in.position() + 8 * slots);
+			in.get(store.fChasing);
+			in.get(store.fResting);
+			in.get(store.fPresent);
+
+			DogRegistry registry = arena.getDogs();
+			int count = in.getInt();
+			for (int i = 0; i < count; i++) {
+				int id = in.getInt();
+				int tag = in.getInt();
+				registry.add(new Dog(arena, id, tag, new DogRandom(in.getLong())));
+			}
+			int[] free = new int[in.getInt()];
+			in.asIntBuffer().get(free);
+			registry.setFreeIds(free, free.length);
+			return new ArenaCheckpoint(arena, ticks, state);
+		} catch (RuntimeException e) {
+			//a truncated file underflows, a damaged one has impossible IDs
+			throw new IOException(aFile + " is not a valid checkpoint.", e);
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void putColumn(MappedByteBuffer aOut, double[] aColumn) {
+		aOut.asDoubleBuffer().put(aColumn);
+		aOut.position(aOut.position() + 8 * aColumn.length);
+	}
+
+	private static void getColumn(MappedByteBuffer aIn, double[] aColumn) {
+		aIn.asDoubleBuffer().get(aColumn);
+		aIn.position(aIn.position() + 8 * aColumn.length);
+	}
+
+	/**
+	 * @return the restored arena, with its dogs and simulated time.
+	 */
+	public Arena getArena() {
+		return fArena;
+	}
+
+	/**
+	 * @return ticks completed when the checkpoint was written.
+	 */
+	public long getTicks() {
+		return fTicks;
+	}
+
+	/**
+	 * @return the owner's state saved with the arena.
+	 */
+	public long[] getState() {
+		return fState;
+	}
+}
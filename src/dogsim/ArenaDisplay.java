@@ -6,14 +6,14 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
+import java.awt.GraphicsConfiguration;
 import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.Vector;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;        
@@ -32,11 +32,16 @@ import javax.swing.*;
  * The interaction space shows the most dense cluster of dogs
  * by highlighting it in red.  When dogs get close to one another
  * and are highlighted, their ID numbers are shown on a watch list.
+ * The cluster is maintained by the arena's <code>ClusterTracker</code>.
+ * 
+ * Everything is drawn from the <code>ArenaSnapshot</code> the simulation
+ * publishes at the end of each tick, so the display never locks the
+ * simulation.
  * 
  * @author Karel Bergmann
  *
  * @see Arena
- * @see Dog
+ * @see ArenaSnapshot
  */
 public class ArenaDisplay {
 	private Arena fArena;		//Arena to display
@@ -44,7 +49,8 @@ public class ArenaDisplay {
 	private JTextArea fText;	//dog monitor
 	
 	/**
-	 * Constructor with <code>Arena</code> to display.
+	 * Constructor with <code>Arena</code> to display.  Registers the
+	 * display as a reader of the arena's snapshots.
 	 * 
 	 * @param aArena The <code>Arena</code> to show.
 	 * 
@@ -53,6 +59,7 @@ public class ArenaDisplay {
 	public ArenaDisplay(Arena aArena) {
 		super();
 		fArena = aArena;
+		fArena.addSnapshotReader();
 	}
 	
     /**
@@ -75,11 +82,34 @@ public class ArenaDisplay {
         frame.pack();
         frame.setVisible(true);
     }
+    
+    /**
+     * @return duration of the most recently drawn frame in
+     * 				nanoseconds, or 0 before the window is shown.
+     */
+    public long getLastFrameNanos() {
+    	return dpnl == null ? 0 : dpnl.getLastFrameNanos();
+    }
+    
+    /**
+     * @return mean duration of the frames drawn so far in
+     * 				nanoseconds, or 0 before the first frame.
+     */
+    public long getAverageFrameNanos() {
+    	return dpnl == null ? 0 : dpnl.getAverageFrameNanos();
+    }
 }
 
 /**
  * Displays the interaction area and controls the dog monitor.
  * 
+ * Images are decoded once.  The background is pre-scaled into a cached
+ * static layer, and the dog icon into a sprite, both compatible with the
+ * screen so they can be drawn without conversion or scaling.  A frame
+ * then costs one copy of the static layer plus a sprite and a label per
+ * dog.  The time taken by each frame is recorded, and is also kept in
+ * the default <code>Metrics</code> registry.
+ * 
  * @author Karel Bergmann
  */
 class DrawPanel extends JPanel {
@@ -92,14 +122,31 @@ class DrawPanel extends JPanel {
 	private static int POPUP_WIDTH = 200;
 	private static int POPUP_HEIGHT = 30;
 	private static int POPUP_OFFSET = 20;
-	private static int CLUSTER_RANGE = 200;
+	private static final LatencyHistogram FRAME_TIME = Metrics.getDefault().histogram(
+			"dogsim_frame_seconds", null, "Time taken to paint a frame of the arena display.");
+	private static final AlphaComposite OPAQUE = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f);
+	private static final AlphaComposite CLUSTER_FILL = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f);
+	private static final AlphaComposite WATCH_FILL = AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f);
 	
 	private Arena fArena;						//the arena to paint
 	private JTextArea fText;					//the dog monitor
 	private int activeDogID = -1;				//the dog to display in dog monitor
+	private BufferedImage fBack;				//decoded background image
+	private BufferedImage fDog;					//decoded dog icon
+	private GraphicsConfiguration fConfig;		//screen the cached images were made for
+	private BufferedImage fStatic;				//background scaled to the canvas
+	private BufferedImage fSprite;				//dog icon scaled to DOG_W x DOG_H
+	private double fScaleX;						//canvas pixels per arena unit, horizontally
+	private double fScaleY;						//canvas pixels per arena unit, vertically
+	private String[] fLabels;					//ID labels, indexed by dog ID
+	private ClusterTracker.Cluster fWatched;	//cluster fWatchList was built for
+	private String fWatchList;					//watch list text of fWatched
+	private volatile long fFrames;				//frames drawn
+	private volatile long fLastFrameNanos;		//duration of the most recent frame
+	private volatile long fTotalFrameNanos;		//duration of all frames drawn
 	
 	/**
-	 * Constructor, sets up timer to animate display.
+	 * Constructor, decodes the images and sets up timer to animate display.
 	 * 
 	 * @param aArena The arena to display
 	 * @param aText The dog monitor at the bottom of the page
@@ -108,6 +155,11 @@ class DrawPanel extends JPanel {
 		super();
 		fText = aText;
 		fArena = aArena;
+		fBack = loadImage("back.jpg");
+		fDog = loadImage("dog.png");
+		fScaleX = DISPLAY_WIDTH / aArena.MAX_X;
+		fScaleY = DISPLAY_HEIGHT / aArena.MAX_Y;
+		fLabels = new String[aArena.getStore().capacity()];
 		
 		//Set up a repaint every 10 milliseconds
 		this.setPreferredSize(new Dimension(DISPLAY_WIDTH, DISPLAY_HEIGHT));
@@ -138,211 +190,242 @@ class DrawPanel extends JPanel {
 	}
 	
 	/**
-	 * Draws everything on the canvas and updates the
-	 * dog monitor.
+	 * Scales an image once into a new image compatible with the
+	 * screen, so that drawing it needs neither scaling nor conversion.
+	 * 
+	 * @param aImage image to scale, may be null
+	 * @param aWidth width of the new image
+	 * @param aHeight height of the new image
+	 * @param aTransparency transparency of the new image
+	 * @return the scaled image
+	 */
+	private BufferedImage prescale(BufferedImage aImage, int aWidth, int aHeight, int aTransparency) {
+		BufferedImage scaled = fConfig != null ?
+				fConfig.createCompatibleImage(aWidth, aHeight, aTransparency) :
+				new BufferedImage(aWidth, aHeight, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2d = scaled.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(aImage, 0, 0, aWidth, aHeight, null);
+		g2d.dispose();
+		return scaled;
+	}
+	
+	/**
+	 * Builds the static layer and the dog sprite for the current
+	 * screen, unless they were already built for it.
+	 */
+	private void prepareImages() {
+		GraphicsConfiguration config = getGraphicsConfiguration();
+		if (fStatic != null && config == fConfig)
+			return;
+		fConfig = config;
+		fStatic = prescale(fBack, DISPLAY_WIDTH, DISPLAY_HEIGHT, Transparency.OPAQUE);
+		fSprite = prescale(fDog, DOG_W, DOG_H, Transparency.TRANSLUCENT);
+	}
+	
+	/**
+	 * Draws everything on the canvas from the arena's latest
+	 * snapshot and updates the dog monitor.
 	 * 
 	 * @param g Graphics context
 	 */
     private void doDrawing(Graphics g) {
 
         Graphics2D g2d = (Graphics2D) g;
+        ArenaSnapshot snap = fArena.getSnapshot();
         
-        //set the background image to match the canvas dimensions.
-        Image back = loadImage("back.jpg");
-        g2d.drawImage(back, 0, 0, DISPLAY_WIDTH, DISPLAY_HEIGHT, null);
+        //draw the cached background layer.
+        prepareImages();
+        g2d.drawImage(fStatic, 0, 0, null);
         
         //draw the dogs
-        drawDogs (g2d);
+        drawDogs (g2d, snap);
         
         //see if the mouse is hovering over a dog icon.
         Point mouse = this.getMousePosition();
         //for each dog, see if the mouse is pointing at its icon.
-        for (Dog d : fArena.getDogs()) {
-        	if ((mouse != null) &&
-        		(mouse.x > calculateLocation(d).x - (DOG_W/2)) &&
-        		(mouse.x < calculateLocation(d).x + (DOG_W/2)) &&
-        		(mouse.y > calculateLocation(d).y - (DOG_H/2)) &&
-        		(mouse.y < calculateLocation(d).y + (DOG_H/2))) {
+        for (int i = 0; mouse != null && i < snap.fCount; i++) {
+        	int x = canvasX(snap.fX[i]);
+        	int y = canvasY(snap.fY[i]);
+        	if ((mouse.x > x - (DOG_W/2)) &&
+        		(mouse.x < x + (DOG_W/2)) &&
+        		(mouse.y > y - (DOG_H/2)) &&
+        		(mouse.y < y + (DOG_H/2))) {
         		
         		//if so, show a white rectangle with dog info in it.
         		g2d.setColor(Color.white);
         		g2d.fillRect(mouse.x, mouse.y, POPUP_WIDTH, POPUP_HEIGHT);
         		g2d.setColor(Color.blue);
-        		g2d.drawString("ID" + d.getID() + " " + d.getHR() + " BPM  " + d.getTemp() + " C", 
+        		g2d.drawString("ID" + snap.fIds[i] + " " + snap.fHR[i] + " BPM  " + snap.fTemp[i] + " C", 
         				mouse.x+POPUP_OFFSET, mouse.y+POPUP_OFFSET);
         		
         		//update the dog monitor to show the same info.
         		//set the selected dog to be displayed in the dog monitor
-        		fText.setText("ID" + d.getID() + " " + d.getHR() + " BPM  " + d.getTemp() + " C");
-        		activeDogID = d.getID();
+        		fText.setText("ID" + snap.fIds[i] + " " + snap.fHR[i] + " BPM  " + snap.fTemp[i] + " C");
+        		activeDogID = snap.fIds[i];
         		break;
         	}
         }
         
         //If the selected dog is still in the simulation
         //show its vitals in the dog monitor
-        boolean activeDogFound = false;
-        for (Dog d : fArena.getDogs()) {
-        	if (d.getID() == activeDogID) {
-        		fText.setForeground(Color.blue);
-        		fText.setText("ID" + d.getID() + " " + d.getHR() + " BPM  " + d.getTemp() + " C  " +
-        					  "X-COORD " + (int)d.getX() + "  Y-COORD " + (int)d.getY());
-        		
-        		//draw a blue rectangle around the dog being monitored
-        		g2d.setColor(Color.blue);
-        		Point pos = calculateLocation(d);
-        		g2d.drawRoundRect((int)pos.getX() - DOG_W/2,
-        				(int)pos.getY() - DOG_H/2,
-        				DOG_W,
-        				DOG_H,
-        				5, 5);
-        		activeDogFound = true;
-        	}
+        int active = activeDogID < 0 ? -1 : snap.indexOf(activeDogID);
+        if (active >= 0) {
+        	fText.setForeground(Color.blue);
+        	fText.setText("ID" + snap.fIds[active] + " " + snap.fHR[active] + " BPM  " + snap.fTemp[active] + " C  " +
+        				  "X-COORD " + (int)snap.fX[active] + "  Y-COORD " + (int)snap.fY[active]);
+        	
+        	//draw a blue rectangle around the dog being monitored
+        	g2d.setColor(Color.blue);
+        	g2d.drawRoundRect(canvasX(snap.fX[active]) - DOG_W/2,
+        			canvasY(snap.fY[active]) - DOG_H/2,
+        			DOG_W,
+        			DOG_H,
+        			5, 5);
         }
-        
         //if the monitored dog is no longer present, clear the monitor.
-        if (activeDogFound == false) {
+        else if (activeDogID >= 0) {
         	activeDogID = -1;
         	fText.setText("");
         }
         
-        //Find and highlight the most dense dog cluster
-        Dog root = null;		//centroid candidate
-        Dog northest = null;	//highest most cluster member
-        Dog westest = null;		//left most cluster member
-        Dog southest = null;	//lowest most cluster member
-        Dog eastest = null;		//right most cluster member
-        Vector<Dog> rootVector = new Vector<Dog>(0, 1);		//dogs in the cluster
-        
-        //Examine each dog as a centroid candidate
-        for (Dog d1 : fArena.getDogs()) {
-        	Vector<Dog> testVector = new Vector<Dog>(0, 1);
-        	Dog south = d1;
-        	Dog east = d1;
-        	Dog north = d1;
-        	Dog west = d1;
-        	
-        	//For every other dog in the arena
-        	for (Dog d2 : fArena.getDogs()) {
-        		//if it is in clustering range
-        		if ((!d2.equals(d1)) &&
-        			(Point2D.distance(d1.getX(), d1.getY(), d2.getX(), d2.getY()) < CLUSTER_RANGE)) {
-        			//add the dog to the cluster
-        			//expand the bounding box to the new dog, if necessary.
-        			testVector.add(d2);
-        			if (d2.getX() > east.getX())
-        				east = d2;
-        			if (d2.getY() > south.getY())
-        				south = d2;
-        			if (d2.getX() < west.getX())
-        				west = d2;
-        			if (d2.getY() < north.getY())
-        				north = d2;
-        		}
-        	}
-        	
-        	//check if this is the biggest cluster
-        	if (testVector.size() > rootVector.size()) {
-        		root = d1;
-        		rootVector = testVector;
-        		southest = south;
-        		eastest = east;
-        		northest = north;
-        		westest = west;
-        	}	
-        }
+        //Highlight the most dense dog cluster, as tracked by the simulation
+        ClusterTracker.Cluster cluster = snap.fCluster;
         
         //If a largest cluster has been detected...
-        if (root != null) {
+        if (cluster != null) {
         	//find cluster boundaries on canvas.
-        	Point pSouth = calculateLocation(southest);
-        	Point pEast = calculateLocation(eastest);
-        	Point pNorth = calculateLocation(northest);
-        	Point pWest = calculateLocation(westest);
+        	int west = canvasX(cluster.fMinX);
+        	int north = canvasY(cluster.fMinY);
+        	int east = canvasX(cluster.fMaxX);
+        	int south = canvasY(cluster.fMaxY);
         	
         	//draw a box over the cluster
         	g2d.setColor(Color.red);
-        	g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.3f));
-        	g2d.fillRoundRect((int)pWest.getX() - DOG_W/2,
-    				(int)pNorth.getY() - DOG_H/2,
-    				((int)pEast.getX() - (int)pWest.getX()) + DOG_W,
-    				((int)pSouth.getY() - (int)pNorth.getY()) + DOG_H,
+        	g2d.setComposite(CLUSTER_FILL);
+        	g2d.fillRoundRect(west - DOG_W/2,
+    				north - DOG_H/2,
+    				(east - west) + DOG_W,
+    				(south - north) + DOG_H,
     				15, 15);	
         	
         	//draw a border around the box
-        	g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f));
-        	g2d.drawRoundRect((int)pWest.getX() - DOG_W/2,
-    				(int)pNorth.getY() - DOG_H/2,
-    				((int)pEast.getX() - (int)pWest.getX()) + DOG_W,
-    				((int)pSouth.getY() - (int)pNorth.getY()) + DOG_H,
+        	g2d.setComposite(OPAQUE);
+        	g2d.drawRoundRect(west - DOG_W/2,
+    				north - DOG_H/2,
+    				(east - west) + DOG_W,
+    				(south - north) + DOG_H,
     				15, 15);	
         	
-        	//display a watch list of dogs in the cluster in case they fight
-        	String watchList = "Watch List: " + root.getID();
-        	for (Dog d : rootVector) {
-        		watchList = watchList + ", " + d.getID();
+        	//display a watch list of dogs in the cluster in case they fight,
+        	//built once per cluster
+        	if (cluster != fWatched) {
+        		fWatchList = "Watch List: " + cluster.watchList();
+        		fWatched = cluster;
         	}
         	g2d.setColor(Color.white);
-        	g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 0.5f));
+        	g2d.setComposite(WATCH_FILL);
         	g2d.fillRect(0, 0, 200, 20);
         	g2d.setColor(Color.red);
-        	g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, 1f));
-        	g2d.drawString(watchList, 0, 15);
+        	g2d.setComposite(OPAQUE);
+        	g2d.drawString(fWatchList, 0, 15);
         }
     }
 
     /**
      * Draw the dogs on the interaction space based on positions in the
-     * arena.
+     * arena's snapshot.
      * 
      * @param g2d Graphics context
+     * @param aSnap snapshot to draw
      */
-    private void drawDogs (Graphics2D g2d) {
-    	Vector<Dog> dogs = fArena.getDogs();
-    	//build dog image.
-        Image dog = loadImage("dog.png");
-        
+    private void drawDogs (Graphics2D g2d, ArenaSnapshot aSnap) {
+    	g2d.setColor(Color.white);
+    	
     	//for each dog, calculate the position on the canvas
     	//and show the icon.
-    	for (Dog d : dogs) {
-    		Point location = calculateLocation(d);
+    	for (int i = 0; i < aSnap.fCount; i++) {
+    		int x = canvasX(aSnap.fX[i]);
+    		int y = canvasY(aSnap.fY[i]);
     		
     		//center the icon around the location
-        	g2d.drawImage(dog, location.x - DOG_W/2, location.y - DOG_H/2, DOG_W, DOG_H, null);
+        	g2d.drawImage(fSprite, x - DOG_W/2, y - DOG_H/2, null);
         	
         	//draw the id number in the icon
-        	g2d.setColor(Color.white);
-        	g2d.drawString("" + d.getID(), location.x-8, location.y+5);
+        	g2d.drawString(label(aSnap.fIds[i]), x-8, y+5);
         }
     }
     
     /**
-     * Calculates the location of a dog on the canvas,
-     * given the location of the dog in the arena.
+     * @param aId dog ID
+     * @return the label drawn on the dog's icon, created on first use.
+     */
+    private String label(int aId) {
+    	String label = fLabels[aId];
+    	if (label == null) {
+    		label = Integer.toString(aId);
+    		fLabels[aId] = label;
+    	}
+    	return label;
+    }
+    
+    /**
+     * Calculates the horizontal location of a dog on the
+     * canvas, given its x-coordinate in the arena.
      * 
-     * @param aDog The dog whose canvas position to find.
-     * @return Point indicating the dog's relative position on
-     * 				 the canvas, given location in the arena.
+     * @param aX The dog's x-coordinate in the arena.
+     * @return the dog's x-coordinate on the canvas.
      * 
      * @see Arena
-     * @see Dog
      */
-    private Point calculateLocation(Dog aDog) {
-    	int xLoc = (int) (aDog.getX() * DISPLAY_WIDTH / fArena.MAX_X);
-    	int yLoc = (int) (aDog.getY() * DISPLAY_HEIGHT / fArena.MAX_Y);
-    	return new Point(xLoc, yLoc);
+    private int canvasX(double aX) {
+    	return (int) (aX * fScaleX);
     }
     
     /**
-     * Paint the component.  Lock while doing this
-     * to prevent <code>ConcurrentModificationException</code>s
-     * pertaining to the Dogs Vector in Arena.
+     * Calculates the vertical location of a dog on the
+     * canvas, given its y-coordinate in the arena.
+     * 
+     * @param aY The dog's y-coordinate in the arena.
+     * @return the dog's y-coordinate on the canvas.
+     * 
+     * @see Arena
+     */
+    private int canvasY(double aY) {
+    	return (int) (aY * fScaleY);
+    }
+    
+    /**
+     * Paint the component.  Drawing reads only the arena's latest
+     * <code>ArenaSnapshot</code>, so no lock is held and painting
+     * never holds up the simulation.  The frame is timed.
      */
     @Override
     public void paintComponent(Graphics g) {
-        synchronized(DogManager.elock) {
-        	super.paintComponent(g);
-        	doDrawing(g);
-        }
+    	long start = System.nanoTime();
+    	super.paintComponent(g);
+    	doDrawing(g);
+    	long nanos = System.nanoTime() - start;
+    	fLastFrameNanos = nanos;
+    	fTotalFrameNanos += nanos;
+    	fFrames++;
+    	FRAME_TIME.record(nanos);
+    }
+    
+    public long getFrames() {
+    	return fFrames;
+    }
+    
+    public long getLastFrameNanos() {
+    	return fLastFrameNanos;
+    }
+    
+    /**
+     * @return mean duration of the frames drawn so far in
+     * 				nanoseconds, or 0 before the first frame.
+     */
+    public long getAverageFrameNanos() {
+    	long frames = fFrames;
+    	return frames == 0 ? 0 : fTotalFrameNanos / frames;
     }
 }
@@ -0,0 +1,117 @@
+package dogsim;
+
+/**
+ * Immutable picture of an <code>Arena</code> at the end of a tick: the
+ * IDs, positions and vital signs of the dogs present, and the densest
+ * cluster.  While a reader such as the GUI is registered with the
+ * arena, the <code>SimulationEngine</code> captures one snapshot per tick
+ * and publishes it through the arena, where the reader picks up the
+ * latest one without locking and without touching the live
+ * <code>DogStore</code>.  A reader may hold on to a snapshot for as long
+ * as it likes.
+ *
+ * Dog <code>i</code> of the snapshot, for <code>i</code> below
+ * <code>fCount</code>, is described by element <code>i</code> of each
+ * array.  The arrays must not be modified.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena#getSnapshot()
+ * @see SimulationEngine
+ * @see ClusterTracker
+ */
+public class ArenaSnapshot {
+	/**
+	 * Snapshot of an arena before its first tick.
+	 */
+	public static final ArenaSnapshot EMPTY = new ArenaSnapshot(0, 0, new int[0], new double[0],
+			new double[0], new long[0], new double[0], null);
+
+	public final long fTick;		//number of the tick the snapshot ends
+	public final long fTime;		//simulated time of the tick in milliseconds
+	public final int fCount;		//number of dogs in the snapshot
+	public final int[] fIds;		//dog IDs
+	public final double[] fX;		//x-coordinates
+	public final double[] fY;		//y-coordinates
+	public final long[] fHR;		//heart rates
+	public final double[] fTemp;	//body temperatures
+	public final ClusterTracker.Cluster fCluster;	//densest cluster, null if none
+
+	private ArenaSnapshot(long aTick, long aTime, int[] aIds, double[] aX, double[] aY,
+			long[] aHR, double[] aTemp, ClusterTracker.Cluster aCluster) {
+		fTick = aTick;
+		fTime = aTime;
+		fCount = aIds.length;
+		fIds = aIds;
+		fX = aX;
+		fY = aY;
+		fHR = aHR;
+		fTemp = aTemp;
+		fCluster = aCluster;
+	}
+
+	/**
+	 * Copies the current state of the given dogs out of a store.
+	 * Called by the simulation thread once the dogs have moved.
+	 *
+	 * @param aTick number of the tick
+	 * @param aTime simulated time of the tick
+	 * @param aStore store holding the dogs' state
+	 * @param aSlots store slots (dog IDs) of the dogs to capture
+	 * @param aCount number of slots in <code>aSlots</code>
+	 * @param aCluster densest cluster, or null if none
+	 * @return the new snapshot
+	 */
+	public static ArenaSnapshot capture(long aTick, long aTime, DogStore aStore,
+			int[] aSlots, int aCount, ClusterTracker.Cluster aCluster) {
+		int[] ids = new int[aCount];
+		double[] x = new double[aCount];
+		double[] y = new double[aCount];
+		long[] hr = new long[aCount];
+		double[] temp = new double[aCount];
+		for (int i = 0; i < aCount; i++) {
+			int slot = aSlots[i];
+			ids[i] = slot;
+			x[i] = aStore.fX[slot];
+			y[i] = aStore.fY[slot];
+			hr[i] = aStore.fHR[slot];
+			temp[i] = aStore.fTemp[slot];
+		}
+		return new ArenaSnapshot(aTick, aTime, ids, x, y, hr, temp, aCluster);
+	}
+
+	/**
+	 * Wraps arrays describing dogs which aren't in a <code>DogStore</code>,
+	 * such as dogs replayed from a journal.  The arrays become the
+	 * snapshot's, and must not be modified afterwards.
+	 *
+	 * @param aTick number of the tick
+	 * @param aTime simulated time of the tick
+	 * @param aIds dog IDs
+	 * @param aX x-coordinates
+	 * @param aY y-coordinates
+	 * @param aHR heart rates
+	 * @param aTemp body temperatures
+	 * @param aCluster densest cluster, or null if none
+	 * @return the new snapshot
+	 */
+	public static ArenaSnapshot of(long aTick, long aTime, int[] aIds, double[] aX, double[] aY,
+			long[] aHR, double[] aTemp, ClusterTracker.Cluster aCluster) {
+		int n = aIds.length;
+		if (aX.length != n || aY.length != n || aHR.length != n || aTemp.length != n)
+			throw new IllegalArgumentException("The arrays must all have the same length.");
+		return new ArenaSnapshot(aTick, aTime, aIds, aX, aY, aHR, aTemp, aCluster);
+	}
+
+	/**
+	 * @param aId dog ID
+	 * @return index of the dog in the snapshot, or -1 if it was not present.
+	 */
+	public int indexOf(int aId) {
+		for (int i = 0; i < fCount; i++) {
+			if (fIds[i] == aId)
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,418 @@
+package dogsim;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Non-blocking telemetry sink for the DogPark web service.  Like the
+ * <code>TelemetryUplink</code>, snapshots are queued by <code>emit</code>
+ * and a single dispatcher thread coalesces them into batches, but each
+ * batch is sent asynchronously through a <code>java.net.http.HttpClient</code>,
+ * whose NIO selector thread multiplexes every request and keeps
+ * connections alive for reuse.  Up to <code>MAX_IN_FLIGHT</code> batches
+ * are outstanding at once, so a slow server is met with concurrency
+ * instead of stalling the sender, and the connection pool never grows
+ * beyond that bound.
+ *
+ * A batch which fails with an I/O error or a 5xx or 429 response is
+ * retried up to <code>MAX_RETRIES</code> times, after an exponential
+ * backoff starting at <code>BACKOFF</code> milliseconds, doubling each
+ * time up to <code>MAX_BACKOFF</code>, with random jitter so that
+ * retries after an outage don't arrive together.  A batch being retried
+ * keeps its in-flight slot, so retries slow the dispatcher down rather
+ * than piling up.  Other 4xx responses are not retried.  Batches given
+ * up on are reported through an <code>OutageLog</code>.
+ *
+ * <code>emit</code> only offers the snapshot to a bounded queue and never
+ * blocks, whatever the server does: once the queue is full new snapshots
+ * are dropped and counted.  Snapshots are copied into records which are
+ * reused once their batch has been serialized, as in the
+ * <code>TelemetryUplink</code>.
+ *
+ * @author Karel Bergmann
+ *
+ * @see TelemetrySink
+ * @see TelemetryUplink
+ * @see DogParkStub
+ * @see Metrics
+ */
+public class AsyncHttpSink implements TelemetrySink, Runnable, Metrics.Source {
+	private static int QUEUE_CAPACITY = 10000;	//snapshots buffered before new ones are dropped
+	private static int BATCH_SIZE = 100;		//most snapshots sent in one request
+	private static long LINGER = 50;			//milliseconds to wait for a batch to fill
+	private static int MAX_IN_FLIGHT = 16;		//most batches outstanding, including retries
+	private static int MAX_RETRIES = 5;			//attempts after the first before a batch is failed
+	private static long BACKOFF = 100;			//milliseconds before the first retry
+	private static long MAX_BACKOFF = 5000;		//longest wait between retries
+	private static long CONNECT_TIMEOUT = 2000;	//milliseconds to connect to the server
+	private static long REQUEST_TIMEOUT = 5000;	//milliseconds to wait for a response
+
+	private static final LatencyHistogram REQUEST_TIME = Metrics.getDefault().histogram(
+			"dogsim_async_request_seconds", null, "Duration of an asynchronous telemetry request attempt.");
+
+	private final URI fUri;						//endpoint batches are sent to
+	private final TelemetryUplink.Encoding fEncoding;	//wire format of the batches
+	private final HttpClient fClient;			//pooled non-blocking client
+	private final ArrayBlockingQueue<DogState> fQueue;	//snapshots awaiting delivery
+	private final ArrayBlockingQueue<DogState> fFree;	//records to copy snapshots into, reused
+	private final ArrayList<DogState> fBatch;	//batch being assembled, dispatcher only
+	private final DogStateWriter fPayload;		//JSON payload being assembled, dispatcher only
+	private final DogStateCodec fFrame;			//binary payload being assembled, dispatcher only
+	private final int fMaxInFlight;				//most batches outstanding
+	private final Semaphore fInFlight;			//slots for outstanding batches
+	private final OutageLog fOutage;			//reports batches given up on
+	private final Thread fDispatcher;			//thread assembling and sending batches
+	private volatile int fBatchSize;			//most snapshots per request
+	private volatile boolean fRunning;			//state variable for the dispatcher loop
+
+	private final AtomicLong fOffered = new AtomicLong();	//snapshots emitted to the sink
+	private final AtomicLong fDropped = new AtomicLong();	//snapshots discarded as the queue was full
+	private final AtomicLong fSent = new AtomicLong();		//snapshots delivered
+	private final AtomicLong fRequests = new AtomicLong();	//request attempts completed, good or bad
+	private final AtomicLong fRetries = new AtomicLong();	//request attempts which were retries
+	private final AtomicLong fFailed = new AtomicLong();	//snapshots lost after the last retry
+
+	/**
+	 * Constructor using the default queue capacity, batch size and
+	 * linger, with JSON batches.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 */
+	public AsyncHttpSink(String aUrl) {
+		this(aUrl, TelemetryUplink.Encoding.JSON);
+	}
+
+	/**
+	 * Constructor using the default queue capacity, batch size and
+	 * linger, with the given wire format.  The dispatcher thread is
+	 * started immediately.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 * @param aEncoding wire format of the batches
+	 */
+	public AsyncHttpSink(String aUrl, TelemetryUplink.Encoding aEncoding) {
+		if (aUrl == null)
+			throw new IllegalArgumentException("aUrl must not be null.");
+		if (aEncoding == null)
+			throw new IllegalArgumentException("aEncoding must not be null.");
+		try {
+			fUri = URI.create(aUrl);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("aUrl is not a valid URL.", e);
+		}
+		fEncoding = aEncoding;
+		fClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+				.build();
+		fQueue = new ArrayBlockingQueue<DogState>(QUEUE_CAPACITY);
+		fFree = new ArrayBlockingQueue<DogState>(QUEUE_CAPACITY + BATCH_SIZE);
+		fBatchSize = BATCH_SIZE;
+		fBatch = new ArrayList<DogState>(BATCH_SIZE);
+		fPayload = new DogStateWriter();
+		fFrame = new DogStateCodec();
+		fMaxInFlight = MAX_IN_FLIGHT;
+		fInFlight = new Semaphore(fMaxInFlight);
+		fOutage = new OutageLog("Telemetry server " + aUrl, "batches");
+
+		fRunning = true;
+		fDispatcher = new Thread(this, "AsyncHttpSink");
+		fDispatcher.setDaemon(true);
+		fDispatcher.start();
+	}
+
+	/**
+	 * Offers a copy of a snapshot to the queue, without blocking.
+	 *
+	 * @param aState snapshot to deliver
+	 * @return true if the snapshot was queued, false if the queue was full.
+	 */
+	@Override
+	public boolean emit(DogState aState) {
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		fOffered.incrementAndGet();
+		DogState copy = fFree.poll();
+		if (copy == null)
+			copy = new DogState();
+		copy.set(aState);
+		if (fQueue.offer(copy))
+			return true;
+		fDropped.incrementAndGet();
+		fFree.offer(copy);
+		return false;
+	}
+
+	/**
+	 * Stops the dispatcher once the snapshots already queued have been
+	 * sent, and waits for every outstanding batch, including its retries,
+	 * to complete.
+	 */
+	@Override
+	public void close() {
+		fRunning = false;
+		fDispatcher.interrupt();
+		try {
+			fDispatcher.join();
+			fInFlight.acquire(fMaxInFlight);
+			fInFlight.release(fMaxInFlight);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Dispatcher loop.  Waits for a first snapshot, gathers more until
+	 * the batch is full or the linger time has passed, waits for an
+	 * in-flight slot and sends the batch.
+	 */
+	@Override
+	public void run() {
+		long linger = TimeUnit.MILLISECONDS.toNanos(LINGER);
+		while (fRunning || !fQueue.isEmpty()) {
+			try {
+				DogState first = fQueue.poll(LINGER, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				fBatch.add(first);
+
+				//fill the batch until it is full or the linger time expires
+				int batchSize = fBatchSize;
+				long deadline = System.nanoTime() + linger;
+				while (fBatch.size() < batchSize) {
+					if (fQueue.drainTo(fBatch, batchSize - fBatch.size()) > 0)
+						continue;
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0 || !fRunning)
+						break;
+					DogState next = fQueue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					fBatch.add(next);
+				}
+			} catch (InterruptedException e) {
+				//keep going, fRunning decides
+			}
+
+			if (!fBatch.isEmpty()) {
+				HttpRequest request = encode();
+				int count = fBatch.size();
+				for (int i = 0; i < count; i++) {
+					fFree.offer(fBatch.get(i));
+				}
+				fBatch.clear();
+				fInFlight.acquireUninterruptibly();
+				send(request, count, 0);
+			}
+		}
+	}
+
+	/**
+	 * Serializes the current batch into a request of its own, since
+	 * it outlives the reused buffers.
+	 */
+	private HttpRequest encode() {
+		byte[] payload;
+		String type;
+		if (fEncoding == TelemetryUplink.Encoding.BINARY) {
+			fFrame.reset();
+			for (int i = 0; i < fBatch.size(); i++) {
+				fFrame.write(fBatch.get(i));
+			}
+			fFrame.finish();
+			payload = Arrays.copyOf(fFrame.buffer(), fFrame.length());
+			type = DogStateCodec.CONTENT_TYPE;
+		}
+		else {
+			fPayload.reset();
+			if (fBatch.size() == 1) {
+				fPayload.write(fBatch.get(0));
+			}
+			else {
+				fPayload.beginArray();
+				for (int i = 0; i < fBatch.size(); i++) {
+					fPayload.write(fBatch.get(i));
+				}
+				fPayload.endArray();
+			}
+			payload = Arrays.copyOf(fPayload.buffer(), fPayload.length());
+			type = "text/plain; charset=UTF-8";
+		}
+		return HttpRequest.newBuilder(fUri)
+				.timeout(Duration.ofMillis(REQUEST_TIMEOUT))
+				.header("Content-Type", type)
+				.PUT(HttpRequest.BodyPublishers.ofByteArray(payload))
+				.build();
+	}
+
+	/**
+	 * Sends one attempt of a batch.  The outcome is handled on one of
+	 * the client's threads, which releases the batch's in-flight slot once
+	 * it has been delivered or given up on.
+	 *
+	 * @param aRequest request carrying the batch
+	 * @param aCount snapshots in the batch
+	 * @param aAttempt attempts made before this one
+	 */
+	private void send(final HttpRequest aRequest, final int aCount, final int aAttempt) {
+		final long start = System.nanoTime();
+		fClient.sendAsync(aRequest, HttpResponse.BodyHandlers.discarding())
+			.whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+				public void accept(HttpResponse<Void> aResponse, Throwable aError) {
+					REQUEST_TIME.recordSince(start);
+					fRequests.incrementAndGet();
+					int status = aResponse == null ? 0 : aResponse.statusCode();
+					if (aError == null && status < 400) {
+						fSent.addAndGet(aCount);
+						fInFlight.release();
+						fOutage.succeeded();
+						if (Log.isEnabled(Log.Level.DEBUG))
+							Log.debug("Sent " + aCount + " snapshots: " + status);
+						return;
+					}
+					boolean retryable = aError != null || status >= 500 || status == 429;
+					if (retryable && aAttempt < MAX_RETRIES) {
+						retry(aRequest, aCount, aAttempt + 1);
+						return;
+					}
+					fFailed.addAndGet(aCount);
+					fInFlight.release();
+					fOutage.failed("Failed to send " + aCount + " snapshots after " + (aAttempt + 1) +
+							" attempts" + (aError == null ? ", answered " + status : ""), aError);
+				}
+			});
+	}
+
+	/**
+	 * Sends a batch again after an exponential backoff with jitter.
+	 *
+	 * @param aRequest request carrying the batch
+	 * @param aCount snapshots in the batch
+	 * @param aAttempt attempts made so far, at least 1
+	 */
+	private void retry(final HttpRequest aRequest, final int aCount, final int aAttempt) {
+		long backoff = Math.min(MAX_BACKOFF, BACKOFF << Math.min(aAttempt - 1, 20));
+		long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+		fRetries.incrementAndGet();
+		Executor later = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+		later.execute(new Runnable() {
+			public void run() {
+				send(aRequest, aCount, aAttempt);
+			}
+		});
+	}
+
+	/**
+	 * Reads the defaults of new sinks: <code>queueCapacity</code>,
+	 * <code>batchSize</code>, <code>linger</code>, <code>maxInFlight</code>,
+	 * <code>maxRetries</code>, <code>backoff</code>, <code>maxBackoff</code>,
+	 * <code>connectTimeout</code> and <code>readTimeout</code>.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		int capacity = aConfig.getInt("queueCapacity", QUEUE_CAPACITY);
+		int batchSize = aConfig.getInt("batchSize", BATCH_SIZE);
+		long linger = aConfig.getLong("linger", LINGER);
+		int inFlight = aConfig.getInt("maxInFlight", MAX_IN_FLIGHT);
+		int retries = aConfig.getInt("maxRetries", MAX_RETRIES);
+		long backoff = aConfig.getLong("backoff", BACKOFF);
+		long maxBackoff = aConfig.getLong("maxBackoff", MAX_BACKOFF);
+		long connectTimeout = aConfig.getLong("connectTimeout", CONNECT_TIMEOUT);
+		long readTimeout = aConfig.getLong("readTimeout", REQUEST_TIMEOUT);
+		if (capacity <= 0 || batchSize <= 0 || inFlight <= 0)
+			throw new IllegalArgumentException("queueCapacity, batchSize and maxInFlight must be greater than 0.");
+		if (linger < 0 || retries < 0)
+			throw new IllegalArgumentException("linger and maxRetries must be non-negative.");
+		if (backoff <= 0 || maxBackoff < backoff)
+			throw new IllegalArgumentException("backoff must be greater than 0, and at most maxBackoff.");
+		if (connectTimeout <= 0 || readTimeout <= 0)
+			throw new IllegalArgumentException("connectTimeout and readTimeout must be greater than 0.");
+		QUEUE_CAPACITY = capacity;
+		BATCH_SIZE = batchSize;
+		LINGER = linger;
+		MAX_IN_FLIGHT = inFlight;
+		MAX_RETRIES = retries;
+		BACKOFF = backoff;
+		MAX_BACKOFF = maxBackoff;
+		CONNECT_TIMEOUT = connectTimeout;
+		REQUEST_TIMEOUT = readTimeout;
+	}
+
+	/**
+	 * Changes the most snapshots sent in one request, from the next
+	 * batch on.
+	 *
+	 * @param aBatchSize most snapshots per request, must be greater than 0.
+	 */
+	public void setBatchSize(int aBatchSize) {
+		if (aBatchSize <= 0)
+			throw new IllegalArgumentException("aBatchSize must be greater than 0.");
+		fBatchSize = aBatchSize;
+	}
+
+	public int getBatchSize() {
+		return fBatchSize;
+	}
+
+	/**
+	 * Reports the queue depth, the batches in flight and what became of
+	 * the snapshots.  Request latencies are recorded as they happen.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.gauge("dogsim_async_queue_depth", "Snapshots waiting to be sent.", fQueue.size());
+		aOut.gauge("dogsim_async_in_flight", "Batches outstanding, including retries.",
+				fMaxInFlight - fInFlight.availablePermits());
+		aOut.counter("dogsim_async_offered_total", "Snapshots emitted to the sink.", fOffered.get());
+		aOut.counter("dogsim_async_dropped_total", "Snapshots discarded because the queue was full.", fDropped.get());
+		aOut.counter("dogsim_async_sent_total", "Snapshots delivered.", fSent.get());
+		aOut.counter("dogsim_async_requests_total", "Request attempts completed.", fRequests.get());
+		aOut.counter("dogsim_async_retries_total", "Request attempts which were retries.", fRetries.get());
+		aOut.counter("dogsim_async_failed_total", "Snapshots lost after the last retry.", fFailed.get());
+	}
+
+	public int getQueueDepth() {
+		return fQueue.size();
+	}
+
+	public long getOffered() {
+		return fOffered.get();
+	}
+
+	public long getDropped() {
+		return fDropped.get();
+	}
+
+	public long getSent() {
+		return fSent.get();
+	}
+
+	public long getRequests() {
+		return fRequests.get();
+	}
+
+	public long getRetries() {
+		return fRetries.get();
+	}
+
+	public long getFailed() {
+		return fFailed.get();
+	}
+}
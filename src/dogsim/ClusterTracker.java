@@ -0,0 +1,206 @@
+package dogsim;
+
+/**
+ * Tracks the densest cluster of dogs in an <code>Arena</code>.  A dog's
+ * cluster is the dog itself plus every other dog within
+ * <code>CLUSTER_RANGE</code>, and the densest cluster is the one with the
+ * most members.  The tracker is updated by the <code>SimulationEngine</code>
+ * once per tick, after dogs have moved.  It counts each dog's neighbours
+ * through its own <code>SpatialGrid</code> with <code>CLUSTER_RANGE</code>
+ * cells, so an update only compares nearby dogs.
+ *
+ * The result of the latest update is published as an immutable
+ * <code>Cluster</code>, so the GUI and other readers get the current
+ * densest cluster, its bounding box and its watch list in constant time,
+ * without locking.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see SpatialGrid
+ * @see SimulationEngine
+ */
+public class ClusterTracker {
+	private static double CLUSTER_RANGE = 200;	//farthest a dog can be from a cluster's centre
+
+	/**
+	 * Snapshot of the densest cluster at the end of a tick.
+	 */
+	public static class Cluster {
+		public final int fRoot;			//ID of the dog at the centre of the cluster
+		public final int[] fMembers;	//IDs of the other dogs in the cluster
+		public final double fMinX;		//left edge of the bounding box
+		public final double fMinY;		//top edge of the bounding box
+		public final double fMaxX;		//right edge of the bounding box
+		public final double fMaxY;		//bottom edge of the bounding box
+
+		Cluster(int aRoot, int[] aMembers, double aMinX, double aMinY, double aMaxX, double aMaxY) {
+			fRoot = aRoot;
+			fMembers = aMembers;
+			fMinX = aMinX;
+			fMinY = aMinY;
+			fMaxX = aMaxX;
+			fMaxY = aMaxY;
+		}
+
+		/**
+		 * @return the IDs of the cluster's dogs, centre first, as shown
+		 * 				on the GUI's watch list.
+		 */
+		public String watchList() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(fRoot);
+			for (int id : fMembers) {
+				sb.append(", ").append(id);
+			}
+			return sb.toString();
+		}
+	}
+
+	private DogStore fStore;			//positions of the arena's dogs
+	private SpatialGrid fGrid;			//index over current positions
+	private int[] fNeighbours;			//dogs within CLUSTER_RANGE of each slot
+	private volatile Cluster fDensest;	//result of the latest update, null if no clusters
+
+	/**
+	 * Constructor for the dogs in an arena.
+	 *
+	 * @param aArena The arena whose dogs are tracked.
+	 */
+	public ClusterTracker(Arena aArena) {
+		if (aArena == null)
+			throw new IllegalArgumentException("aArena must not be null.");
+		fStore = aArena.getStore();
+		fGrid = new SpatialGrid(aArena.MAX_X, aArena.MAX_Y, CLUSTER_RANGE);
+		fNeighbours = new int[fStore.capacity()];
+	}
+
+	/**
+	 * Recounts every dog's neighbours from the current positions and
+	 * publishes the new densest cluster.  Called by the simulation thread.
+	 *
+	 * @param aSlots store slots of the dogs in the arena
+	 * @param aCount number of slots in <code>aSlots</code>
+	 */
+	public void update(int[] aSlots, int aCount) {
+		update(aSlots, aCount, fStore.fX, fStore.fY);
+	}
+
+	/**
+	 * Recounts every dog's neighbours from the given coordinate columns
+	 * and publishes the new densest cluster, for a live engine whose dogs
+	 * move while the tracker runs.  Called by the simulation thread.
+	 *
+	 * @param aSlots store slots of the dogs in the arena
+	 * @param aCount number of slots in <code>aSlots</code>
+	 * @param aX x-coordinate of each slot, unchanged during the update
+	 * @param aY y-coordinate of each slot, unchanged during the update
+	 */
+	public void update(int[] aSlots, int aCount, double[] aX, double[] aY) {
+		double[] x = aX;
+		double[] y = aY;
+		SpatialGrid grid = fGrid;
+		grid.rebuild(aSlots, aCount, x, y);
+		double range2 = CLUSTER_RANGE * CLUSTER_RANGE;
+
+		int root = -1;
+		int rootCount = 0;
+		double minX = 0, minY = 0, maxX = 0, maxY = 0;
+
+		//examine each dog as a centroid candidate
+		for (int k = 0; k < aCount; k++) {
+			int i = aSlots[k];
+			double xi = x[i];
+			double yi = y[i];
+			int count = 0;
+			double loX = xi, loY = yi, hiX = xi, hiY = yi;
+
+			int col = grid.column(xi);
+			int row = grid.row(yi);
+			int lastCol = Math.min(col + 1, grid.getColumns() - 1);
+			int lastRow = Math.min(row + 1, grid.getRows() - 1);
+			for (int r = Math.max(row - 1, 0); r <= lastRow; r++) {
+				for (int c = Math.max(col - 1, 0); c <= lastCol; c++) {
+					int cell = grid.cell(c, r);
+					for (int n = grid.cellStart(cell); n < grid.cellEnd(cell); n++) {
+						int j = grid.slotAt(n);
+						double dx = x[j] - xi;
+						double dy = y[j] - yi;
+						//if it is in clustering range, expand the bounding box to it
+						if (j != i && dx * dx + dy * dy < range2) {
+							count++;
+							loX = Math.min(loX, x[j]);
+							loY = Math.min(loY, y[j]);
+							hiX = Math.max(hiX, x[j]);
+							hiY = Math.max(hiY, y[j]);
+						}
+					}
+				}
+			}
+			fNeighbours[i] = count;
+
+			//check if this is the biggest cluster
+			if (count > rootCount) {
+				root = i;
+				rootCount = count;
+				minX = loX;
+				minY = loY;
+				maxX = hiX;
+				maxY = hiY;
+			}
+		}
+
+		fDensest = root < 0 ? null :
+			new Cluster(root, members(root, rootCount, range2, x, y), minX, minY, maxX, maxY);
+	}
+
+	/**
+	 * Collects the IDs of the dogs within range of <code>aRoot</code>.
+	 */
+	private int[] members(int aRoot, int aCount, double aRange2, double[] aX, double[] aY) {
+		double[] x = aX;
+		double[] y = aY;
+		SpatialGrid grid = fGrid;
+		int[] members = new int[aCount];
+		int found = 0;
+
+		int col = grid.column(x[aRoot]);
+		int row = grid.row(y[aRoot]);
+		int lastCol = Math.min(col + 1, grid.getColumns() - 1);
+		int lastRow = Math.min(row + 1, grid.getRows() - 1);
+		for (int r = Math.max(row - 1, 0); r <= lastRow; r++) {
+			for (int c = Math.max(col - 1, 0); c <= lastCol; c++) {
+				int cell = grid.cell(c, r);
+				for (int n = grid.cellStart(cell); n < grid.cellEnd(cell); n++) {
+					int j = grid.slotAt(n);
+					double dx = x[j] - x[aRoot];
+					double dy = y[j] - y[aRoot];
+					if (j != aRoot && dx * dx + dy * dy < aRange2)
+						members[found++] = j;
+				}
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * @return the densest cluster at the end of the latest tick, or
+	 * 				null if no dog has a neighbour in range.
+	 */
+	public Cluster getDensest() {
+		return fDensest;
+	}
+
+	/**
+	 * @param aSlot store slot (dog ID)
+	 * @return number of dogs within <code>CLUSTER_RANGE</code> of the dog
+	 * 				at the end of the latest tick.
+	 */
+	public int getNeighbourCount(int aSlot) {
+		return fNeighbours[aSlot];
+	}
+
+	public static double getCLUSTER_RANGE() {
+		return CLUSTER_RANGE;
+	}
+}
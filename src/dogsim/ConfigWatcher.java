@@ -0,0 +1,106 @@
+package dogsim;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Watches the properties file of a <code>SimConfig</code> and hands the
+ * reloaded configuration to a listener whenever the file is modified,
+ * so that parameters can be swept while the simulation runs.  The file's
+ * modification time is polled every <code>POLL_INTERVAL</code>
+ * milliseconds on a daemon thread.  A file which can't be read or holds
+ * a bad value is reported and skipped, keeping the last good
+ * configuration.
+ *
+ * @author Karel Bergmann
+ *
+ * @see SimConfig
+ */
+public class ConfigWatcher implements Runnable {
+	private static long POLL_INTERVAL = 1000;	//milliseconds between checks of the file
+
+	private final SimConfig.Listener fListener;	//told of every change
+	private final File fFile;					//file watched
+	private volatile SimConfig fConfig;			//last configuration read
+	private long fModified;						//modification time of fConfig's file
+	private Thread fThread;						//watching thread, null when stopped
+
+	/**
+	 * Constructor watching the file of a configuration.
+	 *
+	 * @param aConfig current configuration, which must have a file.
+	 * @param aListener told of every change
+	 */
+	public ConfigWatcher(SimConfig aConfig, SimConfig.Listener aListener) {
+		if (aConfig == null || aConfig.getFile() == null)
+			throw new IllegalArgumentException("aConfig must have a file.");
+		if (aListener == null)
+			throw new IllegalArgumentException("aListener must not be null.");
+		fConfig = aConfig;
+		fListener = aListener;
+		fFile = aConfig.getFile();
+		fModified = fFile.lastModified();
+	}
+
+	/**
+	 * Starts the watching thread.  Has no effect if it is already
+	 * running.
+	 */
+	public synchronized void start() {
+		if (fThread != null)
+			return;
+		fThread = new Thread(this, "ConfigWatcher");
+		fThread.setDaemon(true);
+		fThread.start();
+	}
+
+	/**
+	 * Stops the watching thread.
+	 */
+	public synchronized void stop() {
+		if (fThread == null)
+			return;
+		fThread.interrupt();
+		fThread = null;
+	}
+
+	/**
+	 * Polling loop, until interrupted.
+	 */
+	@Override
+	public void run() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			check();
+		}
+	}
+
+	/**
+	 * Reloads the configuration if the file has been modified since it
+	 * was last read, and tells the listener.
+	 */
+	void check() {
+		long modified = fFile.lastModified();
+		if (modified == fModified)
+			return;
+		fModified = modified;
+		SimConfig old = fConfig;
+		try {
+			SimConfig config = old.reload();
+			fListener.configChanged(old, config);
+			fConfig = config;
+		} catch (IOException e) {
+			Log.warn("Could not reload " + fFile, e);
+		} catch (IllegalArgumentException e) {
+			Log.warn("Ignoring " + fFile + ": " + e.getMessage(), null);
+		}
+	}
+
+	public SimConfig getConfig() {
+		return fConfig;
+	}
+}
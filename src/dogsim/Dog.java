@@ -1,12 +1,13 @@
 package dogsim;
 
 import java.awt.geom.Point2D;
-import java.util.Random;
-import java.util.Vector;
 
 /**
  * Class represents a simulated dog which runs around an
- * <code>Arena</code>.  Each dog runs within its own <code>Thread</code>.
+ * <code>Arena</code>.  Dogs are plain state, stepped once per tick by
+ * the <code>SimulationEngine</code> rather than running their own threads.
+ * The state itself lives in the arena's <code>DogStore</code>, and a
+ * <code>Dog</code> is a flyweight view onto the slot matching its ID.
  * Each dog is connected to a <code>FitBit</code> which periodically transmits
  * the dog's location and vital signs.  The class includes default simulated
  * dog behaviour such as chasing other dogs and resting when tired.  Dog's
@@ -15,11 +16,11 @@ import java.util.Vector;
  * @author Karel Bergmann
  * 
  * @see Arena
- * @see Thread
+ * @see DogStore
+ * @see SimulationEngine
  * @see FitBit
  */
-public class Dog extends Thread {
-	private static long REFRESH_INTERVAL = 500;		//milliseconds between updates
+public class Dog {
 	private static long MAX_HR = 200;				//dog's max heart rate
 	private static double MAX_TEMP = 45;			//dog's max internal temp in C
 	private static double NORMAL_TEMP = 15;			//dog's normal temp.
@@ -27,26 +28,19 @@ public class Dog extends Thread {
 	private static long CIRCLE = 360;				//number of degrees in a circle
 	private static long HALF_CIRCLE = 180;			//half a circle
 	private static long NEEDED_REST = 15;			//number of updates in a rest cycle
-	private static int ACCEL = 10;					//m/update/update a dog can change speed at
-	private static double VISUAL_RANGE = 200;		//farthest a dog can see
+	private static volatile int ACCEL = 10;			//m/update/update a dog can change speed at
+	private static volatile double VISUAL_RANGE = 200;	//farthest a dog can see
 	private static int WALL_BUFFER = 30;			//closest a dog comes to a wall
 	
-	private int fId;				//dog's ID number (unique in arena)
-	private volatile double fX;		//x-coordinate
-	private volatile double fY;		//y-coordinate
-	private double fDirection;		//current heading in degrees
-	private double fVelocity;		//current velocity in meters/update
-	private long fHR;				//current HR
-	private double fTemp;			//current temp in C
-	private double fMaxSpeed;		//Dog's maximum velocity
-	
+	private int fId;				//dog's ID number (unique in arena), and slot in fStore
+	private int fTag;				//ID transmitted by the FitBit, kept when moving between shards
 	private Arena fArena;			//Dog interaction space
+	private DogStore fStore;		//arena's dog state, indexed by fId
 	private FitBit fTransmitter;	//Dog's FitBit transmitter
-	private Random fRand;			//for behaviour simulation
-	private boolean fActive;		//state variable for active dog
-	private boolean fChasing;		//state variable for chasing dog
-	private boolean fResting;		//state variable for resting dog
-	private long fTimeRested;		//number of updates spent resting
+	private DogRandom fRand;		//for behaviour simulation
+	private volatile boolean fActive;	//state variable for active dog
+	private long fWakeTick = -1;	//tick a sleeping dog gets up on, -1 when awake
+	private long fRestedTick;		//last tick a sleeping dog's vitals were updated for
 	
 	/**
 	 * Constructor which specifies starting state of <code>Dog</code>.
@@ -56,11 +50,52 @@ public class Dog extends Thread {
 	 * @param aTemp The dog's current temperature, must be greater than or equal NORMAL_TEMP.
 	 * @param aMaxSpeed The dog's maximum speed (different dogs run faster than others)
 	 * 					must be greater than 1;
-	 * @param aId The dog's ID number
+	 * @param aId The dog's ID number, must be less than the arena's capacity.
 	 * 
 	 * @see Arena
+	 * @see DogStore
 	 */
 	public Dog (Arena aArena, long aHR, double aTemp, double aMaxSpeed, int aId) {
+		this(aArena, aHR, aTemp, aMaxSpeed, aId, new DogRandom(seedFor(0, aId)));
+	}
+	
+	/**
+	 * Constructor which specifies starting state of <code>Dog</code>
+	 * and the source of randomness for its behaviour.  A dog given a
+	 * <code>DogRandom</code> with a known seed behaves reproducibly.
+	 * 
+	 * @param aArena The Arena for dog interactions
+	 * @param aHR The dog's current heart rate, must be greater than NORMAL_HR
+	 * @param aTemp The dog's current temperature, must be greater than or equal NORMAL_TEMP.
+	 * @param aMaxSpeed The dog's maximum speed (different dogs run faster than others)
+	 * 					must be greater than 1;
+	 * @param aId The dog's ID number, must be less than the arena's capacity.
+	 * @param aRand generator used only by this dog
+	 * 
+	 * @see Arena
+	 * @see DogStore
+	 */
+	public Dog (Arena aArena, long aHR, double aTemp, double aMaxSpeed, int aId, DogRandom aRand) {
+		this(aArena, aHR, aTemp, aMaxSpeed, aId, aId, aRand);
+	}
+	
+	/**
+	 * Constructor for a dog in one shard of a larger simulation.  The
+	 * dog's ID is its slot in the shard's arena, while its tag identifies
+	 * it across all shards and is what its <code>FitBit</code> transmits.
+	 * 
+	 * @param aArena The Arena for dog interactions
+	 * @param aHR The dog's current heart rate, must be greater than NORMAL_HR
+	 * @param aTemp The dog's current temperature, must be greater than or equal NORMAL_TEMP.
+	 * @param aMaxSpeed The dog's maximum speed (different dogs run faster than others)
+	 * 					must be greater than 1;
+	 * @param aId The dog's ID number, must be less than the arena's capacity.
+	 * @param aTag The dog's ID number in the whole simulation
+	 * @param aRand generator used only by this dog
+	 * 
+	 * @see Shard
+	 */
+	public Dog (Arena aArena, long aHR, double aTemp, double aMaxSpeed, int aId, int aTag, DogRandom aRand) {
 		if (aId < 0)
 			throw new IllegalArgumentException("aID must be non-negative.");
 		if (aMaxSpeed <= 1)
@@ -71,88 +106,280 @@ public class Dog extends Thread {
 			throw new IllegalArgumentException("aBPM must be greater than NORMAL_HR or larger.");
 		if (aArena == null)
 			throw new IllegalArgumentException("aArena must not be null.");
+		if (aId >= aArena.getDogs().capacity())
+			throw new IllegalArgumentException("aID must be less than the arena's capacity.");
+		if (aRand == null)
+			throw new IllegalArgumentException("aRand must not be null.");
 		
-		fRand = new Random();
+		fRand = aRand;
 		fTransmitter = new FitBit(this);
 		fArena = aArena;
+		fStore = aArena.getStore();
+		fId = aId;
+		fTag = aTag;
+		int i = aId;
 		
 		//initialize dog's state, active.
-		fChasing = false;
-		fResting = false;
+		fStore.fChasing[i] = 0;
+		fStore.fResting[i] = 0;
 		fActive = true;
-		fTimeRested = 0;
+		fStore.fTimeRested[i] = 0;
 		
-		fId = aId;
-		fHR = aHR;
-		fTemp = aTemp;
-		fMaxSpeed = aMaxSpeed;
+		fStore.fHR[i] = aHR;
+		fStore.fTemp[i] = aTemp;
+		fStore.fMaxSpeed[i] = aMaxSpeed;
 		
 		//initialize dog position, to random location.
-		fX = fRand.nextInt((int) fArena.MAX_X);
-		fY = fRand.nextInt((int) fArena.MAX_Y);
+		fStore.fX[i] = fRand.nextInt((int) fArena.MAX_X);
+		fStore.fY[i] = fRand.nextInt((int) fArena.MAX_Y);
+		fStore.fPrevX[i] = fStore.fX[i];
+		fStore.fPrevY[i] = fStore.fY[i];
 		
 		//direction somewhere into the Arena
-		fDirection = fRand.nextInt(90);
+		fStore.fDirection[i] = fRand.nextInt(90);
 		
 		//speed random, up to max
-		fVelocity = fRand.nextInt((int) fMaxSpeed);
+		fStore.fVelocity[i] = fRand.nextInt((int) aMaxSpeed);
+		fStore.fPresent[i] = 1;
 		
 	}
 	
 	/**
-	 * Allows external entity to kill this dog's thread, and
-	 * thus remove it from the simulation.
+	 * Constructor for a dog whose state is already in the arena's
+	 * <code>DogStore</code>, such as a dog restored from a checkpoint or
+	 * handed over by another shard.  The slot is marked present but
+	 * otherwise left as it is.
+	 * 
+	 * @param aArena The Arena for dog interactions
+	 * @param aId The dog's ID number, must be less than the arena's capacity.
+	 * @param aTag The dog's ID number in the whole simulation
+	 * @param aRand generator used only by this dog, positioned where the dog left off
+	 * 
+	 * @see ArenaCheckpoint
+	 * @see Migrant
+	 */
+	Dog (Arena aArena, int aId, int aTag, DogRandom aRand) {
+		if (aArena == null)
+			throw new IllegalArgumentException("aArena must not be null.");
+		if (aId < 0 || aId >= aArena.getDogs().capacity())
+			throw new IllegalArgumentException("aID must be non-negative and less than the arena's capacity.");
+		if (aRand == null)
+			throw new IllegalArgumentException("aRand must not be null.");
+		fRand = aRand;
+		fTransmitter = new FitBit(this);
+		fArena = aArena;
+		fStore = aArena.getStore();
+		fId = aId;
+		fTag = aTag;
+		fActive = true;
+		fStore.fPresent[aId] = 1;
+	}
+	
+	/**
+	 * Allows external entity to kill this dog, and thus
+	 * remove it from the simulation.
 	 */
 	public void kill() {
 		fActive = false;
+		fStore.fPresent[fId] = 0;
+	}
+	
+	public boolean isActive () {
+		return fActive;
 	}
 	
 	/**
-	 * Simulates dog behaviour.  Every <code>REFRESH_INTERVAL</code>
-	 * milliseconds, the dog's temp, HR, direction, position and velocity
-	 * are updated.  The dog's vital signs are transmitted to a RESTful web
-	 * server by it's <code>FitBit</code>.  The loop can be interrupted by a
-	 * call to <code>Dog.kill()</code>.
+	 * Simulates one update of dog behaviour.  The dog's temp, HR,
+	 * direction, velocity and position are updated, and the dog's
+	 * vital signs are transmitted to a RESTful web server by it's
+	 * <code>FitBit</code>.  Called once per tick by the
+	 * <code>SimulationEngine</code>.
 	 * 
 	 * @see FitBit
-	 * @see Dog.kill()
+	 * @see SimulationEngine
 	 */
-	@Override
-	public void run() {
-		while (fActive) {
-			updateTemp();
-			updateHR();
-			updateDirection();
-			updateVelocity();
-			updatePosition();
-			
-			fTransmitter.transmit();
-			try {
-				sleep(REFRESH_INTERVAL);
-			} catch (InterruptedException e) {
-				//keep going
-			}
-		}
+	public void step() {
+		think();
+		updatePosition();
+		transmit();
+	}
+	
+	/**
+	 * Updates the dog's temp, HR, direction and velocity, but not its
+	 * position.
+	 * 
+	 * @see #updateVitals()
+	 * @see #steer()
+	 */
+	public void think() {
+		updateVitals();
+		steer();
+	}
+	
+	/**
+	 * Updates the dog's temp and HR, and starts it resting if either is
+	 * too high.  <code>DogStore.updateVitals</code> does the same for many
+	 * dogs at once.
+	 * 
+	 * @see DogStore#updateVitals(int, int, double, double, long, long)
+	 */
+	void updateVitals() {
+		updateTemp();
+		updateHR();
+	}
+	
+	/**
+	 * Updates the dog's direction and velocity, once its vitals have been
+	 * updated.  The <code>SimulationEngine</code> updates the vitals of all
+	 * dogs in one pass over the <code>DogStore</code>, calls this for every
+	 * dog, then moves all dogs in another pass.
+	 * 
+	 * @see Arena#updateVitals(int, int)
+	 * @see DogStore#advancePositions(double, double, double)
+	 */
+	public void steer() {
+		updateDirection();
+		updateVelocity();
+	}
+	
+	/**
+	 * Puts the dog to sleep for the rest of its rest, if it is resting.
+	 * A sleeping dog doesn't look around, and is not stepped until the
+	 * tick on which its rest would end, when it wakes and is stepped as
+	 * usual, getting up at the end of the tick.  Its velocity is set to
+	 * 0 and its rest counted for this tick, as <code>updateVelocity</code>
+	 * would.  The rest counter, vitals and heading aren't kept up to date
+	 * while the dog sleeps, but caught up with when it wakes.
+	 * 
+	 * @param aTick tick being run
+	 * @return the tick the dog wakes on, or -1 if it isn't resting or
+	 * 				its rest ends on this tick.
+	 * 
+	 * @see RestScheduler
+	 * @see #settleRest(long)
+	 */
+	long sleep(long aTick) {
+		DogStore s = fStore;
+		int i = fId;
+		if (s.fResting[i] == 0 || s.fTimeRested[i] >= NEEDED_REST)
+			return -1;
+		s.fVelocity[i] = 0;
+		fWakeTick = aTick + NEEDED_REST - s.fTimeRested[i];
+		fRestedTick = aTick;
+		s.fTimeRested[i]++;
+		return fWakeTick;
+	}
+	
+	/**
+	 * Wakes the dog on the last tick of its rest, catching its state up
+	 * with the ticks it slept through.
+	 */
+	void wake() {
+		restUntil(fWakeTick - 1);
+		fStore.fTimeRested[fId] = NEEDED_REST;
+		fWakeTick = -1;
+	}
+	
+	boolean isAsleep() {
+		return fWakeTick >= 0;
+	}
+	
+	long getWakeTick() {
+		return fWakeTick;
+	}
+	
+	/**
+	 * Brings the vitals and heading of a sleeping dog up to date with
+	 * the ticks it has slept through, as the engine's passes over the
+	 * <code>DogStore</code> would have.
+	 * 
+	 * @param aLastTick last tick to bring the dog through
+	 * @see Arena#restDog(int, long)
+	 */
+	void restUntil(long aLastTick) {
+		if (fWakeTick < 0 || aLastTick <= fRestedTick)
+			return;
+		fArena.restDog(fId, aLastTick - fRestedTick);
+		fRestedTick = aLastTick;
+	}
+	
+	/**
+	 * Brings the state of a sleeping dog up to date, including its rest
+	 * counter, so that it can be read, such as by a checkpoint.  A dog
+	 * restored with the counter goes back to sleep for the same ticks.
+	 * 
+	 * @param aLastTick last tick run
+	 */
+	void settleRest(long aLastTick) {
+		if (fWakeTick < 0)
+			return;
+		restUntil(aLastTick);
+		fStore.fTimeRested[fId] = NEEDED_REST + 1 - (fWakeTick - aLastTick);
+	}
+	
+	/**
+	 * Transmits the dog's current state through its <code>FitBit</code>.
+	 * 
+	 * @see FitBit
+	 */
+	public void transmit() {
+		fTransmitter.transmit();
 	}
 	
 	public int getID () {
 		return fId;
 	}
 	
+	public int getTag () {
+		return fTag;
+	}
+	
+	/**
+	 * @return the dog's generator, whose state is part of the dog's state.
+	 */
+	DogRandom getRandom () {
+		return fRand;
+	}
+	
+	/**
+	 * Seed for the <code>DogRandom</code> of the <code>aIndex</code>th dog
+	 * created in a simulation seeded with <code>aSeed</code>.  Neighbouring
+	 * indices get well separated seeds.
+	 * 
+	 * @param aSeed simulation seed
+	 * @param aIndex number of dogs created before this one
+	 * @return seed for the dog's <code>DogRandom</code>
+	 */
+	public static long seedFor (long aSeed, long aIndex) {
+		return DogRandom.mix(aSeed + (aIndex + 1) * 0x9E3779B97F4A7C15L);
+	}
+	
 	public double getX () {
-		return fX;
+		return fStore.fX[fId];
 	}
 	
 	public double getY () {
-		return fY;
+		return fStore.fY[fId];
 	}
 	
 	public long getHR () {
-		return fHR;
+		return fStore.fHR[fId];
 	}
 	
 	public double getTemp () {
-		return fTemp;
+		return fStore.fTemp[fId];
+	}
+	
+	public static double getMAX_TEMP() {
+		return MAX_TEMP;
+	}
+	
+	public static double getNORMAL_TEMP() {
+		return NORMAL_TEMP;
+	}
+	
+	public static long getNEEDED_REST() {
+		return NEEDED_REST;
 	}
 	
 	public static long getNORMAL_HR() {
@@ -163,79 +390,175 @@ public class Dog extends Thread {
 		return MAX_HR;
 	}
 	
+	public static double getVISUAL_RANGE() {
+		return VISUAL_RANGE;
+	}
+	
+	public static int getWALL_BUFFER() {
+		return WALL_BUFFER;
+	}
+	
+	/**
+	 * Reads <code>visualRange</code> and <code>accel</code>, which take
+	 * effect while dogs are running.  The <code>SimulationEngine</code>
+	 * replaces the arena's <code>SpatialGrid</code> at the start of the
+	 * next tick once the visual range no longer matches its cells.
+	 * 
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		double range = aConfig.getDouble("visualRange", VISUAL_RANGE);
+		int accel = aConfig.getInt("accel", ACCEL);
+		if (range <= 0)
+			throw new IllegalArgumentException("visualRange must be greater than 0.");
+		if (accel <= 0)
+			throw new IllegalArgumentException("accel must be greater than 0.");
+		VISUAL_RANGE = range;
+		ACCEL = accel;
+	}
+	
 	/**
 	 * Updates a dog's position based on current velocity.
 	 * The dog's heading is altered by 180 degrees if it hits
 	 * the edge of the <code>Arena</code>.
 	 * 
-	 * @see Arena
+	 * @see Arena#moveDogs(int, int)
 	 */
 	private void updatePosition() {
-		//update position
-		fX += fVelocity * Math.cos(fDirection);
-		fY += fVelocity * Math.sin(fDirection);
-		
-		//check to make sure they stay away from walls
-		boolean changed = false;
-		if (fX < WALL_BUFFER) {
-			fX = WALL_BUFFER;
-			changed = true;
-		}
-		if (fX >= fArena.MAX_X - WALL_BUFFER) {
-			fX = fArena.MAX_X - WALL_BUFFER;
-			changed = true;
-		}
-		if (fY < WALL_BUFFER) {
-			fY = WALL_BUFFER;
-			changed = true;
-		}
-		if (fY >= fArena.MAX_Y - WALL_BUFFER) {
-			fY = fArena.MAX_Y - WALL_BUFFER;
-			changed = true;
-		}
-		//turn around if they hit a wall
-		if (changed == true) {
-			fDirection = (((int)(fDirection)) + Dog.HALF_CIRCLE) % Dog.CIRCLE;
-		}
-			
+		fArena.moveDogs(fId, fId + 1);
 	}
 	
 	/**
 	 * Update the dog's direction.  The dog will head towards (chase)
-	 * the nearest dog which is up to 45 degree off of its current heading
+	 * the nearest dog which is less than 90 degrees off of its current heading
 	 * and in <code>VISUAL_RANGE</code>.
 	 * If there is no such dog, the dog alters heading by up to 45 degrees.
+	 * Candidates are found through the arena's <code>SpatialGrid</code>,
+	 * whose cells are <code>VISUAL_RANGE</code> wide, so only the 3x3
+	 * block of cells around the dog needs to be searched.  All positions
+	 * are read from the start-of-tick snapshot in the <code>DogStore</code>.
+	 * 
+	 * Candidates are compared by squared distance, and a candidate is
+	 * ahead of the dog when its offset has a positive dot product with the
+	 * dog's heading vector, so no square roots or angles are computed per
+	 * candidate.
+	 * 
+	 * @see SpatialGrid
+	 * @see Heading
+	 * @see DogStore#snapshotPositions()
 	 */
-	private void updateDirection() {
-		Vector<Dog> dogs = fArena.getDogs();
-		Dog nearestDog = null;
-		double nearest = VISUAL_RANGE;
+	void updateDirection() {
+		if (Heading.isLegacy()) {
+			updateDirectionLegacy();
+			return;
+		}
+		SpatialGrid grid = fArena.getGrid();
+		double[] prevX = fStore.fPrevX;
+		double[] prevY = fStore.fPrevY;
+		int nearestDog = -1;
+		//the range may have been reconfigured since the grid was built
+		double range = Math.min(VISUAL_RANGE, grid.getCellSize());
+		double nearest = range * range;
+		double x = prevX[fId];
+		double y = prevY[fId];
+		double direction = fStore.fDirection[fId];
+		double headX = Heading.cos(direction);
+		double headY = Heading.sin(direction);
+		
+		int col = grid.column(x);
+		int row = grid.row(y);
+		int lastCol = Math.min(col + 1, grid.getColumns() - 1);
+		int lastRow = Math.min(row + 1, grid.getRows() - 1);
 
-		//for every dog
-		synchronized (DogManager.elock) {
-			for (Dog d : dogs) {
-				/* if the for is close, and not this dog, and in roughly the
-			   		same direction. */
-				if ((Point2D.distance(fX, fY, d.getX(), d.getY()) < nearest) &&
-						(Point2D.distance(fX, fY, d.getX(), d.getY()) > 1) &&
-						(Math.abs(fDirection - heading(d)) < CIRCLE/4)) {
-					//set that dog as the best chasing candidate
-					nearestDog = d;
-					nearest = Point2D.distance(fX, fY, d.getX(), d.getY());
+		//for every dog in the surrounding cells
+		for (int r = Math.max(row - 1, 0); r <= lastRow; r++) {
+			for (int c = Math.max(col - 1, 0); c <= lastCol; c++) {
+				int cell = grid.cell(c, r);
+				for (int i = grid.cellStart(cell); i < grid.cellEnd(cell); i++) {
+					int d = grid.slotAt(i);
+					double dx = prevX[d] - x;
+					double dy = prevY[d] - y;
+					double dist = dx * dx + dy * dy;
+					//if the dog is close, and not this dog, and ahead
+					if ((dist < nearest) &&
+							(dist > 1) &&
+							(dx * headX + dy * headY > 0)) {
+						//set that dog as the best chasing candidate
+						nearestDog = d;
+						nearest = dist;
+					}
 				}
 			}
+		}
 		
-			//if a chasable dog has been found, alter heading to chase it
-			if (nearestDog != null) {
-				fDirection = heading(nearestDog) - 5 + fRand.nextInt(10);
-				fChasing = true;
-			}
-			//otherwise keep wandering
-			else {
-				fDirection = fDirection - 45 + fRand.nextInt(90);
-				fChasing = false;
+		//if a chasable dog has been found, alter heading to chase it
+		if (nearestDog >= 0) {
+			double toward = Heading.toward(prevX[nearestDog] - x, prevY[nearestDog] - y);
+			fStore.fDirection[fId] = Heading.normalize(toward - 5 + fRand.nextInt(10));
+			fStore.fChasing[fId] = 1;
+		}
+		//otherwise keep wandering
+		else {
+			fStore.fDirection[fId] = Heading.normalize(direction - 45 + fRand.nextInt(90));
+			fStore.fChasing[fId] = 0;
+		}
+	}
+	
+	/**
+	 * Update the dog's direction as originally done, for
+	 * <code>legacyHeading</code>.  A candidate's heading is compared to the
+	 * dog's without wrapping around the circle, and the dog's heading is
+	 * never normalized.
+	 * 
+	 * @see Heading#isLegacy()
+	 */
+	private void updateDirectionLegacy() {
+		SpatialGrid grid = fArena.getGrid();
+		double[] prevX = fStore.fPrevX;
+		double[] prevY = fStore.fPrevY;
+		int nearestDog = -1;
+		//the range may have been reconfigured since the grid was built
+		double nearest = Math.min(VISUAL_RANGE, grid.getCellSize());
+		double x = prevX[fId];
+		double y = prevY[fId];
+		double direction = fStore.fDirection[fId];
+		
+		int col = grid.column(x);
+		int row = grid.row(y);
+		int lastCol = Math.min(col + 1, grid.getColumns() - 1);
+		int lastRow = Math.min(row + 1, grid.getRows() - 1);
+
+		//for every dog in the surrounding cells
+		for (int r = Math.max(row - 1, 0); r <= lastRow; r++) {
+			for (int c = Math.max(col - 1, 0); c <= lastCol; c++) {
+				int cell = grid.cell(c, r);
+				for (int i = grid.cellStart(cell); i < grid.cellEnd(cell); i++) {
+					int d = grid.slotAt(i);
+					double dist = Point2D.distance(x, y, prevX[d], prevY[d]);
+					/* if the for is close, and not this dog, and in roughly the
+				   		same direction. */
+					if ((dist < nearest) &&
+							(dist > 1) &&
+							(Math.abs(direction - heading(x, y, prevX[d], prevY[d])) < CIRCLE/4)) {
+						//set that dog as the best chasing candidate
+						nearestDog = d;
+						nearest = dist;
+					}
+				}
 			}
 		}
+		
+		//if a chasable dog has been found, alter heading to chase it
+		if (nearestDog >= 0) {
+			fStore.fDirection[fId] = heading(x, y, prevX[nearestDog], prevY[nearestDog]) - 5 + fRand.nextInt(10);
+			fStore.fChasing[fId] = 1;
+		}
+		//otherwise keep wandering
+		else {
+			fStore.fDirection[fId] = direction - 45 + fRand.nextInt(90);
+			fStore.fChasing[fId] = 0;
+		}
 	}
 	
 	/**
@@ -246,25 +569,27 @@ public class Dog extends Thread {
 	 * by a random factor.
 	 */
 	private void updateVelocity() {
-		if (fResting == true) {
-			fVelocity = 0;
-			fTimeRested++;
-			if (fTimeRested > Dog.NEEDED_REST) {
-				fResting = false;
-				fTimeRested = 0;
+		DogStore s = fStore;
+		int i = fId;
+		if (s.fResting[i] != 0) {
+			s.fVelocity[i] = 0;
+			s.fTimeRested[i]++;
+			if (s.fTimeRested[i] > Dog.NEEDED_REST) {
+				s.fResting[i] = 0;
+				s.fTimeRested[i] = 0;
 			}
 			return;
 		}
-		else if (fChasing == true) {
-			fVelocity = fVelocity + fRand.nextInt(ACCEL);
-			if (fVelocity > fMaxSpeed) {
-				fVelocity = fMaxSpeed;
+		else if (s.fChasing[i] != 0) {
+			s.fVelocity[i] = s.fVelocity[i] + fRand.nextInt(ACCEL);
+			if (s.fVelocity[i] > s.fMaxSpeed[i]) {
+				s.fVelocity[i] = s.fMaxSpeed[i];
 			}
 			return;
 		}
-		fVelocity = fVelocity - 5 + fRand.nextInt(ACCEL);
-		if (fVelocity > fMaxSpeed) {
-			fVelocity = fMaxSpeed;
+		s.fVelocity[i] = s.fVelocity[i] - 5 + fRand.nextInt(ACCEL);
+		if (s.fVelocity[i] > s.fMaxSpeed[i]) {
+			s.fVelocity[i] = s.fMaxSpeed[i];
 		}
 	}
 	
@@ -276,18 +601,20 @@ public class Dog extends Thread {
 	 * temp is not allowed to drop below <code>NORMAL_TEMP</code>
 	 */
 	private void updateTemp() {
-		if (fVelocity > fMaxSpeed / 3) {
-			fTemp += 1;
+		DogStore s = fStore;
+		int i = fId;
+		if (s.fVelocity[i] > s.fMaxSpeed[i] / 3) {
+			s.fTemp[i] += 1;
 		}
-		if (fResting == true) {
-			fTemp -= 1;
+		if (s.fResting[i] != 0) {
+			s.fTemp[i] -= 1;
 		}
-		if (fTemp > Dog.MAX_TEMP) {
-			fChasing = false;
-			fResting = true;
+		if (s.fTemp[i] > Dog.MAX_TEMP) {
+			s.fChasing[i] = 0;
+			s.fResting[i] = 1;
 		}
-		if (fTemp < Dog.NORMAL_TEMP) {
-			fTemp = Dog.NORMAL_TEMP;
+		if (s.fTemp[i] < Dog.NORMAL_TEMP) {
+			s.fTemp[i] = Dog.NORMAL_TEMP;
 		}
 	}
 	
@@ -300,35 +627,39 @@ public class Dog extends Thread {
 	 * permitted to drop below <code>NORMAL_HR</code>.
 	 */
 	private void updateHR() {
-		if (fVelocity > fMaxSpeed / 3) {
-			fHR += 2;
+		DogStore s = fStore;
+		int i = fId;
+		if (s.fVelocity[i] > s.fMaxSpeed[i] / 3) {
+			s.fHR[i] += 2;
 		}
-		if (fResting == true) {
-			fHR -= 1;
+		if (s.fResting[i] != 0) {
+			s.fHR[i] -= 1;
 		}
-		if (fHR > Dog.MAX_HR) {
-			fVelocity = 0;
-			fChasing = false;
-			fResting = true;
+		if (s.fHR[i] > Dog.MAX_HR) {
+			s.fVelocity[i] = 0;
+			s.fChasing[i] = 0;
+			s.fResting[i] = 1;
 		}	
-		if (fHR < Dog.NORMAL_HR) {
-			fHR = Dog.NORMAL_HR;
+		if (s.fHR[i] < Dog.NORMAL_HR) {
+			s.fHR[i] = Dog.NORMAL_HR;
 		}
 	}
 	
 	/**
 	 * Helper method to calculate the heading required
-	 * by this <code>Dog</code> to reach <code>aDog</code>
-	 * in a straight line.
+	 * to get from (<code>aX</code>, <code>aY</code>) to
+	 * (<code>aToX</code>, <code>aToY</code>) in a straight line, as
+	 * originally done for <code>legacyHeading</code>.
 	 * 
-	 * @param aDog The target dog.
+	 * @param aX x-coordinate to head from
+	 * @param aY y-coordinate to head from
+	 * @param aToX x-coordinate of the target
+	 * @param aToY y-coordinate of the target
 	 * @return a heading in degrees.
 	 */
-	private double heading (Dog aDog) {
-		if (aDog == null)
-			throw new IllegalArgumentException("aDog must not be null.");
-		double dx = aDog.getX() - fX;
-		double dy = aDog.getY() - fY;
+	private static double heading (double aX, double aY, double aToX, double aToY) {
+		double dx = aToX - aX;
+		double dy = aToY - aY;
 		double ret = Math.atan2(dy, dx) * Dog.HALF_CIRCLE / Math.PI;
 		
 		//Ensure the result is positive
@@ -339,18 +670,33 @@ public class Dog extends Thread {
 	
 	/**
 	 * Produces a <code>DogState</code> object with the dog's
-	 * current vital signs and location.
+	 * tag, current vital signs and location, stamped with the arena's
+	 * simulated time.
 	 * 
 	 * @return DogState with current vital signs
 	 * @see DogState
 	 */
 	public DogState getDogState () {
-		DogState ds = new DogState();
-		ds.fId = fId;
-		ds.fX = fX;
-		ds.fY = fY;
-		ds.fHR = fHR;
-		ds.fTemp = fTemp;
+		return getDogState(new DogState());
+	}
+	
+	/**
+	 * Fills an existing <code>DogState</code> as <code>getDogState()</code>
+	 * would, so that a transmitter can reuse one every tick.
+	 * 
+	 * @param ds state to fill
+	 * @return ds, carrying every field
+	 * @see DogState
+	 */
+	public DogState getDogState (DogState ds) {
+		ds.fId = fTag;
+		ds.fX = fStore.fX[fId];
+		ds.fY = fStore.fY[fId];
+		ds.fHR = fStore.fHR[fId];
+		ds.fTemp = fStore.fTemp[fId];
+		ds.fChasing = fStore.fChasing[fId] != 0;
+		ds.fTime = fArena.getTime();
+		ds.fFields = DogState.ALL;
 		return ds;
 	}
 }
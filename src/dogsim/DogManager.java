@@ -1,52 +1,161 @@
 package dogsim;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Random;
-import java.util.Vector;
+import java.util.Set;
+
+import javax.management.JMException;
 
 /**
  * Main class responsible for setting up an Arena, and adding dogs.
  * dogs are introduced and removed from the interaction space in a
  * pseudorandomn fashion while the program is running.  A maximum of
- * MAX_DOGS can be present at any given time.
+ * MAX_DOGS can be present at any given time.  The dogs are stepped
+ * by a <code>SimulationEngine</code> owned by the manager.
+ * 
+ * In headless mode the simulation runs on simulated time alone.
+ * Ticks run back-to-back, and dogs are introduced and removed before
+ * each tick at the rate the real-time loop would, so an hour of park
+ * activity can be simulated in seconds.
+ * 
+ * All randomness derives from SEED, so a headless run is reproduced
+ * exactly by its seed.  A headless run can write an
+ * <code>ArenaCheckpoint</code> every CHECKPOINT_INTERVAL ticks, and be
+ * resumed from it later, continuing exactly as the original run would.
+ * 
+ * With LIVE_THREADS set, the real-time simulation instead runs every dog
+ * on a thread of its own, which can be a virtual thread, and the engine
+ * only indexes and publishes the arena.
+ * 
+ * With ANALYTICS set, a <code>StreamAnalytics</code> stage summarizes the
+ * telemetry, and sends the server a summary of every period, in addition
+ * to the snapshots themselves unless RAW_TELEMETRY is turned off.
+ * 
+ * The engine, telemetry and live dogs report to the default
+ * <code>Metrics</code> registry, which is registered over JMX, and served
+ * to Prometheus on METRICS_PORT if one is given.
+ * 
+ * Every parameter can be set without recompiling, through a
+ * <code>SimConfig</code> read from a properties file, system properties
+ * and the command line.  Given a file, the manager watches it, and
+ * applies changes to the hot parameters, such as the tick interval, the
+ * spawn probabilities and the batch size, while the simulation runs.
  * 
  * @author Karel Bergmann
  *
  * @see Arena
  * @see Dog
+ * @see DogRegistry
+ * @see SimulationEngine
+ * @see TelemetryUplink
+ * @see TickListener
+ * @see ArenaCheckpoint
+ * @see LiveRunner
+ * @see StreamAnalytics
+ * @see Metrics
+ * @see SimConfig
  */
-public class DogManager {
+public class DogManager implements TickListener, SimConfig.Listener {
 	private static int MAX_DOGS = 100;
 	private static int ARENA_WIDTH = 1500;
 	private static int ARENA_HEIGHT = 1000;
 	private static int MAX_SPEED = 250;
 	private static int MIN_SPEED = 20;
 	private static int SLEEP_INTERVAL = 2;
-	private static double DOG_INTRO = 0.0001;	//probability of adding a dog
-	private static double DOG_REMOVE = 0.0000;	//probability of removing a dog
+	private static volatile double DOG_INTRO = 0.0001;	//probability of adding a dog
+	private static volatile double DOG_REMOVE = 0.0000;	//probability of removing a dog
 	private static boolean DISPLAY_GUI = false;	//show the interface
-	public static Object elock = new byte[0];   //for synchronizing access to dog Vector.
+	private static int SIM_THREADS = Runtime.getRuntime().availableProcessors();	//threads stepping dogs
+	private static long SEED = System.currentTimeMillis();	//seed for dog behaviour
+	private static boolean SUPPRESS_TELEMETRY = true;	//send only snapshots which changed enough
+	private static TelemetryUplink.Encoding ENCODING = TelemetryUplink.Encoding.JSON;	//wire format of telemetry
+	private static String JOURNAL_DIR = null;	//directory to journal all telemetry to, null for none
+	private static long CHECKPOINT_INTERVAL = 0;	//headless ticks between checkpoints, 0 for none
+	private static String CHECKPOINT_FILE = "dogsim.ckpt";	//file checkpoints are written to
+	private static LiveRunner.Threads LIVE_THREADS = null;	//run each dog on its own thread of this kind, null for the engine
+	private static int METRICS_PORT = -1;	//port serving metrics to Prometheus, -1 for none
+	private static boolean ASYNC_SINK = false;	//send telemetry through an AsyncHttpSink instead of an uplink
+	private static boolean ANALYTICS = false;	//summarize telemetry in a StreamAnalytics stage
+	private static boolean RAW_TELEMETRY = true;	//send every snapshot, not only the analytics summaries
 	
 	private Arena fSaddleDome;		//interaction space
-	private Vector<Integer> fIds;	//available ids
-	private Random fRand;			//for simulation	
+	private SimulationEngine fEngine;	//steps the dogs
+	private TelemetryUplink fUplink;	//batches FitBit transmissions, null if sending asynchronously
+	private AsyncHttpSink fAsync;		//sends FitBit transmissions asynchronously, null if using fUplink
+	private SuppressingSink fSuppressor;	//filters FitBit transmissions, null if not suppressing
+	private TelemetryJournal fJournal;	//records FitBit transmissions, null if not journalling
+	private StreamAnalytics fAnalytics;	//summarizes FitBit transmissions, null if not summarizing
+	private StreamAnalytics.HttpPublisher fPublisher;	//sends the summaries, null if not summarizing
+	private TelemetrySink fSink;		//first sink FitBit transmissions go to
+	private LiveRunner fRunner;		//runs each dog on its own thread, null if the engine steps them
+	private DogRandom fRand;		//for simulation	
+	private DogRandom fSpawnRand;	//for introduction and removal
+	private double fSpawnChecks;	//headless spawn checks owed to simulated time
+	private long fSpawned;			//number of dogs inserted so far
 	private ArenaDisplay ad;		//the GUI
 	
 	/**
-	 * Constructor initializes a <code>Vector</code> for available
-	 * dog IDs and the arena.
+	 * Constructor initializes the arena, whose <code>DogRegistry</code>
+	 * hands out dog IDs, and the engine which steps it.  A
+	 * <code>TelemetryUplink</code>, or an <code>AsyncHttpSink</code> if
+	 * ASYNC_SINK is set, is installed for all <code>FitBit</code>s, behind
+	 * a <code>SuppressingSink</code> if SUPPRESS_TELEMETRY is set, a
+	 * <code>StreamAnalytics</code> if ANALYTICS is set, and a
+	 * <code>TelemetryJournal</code> in JOURNAL_DIR if one is given.
 	 * 
 	 * @param aNumIds maximum number of dogs to support.
 	 * 
 	 * @see Arena
 	 */
 	public DogManager (int aNumIds) {
-		fIds = new Vector<Integer>(aNumIds, 1);
-		for (int i = 0 ; i < aNumIds; i++) {
-			fIds.add(new Integer(i));
+		this(new Arena(ARENA_WIDTH, ARENA_HEIGHT, aNumIds));
+		fSaddleDome.setTime(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Constructor for an existing arena, such as one restored from a
+	 * checkpoint.
+	 * 
+	 * @param aArena the interaction space
+	 */
+	private DogManager (Arena aArena) {
+		int numIds = aArena.getDogs().capacity();
+		fSaddleDome = aArena;
+		fEngine = new SimulationEngine(fSaddleDome, SIM_THREADS);
+		if (ASYNC_SINK) {
+			fAsync = new AsyncHttpSink(FitBit.getSERVER_URL(), ENCODING);
+			fSink = fAsync;
 		}
-		fSaddleDome = new Arena(ARENA_WIDTH, ARENA_HEIGHT);
-		fRand = new Random();
-		
+		else {
+			fUplink = new TelemetryUplink(FitBit.getSERVER_URL(), ENCODING);
+			fSink = fUplink;
+		}
+		if (SUPPRESS_TELEMETRY) {
+			fSuppressor = new SuppressingSink(fSink, numIds);
+			fSink = fSuppressor;
+		}
+		if (ANALYTICS) {
+			//summarize everything, before any of it is suppressed
+			fPublisher = new StreamAnalytics.HttpPublisher(StreamAnalytics.getURL());
+			fAnalytics = new StreamAnalytics(fSink, fPublisher, numIds, aArena.MAX_X, aArena.MAX_Y, RAW_TELEMETRY);
+			fSink = fAnalytics;
+			//periods end between ticks, headless or not
+			fEngine.setTickListener(this);
+		}
+		if (JOURNAL_DIR != null) {
+			//journal everything, before any of it is suppressed
+			try {
+				fJournal = new TelemetryJournal(new File(JOURNAL_DIR), fSink);
+				fSink = fJournal;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		FitBit.setSink(fSink);
+		exportMetrics();
+		fRand = new DogRandom(SEED);
+		fSpawnRand = fRand.split();
 		
 		//display the interface if requested.
 		if (DISPLAY_GUI) {
@@ -63,6 +172,34 @@ public class DogManager {
 		return(fSaddleDome);
 	}
 	
+	public SimulationEngine getEngine() {
+		return(fEngine);
+	}
+	
+	public TelemetryUplink getUplink() {
+		return(fUplink);
+	}
+	
+	public AsyncHttpSink getAsyncSink() {
+		return(fAsync);
+	}
+	
+	public LiveRunner getRunner() {
+		return(fRunner);
+	}
+	
+	public SuppressingSink getSuppressor() {
+		return(fSuppressor);
+	}
+	
+	public TelemetryJournal getJournal() {
+		return(fJournal);
+	}
+	
+	public StreamAnalytics getAnalytics() {
+		return(fAnalytics);
+	}
+	
 	/**
 	 * Add a dog to the arena if there aren't too many already.
 	 * 
@@ -70,21 +207,26 @@ public class DogManager {
 	 * @see Dog
 	 */
 	private  void insertDog() {
+		DogRegistry dogs = fSaddleDome.getDogs();
+		
 		//only proceed if there are free IDs.
-		if (!fIds.isEmpty()) {
-			Integer id = fIds.firstElement();
-			fIds.removeElementAt(0);
-
+		int id = dogs.acquireId();
+		if (id >= 0) {
 			//construct random max speed and starting HR.
 			double speed = fRand.nextInt(MAX_SPEED - MIN_SPEED) + MIN_SPEED;
 			long hr = fRand.nextInt((int) (Dog.getMAX_HR() - Dog.getNORMAL_HR())) + Dog.getNORMAL_HR();
 			
-			//add the dog to the arena and start the thread.
-			Dog newDog = new Dog(fSaddleDome, hr, 25, speed, id);
-			synchronized (elock) {
-				fSaddleDome.getDogs().add(newDog);
-			}
-			newDog.start();
+			//add the dog to the arena, the engine steps it from the next tick.
+			//each dog gets its own stream derived from SEED so that ticks are reproducible.
+			DogRandom dogRand = new DogRandom(Dog.seedFor(SEED, fSpawned++));
+			Dog dog = new Dog(fSaddleDome, hr, 25, speed, id, dogRand);
+			//the id may have belonged to a removed dog, whose last state must not suppress this one's.
+			//its transmissions ended before the id was recycled, so nothing can mark it seen again.
+			if (fSuppressor != null)
+				fSuppressor.forget(id);
+			dogs.add(dog);
+			if (fRunner != null)
+				fRunner.start(dog);
 		}
 	}
 	
@@ -95,36 +237,392 @@ public class DogManager {
 	 * @see Dog
 	 */
 	private void removeDog() {
-		Vector<Dog> dogs = fSaddleDome.getDogs();
+		DogRegistry dogs = fSaddleDome.getDogs();
 		
-		//synchronize access to dog vector, proceed only if there are dogs to remove.
-		synchronized (elock) {
-			if (!dogs.isEmpty()) {
-				//select a random dog, and remove it.
-				int select = fRand.nextInt(dogs.size());
-				Dog removed = dogs.elementAt(select);
-				
-				//release the id back into the available pool.
-				fIds.add(new Integer(removed.getID()));
-				dogs.removeElementAt(select);
-				
-				//shut down the dog.
-				removed.kill();
+		//select a random dog, proceed only if there is one and nobody removed it first.
+		Dog removed = dogs.pick(fRand);
+		if (removed != null && dogs.remove(removed)) {
+			//shut down the dog before its id (and store slot) can be reused.
+			removed.kill();
+			if (fRunner != null)
+				fRunner.stop(removed);
+			
+			//release the id back into the available pool.
+			dogs.releaseId(removed.getID());
+		}
+	}
+	
+	/**
+	 * Introduces a dog with probability DOG_INTRO, or removes
+	 * a dog with probability DOG_REMOVE.
+	 * 
+	 * @param aRand source of the probability
+	 */
+	private void populate(Random aRand) {
+		double prob = aRand.nextDouble();
+		//possibly remove a dog.
+		if (prob < DOG_REMOVE) {
+			removeDog();
+		}
+		//possible add a dog.
+		else if (prob < DOG_REMOVE + DOG_INTRO) {
+			insertDog();
+		}
+	}
+	
+	/**
+	 * Ends the analytics period if one is over and, when headless,
+	 * introduces and removes dogs.  The real-time loop sleeps
+	 * SLEEP_INTERVAL/2 milliseconds between checks on average, so the same
+	 * number of checks is made for each simulated tick.
+	 * 
+	 * @param aTick number of the tick about to run
+	 * @param aTime simulated time of the tick
+	 */
+	@Override
+	public void beforeTick(long aTick, long aTime) {
+		if (fAnalytics != null)
+			fAnalytics.advance(aTime);
+		if (fEngine.isRealTime())
+			return;
+		fSpawnChecks += SimulationEngine.getTICK_INTERVAL() * 2.0 / SLEEP_INTERVAL;
+		while (fSpawnChecks >= 1) {
+			fSpawnChecks--;
+			populate(fSpawnRand);
+		}
+	}
+	
+	/**
+	 * Writes a checkpoint of the arena, the engine's tick count and
+	 * the manager's generators.  Must be called between ticks.
+	 * 
+	 * @param aFile file to write
+	 * @throws IOException if the checkpoint can't be written
+	 * 
+	 * @see ArenaCheckpoint
+	 */
+	public void checkpoint(File aFile) throws IOException {
+		long[] state = { SEED, fRand.getState(), fSpawnRand.getState(),
+				Double.doubleToRawLongBits(fSpawnChecks), fSpawned };
+		fEngine.settleRest();
+		ArenaCheckpoint.write(aFile, fSaddleDome, fEngine.getTicks(), state);
+	}
+	
+	/**
+	 * Creates a manager from a checkpoint written by <code>checkpoint</code>.
+	 * SEED is set to the seed of the checkpointed run.
+	 * 
+	 * @param aFile checkpoint file
+	 * @return manager continuing the checkpointed run
+	 * @throws IOException if the checkpoint can't be read
+	 * 
+	 * @see ArenaCheckpoint
+	 */
+	public static DogManager restore(File aFile) throws IOException {
+		ArenaCheckpoint checkpoint = ArenaCheckpoint.read(aFile);
+		long[] state = checkpoint.getState();
+		if (state.length != 5)
+			throw new IOException(aFile + " is not a DogManager checkpoint.");
+		SEED = state[0];
+		DogManager dm = new DogManager(checkpoint.getArena());
+		dm.fEngine.setTicks(checkpoint.getTicks());
+		dm.fRand.setState(state[1]);
+		dm.fSpawnRand.setState(state[2]);
+		dm.fSpawnChecks = Double.longBitsToDouble(state[3]);
+		dm.fSpawned = state[4];
+		return dm;
+	}
+	
+	/**
+	 * Runs ticks on the calling thread, writing a checkpoint to
+	 * CHECKPOINT_FILE whenever the tick count reaches a multiple of
+	 * CHECKPOINT_INTERVAL.
+	 * 
+	 * @param aTicks number of ticks to run, or a negative number to run forever.
+	 */
+	private void runCheckpointed(long aTicks) {
+		for (long done = 0; aTicks < 0 || done < aTicks; ) {
+			long ticks = CHECKPOINT_INTERVAL - fEngine.getTicks() % CHECKPOINT_INTERVAL;
+			if (aTicks >= 0)
+				ticks = Math.min(ticks, aTicks - done);
+			fEngine.runTicks(ticks);
+			done += ticks;
+			if (fEngine.getTicks() % CHECKPOINT_INTERVAL == 0) {
+				try {
+					checkpoint(new File(CHECKPOINT_FILE));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 	
 	/**
-	 * Main method.  Loops infinitely.  On each iteration sleeps
-	 * SLEEP_INTERVAL milliseconds, introduces a dog with probability
+	 * Runs the simulation headless, as fast as possible.  With a tick
+	 * count the ticks are run on the calling thread and a summary is
+	 * printed, otherwise the engine runs until the process is killed.
+	 * With checkpoints, ticks always run on the calling thread.
+	 * 
+	 * @param aTicks number of ticks to run, or a negative number to run forever.
+	 */
+	private void runHeadless(long aTicks) {
+		fEngine.setRealTime(false);
+		fEngine.setTickListener(this);
+		System.out.println("Seed " + SEED + ", starting at tick " + fEngine.getTicks());
+		if (aTicks < 0 && CHECKPOINT_INTERVAL <= 0) {
+			fEngine.start();
+			return;
+		}
+		
+		long start = System.nanoTime();
+		if (CHECKPOINT_INTERVAL > 0)
+			runCheckpointed(aTicks);
+		else
+			fEngine.runTicks(aTicks);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Simulated " + (aTicks * SimulationEngine.getTICK_INTERVAL() / 1000) + " s in " +
+				seconds + " s (" + (long) (aTicks / seconds) + " ticks/s), " +
+				fSaddleDome.getDogs().size() + " dogs");
+		if (fSuppressor != null)
+			System.out.println("Suppressed " + fSuppressor.getSuppressed() + " of " +
+					fSuppressor.getReceived() + " snapshots (" +
+					Math.round(fSuppressor.getSuppressionRatio() * 100) + "%)");
+		if (fAnalytics != null)
+			System.out.println("Summarized " + fAnalytics.getReceived() + " snapshots in " +
+					fAnalytics.getSummaries() + " periods");
+		fEngine.shutdown();
+		fSink.close();
+	}
+	
+	/**
+	 * Reads the manager's parameters, which must be set before the
+	 * manager is created.  Of these, only <code>dogIntro</code> and
+	 * <code>dogRemove</code> can be changed while the simulation runs.
+	 * 
+	 * @param aConfig configuration to read
+	 * 
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		int maxDogs = aConfig.getInt("maxDogs", MAX_DOGS);
+		int width = aConfig.getInt("arenaWidth", ARENA_WIDTH);
+		int height = aConfig.getInt("arenaHeight", ARENA_HEIGHT);
+		int maxSpeed = aConfig.getInt("maxSpeed", MAX_SPEED);
+		int minSpeed = aConfig.getInt("minSpeed", MIN_SPEED);
+		int sleep = aConfig.getInt("sleepInterval", SLEEP_INTERVAL);
+		int threads = aConfig.getInt("simThreads", SIM_THREADS);
+		if (maxDogs <= 0 || width <= 0 || height <= 0)
+			throw new IllegalArgumentException("maxDogs, arenaWidth and arenaHeight must be greater than 0.");
+		if (minSpeed <= 0 || maxSpeed <= minSpeed)
+			throw new IllegalArgumentException("minSpeed must be greater than 0, and less than maxSpeed.");
+		if (sleep <= 0 || threads <= 0)
+			throw new IllegalArgumentException("sleepInterval and simThreads must be greater than 0.");
+		configureSpawning(aConfig);
+		MAX_DOGS = maxDogs;
+		ARENA_WIDTH = width;
+		ARENA_HEIGHT = height;
+		MAX_SPEED = maxSpeed;
+		MIN_SPEED = minSpeed;
+		SLEEP_INTERVAL = sleep;
+		SIM_THREADS = threads;
+		DISPLAY_GUI = aConfig.getBoolean("displayGui", DISPLAY_GUI);
+		SEED = aConfig.getLong("seed", SEED);
+		SUPPRESS_TELEMETRY = aConfig.getBoolean("suppressTelemetry", SUPPRESS_TELEMETRY);
+		ENCODING = aConfig.getEnum("encoding", ENCODING, TelemetryUplink.Encoding.class);
+		JOURNAL_DIR = aConfig.getString("journalDir", JOURNAL_DIR);
+		CHECKPOINT_INTERVAL = aConfig.getLong("checkpointInterval", CHECKPOINT_INTERVAL);
+		CHECKPOINT_FILE = aConfig.getString("checkpointFile", CHECKPOINT_FILE);
+		LIVE_THREADS = aConfig.getEnum("live", LIVE_THREADS, LiveRunner.Threads.class);
+		METRICS_PORT = aConfig.getInt("metricsPort", METRICS_PORT);
+		ASYNC_SINK = aConfig.getBoolean("asyncSink", ASYNC_SINK);
+		ANALYTICS = aConfig.getBoolean("analytics", ANALYTICS);
+		RAW_TELEMETRY = aConfig.getBoolean("rawTelemetry", RAW_TELEMETRY);
+	}
+	
+	/**
+	 * Reads <code>dogIntro</code> and <code>dogRemove</code>.
+	 * 
+	 * @param aConfig configuration to read
+	 */
+	private static void configureSpawning(SimConfig aConfig) {
+		double intro = aConfig.getDouble("dogIntro", DOG_INTRO);
+		double remove = aConfig.getDouble("dogRemove", DOG_REMOVE);
+		if (intro < 0 || remove < 0 || intro + remove > 1)
+			throw new IllegalArgumentException("dogIntro and dogRemove must be probabilities adding up to at most 1.");
+		DOG_INTRO = intro;
+		DOG_REMOVE = remove;
+	}
+	
+	/**
+	 * Applies the hot parameters of a changed configuration to the
+	 * running simulation.  Changes to other parameters are reported, and
+	 * take effect on the next start.
+	 * 
+	 * @param aOld configuration before the change
+	 * @param aNew configuration after the change
+	 * 
+	 * @see ConfigWatcher
+	 */
+	@Override
+	public void configChanged(SimConfig aOld, SimConfig aNew) {
+		Set<String> changed = aNew.changedKeys(aOld);
+		if (changed.isEmpty())
+			return;
+		Log.Level level = aNew.getEnum("logLevel", Log.getLevel(), Log.Level.class);
+		int batchSize = aNew.getInt("batchSize", fUplink != null ? fUplink.getBatchSize() : fAsync.getBatchSize());
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be greater than 0.");
+		try {
+			configureSpawning(aNew);
+			SimulationEngine.configure(aNew);
+			Dog.configure(aNew);
+		} catch (IllegalArgumentException e) {
+			//put back the old values, which were all applied once already
+			configureSpawning(aOld);
+			SimulationEngine.configure(aOld);
+			Dog.configure(aOld);
+			throw e;
+		}
+		if (fUplink != null)
+			fUplink.setBatchSize(batchSize);
+		else
+			fAsync.setBatchSize(batchSize);
+		Log.setLevel(level);
+		
+		for (String key : changed) {
+			if (!SimConfig.HOT_KEYS.contains(key))
+				Log.warn(key + " changed in " + aNew.getFile() + ", and takes effect on the next start", null);
+		}
+		Log.info("Reconfigured " + changed);
+	}
+	
+	/**
+	 * Registers the engine and telemetry with the default
+	 * <code>Metrics</code> registry, and the registry over JMX.
+	 * 
+	 * @see Metrics
+	 */
+	private void exportMetrics() {
+		Metrics metrics = Metrics.getDefault();
+		metrics.register(fEngine);
+		metrics.register(fUplink != null ? fUplink : fAsync);
+		if (fSuppressor != null)
+			metrics.register(fSuppressor);
+		if (fAnalytics != null) {
+			metrics.register(fAnalytics);
+			metrics.register(fPublisher);
+		}
+		try {
+			metrics.registerMBean();
+		} catch (JMException e) {
+			Log.warn("Metrics are not available over JMX", e);
+		}
+	}
+	
+	/**
+	 * Switches the real-time simulation to live dogs, each stepped on
+	 * its own thread by a <code>LiveRunner</code>, starting the dogs
+	 * already in the arena.
+	 * 
+	 * @param aThreads kind of thread to run dogs on
+	 * 
+	 * @see LiveRunner
+	 */
+	private void goLive(LiveRunner.Threads aThreads) {
+		fRunner = new LiveRunner(aThreads);
+		Metrics.getDefault().register(fRunner);
+		if (aThreads == LiveRunner.Threads.VIRTUAL && !fRunner.isVirtual())
+			System.out.println("Virtual threads are unavailable, running dogs on platform threads");
+		fEngine.setLive(true);
+		DogRegistry registry = fSaddleDome.getDogs();
+		Dog[] dogs = new Dog[registry.capacity()];
+		int count = registry.copyTo(dogs);
+		for (int i = 0; i < count; i++) {
+			if (dogs[i].isActive())
+				fRunner.start(dogs[i]);
+		}
+	}
+	
+	/**
+	 * Main method.  Starts the simulation engine, then loops infinitely.  On each iteration sleeps
+	 * up to SLEEP_INTERVAL milliseconds, introduces a dog with probability
 	 * DOG_INTRO and removes a dog with probability DOG_REMOVE.  Supports
 	 * upto MAX_DOGS at any one time.
 	 * 
-	 * @param args not used
+	 * With <code>--headless [ticks]</code> the simulation runs on simulated
+	 * time instead, as fast as possible, for the given number of ticks or forever.
+	 * <code>--seed n</code> sets SEED, <code>--checkpoint n</code> writes a
+	 * headless checkpoint every n ticks, and <code>--restore file</code>
+	 * resumes from a checkpoint.  <code>--live virtual|platform</code> runs
+	 * each dog on its own thread of that kind, and is ignored when headless.
+	 * <code>--metrics port</code> serves the metrics to Prometheus, and
+	 * <code>--log level</code> sets the <code>Log</code> level, which is
+	 * <code>DEBUG</code> for every transmission to be printed.
+	 * <code>--config file</code> reads and watches a properties file, and
+	 * <code>--set key=value</code> sets any parameter, as in <code>SimConfig</code>.
+	 * 
+	 * @param args optional <code>--headless [ticks]</code>, <code>--seed n</code>,
+	 * 				<code>--checkpoint n</code>, <code>--restore file</code>,
+	 * 				<code>--live virtual|platform</code>, <code>--metrics port</code>,
+	 * 				<code>--log level</code>, <code>--config file</code> and
+	 * 				<code>--set key=value</code>
+	 * @throws IOException if the checkpoint to restore can't be read, or
+	 * 				the metrics port can't be bound
 	 */
-	public static void main (String [] args) {
-		Random rand = new Random();
-		DogManager dm = new DogManager(MAX_DOGS);
+	public static void main (String [] args) throws IOException {
+		SimConfig config = SimConfig.fromArgs(args);
+		Log.setLevel(config.getEnum("logLevel", Log.getLevel(), Log.Level.class));
+		configure(config);
+		Dog.configure(config);
+		Heading.configure(config);
+		FitBit.configure(config);
+		SimulationEngine.configure(config);
+		TelemetryUplink.configure(config);
+		AsyncHttpSink.configure(config);
+		StreamAnalytics.configure(config);
+		SuppressingSink.configure(config);
+		
+		boolean headless = false;
+		long ticks = -1;
+		String restore = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--headless")) {
+				headless = true;
+				if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+					ticks = Long.parseLong(args[++i]);
+			}
+			else if (args[i].equals("--seed") && i + 1 < args.length)
+				SEED = Long.parseLong(args[++i]);
+			else if (args[i].equals("--checkpoint") && i + 1 < args.length)
+				CHECKPOINT_INTERVAL = Long.parseLong(args[++i]);
+			else if (args[i].equals("--restore") && i + 1 < args.length)
+				restore = args[++i];
+			else if (args[i].equals("--live") && i + 1 < args.length)
+				LIVE_THREADS = LiveRunner.Threads.valueOf(args[++i].toUpperCase());
+			else if (args[i].equals("--metrics") && i + 1 < args.length)
+				METRICS_PORT = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--log") && i + 1 < args.length)
+				Log.setLevel(Log.Level.valueOf(args[++i].toUpperCase()));
+		}
+		if (METRICS_PORT >= 0) {
+			MetricsEndpoint endpoint = new MetricsEndpoint(Metrics.getDefault(), METRICS_PORT);
+			endpoint.start();
+			Log.info("Serving metrics at " + endpoint.getUrl());
+		}
+		if (headless)
+			DISPLAY_GUI = false;
+		DogManager dm = restore != null ? restore(new File(restore)) : new DogManager(MAX_DOGS);
+		if (config.getFile() != null)
+			new ConfigWatcher(config, dm).start();
+		if (headless) {
+			dm.runHeadless(ticks);
+			return;
+		}
+		
+		Random rand = dm.fSpawnRand;
+		if (LIVE_THREADS != null)
+			dm.goLive(LIVE_THREADS);
+		dm.getEngine().start();
 		
 		//keep looping
 		while (true) {
@@ -135,15 +633,7 @@ public class DogManager {
 			    Thread.currentThread().interrupt();
 			}
 			
-			double prob = rand.nextDouble();
-			//possibly remove a dog.
-			if (prob < DOG_REMOVE) {
-				dm.removeDog();
-			}
-			//possible add a dog.
-			else if (prob < DOG_REMOVE + DOG_INTRO) {
-				dm.insertDog();
-			}
+			dm.populate(rand);
 		}
 	}
 }
@@ -0,0 +1,198 @@
+package dogsim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal local stand-in for the DogPark web service's
+ * <code>update</code> endpoint, for benchmarks and load tests.  Every
+ * request body is read and discarded, and answered with a short 200
+ * response.  Requests and body bytes are counted, and so are the records
+ * of the binary <code>DogStateCodec</code> frames accepted, and the most
+ * requests handled at once.  For testing how clients cope with a poor
+ * server, answers can be delayed, and one in every so many requests can
+ * be failed with a 503.
+ *
+ * @author Karel Bergmann
+ *
+ * @see FitBit
+ * @see TelemetryUplink
+ * @see AsyncHttpSink
+ */
+public class DogParkStub implements HttpHandler {
+	public static final String PATH = "/DogPark/webresources/DogPark/update";
+	private static final byte[] OK = "OK".getBytes();
+
+	static {
+		//without it, every response waits out the client's delayed ACK
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+	}
+
+	private HttpServer fServer;		//embedded HTTP server
+	private ExecutorService fPool;	//threads handling requests
+	private final AtomicLong fRequests = new AtomicLong();	//requests answered
+	private final AtomicLong fBytes = new AtomicLong();		//request body bytes received
+	private final AtomicLong fFrameRecords = new AtomicLong();	//records in binary frames accepted
+	private final AtomicLong fRejected = new AtomicLong();	//requests failed on purpose
+	private final AtomicInteger fActive = new AtomicInteger();	//requests being handled
+	private final AtomicInteger fMaxActive = new AtomicInteger();	//most requests handled at once
+	private volatile long fDelay;		//milliseconds to wait before answering
+	private volatile int fFailEvery;	//fail one in this many requests, 0 for none
+
+	/**
+	 * Constructor which binds the stub to a local port.
+	 *
+	 * @param aPort port to listen on, 0 for any free port.
+	 * @param aThreads threads handling requests, must be greater than 0.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public DogParkStub(int aPort, int aThreads) throws IOException {
+		if (aThreads <= 0)
+			throw new IllegalArgumentException("aThreads must be greater than 0.");
+		fServer = HttpServer.create(new InetSocketAddress("localhost", aPort), 1024);
+		fServer.createContext(PATH, this);
+		fPool = Executors.newFixedThreadPool(aThreads);
+		fServer.setExecutor(fPool);
+	}
+
+	public void start() {
+		fServer.start();
+	}
+
+	public void stop() {
+		fServer.stop(0);
+		fPool.shutdown();
+	}
+
+	/**
+	 * @return URL of the stub's update endpoint.
+	 */
+	public String getUrl() {
+		return "http://localhost:" + fServer.getAddress().getPort() + PATH;
+	}
+
+	public long getRequests() {
+		return fRequests.get();
+	}
+
+	public long getBytes() {
+		return fBytes.get();
+	}
+
+	public long getFrameRecords() {
+		return fFrameRecords.get();
+	}
+
+	public long getRejected() {
+		return fRejected.get();
+	}
+
+	/**
+	 * @return most requests handled at once, which shows a client's own
+	 * 				bound only if the stub has more threads than that.
+	 */
+	public int getMaxActive() {
+		return fMaxActive.get();
+	}
+
+	/**
+	 * @param aDelay milliseconds to wait before answering each request,
+	 * 				must be non-negative.
+	 */
+	public void setDelay(long aDelay) {
+		if (aDelay < 0)
+			throw new IllegalArgumentException("aDelay must be non-negative.");
+		fDelay = aDelay;
+	}
+
+	/**
+	 * @param aFailEvery answer one in this many requests with a 503
+	 * 				instead of accepting it, 0 to accept all, must be non-negative.
+	 */
+	public void setFailEvery(int aFailEvery) {
+		if (aFailEvery < 0)
+			throw new IllegalArgumentException("aFailEvery must be non-negative.");
+		fFailEvery = aFailEvery;
+	}
+
+	@Override
+	public void handle(HttpExchange aExchange) throws IOException {
+		int active = fActive.incrementAndGet();
+		int max = fMaxActive.get();
+		while (active > max && !fMaxActive.compareAndSet(max, active))
+			max = fMaxActive.get();
+		byte[] buf = new byte[4096];
+		long read = 0;
+		long records = 0;
+		try {
+			InputStream in = aExchange.getRequestBody();
+			boolean binary = DogStateCodec.CONTENT_TYPE.equals(aExchange.getRequestHeaders().getFirst("Content-Type"));
+			if (binary) {
+				//the record count is in the first eight bytes of a frame
+				while (read < 8) {
+					int n = in.read(buf, (int) read, 8 - (int) read);
+					if (n < 0)
+						break;
+					read += n;
+				}
+				if (read == 8)
+					records = ((buf[4] & 0xFF) << 24) | ((buf[5] & 0xFF) << 16) |
+							((buf[6] & 0xFF) << 8) | (buf[7] & 0xFF);
+			}
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				read += n;
+			}
+			in.close();
+			long delay = fDelay;
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} finally {
+			//before answering, as the client may send another request as soon as it has the answer
+			fActive.decrementAndGet();
+		}
+		long request = fRequests.incrementAndGet();
+		int failEvery = fFailEvery;
+		if (failEvery > 0 && request % failEvery == 0) {
+			fRejected.incrementAndGet();
+			aExchange.sendResponseHeaders(503, -1);
+			aExchange.close();
+			return;
+		}
+		fBytes.addAndGet(read);
+		fFrameRecords.addAndGet(records);
+
+		aExchange.sendResponseHeaders(200, OK.length);
+		OutputStream out = aExchange.getResponseBody();
+		out.write(OK);
+		out.close();
+	}
+
+	/**
+	 * Runs the stub until the process is killed.
+	 *
+	 * @param args optional port, defaults to 8080.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		DogParkStub stub = new DogParkStub(port, 4);
+		stub.start();
+		System.out.println("DogPark stub listening at " + stub.getUrl());
+	}
+}
@@ -0,0 +1,88 @@
+package dogsim;
+
+import java.util.Random;
+
+/**
+ * Small, fast, splittable source of randomness for one dog, using the
+ * SplitMix64 generator of <code>java.util.SplittableRandom</code>.  The
+ * whole state is a single <code>long</code>, which can be read and set,
+ * so a dog's stream can be checkpointed and resumed, or carried with the
+ * dog into another shard.  <code>split</code> derives an independent
+ * stream, and <code>Dog.seedFor</code> derives the stream of each dog from
+ * a simulation seed.
+ *
+ * Unlike <code>java.util.Random</code> the generator is not thread-safe,
+ * and costs no atomic update per number; a dog's generator is only used
+ * by the thread stepping the dog.  As a subclass of <code>Random</code> it
+ * supplies the usual methods, but <code>nextGaussian</code> keeps a spare
+ * value outside the state, and so isn't reproduced across a checkpoint.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Dog
+ * @see ArenaCheckpoint
+ */
+public class DogRandom extends Random {
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;	//increment of the state
+
+	private long fState;	//generator state, advanced by GOLDEN_GAMMA per number
+
+	/**
+	 * @param aSeed initial state
+	 */
+	public DogRandom(long aSeed) {
+		//Random's constructor calls setSeed, which sets fState
+		super(aSeed);
+	}
+
+	/**
+	 * Restarts the stream from a state.
+	 *
+	 * @param aSeed new state
+	 */
+	@Override
+	public void setSeed(long aSeed) {
+		fState = aSeed;
+	}
+
+	public long getState() {
+		return fState;
+	}
+
+	public void setState(long aState) {
+		fState = aState;
+	}
+
+	@Override
+	protected int next(int aBits) {
+		return (int) (nextLong() >>> (64 - aBits));
+	}
+
+	@Override
+	public long nextLong() {
+		return mix(fState += GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Derives an independent generator, advancing this one.
+	 *
+	 * @return the new generator
+	 */
+	public DogRandom split() {
+		return new DogRandom(nextLong());
+	}
+
+	/**
+	 * SplitMix64 finalizer, which spreads every bit of <code>aZ</code>
+	 * over the result.
+	 *
+	 * @param aZ value to mix
+	 * @return the mixed value
+	 */
+	static long mix(long aZ) {
+		aZ = (aZ ^ (aZ >>> 30)) * 0xBF58476D1CE4E5B9L;
+		aZ = (aZ ^ (aZ >>> 27)) * 0x94D049BB133111EBL;
+		return aZ ^ (aZ >>> 31);
+	}
+}
@@ -0,0 +1,279 @@
+package dogsim;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent registry of the dogs in an <code>Arena</code>, replacing a
+ * <code>Vector</code> guarded by a global lock.  Each dog occupies the
+ * slot of its ID, so adding and removing a dog is a single
+ * compare-and-set on that slot, and dogs added or removed at the same
+ * time never contend unless they share an ID.
+ *
+ * Free IDs are kept on a lock-free stack threaded through an
+ * <code>int</code> array, so an ID is acquired or released in constant
+ * time.  The head of the stack carries a version stamp which is bumped
+ * on every change, so a slow thread can't pop an ID that has meanwhile
+ * been popped and pushed again.
+ *
+ * A released ID isn't handed out again straight away, as the dog which
+ * held it may still be being stepped in the tick under way, and a new
+ * dog would write the same <code>DogStore</code> slot from another
+ * thread.  Released IDs wait on a second stack until the
+ * <code>SimulationEngine</code> recycles them at the start of the next
+ * tick.
+ *
+ * Readers never block writers.  <code>copyTo</code> copies the dogs
+ * present into an array, which the <code>SimulationEngine</code> does
+ * once per tick and then steps without holding anything.  A dog added
+ * or removed during the copy may or may not be included.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see DogManager
+ * @see SimulationEngine
+ */
+public class DogRegistry {
+	private static final int EMPTY = -1;	//end of the free-ID stack
+
+	private final AtomicReferenceArray<Dog> fSlots;	//dog holding each ID, null if free
+	private final int[] fNext;			//ID below each ID on the free stack
+	private final AtomicLong fFree;		//version in the high word, top free ID in the low word
+	private final AtomicLong fReleased;	//as fFree, for the IDs released since the last recycle
+	private final AtomicInteger fSize;	//number of dogs present
+
+	/**
+	 * Constructor with every ID free.  IDs are handed out
+	 * lowest first.
+	 *
+	 * @param aCapacity number of IDs, must be greater than 0.
+	 */
+	public DogRegistry(int aCapacity) {
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException("aCapacity must be greater than 0.");
+		fSlots = new AtomicReferenceArray<Dog>(aCapacity);
+		fNext = new int[aCapacity];
+		for (int i = 0; i < aCapacity; i++) {
+			fNext[i] = i + 1 < aCapacity ? i + 1 : EMPTY;
+		}
+		fFree = new AtomicLong(stack(0, 0));
+		fReleased = new AtomicLong(stack(0, EMPTY));
+		fSize = new AtomicInteger();
+	}
+
+	/**
+	 * Takes an ID off the free stack.
+	 *
+	 * @return a free ID, or -1 if every ID is in use.
+	 */
+	public int acquireId() {
+		while (true) {
+			long head = fFree.get();
+			int top = (int) head;
+			if (top == EMPTY)
+				return -1;
+			//a stale fNext read is harmless, the version makes the CAS fail
+			if (fFree.compareAndSet(head, stack(version(head) + 1, fNext[top])))
+				return top;
+		}
+	}
+
+	/**
+	 * Releases an ID, to be handed out again once it has been
+	 * recycled.  The dog holding it must have been removed.
+	 *
+	 * @param aId ID to release
+	 * @see #recycleIds()
+	 */
+	public void releaseId(int aId) {
+		if (aId < 0 || aId >= fNext.length)
+			throw new IllegalArgumentException("aId must be between 0 and " + (fNext.length - 1) + ".");
+		while (true) {
+			long head = fReleased.get();
+			fNext[aId] = (int) head;
+			if (fReleased.compareAndSet(head, stack(version(head) + 1, aId)))
+				return;
+		}
+	}
+
+	/**
+	 * Moves the IDs released since the last call onto the free stack,
+	 * most recently released on top.  Called between ticks by the thread
+	 * running them, when no dog which held a released ID can still be
+	 * stepped.
+	 *
+	 * @return number of IDs recycled
+	 */
+	public int recycleIds() {
+		//take the whole released stack, then push it onto the free stack as one chain
+		long released;
+		do {
+			released = fReleased.get();
+			if ((int) released == EMPTY)
+				return 0;
+		} while (!fReleased.compareAndSet(released, stack(version(released) + 1, EMPTY)));
+		int top = (int) released;
+		int bottom = top;
+		int count = 1;
+		while (fNext[bottom] != EMPTY) {
+			bottom = fNext[bottom];
+			count++;
+		}
+		while (true) {
+			long head = fFree.get();
+			fNext[bottom] = (int) head;
+			if (fFree.compareAndSet(head, stack(version(head) + 1, top)))
+				return count;
+		}
+	}
+
+	/**
+	 * Adds a dog in the slot of its ID, which should have been
+	 * taken with <code>acquireId</code>.
+	 *
+	 * @param aDog dog to add
+	 * @throws IllegalStateException if another dog holds the ID.
+	 */
+	public void add(Dog aDog) {
+		if (aDog == null)
+			throw new IllegalArgumentException("aDog must not be null.");
+		if (!fSlots.compareAndSet(aDog.getID(), null, aDog))
+			throw new IllegalStateException("ID " + aDog.getID() + " is already in use.");
+		fSize.incrementAndGet();
+	}
+
+	/**
+	 * Removes a dog.  Its ID is not released.
+	 *
+	 * @param aDog dog to remove
+	 * @return true if the dog was removed by this call, false if it
+	 * 				was not present.
+	 */
+	public boolean remove(Dog aDog) {
+		if (!fSlots.compareAndSet(aDog.getID(), aDog, null))
+			return false;
+		fSize.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @param aId dog ID
+	 * @return the dog with the ID, or null if none.
+	 */
+	public Dog get(int aId) {
+		return fSlots.get(aId);
+	}
+
+	/**
+	 * Picks a dog uniformly at random, by drawing IDs until one is
+	 * held.  Should the registry be so sparse that as many draws as there
+	 * are IDs all miss, the dogs present are counted off instead.
+	 *
+	 * @param aRand source of the IDs drawn
+	 * @return a dog, or null if there are none.
+	 */
+	public Dog pick(Random aRand) {
+		int capacity = fSlots.length();
+		for (int i = 0; i < capacity && fSize.get() > 0; i++) {
+			Dog dog = fSlots.get(aRand.nextInt(capacity));
+			if (dog != null)
+				return dog;
+		}
+		//count off a random dog among those present
+		int size = fSize.get();
+		if (size <= 0)
+			return null;
+		int n = aRand.nextInt(size);
+		Dog last = null;
+		for (int i = 0; i < capacity; i++) {
+			Dog dog = fSlots.get(i);
+			if (dog != null) {
+				last = dog;
+				if (n-- == 0)
+					return dog;
+			}
+		}
+		//dogs were removed during the count
+		return last;
+	}
+
+	/**
+	 * Copies the dogs present, in ID order, into an array with
+	 * room for <code>capacity()</code> dogs.
+	 *
+	 * @param aDogs array to fill
+	 * @return number of dogs copied
+	 */
+	public int copyTo(Dog[] aDogs) {
+		int count = 0;
+		for (int i = 0; i < fSlots.length(); i++) {
+			Dog dog = fSlots.get(i);
+			if (dog != null)
+				aDogs[count++] = dog;
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of dogs present.
+	 */
+	public int size() {
+		return fSize.get();
+	}
+
+	public boolean isEmpty() {
+		return fSize.get() == 0;
+	}
+
+	public int capacity() {
+		return fSlots.length();
+	}
+
+	/**
+	 * Copies the free IDs, including those waiting to be recycled, in
+	 * the order <code>acquireId</code> would hand them out after the next
+	 * recycle.  Must not be called while IDs are being acquired or
+	 * released.
+	 *
+	 * @param aInto array with room for the free IDs
+	 * @return number of free IDs copied
+	 */
+	int freeIds(int[] aInto) {
+		int count = 0;
+		for (int id = (int) fReleased.get(); id != EMPTY; id = fNext[id]) {
+			aInto[count++] = id;
+		}
+		for (int id = (int) fFree.get(); id != EMPTY; id = fNext[id]) {
+			aInto[count++] = id;
+		}
+		return count;
+	}
+
+	/**
+	 * Replaces the free stack, so that <code>acquireId</code> hands out
+	 * the given IDs in order, as when restoring a checkpoint.  Nothing is
+	 * left to recycle.  Must not be called while IDs are being acquired or
+	 * released.
+	 *
+	 * @param aIds free IDs, top of the stack first
+	 * @param aCount number of free IDs
+	 */
+	void setFreeIds(int[] aIds, int aCount) {
+		for (int i = 0; i < aCount; i++) {
+			fNext[aIds[i]] = i + 1 < aCount ? aIds[i + 1] : EMPTY;
+		}
+		fReleased.set(stack(version(fReleased.get()) + 1, EMPTY));
+		fFree.set(stack(version(fFree.get()) + 1, aCount > 0 ? aIds[0] : EMPTY));
+	}
+
+	private static long stack(long aVersion, int aTop) {
+		return (aVersion << 32) | (aTop & 0xFFFFFFFFL);
+	}
+
+	private static long version(long aHead) {
+		return aHead >>> 32;
+	}
+}
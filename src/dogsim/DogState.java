@@ -6,15 +6,45 @@ import us.monoid.json.JSONStringer;
 /**
  * Helper class for sending essential <code>Dog</code> info
  * to a RESTful web service.
+ * 
+ * A snapshot normally carries every field.  A delta from a
+ * <code>SuppressingSink</code> marks in <code>fFields</code> which fields
+ * changed, and only those are serialized by a <code>DogStateWriter</code>.
  * @author Karel Bergmann
  * @see Dog
+ * @see SuppressingSink
  */
 public class DogState {
+	public static final int POSITION = 1;	//fX and fY
+	public static final int HR = 2;			//fHR
+	public static final int TEMP = 4;		//fTemp
+	public static final int ALL = POSITION | HR | TEMP;
+	
+
 	public int fId;		//dog ID
 	public double fX;	//x-coordinate
 	public double fY;	//y-coordinate
 	public long fHR;	//heart rate
 	public double fTemp;//body temperature
+	public long fTime;	//simulated time of the snapshot in milliseconds
+	public int fFields = ALL;	//fields to transmit, ALL unless this is a delta
+	public boolean fChasing;	//chasing another dog, for StreamAnalytics, never transmitted
+	
+	/**
+	 * Copies every field of another state.
+	 * 
+	 * @param aFrom state to copy
+	 */
+	public void set (DogState aFrom) {
+		fId = aFrom.fId;
+		fX = aFrom.fX;
+		fY = aFrom.fY;
+		fHR = aFrom.fHR;
+		fTemp = aFrom.fTemp;
+		fTime = aFrom.fTime;
+		fFields = aFrom.fFields;
+		fChasing = aFrom.fChasing;
+	}
 	
 	@Override
 	public String toString () {
@@ -0,0 +1,272 @@
+package dogsim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact fixed-width binary encoding of <code>DogState</code> records,
+ * the alternative to the JSON of a <code>DogStateWriter</code>.  Records
+ * are encoded into a reused byte buffer, as frames of many dogs each:
+ *
+ * <pre>
+ * frame header, 16 bytes:
+ *   short  MAGIC
+ *   byte   VERSION
+ *   byte   reserved, 0
+ *   int    number of records
+ *   long   base time, the simulated time of the first record
+ * record, RECORD_SIZE bytes:
+ *   int    id
+ *   float  x-coordinate
+ *   float  y-coordinate
+ *   short  heart rate
+ *   short  temperature in hundredths of a degree
+ *   int    time of the snapshot, in milliseconds after the base time
+ *   byte   fields carried, as in <code>DogState.fFields</code>
+ * </pre>
+ *
+ * All values are big-endian.  A <code>TelemetryJournal</code> segment is
+ * a single frame.  Coordinates lose precision beyond a float,
+ * temperatures beyond a hundredth of a degree, and heart rates are
+ * clamped to a short.  Fields a delta doesn't carry are encoded as 0.
+ * An encoder is not thread-safe.
+ *
+ * @author Karel Bergmann
+ *
+ * @see DogState
+ * @see DogStateWriter
+ * @see TelemetryUplink
+ * @see TelemetryJournal
+ */
+public class DogStateCodec {
+	public static final String CONTENT_TYPE = "application/x-dogstate";
+	public static final short MAGIC = 0x4453;	//"DS"
+	public static final byte VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 21;
+	private static final double TEMP_SCALE = 100;	//temperature units per degree
+
+	private byte[] fBuf;		//encoded frame
+	private ByteBuffer fView;	//big-endian view of fBuf
+	private int fLength;		//bytes used in fBuf
+	private int fRecords;		//records in the frame
+	private long fBase;			//base time of the frame
+
+	/**
+	 * Constructor with room for a few hundred records.
+	 */
+	public DogStateCodec() {
+		this(HEADER_SIZE + 256 * RECORD_SIZE);
+	}
+
+	/**
+	 * Constructor specifying the initial buffer size.
+	 *
+	 * @param aCapacity initial buffer size in bytes, must be at least <code>HEADER_SIZE</code>.
+	 */
+	public DogStateCodec(int aCapacity) {
+		if (aCapacity < HEADER_SIZE)
+			throw new IllegalArgumentException("aCapacity must be at least HEADER_SIZE.");
+		fBuf = new byte[aCapacity];
+		fView = ByteBuffer.wrap(fBuf);
+		reset();
+	}
+
+	/**
+	 * Discards the frame and starts a new, empty one.
+	 */
+	public void reset() {
+		fLength = HEADER_SIZE;
+		fRecords = 0;
+		fBase = 0;
+	}
+
+	/**
+	 * Appends a record for <code>aState</code> to the frame.
+	 *
+	 * @param aState state to encode
+	 */
+	public void write(DogState aState) {
+		if (fRecords == 0)
+			fBase = aState.fTime;
+		ensure(RECORD_SIZE);
+		fView.position(fLength);
+		putRecord(fView, aState, fBase);
+		fLength += RECORD_SIZE;
+		fRecords++;
+	}
+
+	/**
+	 * Fills in the frame header.  Must be called after the last record
+	 * is written and before the frame is read.
+	 */
+	public void finish() {
+		putHeader(fView, 0, fRecords, fBase);
+	}
+
+	/**
+	 * @return the buffer holding the frame, valid up to
+	 * 				<code>length()</code>.  The buffer may be replaced as it grows.
+	 */
+	public byte[] buffer() {
+		return fBuf;
+	}
+
+	public int length() {
+		return fLength;
+	}
+
+	public int records() {
+		return fRecords;
+	}
+
+	/**
+	 * Writes the frame to a stream.
+	 *
+	 * @param aOut stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream aOut) throws IOException {
+		aOut.write(fBuf, 0, fLength);
+	}
+
+	/**
+	 * Decodes a frame into existing <code>DogState</code>s, allocating
+	 * nothing.
+	 *
+	 * @param aFrame buffer holding the frame
+	 * @param aOffset start of the frame in <code>aFrame</code>
+	 * @param aLength length of the frame
+	 * @param aInto states to decode into, at least as many as the frame has records
+	 * @return number of records decoded.
+	 * @throws IOException if the frame is malformed or <code>aInto</code> is too short.
+	 */
+	public static int decode(byte[] aFrame, int aOffset, int aLength, DogState[] aInto) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(aFrame, aOffset, aLength);
+		int records = getRecords(in);
+		if (records > aInto.length)
+			throw new IOException("DogState frame has more records than aInto.");
+		long base = getBase(in);
+		for (int i = 0; i < records; i++) {
+			getRecord(in, aInto[i], base);
+		}
+		return records;
+	}
+
+	/**
+	 * Decodes a whole frame into new <code>DogState</code>s.
+	 *
+	 * @param aFrame the frame
+	 * @return the decoded states.
+	 * @throws IOException if the frame is malformed.
+	 */
+	public static DogState[] decode(byte[] aFrame) throws IOException {
+		DogState[] states = new DogState[getRecords(ByteBuffer.wrap(aFrame))];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = new DogState();
+		}
+		decode(aFrame, 0, aFrame.length, states);
+		return states;
+	}
+
+	/**
+	 * Writes a frame header at an absolute position of a buffer.
+	 *
+	 * @param aBuf buffer holding the frame
+	 * @param aAt position of the frame in the buffer
+	 * @param aRecords number of records in the frame
+	 * @param aBase base time of the frame
+	 */
+	static void putHeader(ByteBuffer aBuf, int aAt, int aRecords, long aBase) {
+		aBuf.putShort(aAt, MAGIC);
+		aBuf.put(aAt + 2, VERSION);
+		aBuf.put(aAt + 3, (byte) 0);
+		aBuf.putInt(aAt + 4, aRecords);
+		aBuf.putLong(aAt + 8, aBase);
+	}
+
+	/**
+	 * Checks the frame header at the position of a buffer.
+	 *
+	 * @param aBuf buffer positioned at a frame, left positioned at the first record
+	 * @return number of records in the frame.
+	 * @throws IOException if the header is malformed or the records don't fit the buffer.
+	 */
+	static int getRecords(ByteBuffer aBuf) throws IOException {
+		int at = aBuf.position();
+		if (aBuf.remaining() < HEADER_SIZE || aBuf.getShort(at) != MAGIC)
+			throw new IOException("Not a DogState frame.");
+		if (aBuf.get(at + 2) != VERSION)
+			throw new IOException("Unsupported DogState frame version " + aBuf.get(at + 2) + ".");
+		int records = aBuf.getInt(at + 4);
+		if (records < 0 || records > (aBuf.remaining() - HEADER_SIZE) / RECORD_SIZE)
+			throw new IOException("DogState frame is truncated.");
+		return records;
+	}
+
+	/**
+	 * @param aBuf buffer positioned at a frame, left positioned at the first record
+	 * @return base time of the frame.
+	 */
+	static long getBase(ByteBuffer aBuf) {
+		long base = aBuf.getLong(aBuf.position() + 8);
+		aBuf.position(aBuf.position() + HEADER_SIZE);
+		return base;
+	}
+
+	/**
+	 * Appends one record at the position of a buffer.
+	 *
+	 * @param aBuf buffer with at least <code>RECORD_SIZE</code> bytes remaining
+	 * @param aState state to encode
+	 * @param aBase base time of the frame
+	 */
+	static void putRecord(ByteBuffer aBuf, DogState aState, long aBase) {
+		long offset = aState.fTime - aBase;
+		if (offset != (int) offset)
+			throw new IllegalArgumentException("aState is too far in time from the start of the frame.");
+		int fields = aState.fFields;
+		boolean position = (fields & DogState.POSITION) != 0;
+		aBuf.putInt(aState.fId);
+		aBuf.putFloat(position ? (float) aState.fX : 0);
+		aBuf.putFloat(position ? (float) aState.fY : 0);
+		aBuf.putShort((fields & DogState.HR) != 0 ? clamp(aState.fHR) : 0);
+		aBuf.putShort((fields & DogState.TEMP) != 0 ? clamp(Math.round(aState.fTemp * TEMP_SCALE)) : 0);
+		aBuf.putInt((int) offset);
+		aBuf.put((byte) fields);
+	}
+
+	/**
+	 * Reads one record at the position of a buffer.
+	 *
+	 * @param aBuf buffer with at least <code>RECORD_SIZE</code> bytes remaining
+	 * @param aInto state to decode into
+	 * @param aBase base time of the frame
+	 */
+	static void getRecord(ByteBuffer aBuf, DogState aInto, long aBase) {
+		aInto.fId = aBuf.getInt();
+		aInto.fX = aBuf.getFloat();
+		aInto.fY = aBuf.getFloat();
+		aInto.fHR = aBuf.getShort();
+		aInto.fTemp = aBuf.getShort() / TEMP_SCALE;
+		aInto.fTime = aBase + aBuf.getInt();
+		aInto.fFields = aBuf.get() & DogState.ALL;
+	}
+
+	private static short clamp(long aValue) {
+		return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, aValue));
+	}
+
+	/**
+	 * Grows the buffer to fit <code>aBytes</code> more bytes.
+	 */
+	private void ensure(int aBytes) {
+		if (fLength + aBytes > fBuf.length) {
+			byte[] grown = new byte[Math.max(fBuf.length * 2, fLength + aBytes)];
+			System.arraycopy(fBuf, 0, grown, 0, fLength);
+			fBuf = grown;
+			fView = ByteBuffer.wrap(grown);
+		}
+	}
+}
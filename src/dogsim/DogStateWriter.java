@@ -0,0 +1,279 @@
+package dogsim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes <code>DogState</code> records as JSON into a reused byte
+ * buffer.  The output is byte-identical to <code>DogState.toJSON()</code>,
+ * but no objects are allocated once the buffer has grown to fit.  Keys are
+ * pre-encoded, integers are formatted by hand, and doubles go through a
+ * reused <code>StringBuilder</code>, which yields the same digits as
+ * <code>Double.toString</code> without creating a <code>String</code>.
+ * Trailing zeros are then trimmed the way the JSON library does.  The
+ * library refuses NaN and infinite numbers, and <code>toJSON</code> then
+ * returns an empty string, which would break the whole batch; the writer
+ * writes them as <code>null</code> instead, keeping the batch valid JSON.
+ *
+ * A <code>DogState</code> which is a delta is written with only its ID
+ * and changed fields, and without the <code>active</code> flag.
+ *
+ * Records written one after another are separated by commas, and can be
+ * framed as a JSON array with <code>beginArray</code> and
+ * <code>endArray</code>.  A writer is not thread-safe.
+ *
+ * @author Karel Bergmann
+ *
+ * @see DogState
+ * @see TelemetryUplink
+ */
+public class DogStateWriter {
+	private static final byte[] ID = ascii("{\"id\":");
+	private static final byte[] X = ascii(",\"active\":true,\"xcoord\":");
+	private static final byte[] Y = ascii(",\"ycoord\":");
+	private static final byte[] HR = ascii(",\"hr\":");
+	private static final byte[] TEMP = ascii(",\"temp\":");
+	private static final byte[] DELTA_X = ascii(",\"xcoord\":");
+	private static final byte[] NULL = ascii("null");
+	private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+	private static final double PLAIN_LIMIT = 1.0E7;	//Double.toString switches to exponents here
+
+	private byte[] fBuf;			//serialized records
+	private int fLength;			//bytes used in fBuf
+	private int fRecords;			//records written since the array was begun
+	private StringBuilder fDigits;	//scratch for formatting doubles
+
+	/**
+	 * Constructor with room for a few hundred records.
+	 */
+	public DogStateWriter() {
+		this(16384);
+	}
+
+	/**
+	 * Constructor specifying the initial buffer size.
+	 *
+	 * @param aCapacity initial buffer size in bytes, must be greater than 0.
+	 */
+	public DogStateWriter(int aCapacity) {
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException("aCapacity must be greater than 0.");
+		fBuf = new byte[aCapacity];
+		fDigits = new StringBuilder(32);
+	}
+
+	/**
+	 * Discards everything written so far.
+	 */
+	public void reset() {
+		fLength = 0;
+		fRecords = 0;
+	}
+
+	/**
+	 * Starts a JSON array of the records written until
+	 * <code>endArray</code>.
+	 */
+	public void beginArray() {
+		fRecords = 0;
+		put((byte) '[');
+	}
+
+	/**
+	 * Ends a JSON array started with <code>beginArray</code>.
+	 */
+	public void endArray() {
+		put((byte) ']');
+	}
+
+	/**
+	 * Appends a record for <code>aState</code>, which has only the
+	 * changed fields if the state is a delta.
+	 *
+	 * @param aState state to serialize
+	 */
+	public void write(DogState aState) {
+		if (aState.fFields == DogState.ALL)
+			write(aState.fId, aState.fX, aState.fY, aState.fHR, aState.fTemp);
+		else
+			writeDelta(aState);
+	}
+
+	/**
+	 * Appends a record with the ID and the fields of a delta.
+	 */
+	private void writeDelta(DogState aState) {
+		if (fRecords++ > 0)
+			put((byte) ',');
+		put(ID);
+		putLong(aState.fId);
+		if ((aState.fFields & DogState.POSITION) != 0) {
+			put(DELTA_X);
+			putDouble(aState.fX);
+			put(Y);
+			putDouble(aState.fY);
+		}
+		if ((aState.fFields & DogState.HR) != 0) {
+			put(HR);
+			putLong(aState.fHR);
+		}
+		if ((aState.fFields & DogState.TEMP) != 0) {
+			put(TEMP);
+			putDouble(aState.fTemp);
+		}
+		put((byte) '}');
+	}
+
+	/**
+	 * Appends a record with the given values, as
+	 * <code>DogState.toJSON()</code> would serialize them.
+	 *
+	 * @param aId dog ID
+	 * @param aX x-coordinate
+	 * @param aY y-coordinate
+	 * @param aHR heart rate
+	 * @param aTemp body temperature
+	 */
+	public void write(int aId, double aX, double aY, long aHR, double aTemp) {
+		if (fRecords++ > 0)
+			put((byte) ',');
+		put(ID);
+		putLong(aId);
+		put(X);
+		putDouble(aX);
+		put(Y);
+		putDouble(aY);
+		put(HR);
+		putLong(aHR);
+		put(TEMP);
+		putDouble(aTemp);
+		put((byte) '}');
+	}
+
+	/**
+	 * @return the buffer holding the serialized records, valid up to
+	 * 				<code>length()</code>.  The buffer may be replaced as it grows.
+	 */
+	public byte[] buffer() {
+		return fBuf;
+	}
+
+	public int length() {
+		return fLength;
+	}
+
+	/**
+	 * Writes the serialized records to a stream.
+	 *
+	 * @param aOut stream to write to
+	 * @throws IOException if the stream fails
+	 */
+	public void writeTo(OutputStream aOut) throws IOException {
+		aOut.write(fBuf, 0, fLength);
+	}
+
+	@Override
+	public String toString() {
+		return new String(fBuf, 0, fLength, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Appends a long in decimal, as <code>Long.toString</code> would.
+	 */
+	private void putLong(long aValue) {
+		ensure(20);
+		if (aValue == Long.MIN_VALUE) {
+			put(ascii(Long.toString(aValue)));
+			return;
+		}
+		if (aValue < 0) {
+			fBuf[fLength++] = '-';
+			aValue = -aValue;
+		}
+
+		//count the digits, then fill them in from the right
+		int digits = 1;
+		for (long v = aValue; v >= 10; v /= 10) {
+			digits++;
+		}
+		int pos = fLength + digits;
+		do {
+			fBuf[--pos] = (byte) ('0' + (aValue % 10));
+			aValue /= 10;
+		} while (aValue > 0);
+		fLength += digits;
+	}
+
+	/**
+	 * Appends a double as the JSON library does: <code>Double.toString</code>
+	 * with trailing zeros, and then a trailing point, removed unless the
+	 * number is in exponent form.  NaN and infinite numbers are written as
+	 * <code>null</code>.
+	 */
+	private void putDouble(double aValue) {
+		if (Double.isNaN(aValue) || Double.isInfinite(aValue)) {
+			put(NULL);
+			return;
+		}
+
+		//whole numbers print as "n.0", which is trimmed to "n"
+		if (aValue == (long) aValue && Math.abs(aValue) < PLAIN_LIMIT &&
+				Double.doubleToRawLongBits(aValue) != NEGATIVE_ZERO) {
+			putLong((long) aValue);
+			return;
+		}
+
+		StringBuilder sb = fDigits;
+		sb.setLength(0);
+		sb.append(aValue);
+		int end = sb.length();
+		if (indexOf(sb, '.') >= 0 && indexOf(sb, 'e') < 0 && indexOf(sb, 'E') < 0) {
+			while (sb.charAt(end - 1) == '0') {
+				end--;
+			}
+			if (sb.charAt(end - 1) == '.') {
+				end--;
+			}
+		}
+
+		ensure(end);
+		for (int i = 0; i < end; i++) {
+			fBuf[fLength++] = (byte) sb.charAt(i);
+		}
+	}
+
+	private static int indexOf(StringBuilder aSb, char aChar) {
+		for (int i = 0; i < aSb.length(); i++) {
+			if (aSb.charAt(i) == aChar)
+				return i;
+		}
+		return -1;
+	}
+
+	private void put(byte aByte) {
+		ensure(1);
+		fBuf[fLength++] = aByte;
+	}
+
+	private void put(byte[] aBytes) {
+		ensure(aBytes.length);
+		System.arraycopy(aBytes, 0, fBuf, fLength, aBytes.length);
+		fLength += aBytes.length;
+	}
+
+	/**
+	 * Grows the buffer, if needed, to fit <code>aBytes</code> more bytes.
+	 */
+	private void ensure(int aBytes) {
+		if (fLength + aBytes > fBuf.length) {
+			byte[] grown = new byte[Math.max(fBuf.length * 2, fLength + aBytes)];
+			System.arraycopy(fBuf, 0, grown, 0, fLength);
+			fBuf = grown;
+		}
+	}
+
+	private static byte[] ascii(String aText) {
+		return aText.getBytes(StandardCharsets.US_ASCII);
+	}
+}
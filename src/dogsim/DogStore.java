@@ -0,0 +1,326 @@
+package dogsim;
+
+/**
+ * Structure-of-arrays backing store for the state of the dogs in an
+ * <code>Arena</code>.  Each piece of dog state is kept in its own primitive
+ * column, indexed by the dog's slot, which is the dog's ID.  A
+ * <code>Dog</code> object is a flyweight view onto its slot.  Bulk passes
+ * such as <code>advancePositions</code> stream over contiguous memory
+ * rather than chasing one heap object per dog.
+ *
+ * Positions are double buffered.  At the start of a tick
+ * <code>snapshotPositions</code> copies the current positions into the
+ * previous-position columns, which are then only read while the tick
+ * writes new positions.  Dogs looking at each other read the previous
+ * columns, so every dog sees the same consistent arena however the tick
+ * is divided between threads.
+ *
+ * The capacity is fixed at construction so that the columns are never
+ * reallocated while a tick is reading them.  Slots of removed dogs are
+ * reused when their ID is handed out again.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see Dog
+ */
+public class DogStore {
+	public final double[] fX;			//x-coordinate
+	public final double[] fY;			//y-coordinate
+	public final double[] fPrevX;		//x-coordinate at the start of the tick
+	public final double[] fPrevY;		//y-coordinate at the start of the tick
+	public final double[] fDirection;	//current heading in degrees, from 0 to 360
+	public final double[] fVelocity;	//current velocity in meters/update
+	public final double[] fTemp;		//current temp in C
+	public final double[] fMaxSpeed;	//dog's maximum velocity
+	public final long[] fHR;			//current HR
+	public final long[] fTimeRested;	//number of updates spent resting
+	public final byte[] fChasing;		//1 if the dog is chasing, else 0
+	public final byte[] fResting;		//1 if the dog is resting, else 0
+	public final byte[] fPresent;		//1 if a dog occupies the slot, else 0
+
+	/**
+	 * Constructor specifying the number of slots.
+	 *
+	 * @param aCapacity number of slots, must be greater than 0.
+	 */
+	public DogStore(int aCapacity) {
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException("aCapacity must be greater than 0.");
+
+		fX = new double[aCapacity];
+		fY = new double[aCapacity];
+		fPrevX = new double[aCapacity];
+		fPrevY = new double[aCapacity];
+		fDirection = new double[aCapacity];
+		fVelocity = new double[aCapacity];
+		fTemp = new double[aCapacity];
+		fMaxSpeed = new double[aCapacity];
+		fHR = new long[aCapacity];
+		fTimeRested = new long[aCapacity];
+		fChasing = new byte[aCapacity];
+		fResting = new byte[aCapacity];
+		fPresent = new byte[aCapacity];
+	}
+
+	public int capacity() {
+		return fPresent.length;
+	}
+
+	/**
+	 * Copies the current positions into the previous-position columns.
+	 */
+	public void snapshotPositions() {
+		System.arraycopy(fX, 0, fPrevX, 0, fX.length);
+		System.arraycopy(fY, 0, fPrevY, 0, fY.length);
+	}
+
+	/**
+	 * Moves every dog in the store by its current velocity along its
+	 * heading, keeping it <code>aBuffer</code> away from the edges of a
+	 * <code>aMaxX</code> by <code>aMaxY</code> arena.  Dogs that reach the
+	 * buffer turn around.  Empty slots are left untouched.
+	 *
+	 * @param aMaxX horizontal extent of the arena
+	 * @param aMaxY vertical extent of the arena
+	 * @param aBuffer closest a dog comes to a wall
+	 */
+	public void advancePositions(double aMaxX, double aMaxY, double aBuffer) {
+		advancePositions(0, fPresent.length, aMaxX, aMaxY, aBuffer);
+	}
+
+	/**
+	 * Moves the dogs in slots <code>aFrom</code> (inclusive) to
+	 * <code>aTo</code> (exclusive) as described in
+	 * <code>advancePositions(double, double, double)</code>.
+	 *
+	 * @param aFrom first slot to move
+	 * @param aTo slot after the last slot to move
+	 * @param aMaxX horizontal extent of the arena
+	 * @param aMaxY vertical extent of the arena
+	 * @param aBuffer closest a dog comes to a wall
+	 */
+	public void advancePositions(int aFrom, int aTo, double aMaxX, double aMaxY, double aBuffer) {
+		advancePositions(aFrom, aTo, aBuffer, aBuffer, aMaxX - aBuffer, aMaxY - aBuffer);
+	}
+
+	/**
+	 * Moves the dogs in slots <code>aFrom</code> (inclusive) to
+	 * <code>aTo</code> (exclusive) by their current velocity along their
+	 * heading, keeping them within the given limits.  Dogs that reach a
+	 * limit turn around.  An infinite limit is an open edge which dogs
+	 * can cross.  Empty slots are left untouched.
+	 *
+	 * @param aFrom first slot to move
+	 * @param aTo slot after the last slot to move
+	 * @param aMinX smallest x-coordinate a dog may have
+	 * @param aMinY smallest y-coordinate a dog may have
+	 * @param aMaxX largest x-coordinate a dog may have
+	 * @param aMaxY largest y-coordinate a dog may have
+	 */
+	public void advancePositions(int aFrom, int aTo, double aMinX, double aMinY, double aMaxX, double aMaxY) {
+		for (int i = aFrom; i < aTo; i++) {
+			if (fPresent[i] != 0) {
+				advancePosition(i, aMinX, aMinY, aMaxX, aMaxY);
+			}
+		}
+	}
+
+	/**
+	 * Moves the dogs in slots <code>aSlots[aFrom]</code> to
+	 * <code>aSlots[aTo - 1]</code> as described in
+	 * <code>advancePositions(int, int, double, double, double, double)</code>,
+	 * so that dogs which aren't listed cost nothing.
+	 *
+	 * @param aSlots slots of the dogs to move
+	 * @param aFrom first index into <code>aSlots</code>
+	 * @param aTo index after the last index into <code>aSlots</code>
+	 * @param aMinX smallest x-coordinate a dog may have
+	 * @param aMinY smallest y-coordinate a dog may have
+	 * @param aMaxX largest x-coordinate a dog may have
+	 * @param aMaxY largest y-coordinate a dog may have
+	 */
+	public void advancePositions(int[] aSlots, int aFrom, int aTo, double aMinX, double aMinY, double aMaxX, double aMaxY) {
+		for (int i = aFrom; i < aTo; i++) {
+			int slot = aSlots[i];
+			if (fPresent[slot] != 0) {
+				advancePosition(slot, aMinX, aMinY, aMaxX, aMaxY);
+			}
+		}
+	}
+
+	/**
+	 * Moves the dog in slot <code>aSlot</code> as described in
+	 * <code>advancePositions</code>.
+	 *
+	 * @param aSlot slot of the dog to move
+	 * @param aMaxX horizontal extent of the arena
+	 * @param aMaxY vertical extent of the arena
+	 * @param aBuffer closest a dog comes to a wall
+	 */
+	public void advancePosition(int aSlot, double aMaxX, double aMaxY, double aBuffer) {
+		advancePosition(aSlot, aBuffer, aBuffer, aMaxX - aBuffer, aMaxY - aBuffer);
+	}
+
+	/**
+	 * Moves the dog in slot <code>aSlot</code> within the given limits,
+	 * as described in <code>advancePositions</code>.
+	 *
+	 * @param aSlot slot of the dog to move
+	 * @param aMinX smallest x-coordinate the dog may have
+	 * @param aMinY smallest y-coordinate the dog may have
+	 * @param aMaxX largest x-coordinate the dog may have
+	 * @param aMaxY largest y-coordinate the dog may have
+	 */
+	public void advancePosition(int aSlot, double aMinX, double aMinY, double aMaxX, double aMaxY) {
+		double dir = fDirection[aSlot];
+		double v = fVelocity[aSlot];
+		boolean legacy = Heading.isLegacy();
+		double x = fX[aSlot] + v * (legacy ? Math.cos(dir) : Heading.cos(dir));
+		double y = fY[aSlot] + v * (legacy ? Math.sin(dir) : Heading.sin(dir));
+
+		//check to make sure they stay away from walls
+		boolean changed = (x < aMinX) | (x >= aMaxX) | (y < aMinY) | (y >= aMaxY);
+		x = x < aMinX ? aMinX : x;
+		x = x >= aMaxX ? aMaxX : x;
+		y = y < aMinY ? aMinY : y;
+		y = y >= aMaxY ? aMaxY : y;
+
+		fX[aSlot] = x;
+		fY[aSlot] = y;
+
+		//turn around if they hit a wall
+		if (changed) {
+			fDirection[aSlot] = reverse(dir);
+		}
+	}
+
+	/**
+	 * @param aDirection heading in degrees
+	 * @return the opposite heading, as a dog turns when it hits a wall.
+	 */
+	static double reverse(double aDirection) {
+		return Heading.isLegacy() ? (((int) aDirection) + 180) % 360 : Heading.reverse(Heading.normalize(aDirection));
+	}
+
+	/**
+	 * Updates the temp, HR and rest state of the dogs in slots
+	 * <code>aFrom</code> (inclusive) to <code>aTo</code> (exclusive) in one
+	 * pass over the columns, with the same result as each dog's own
+	 * temp and HR updates.  A dog going faster than a third of its maximum
+	 * speed warms by 1 C and its HR rises by 2 BPM, while a resting dog
+	 * cools by 1 C and its HR falls by 1 BPM.  A dog hotter than
+	 * <code>aMaxTemp</code> stops chasing and rests, and a dog whose HR exceeds
+	 * <code>aMaxHR</code> also stops moving.  Neither is allowed below its
+	 * normal value.  Empty slots are left untouched.
+	 *
+	 * The rules are applied with masks and conditional moves rather than
+	 * branches on the dog's state, which is unpredictable from one dog to
+	 * the next.  The chasing and resting columns hold 0 or 1, so a mask of
+	 * all ones or all zeroes clears or sets them.
+	 *
+	 * @param aFrom first slot to update
+	 * @param aTo slot after the last slot to update
+	 * @param aMaxTemp temp above which a dog rests
+	 * @param aNormalTemp lowest temp
+	 * @param aMaxHR HR above which a dog stops and rests
+	 * @param aNormalHR lowest HR
+	 *
+	 * @see Dog#think()
+	 */
+	public void updateVitals(int aFrom, int aTo, double aMaxTemp, double aNormalTemp, long aMaxHR, long aNormalHR) {
+		for (int i = aFrom; i < aTo; i++) {
+			if (fPresent[i] != 0)
+				updateVitals(i, aMaxTemp, aNormalTemp, aMaxHR, aNormalHR);
+		}
+	}
+
+	/**
+	 * Updates the temp, HR and rest state of the dogs in slots
+	 * <code>aSlots[aFrom]</code> to <code>aSlots[aTo - 1]</code> as described
+	 * in <code>updateVitals(int, int, double, double, long, long)</code>, so
+	 * that dogs which aren't listed cost nothing.
+	 *
+	 * @param aSlots slots of the dogs to update
+	 * @param aFrom first index into <code>aSlots</code>
+	 * @param aTo index after the last index into <code>aSlots</code>
+	 * @param aMaxTemp temp above which a dog rests
+	 * @param aNormalTemp lowest temp
+	 * @param aMaxHR HR above which a dog stops and rests
+	 * @param aNormalHR lowest HR
+	 */
+	public void updateVitals(int[] aSlots, int aFrom, int aTo, double aMaxTemp, double aNormalTemp, long aMaxHR, long aNormalHR) {
+		for (int i = aFrom; i < aTo; i++) {
+			int slot = aSlots[i];
+			if (fPresent[slot] != 0)
+				updateVitals(slot, aMaxTemp, aNormalTemp, aMaxHR, aNormalHR);
+		}
+	}
+
+	/**
+	 * Updates the vitals of the dog in slot <code>i</code>.
+	 */
+	private void updateVitals(int i, double aMaxTemp, double aNormalTemp, long aMaxHR, long aNormalHR) {
+		double v = fVelocity[i];
+		int fast = v > fMaxSpeed[i] / 3 ? 1 : 0;
+		int chase = fChasing[i];
+		int rest = fResting[i];
+
+		//temp, then the rest it forces, which the HR update sees
+		double t = fTemp[i] + fast - rest;
+		int hot = t > aMaxTemp ? 1 : 0;
+		chase &= hot - 1;
+		rest |= hot;
+		fTemp[i] = t < aNormalTemp ? aNormalTemp : t;
+
+		//HR, stopping the dog outright if it is too high
+		long h = fHR[i] + 2 * fast - rest;
+		int racing = h > aMaxHR ? 1 : 0;
+		chase &= racing - 1;
+		rest |= racing;
+		fVelocity[i] = racing != 0 ? 0 : v;
+		fHR[i] = h < aNormalHR ? aNormalHR : h;
+
+		fChasing[i] = (byte) chase;
+		fResting[i] = (byte) rest;
+	}
+
+	/**
+	 * Brings a dog which has stood resting through <code>aTicks</code>
+	 * ticks without being updated up to date, with the same result as
+	 * <code>updateVitals</code> and <code>advancePositions</code> over
+	 * those ticks.  The dog cools by 1 C and its HR falls by 1 BPM a tick,
+	 * down to their normal values, it stops chasing if it starts out too
+	 * hot or racing, and it turns around every tick while standing at a
+	 * limit.
+	 *
+	 * @param aSlot slot of a resting dog with no velocity
+	 * @param aTicks ticks to bring the dog through
+	 * @param aMaxTemp temp above which a dog rests
+	 * @param aNormalTemp lowest temp
+	 * @param aMaxHR HR above which a dog stops and rests
+	 * @param aNormalHR lowest HR
+	 * @param aMinX smallest x-coordinate a dog may have
+	 * @param aMinY smallest y-coordinate a dog may have
+	 * @param aMaxX largest x-coordinate a dog may have
+	 * @param aMaxY largest y-coordinate a dog may have
+	 */
+	public void rest(int aSlot, long aTicks, double aMaxTemp, double aNormalTemp, long aMaxHR, long aNormalHR,
+			double aMinX, double aMinY, double aMaxX, double aMaxY) {
+		if (aTicks <= 0)
+			return;
+		//the first tick is the hottest, and the only one which can stop a chase
+		if (fTemp[aSlot] - 1 > aMaxTemp || fHR[aSlot] - 1 > aMaxHR)
+			fChasing[aSlot] = 0;
+		double x = fX[aSlot];
+		double y = fY[aSlot];
+		boolean limit = (x < aMinX) | (x >= aMaxX) | (y < aMinY) | (y >= aMaxY);
+		//a tick at a time, so the temp is rounded as it is every tick
+		for (long t = 0; t < aTicks; t++) {
+			double temp = fTemp[aSlot] - 1;
+			fTemp[aSlot] = temp < aNormalTemp ? aNormalTemp : temp;
+			fDirection[aSlot] = limit ? reverse(fDirection[aSlot]) : fDirection[aSlot];
+		}
+		fHR[aSlot] = Math.max(aNormalHR, fHR[aSlot] - aTicks);
+	}
+}
@@ -1,6 +1,8 @@
 package dogsim;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
 import us.monoid.web.Resty;
 
 /**
@@ -9,16 +11,43 @@ import us.monoid.web.Resty;
  * The <code>FitBit</code> maintains a reference to the attached <code>Dog</code>
  * in order that it may retrieve information it is responsible for transmitting,
  * such as x and y-coordinates, dog ID, heart rate and temperature.
- * 
+ *
+ * Snapshots are handed to a shared <code>TelemetrySink</code>, normally a
+ * <code>TelemetryUplink</code> installed by the <code>DogManager</code>.
+ * Each <code>FitBit</code> fills the same <code>DogState</code> for every
+ * snapshot, so transmitting allocates nothing.
+ * If no sink is installed, each snapshot is sent directly with Resty,
+ * and the latency and failures of these requests are recorded in the
+ * default <code>Metrics</code> registry.
+ *
  * @author Karel Bergmann
  * @see us.monoid.web.Resty
+ * @see TelemetrySink
  * @see Arena
  * @see Dog
+ * @see Metrics
  */
 public class FitBit {
 	private Dog fDog;	//Dog FitBit is attached to.
-	private static final String SERVER_URL = "http://localhost:8080/DogPark/webresources/DogPark/update";
-	
+	private final DogState fState = new DogState();	//snapshot filled on every transmission
+	private static String SERVER_URL = "http://localhost:8080/DogPark/webresources/DogPark/update";
+	private static volatile TelemetrySink SINK;	//shared destination for snapshots
+
+	private static final LatencyHistogram SEND_TIME = Metrics.getDefault().histogram(
+			"dogsim_fitbit_request_seconds", null, "Duration of a direct FitBit request, including failed ones.");
+	private static final LongAdder SENT = new LongAdder();		//direct requests completed
+	private static final LongAdder FAILED = new LongAdder();	//direct requests failed
+	private static final OutageLog OUTAGE = new OutageLog("Telemetry server", "requests");	//reports failed direct requests
+
+	static {
+		Metrics.getDefault().register(new Metrics.Source() {
+			public void collect(Metrics.Collector aOut) {
+				aOut.counter("dogsim_fitbit_requests_total", "Direct FitBit requests completed.", SENT.sum());
+				aOut.counter("dogsim_fitbit_failed_total", "Direct FitBit requests failed.", FAILED.sum());
+			}
+		});
+	}
+
 	/**
 	 * Constructor specifying attached Dog.
 	 * @param aDog
@@ -28,25 +57,90 @@ public class FitBit {
 			throw new IllegalArgumentException("aDog must not be null.");
 		fDog = aDog;
 	}
-	
+
+	/**
+	 * Installs the sink all <code>FitBit</code>s transmit through.
+	 *
+	 * @param aSink destination for snapshots, or null to send directly.
+	 * @see TelemetrySink
+	 */
+	public static void setSink (TelemetrySink aSink) {
+		SINK = aSink;
+	}
+
+	public static TelemetrySink getSink () {
+		return SINK;
+	}
+
+	public static String getSERVER_URL () {
+		return SERVER_URL;
+	}
+
+	/**
+	 * Points direct transmissions at a different server, such as a
+	 * local <code>DogParkStub</code>.
+	 *
+	 * @param aUrl URL of the update endpoint
+	 */
+	public static void setSERVER_URL (String aUrl) {
+		if (aUrl == null)
+			throw new IllegalArgumentException("aUrl must not be null.");
+		SERVER_URL = aUrl;
+	}
+
+	/**
+	 * Reads <code>serverUrl</code>, which must be set before the
+	 * <code>TelemetryUplink</code> is created.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure (SimConfig aConfig) {
+		setSERVER_URL(aConfig.getString("serverUrl", SERVER_URL));
+	}
+
 	/**
-	 * Transmits <code>Dog</code> information to a RESTful web service using
-	 * the Resty library.  This is accomplished by using the <code>DogState</code>
-	 * helper class to extract pertinent information from the attached <code>Dog</code>.
-	 * 
+	 * Transmits <code>Dog</code> information to a RESTful web service.
+	 * This is accomplished by using the <code>DogState</code>
+	 * helper class to extract pertinent information from the attached
+	 * <code>Dog</code>, which is handed to the installed sink.  Without
+	 * a sink the state is sent synchronously using the Resty library.
+	 *
+	 * @see TelemetrySink
 	 * @see us.monoid.web.Resty
 	 * @see DogState
 	 * @see Dog
 	 */
-	public void transmit () {				
+	public void transmit () {
+		DogState state = fDog.getDogState(fState);
+		TelemetrySink sink = SINK;
+		if (sink != null) {
+			sink.emit(state);
+			return;
+		}
+
 		Resty r = new Resty();
+		String json = state.toJSON();
+		long start = System.nanoTime();
 		try {
-			String status = r.text(SERVER_URL, Resty.put(Resty.content(fDog.getDogState().toJSON()))).toString();
-			System.out.println (status);
+			String status = r.text(SERVER_URL, Resty.put(Resty.content(json))).toString();
+			SENT.increment();
+			OUTAGE.succeeded();
+			if (Log.isEnabled(Log.Level.DEBUG))
+				Log.debug(status);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			FAILED.increment();
+			OUTAGE.failed("Failed to send the state of dog " + state.fId + " to " + SERVER_URL, e);
 		}
-		System.out.println(fDog.getDogState().toJSON());
+		SEND_TIME.recordSince(start);
+		Log.debug(json);
+	}
+
+	public static long getSent () {
+		return SENT.sum();
+	}
+
+	public static long getFailed () {
+		return FAILED.sum();
 	}
 }
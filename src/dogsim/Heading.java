@@ -0,0 +1,123 @@
+package dogsim;
+
+/**
+ * Heading math for the dogs, in degrees, without calling the
+ * trigonometric functions on the hot path.  Cosines and sines are read
+ * from a table of <code>TABLE_SIZE</code> steps per circle and
+ * interpolated, which is accurate to within 3e-7.  A dog's heading is kept
+ * between 0 and 360 degrees, so that whether a point is ahead of a dog is a
+ * dot product with its heading vector rather than a difference of angles.
+ *
+ * Originally headings were stored in degrees but passed to
+ * <code>Math.cos</code> and <code>Math.sin</code> as radians, compared
+ * without wrapping around the circle, and never normalized.  With
+ * <code>legacyHeading</code> set, <code>Dog</code> and <code>DogStore</code>
+ * keep that behaviour, so that runs recorded before the change can be
+ * reproduced.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Dog
+ * @see DogStore#advancePosition(int, double, double, double, double)
+ */
+public final class Heading {
+	public static final double CIRCLE = 360;	//degrees in a circle
+	private static final int TABLE_SIZE = 4096;	//table steps per circle, a power of 2
+	private static final double STEPS_PER_DEGREE = TABLE_SIZE / CIRCLE;
+	private static final double[] COS = new double[TABLE_SIZE + 1];	//cosine at every step, wrapping at the end
+
+	private static boolean LEGACY = false;	//reproduce the original heading math
+
+	static {
+		for (int i = 0; i <= TABLE_SIZE; i++) {
+			COS[i] = Math.cos(2 * Math.PI * i / TABLE_SIZE);
+		}
+	}
+
+	private Heading() {
+	}
+
+	/**
+	 * @param aDegrees angle in degrees, of any size
+	 * @return cosine of the angle.
+	 */
+	public static double cos(double aDegrees) {
+		return lookup(aDegrees * STEPS_PER_DEGREE);
+	}
+
+	/**
+	 * @param aDegrees angle in degrees, of any size
+	 * @return sine of the angle.
+	 */
+	public static double sin(double aDegrees) {
+		//sin(a) = cos(a - 90)
+		return lookup(aDegrees * STEPS_PER_DEGREE - TABLE_SIZE / 4);
+	}
+
+	/**
+	 * Interpolates the table at a position measured in steps.
+	 */
+	private static double lookup(double aSteps) {
+		double floor = Math.floor(aSteps);
+		int i = (int) ((long) floor & (TABLE_SIZE - 1));
+		double lo = COS[i];
+		return lo + (aSteps - floor) * (COS[i + 1] - lo);
+	}
+
+	/**
+	 * @param aDegrees angle in degrees, of any size
+	 * @return the same angle, between 0 (inclusive) and 360 (exclusive).
+	 */
+	public static double normalize(double aDegrees) {
+		if (aDegrees >= 0 && aDegrees < CIRCLE)
+			return aDegrees;
+		double ret = aDegrees - CIRCLE * Math.floor(aDegrees / CIRCLE);
+		return ret < CIRCLE ? ret : 0;
+	}
+
+	/**
+	 * @param aDegrees heading between 0 and 360
+	 * @return the opposite heading, between 0 and 360.
+	 */
+	public static double reverse(double aDegrees) {
+		return aDegrees >= CIRCLE / 2 ? aDegrees - CIRCLE / 2 : aDegrees + CIRCLE / 2;
+	}
+
+	/**
+	 * Heading along a vector.  Called once per chase rather than once per
+	 * dog looked at, as it needs <code>Math.atan2</code>.
+	 *
+	 * @param aDX horizontal component
+	 * @param aDY vertical component
+	 * @return the heading in degrees, between 0 and 360.
+	 */
+	public static double toward(double aDX, double aDY) {
+		double ret = Math.toDegrees(Math.atan2(aDY, aDX));
+		return ret < 0 ? normalize(ret) : ret;
+	}
+
+	/**
+	 * Chooses between the table and the original heading math.  Must be
+	 * set before the simulation starts.
+	 *
+	 * @param aLegacy true to reproduce the original behaviour
+	 */
+	public static void setLegacy(boolean aLegacy) {
+		LEGACY = aLegacy;
+	}
+
+	public static boolean isLegacy() {
+		return LEGACY;
+	}
+
+	/**
+	 * Reads <code>legacyHeading</code>, which takes effect on the next
+	 * start.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		LEGACY = aConfig.getBoolean("legacyHeading", LEGACY);
+	}
+}
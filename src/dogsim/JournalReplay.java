@@ -0,0 +1,205 @@
+package dogsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the records of a <code>TelemetryJournal</code> back out, in
+ * the order they were written, either to a <code>TelemetrySink</code>
+ * such as a <code>TelemetryUplink</code> to the DogPark server, or into
+ * an <code>Arena</code> shown by an <code>ArenaDisplay</code>.  At 1x the
+ * records are paced by their simulated times, reproducing the load the
+ * journal was recorded under; otherwise they are streamed as fast as the
+ * destination takes them.  A record the destination rejects, such as
+ * one a full <code>TelemetryUplink</code> would drop, is offered again,
+ * so the journal is replayed whole, no faster than it is taken.
+ *
+ * @author Karel Bergmann
+ *
+ * @see TelemetryJournal
+ */
+public class JournalReplay {
+	private static long RETRY_INTERVAL = 1;	//milliseconds before a rejected record is offered again
+
+	private final File fDir;			//journal directory
+	private final boolean fRealTime;	//pace records by their simulated time
+
+	/**
+	 * @param aDir journal directory
+	 * @param aRealTime pace records at 1x by their simulated time, or stream them at full speed
+	 */
+	public JournalReplay(File aDir, boolean aRealTime) {
+		if (aDir == null)
+			throw new IllegalArgumentException("aDir must not be null.");
+		fDir = aDir;
+		fRealTime = aRealTime;
+	}
+
+	/**
+	 * Emits every record of the journal to a sink, as a new
+	 * <code>DogState</code>, until the sink accepts it.  The sink is not
+	 * closed.
+	 *
+	 * @param aSink sink to emit to
+	 * @return number of records replayed.
+	 * @throws IOException if a segment can't be read or is malformed
+	 * @throws InterruptedException if interrupted while pacing
+	 */
+	public long replay(TelemetrySink aSink) throws IOException, InterruptedException {
+		if (aSink == null)
+			throw new IllegalArgumentException("aSink must not be null.");
+		long replayed = 0;
+		long first = 0;
+		long start = 0;
+		DogState ds = new DogState();	//reused, sinks copy what they keep
+
+		for (File segment : TelemetryJournal.segments(fDir)) {
+			RandomAccessFile file = new RandomAccessFile(segment, "r");
+			try {
+				MappedByteBuffer in = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				int records = DogStateCodec.getRecords(in);
+				long base = DogStateCodec.getBase(in);
+				for (int i = 0; i < records; i++) {
+					DogStateCodec.getRecord(in, ds, base);
+					if (replayed++ == 0) {
+						first = ds.fTime;
+						start = System.currentTimeMillis();
+					}
+					if (fRealTime) {
+						long wait = start + (ds.fTime - first) - System.currentTimeMillis();
+						if (wait > 0)
+							Thread.sleep(wait);
+					}
+					while (!aSink.emit(ds)) {
+						Thread.sleep(RETRY_INTERVAL);
+					}
+				}
+			} finally {
+				file.close();
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Publishes the journal into an arena as one snapshot per simulated
+	 * time, for an <code>ArenaDisplay</code> to show.  The arena's own dogs
+	 * are ignored.
+	 *
+	 * @param aArena arena to publish to
+	 * @return number of records replayed.
+	 * @throws IOException if a segment can't be read or is malformed
+	 * @throws InterruptedException if interrupted while pacing
+	 */
+	public long replay(Arena aArena) throws IOException, InterruptedException {
+		SnapshotSink sink = new SnapshotSink(aArena);
+		long replayed = replay(sink);
+		sink.close();
+		return replayed;
+	}
+
+	/**
+	 * Gathers the records of one simulated time, and publishes them as a
+	 * snapshot when a record of a later time arrives.
+	 */
+	private static class SnapshotSink implements TelemetrySink {
+		private final Arena fArena;		//arena snapshots are published to
+		private DogState[] fTick;		//records of the current time
+		private int fCount;				//records in fTick
+		private long fTicks;			//snapshots published
+
+		SnapshotSink(Arena aArena) {
+			if (aArena == null)
+				throw new IllegalArgumentException("aArena must not be null.");
+			fArena = aArena;
+			fTick = new DogState[64];
+		}
+
+		@Override
+		public boolean emit(DogState aState) {
+			if (fCount > 0 && aState.fTime != fTick[0].fTime)
+				publish();
+			if (fCount == fTick.length) {
+				DogState[] grown = new DogState[fCount * 2];
+				System.arraycopy(fTick, 0, grown, 0, fCount);
+				fTick = grown;
+			}
+			fTick[fCount++] = aState;
+			return true;
+		}
+
+		private void publish() {
+			long time = fTick[0].fTime;
+			int[] ids = new int[fCount];
+			double[] x = new double[fCount];
+			double[] y = new double[fCount];
+			long[] hr = new long[fCount];
+			double[] temp = new double[fCount];
+			for (int i = 0; i < fCount; i++) {
+				ids[i] = fTick[i].fId;
+				x[i] = fTick[i].fX;
+				y[i] = fTick[i].fY;
+				hr[i] = fTick[i].fHR;
+				temp[i] = fTick[i].fTemp;
+				fTick[i] = null;
+			}
+			fArena.setTime(time);
+			fArena.publish(ArenaSnapshot.of(++fTicks, time, ids, x, y, hr, temp, null));
+			fCount = 0;
+		}
+
+		@Override
+		public void close() {
+			if (fCount > 0)
+				publish();
+		}
+	}
+
+	/**
+	 * Replays a journal.
+	 *
+	 * @param args the journal directory, then <code>http [url]</code> to
+	 * 				send the records to the DogPark server, by default at
+	 * 				<code>FitBit.SERVER_URL</code>, or <code>display [width height]</code>
+	 * 				to show them, by default in a 1500x1000 arena.  A
+	 * 				trailing <code>max</code> replays at full speed instead of 1x.
+	 * @throws IOException if the journal can't be read
+	 * @throws InterruptedException if interrupted while pacing
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.out.println("Usage: JournalReplay <dir> [http [url] | display [width height]] [max]");
+			return;
+		}
+		int n = args.length;
+		boolean max = args[n - 1].equals("max");
+		if (max)
+			n--;
+		JournalReplay replay = new JournalReplay(new File(args[0]), !max);
+		String mode = n > 1 ? args[1] : "http";
+
+		long start = System.nanoTime();
+		long replayed;
+		if (mode.equals("display")) {
+			double width = n > 3 ? Double.parseDouble(args[2]) : 1500;
+			double height = n > 3 ? Double.parseDouble(args[3]) : 1000;
+			final Arena arena = new Arena(width, height, 1);
+			javax.swing.SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					new ArenaDisplay(arena).createAndShowGUI();
+				}
+			});
+			replayed = replay.replay(arena);
+		}
+		else {
+			TelemetryUplink uplink = new TelemetryUplink(n > 2 ? args[2] : FitBit.getSERVER_URL());
+			replayed = replay.replay(uplink);
+			uplink.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Replayed " + replayed + " records in " + seconds + " s");
+	}
+}
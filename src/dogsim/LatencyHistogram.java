@@ -0,0 +1,134 @@
+package dogsim;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in nanoseconds, in the style of an
+ * HDR histogram.  Values below 16 have a bucket each, and every power of
+ * two above that is split into 16 linear sub-buckets, so any recorded
+ * value is known to within 1/16 (6.25%) of itself, from nanoseconds to
+ * hours, in a fixed 960 buckets.
+ *
+ * Recording is a bucket index computed from the leading zeros of the
+ * value and one atomic increment, so it can be called from any number of
+ * threads without locking.  Percentiles are read by walking the buckets,
+ * and are only as consistent as a read racing concurrent records allows.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Metrics
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;				//log2 of the sub-buckets per power of two
+	private static final int SUB_COUNT = 1 << SUB_BITS;	//sub-buckets per power of two
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;	//buckets for every positive long
+
+	private final AtomicLongArray fCounts = new AtomicLongArray(BUCKETS);	//values recorded in each bucket
+	private final LongAdder fCount = new LongAdder();	//values recorded
+	private final LongAdder fSum = new LongAdder();		//sum of the values recorded
+	private final AtomicLong fMax = new AtomicLong();	//largest value recorded
+
+	/**
+	 * Records a duration.  Negative durations, from a clock which
+	 * stepped backwards, are recorded as 0.
+	 *
+	 * @param aNanos duration in nanoseconds
+	 */
+	public void record(long aNanos) {
+		long value = aNanos < 0 ? 0 : aNanos;
+		fCounts.incrementAndGet(bucket(value));
+		fCount.increment();
+		fSum.add(value);
+		long max = fMax.get();
+		while (value > max && !fMax.compareAndSet(max, value)) {
+			max = fMax.get();
+		}
+	}
+
+	/**
+	 * Records the time elapsed since <code>aStart</code>.
+	 *
+	 * @param aStart value of <code>System.nanoTime()</code> when the
+	 * 				timed work began
+	 * @return the current <code>System.nanoTime()</code>, to start
+	 * 				timing the work which follows.
+	 */
+	public long recordSince(long aStart) {
+		long now = System.nanoTime();
+		record(now - aStart);
+		return now;
+	}
+
+	/**
+	 * @return bucket holding <code>aValue</code>, which must not be negative.
+	 */
+	private static int bucket(long aValue) {
+		if (aValue < SUB_COUNT)
+			return (int) aValue;
+		int exp = 63 - Long.numberOfLeadingZeros(aValue);
+		int sub = (int) (aValue >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/**
+	 * @return largest value held by bucket <code>aBucket</code>.
+	 */
+	private static long highest(int aBucket) {
+		if (aBucket < SUB_COUNT)
+			return aBucket;
+		int shift = aBucket / SUB_COUNT - 1;
+		long lowest = (long) (SUB_COUNT + aBucket % SUB_COUNT) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded
+	 * values fall, to within the precision of the buckets.
+	 *
+	 * @param aFraction fraction between 0 and 1, such as 0.99 for the
+	 * 				99th percentile
+	 * @return value at the percentile in nanoseconds, or 0 if nothing
+	 * 				has been recorded.
+	 */
+	public long getValueAt(double aFraction) {
+		if (aFraction < 0 || aFraction > 1)
+			throw new IllegalArgumentException("aFraction must be between 0 and 1.");
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += fCounts.get(i);
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(aFraction * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += fCounts.get(i);
+			if (seen >= rank)
+				return Math.min(highest(i), fMax.get());
+		}
+		return fMax.get();
+	}
+
+	public long getCount() {
+		return fCount.sum();
+	}
+
+	public long getSum() {
+		return fSum.sum();
+	}
+
+	public long getMax() {
+		return fMax.get();
+	}
+
+	/**
+	 * @return mean of the recorded values in nanoseconds, or 0 if
+	 * 				nothing has been recorded.
+	 */
+	public long getMean() {
+		long count = fCount.sum();
+		return count == 0 ? 0 : fSum.sum() / count;
+	}
+}
@@ -0,0 +1,318 @@
+package dogsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs every <code>Dog</code> "live", on a thread of its own which
+ * steps the dog every <code>TICK_INTERVAL</code> milliseconds, including
+ * the blocking I/O of its <code>FitBit</code>.  This is the original
+ * thread-per-dog model, kept as an alternative to the
+ * <code>SimulationEngine</code> stepping all dogs, for load testing the
+ * DogPark server with many independent clients.  The engine still runs
+ * in live mode, indexing and publishing the arena every tick.
+ *
+ * Dogs run on platform threads or on virtual threads.  A virtual thread
+ * parks rather than holding a platform thread while it sleeps or waits on
+ * a socket, so hundreds of thousands of dogs can block at once.  Virtual
+ * threads need Java 21, and are created reflectively so that the
+ * simulation still builds for older releases; where they are missing
+ * the runner falls back to platform threads.
+ *
+ * Live dogs are not reproducible: they step in whatever order their
+ * threads wake, and see the positions of the latest tick.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Dog
+ * @see FitBit
+ * @see SimulationEngine#setLive(boolean)
+ * @see DogManager
+ * @see Metrics
+ */
+public class LiveRunner implements Metrics.Source {
+	/**
+	 * Kind of thread each dog runs on.
+	 */
+	public enum Threads { PLATFORM, VIRTUAL }
+
+	private static long MAX_LATE = 5;	//intervals a dog may fall behind before skipping steps
+
+	private final ThreadFactory fFactory;	//creates the thread of each dog
+	private final boolean fVirtual;			//fFactory creates virtual threads
+	private final long fInterval;			//nanoseconds between steps of a dog
+	private final ConcurrentHashMap<Dog, Thread> fThreads =
+			new ConcurrentHashMap<Dog, Thread>();	//thread of each running dog
+	private final LongAdder fSteps = new LongAdder();	//steps taken by all dogs
+	private final LongAdder fSkipped = new LongAdder();	//steps skipped by dogs falling behind
+	private volatile boolean fRunning = true;	//state variable for the dog loops
+
+	/**
+	 * Constructor stepping dogs every <code>TICK_INTERVAL</code>.
+	 *
+	 * @param aThreads kind of thread to run dogs on
+	 */
+	public LiveRunner(Threads aThreads) {
+		this(aThreads, SimulationEngine.getTICK_INTERVAL());
+	}
+
+	/**
+	 * Constructor specifying how often each dog steps.
+	 *
+	 * @param aThreads kind of thread to run dogs on
+	 * @param aInterval milliseconds between steps of a dog, must be greater than 0.
+	 */
+	public LiveRunner(Threads aThreads, long aInterval) {
+		if (aThreads == null)
+			throw new IllegalArgumentException("aThreads must not be null.");
+		if (aInterval <= 0)
+			throw new IllegalArgumentException("aInterval must be greater than 0.");
+		ThreadFactory factory = aThreads == Threads.VIRTUAL ? virtualFactory() : null;
+		fVirtual = factory != null;
+		if (factory == null) {
+			factory = new ThreadFactory() {
+				public Thread newThread(Runnable aTask) {
+					return new Thread(aTask);
+				}
+			};
+		}
+		fFactory = factory;
+		fInterval = aInterval * 1000000L;
+	}
+
+	/**
+	 * Looks up <code>Thread.ofVirtual().factory()</code>.
+	 *
+	 * @return a factory of virtual threads, or null if this Java has none.
+	 */
+	private static ThreadFactory virtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			//before Java 21, or a preview feature that isn't enabled
+			return null;
+		}
+	}
+
+	/**
+	 * Starts a dog on a thread of its own, which steps it until the dog
+	 * is killed or the runner is stopped.  The first step comes at a point
+	 * in the interval derived from the dog's ID, so dogs don't all wake
+	 * together.
+	 *
+	 * @param aDog dog to run, must not already be running.
+	 */
+	public void start(final Dog aDog) {
+		if (aDog == null)
+			throw new IllegalArgumentException("aDog must not be null.");
+		Thread thread = fFactory.newThread(new Runnable() {
+			public void run() {
+				runDog(aDog);
+			}
+		});
+		thread.setName("Dog-" + aDog.getID());
+		if (fThreads.putIfAbsent(aDog, thread) != null)
+			throw new IllegalArgumentException("aDog is already running.");
+		thread.start();
+	}
+
+	/**
+	 * Loop of a live dog, stepping it against an absolute deadline so
+	 * that time spent stepping and transmitting does not accumulate as
+	 * drift.  A dog which falls more than <code>MAX_LATE</code> intervals
+	 * behind skips the steps it missed.
+	 */
+	private void runDog(Dog aDog) {
+		long next = System.nanoTime() + Math.floorMod(DogRandom.mix(aDog.getID()), fInterval);
+		try {
+			while (fRunning && aDog.isActive()) {
+				long wait = next - System.nanoTime();
+				if (wait > 0)
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				else if (-wait > MAX_LATE * fInterval) {
+					fSkipped.add(-wait / fInterval);
+					next = System.nanoTime();
+				}
+				if (!fRunning || !aDog.isActive())
+					break;
+				aDog.step();
+				fSteps.increment();
+				next += fInterval;
+			}
+		} catch (InterruptedException e) {
+			//stopped
+		} finally {
+			fThreads.remove(aDog);
+		}
+	}
+
+	/**
+	 * Stops a dog's thread and waits for it to finish, so that the dog
+	 * no longer writes its <code>DogStore</code> slot.  Has no effect if
+	 * the dog isn't running.
+	 *
+	 * @param aDog dog to stop
+	 */
+	public void stop(Dog aDog) {
+		Thread thread = fThreads.get(aDog);
+		if (thread == null || thread == Thread.currentThread())
+			return;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stops every dog's thread and waits for them all to finish.  The
+	 * runner can't be restarted.
+	 */
+	public void stop() {
+		fRunning = false;
+		for (Thread thread : fThreads.values()) {
+			thread.interrupt();
+		}
+		for (Dog dog : fThreads.keySet()) {
+			stop(dog);
+		}
+	}
+
+	/**
+	 * @return true if dogs run on virtual threads, false if they run on
+	 * 				platform threads, including when virtual threads were
+	 * 				asked for but are unavailable.
+	 */
+	public boolean isVirtual() {
+		return fVirtual;
+	}
+
+	/**
+	 * @return number of dogs running.
+	 */
+	public int getRunning() {
+		return fThreads.size();
+	}
+
+	/**
+	 * Reports the dogs running and the steps they took and skipped.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.gauge("dogsim_live_dogs", "Dogs running on threads of their own.", fThreads.size());
+		aOut.counter("dogsim_live_steps_total", "Steps taken by live dogs.", fSteps.sum());
+		aOut.counter("dogsim_live_skipped_total", "Steps skipped by live dogs falling behind.", fSkipped.sum());
+	}
+
+	public long getSteps() {
+		return fSteps.sum();
+	}
+
+	public long getSkipped() {
+		return fSkipped.sum();
+	}
+
+	/**
+	 * Load test of live dogs transmitting directly, with a blocking HTTP
+	 * request per step, to a local <code>DogParkStub</code>.  Dogs print
+	 * their transmissions, so standard output is discarded while they run.
+	 * Prints the steps and requests per second, the heap in use, and the
+	 * number of platform threads.
+	 *
+	 * @param args optional <code>virtual</code> or <code>platform</code>,
+	 * 				defaulting to virtual, then the number of dogs, defaulting
+	 * 				to 10000, and the seconds to run, defaulting to 30.
+	 * @throws IOException if the stub can't be started
+	 * @throws InterruptedException if interrupted while running
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Threads threads = args.length > 0 ? Threads.valueOf(args[0].toUpperCase()) : Threads.VIRTUAL;
+		int dogs = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+		DogParkStub stub = new DogParkStub(0, Runtime.getRuntime().availableProcessors() * 2);
+		stub.start();
+		FitBit.setSERVER_URL(stub.getUrl());
+		FitBit.setSink(null);
+
+		Arena arena = new Arena(1500, 1000, dogs);
+		arena.setTime(System.currentTimeMillis());
+		SimulationEngine engine = new SimulationEngine(arena);
+		engine.setLive(true);
+		LiveRunner runner = new LiveRunner(threads);
+		PrintStream out = System.out;
+		out.println("Running " + dogs + " live dogs on " + (runner.isVirtual() ? "virtual" : "platform") +
+				" threads for " + seconds + " s against " + stub.getUrl());
+
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int aByte) {
+			}
+			public void write(byte[] aBytes, int aOffset, int aLength) {
+			}
+		}));
+		long start = System.nanoTime();
+		DogRandom rand = new DogRandom(System.currentTimeMillis());
+		for (int id = 0; id < dogs; id++) {
+			Dog dog = new Dog(arena, Dog.getNORMAL_HR(), 25, rand.nextInt(230) + 20, id, rand.split());
+			arena.getDogs().add(dog);
+			runner.start(dog);
+		}
+		double started = (System.nanoTime() - start) / 1e9;
+		engine.start();
+
+		//measure once every dog is into its loop
+		Thread.sleep(SimulationEngine.getTICK_INTERVAL() * 2);
+		long steps = runner.getSteps();
+		long requests = stub.getRequests();
+		long measured = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		double elapsed = (System.nanoTime() - measured) / 1e9;
+		steps = runner.getSteps() - steps;
+		requests = stub.getRequests() - requests;
+		int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		System.gc();
+		long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+		String rss = residentSize();
+
+		runner.stop();
+		engine.shutdown();
+		stub.stop();
+		System.setOut(out);
+		out.println("Started " + dogs + " dogs in " + started + " s");
+		out.println((long) (steps / elapsed) + " steps/s, " + (long) (requests / elapsed) + " requests/s, " +
+				runner.getSkipped() + " steps skipped");
+		out.println("Heap used " + (heap >> 20) + " MB" + (rss != null ? ", resident " + rss : "") +
+				", " + platformThreads + " platform threads");
+	}
+
+	/**
+	 * @return resident set size of the process, or null where it isn't known.
+	 */
+	private static String residentSize() {
+		File status = new File("/proc/self/status");
+		if (!status.exists())
+			return null;
+		try {
+			for (String line : Files.readAllLines(status.toPath())) {
+				if (line.startsWith("VmRSS:"))
+					return line.substring(6).trim();
+			}
+		} catch (IOException e) {
+			//not available
+		}
+		return null;
+	}
+}
@@ -0,0 +1,42 @@
+package dogsim;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * <code>ShardTransport</code> between shards in the same process.  Each
+ * ordered pair of shards has its own queue, and batches are handed over
+ * by reference.
+ *
+ * @author Karel Bergmann
+ *
+ * @see ShardTransport
+ * @see ShardedSimulation
+ */
+public class LocalShardTransport implements ShardTransport {
+	private final ConcurrentHashMap<Long, BlockingQueue<ShardBatch>> fQueues =
+			new ConcurrentHashMap<Long, BlockingQueue<ShardBatch>>();	//batches by receiver and sender
+
+	@Override
+	public void send(int aTo, ShardBatch aBatch) {
+		queue(aTo, aBatch.fFrom).add(aBatch);
+	}
+
+	@Override
+	public ShardBatch receive(int aTo, int aFrom) throws InterruptedException {
+		return queue(aTo, aFrom).take();
+	}
+
+	private BlockingQueue<ShardBatch> queue(int aTo, int aFrom) {
+		long key = ((long) aTo << 32) | (aFrom & 0xFFFFFFFFL);
+		BlockingQueue<ShardBatch> queue = fQueues.get(key);
+		if (queue == null) {
+			BlockingQueue<ShardBatch> created = new LinkedBlockingQueue<ShardBatch>();
+			queue = fQueues.putIfAbsent(key, created);
+			if (queue == null)
+				queue = created;
+		}
+		return queue;
+	}
+}
@@ -0,0 +1,97 @@
+package dogsim;
+
+/**
+ * Minimal levelled logging to the console.  Messages below the current
+ * level are skipped before they are built, when guarded by
+ * <code>isEnabled</code>, so per-dog and per-request messages cost
+ * nothing unless <code>DEBUG</code> is asked for.  Warnings and errors go
+ * to standard error, everything else to standard output.
+ *
+ * @author Karel Bergmann
+ *
+ * @see FitBit
+ * @see TelemetryUplink
+ * @see OutageLog
+ */
+public final class Log {
+
+	/**
+	 * Severity of a message, from most to least severe.
+	 */
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG }
+
+	private static volatile Level LEVEL = Level.INFO;	//least severe level printed
+
+	private Log() {
+	}
+
+	public static void setLevel(Level aLevel) {
+		if (aLevel == null)
+			throw new IllegalArgumentException("aLevel must not be null.");
+		LEVEL = aLevel;
+	}
+
+	public static Level getLevel() {
+		return LEVEL;
+	}
+
+	/**
+	 * @param aLevel level of a message
+	 * @return true if messages of <code>aLevel</code> are printed.
+	 */
+	public static boolean isEnabled(Level aLevel) {
+		return aLevel != Level.OFF && aLevel.ordinal() <= LEVEL.ordinal();
+	}
+
+	public static void debug(String aMessage) {
+		if (isEnabled(Level.DEBUG))
+			System.out.println(aMessage);
+	}
+
+	/**
+	 * Prints a debug message, with the stack trace of its cause.
+	 *
+	 * @param aMessage what happened
+	 * @param aCause exception behind the message, or null for none.
+	 */
+	public static void debug(String aMessage, Throwable aCause) {
+		if (!isEnabled(Level.DEBUG))
+			return;
+		System.out.println(aMessage);
+		if (aCause != null)
+			aCause.printStackTrace(System.out);
+	}
+
+	public static void info(String aMessage) {
+		if (isEnabled(Level.INFO))
+			System.out.println(aMessage);
+	}
+
+	/**
+	 * Prints a warning, with the stack trace of its cause.
+	 *
+	 * @param aMessage what went wrong
+	 * @param aCause exception behind the warning, or null for none.
+	 */
+	public static void warn(String aMessage, Throwable aCause) {
+		print(Level.WARN, aMessage, aCause);
+	}
+
+	/**
+	 * Prints an error, with the stack trace of its cause.
+	 *
+	 * @param aMessage what went wrong
+	 * @param aCause exception behind the error, or null for none.
+	 */
+	public static void error(String aMessage, Throwable aCause) {
+		print(Level.ERROR, aMessage, aCause);
+	}
+
+	private static void print(Level aLevel, String aMessage, Throwable aCause) {
+		if (!isEnabled(aLevel))
+			return;
+		System.err.println(aLevel + " " + aMessage);
+		if (aCause != null)
+			aCause.printStackTrace();
+	}
+}
@@ -0,0 +1,333 @@
+package dogsim;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the simulation's metrics, exported over JMX and as text in
+ * the Prometheus exposition format.  Instrumented code records latencies
+ * into <code>LatencyHistogram</code>s which the registry owns, and
+ * components which already count what they do, such as the
+ * <code>TelemetryUplink</code>, register as a <code>Source</code> and
+ * report their counters and gauges whenever the metrics are read.
+ * Nothing is computed between reads, so an unread registry costs only
+ * the histogram records.
+ *
+ * Histograms are exported as summaries of their 50th, 90th, 99th and
+ * 99.9th percentiles in seconds, with their sum, count and maximum.
+ * Samples reported under the same name by several sources, such as the
+ * engines of a sharded simulation, are added together.
+ *
+ * @author Karel Bergmann
+ *
+ * @see LatencyHistogram
+ * @see MetricsEndpoint
+ */
+public class Metrics {
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };	//percentiles exported
+	private static final String[] QUANTILE_NAMES = { "p50", "p90", "p99", "p999" };	//their JMX suffixes
+	private static final Metrics DEFAULT = new Metrics();
+
+	/**
+	 * Component which reports counters and gauges of its own.
+	 */
+	public interface Source {
+
+		/**
+		 * Reports the component's current values.  Called on the
+		 * thread reading the metrics.
+		 *
+		 * @param aOut receives the values
+		 */
+		public void collect(Collector aOut);
+	}
+
+	/**
+	 * Receives the values reported by a <code>Source</code>.  Names
+	 * follow the Prometheus conventions, with counters ending in
+	 * <code>_total</code>.
+	 */
+	public interface Collector {
+
+		/**
+		 * @param aName metric name
+		 * @param aHelp one-line description
+		 * @param aValue number of events so far, never decreasing
+		 */
+		public void counter(String aName, String aHelp, long aValue);
+
+		/**
+		 * @param aName metric name
+		 * @param aHelp one-line description
+		 * @param aValue current value
+		 */
+		public void gauge(String aName, String aHelp, long aValue);
+	}
+
+	/**
+	 * Histogram registered under a name and optional labels.
+	 */
+	private static class Entry {
+		final String fName;		//metric name
+		final String fLabels;	//Prometheus labels, such as phase="move", or null
+		final String fHelp;		//one-line description
+		final LatencyHistogram fHistogram = new LatencyHistogram();
+
+		Entry(String aName, String aLabels, String aHelp) {
+			fName = aName;
+			fLabels = aLabels;
+			fHelp = aHelp;
+		}
+	}
+
+	/**
+	 * Counter or gauge collected from the sources.
+	 */
+	private static class Sample {
+		final String fType;	//counter or gauge
+		final String fHelp;	//one-line description
+		long fValue;		//sum over the sources
+
+		Sample(String aType, String aHelp) {
+			fType = aType;
+			fHelp = aHelp;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Entry> fHistograms = new CopyOnWriteArrayList<Entry>();
+	private final CopyOnWriteArrayList<Source> fSources = new CopyOnWriteArrayList<Source>();
+
+	/**
+	 * @return registry shared by the whole simulation.
+	 */
+	public static Metrics getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Returns the histogram registered under a name and labels,
+	 * registering a new one the first time.
+	 *
+	 * @param aName metric name, ending in <code>_seconds</code>
+	 * @param aLabels Prometheus labels, such as <code>phase="move"</code>, or null for none.
+	 * @param aHelp one-line description
+	 * @return the histogram to record into.
+	 */
+	public synchronized LatencyHistogram histogram(String aName, String aLabels, String aHelp) {
+		if (aName == null)
+			throw new IllegalArgumentException("aName must not be null.");
+		for (Entry entry : fHistograms) {
+			if (entry.fName.equals(aName) &&
+					(aLabels == null ? entry.fLabels == null : aLabels.equals(entry.fLabels)))
+				return entry.fHistogram;
+		}
+		Entry entry = new Entry(aName, aLabels, aHelp);
+		fHistograms.add(entry);
+		return entry.fHistogram;
+	}
+
+	/**
+	 * Adds a source, whose values are reported on every read until it
+	 * is removed.
+	 *
+	 * @param aSource source to add
+	 */
+	public void register(Source aSource) {
+		if (aSource == null)
+			throw new IllegalArgumentException("aSource must not be null.");
+		fSources.addIfAbsent(aSource);
+	}
+
+	public void unregister(Source aSource) {
+		fSources.remove(aSource);
+	}
+
+	/**
+	 * Collects the current values of every source, adding together
+	 * samples of the same name.
+	 */
+	private Map<String, Sample> collect() {
+		final Map<String, Sample> samples = new LinkedHashMap<String, Sample>();
+		Collector out = new Collector() {
+			public void counter(String aName, String aHelp, long aValue) {
+				add("counter", aName, aHelp, aValue);
+			}
+			public void gauge(String aName, String aHelp, long aValue) {
+				add("gauge", aName, aHelp, aValue);
+			}
+			private void add(String aType, String aName, String aHelp, long aValue) {
+				Sample sample = samples.get(aName);
+				if (sample == null) {
+					sample = new Sample(aType, aHelp);
+					samples.put(aName, sample);
+				}
+				sample.fValue += aValue;
+			}
+		};
+		for (Source source : fSources) {
+			source.collect(out);
+		}
+		return samples;
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 *
+	 * @return the metrics, one sample per line.
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder(4096);
+		for (Map.Entry<String, Sample> e : collect().entrySet()) {
+			Sample sample = e.getValue();
+			text.append("# HELP ").append(e.getKey()).append(' ').append(sample.fHelp).append('\n');
+			text.append("# TYPE ").append(e.getKey()).append(' ').append(sample.fType).append('\n');
+			text.append(e.getKey()).append(' ').append(sample.fValue).append('\n');
+		}
+
+		//the histograms of a family are written together, under one HELP and TYPE
+		Map<String, ArrayList<Entry>> families = new LinkedHashMap<String, ArrayList<Entry>>();
+		for (Entry entry : fHistograms) {
+			ArrayList<Entry> members = families.get(entry.fName);
+			if (members == null) {
+				members = new ArrayList<Entry>();
+				families.put(entry.fName, members);
+			}
+			members.add(entry);
+		}
+		for (ArrayList<Entry> members : families.values()) {
+			String family = members.get(0).fName;
+			text.append("# HELP ").append(family).append(' ').append(members.get(0).fHelp).append('\n');
+			text.append("# TYPE ").append(family).append(" summary\n");
+			for (Entry entry : members) {
+				writeSummary(text, entry);
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes the quantiles, sum, count and maximum of a histogram.
+	 */
+	private static void writeSummary(StringBuilder aText, Entry aEntry) {
+		String family = aEntry.fName;
+		LatencyHistogram h = aEntry.fHistogram;
+		String labels = aEntry.fLabels == null ? "" : aEntry.fLabels + ",";
+		for (int i = 0; i < QUANTILES.length; i++) {
+			aText.append(family).append('{').append(labels).append("quantile=\"").append(QUANTILES[i])
+				.append("\"} ").append(seconds(h.getValueAt(QUANTILES[i]))).append('\n');
+		}
+		String suffix = aEntry.fLabels == null ? " " : "{" + aEntry.fLabels + "} ";
+		aText.append(family).append("_sum").append(suffix).append(seconds(h.getSum())).append('\n');
+		aText.append(family).append("_count").append(suffix).append(h.getCount()).append('\n');
+		aText.append(family).append("_max").append(suffix).append(seconds(h.getMax())).append('\n');
+	}
+
+	private static double seconds(long aNanos) {
+		return aNanos / 1e9;
+	}
+
+	/**
+	 * Registers the registry with the platform MBean server as
+	 * <code>dogsim:type=Metrics</code>, where JConsole or any JMX client can
+	 * read it.  Counters and gauges become attributes of the same name, and
+	 * each histogram becomes attributes for its percentiles, mean, maximum
+	 * and count.  Has no effect if already registered.
+	 *
+	 * @throws JMException if the MBean can't be registered.
+	 */
+	public void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("dogsim:type=Metrics");
+		if (!server.isRegistered(name))
+			server.registerMBean(new MetricsMBean(), name);
+	}
+
+	/**
+	 * JMX view of the registry.  Attributes are read-only and are
+	 * recomputed on every read.
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		/**
+		 * @return every attribute and its current value, in seconds
+		 * 				for the histograms.
+		 */
+		private Map<String, Object> values() {
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Sample> e : collect().entrySet()) {
+				values.put(e.getKey(), e.getValue().fValue);
+			}
+			for (Entry entry : fHistograms) {
+				String prefix = entry.fName;
+				if (entry.fLabels != null)
+					prefix += "_" + entry.fLabels.replaceAll("\\W+", "_").replaceAll("_$", "");
+				LatencyHistogram h = entry.fHistogram;
+				for (int i = 0; i < QUANTILES.length; i++) {
+					values.put(prefix + "_" + QUANTILE_NAMES[i], seconds(h.getValueAt(QUANTILES[i])));
+				}
+				values.put(prefix + "_mean", seconds(h.getMean()));
+				values.put(prefix + "_max", seconds(h.getMax()));
+				values.put(prefix + "_count", h.getCount());
+			}
+			return values;
+		}
+
+		@Override
+		public Object getAttribute(String aName) throws AttributeNotFoundException {
+			Object value = values().get(aName);
+			if (value == null)
+				throw new AttributeNotFoundException(aName);
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] aNames) {
+			Map<String, Object> values = values();
+			AttributeList list = new AttributeList();
+			for (String name : aNames) {
+				if (values.containsKey(name))
+					list.add(new Attribute(name, values.get(name)));
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute aAttribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(aAttribute.getName() + " is read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList aAttributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String aAction, Object[] aParams, String[] aSignature) {
+			throw new UnsupportedOperationException(aAction);
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Map.Entry<String, Object> e : values().entrySet()) {
+				attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+						e.getKey(), true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "DogSim metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+	}
+}
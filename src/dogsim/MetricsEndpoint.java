@@ -0,0 +1,68 @@
+package dogsim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint serving a <code>Metrics</code> registry as text in
+ * the Prometheus exposition format, for a Prometheus scraper or for
+ * <code>curl</code>.  Requests are answered on the server's own thread,
+ * since rendering the metrics is cheap and scrapes are rare.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Metrics
+ */
+public class MetricsEndpoint implements HttpHandler {
+	public static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Metrics fMetrics;	//registry served
+	private final HttpServer fServer;	//embedded HTTP server
+
+	/**
+	 * Constructor which binds the endpoint to a local port.
+	 *
+	 * @param aMetrics registry to serve
+	 * @param aPort port to listen on, 0 for any free port.
+	 * @throws IOException if the port can't be bound.
+	 */
+	public MetricsEndpoint(Metrics aMetrics, int aPort) throws IOException {
+		if (aMetrics == null)
+			throw new IllegalArgumentException("aMetrics must not be null.");
+		fMetrics = aMetrics;
+		fServer = HttpServer.create(new InetSocketAddress("localhost", aPort), 16);
+		fServer.createContext(PATH, this);
+	}
+
+	public void start() {
+		fServer.start();
+	}
+
+	public void stop() {
+		fServer.stop(0);
+	}
+
+	/**
+	 * @return URL the metrics are served at.
+	 */
+	public String getUrl() {
+		return "http://localhost:" + fServer.getAddress().getPort() + PATH;
+	}
+
+	@Override
+	public void handle(HttpExchange aExchange) throws IOException {
+		byte[] body = fMetrics.toText().getBytes(StandardCharsets.UTF_8);
+		aExchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		aExchange.sendResponseHeaders(200, body.length);
+		OutputStream out = aExchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+}
@@ -0,0 +1,113 @@
+package dogsim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The complete state of a dog crossing from one shard into another.
+ * Positions are in the coordinates of the whole simulation, so the
+ * receiving shard only needs to subtract its own origin.  The state of
+ * the dog's generator travels with it, so the dog carries on with the
+ * same stream of random numbers.  A migrant
+ * can be written to and read from a stream, for transports between
+ * processes.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Shard
+ * @see ShardBatch
+ */
+public class Migrant {
+	public final int fTag;				//dog's ID in the whole simulation
+	public final double fX;				//x-coordinate in the whole simulation
+	public final double fY;				//y-coordinate in the whole simulation
+	public final double fDirection;		//heading in degrees
+	public final double fVelocity;		//velocity in meters/update
+	public final double fTemp;			//temp in C
+	public final double fMaxSpeed;		//dog's maximum velocity
+	public final long fHR;				//heart rate
+	public final long fTimeRested;		//updates spent resting
+	public final boolean fChasing;		//chasing another dog
+	public final boolean fResting;		//resting
+	public final long fRandom;			//state of the dog's DogRandom
+
+	Migrant(int aTag, double aX, double aY, double aDirection, double aVelocity, double aTemp,
+			double aMaxSpeed, long aHR, long aTimeRested, boolean aChasing, boolean aResting, long aRandom) {
+		fTag = aTag;
+		fX = aX;
+		fY = aY;
+		fDirection = aDirection;
+		fVelocity = aVelocity;
+		fTemp = aTemp;
+		fMaxSpeed = aMaxSpeed;
+		fHR = aHR;
+		fTimeRested = aTimeRested;
+		fChasing = aChasing;
+		fResting = aResting;
+		fRandom = aRandom;
+	}
+
+	/**
+	 * Captures the state of a dog.
+	 *
+	 * @param aStore store holding the dog
+	 * @param aSlot the dog's slot in the store
+	 * @param aTag the dog's tag
+	 * @param aRandom state of the dog's <code>DogRandom</code>
+	 * @param aOriginX x-coordinate of the store's arena in the whole simulation
+	 * @param aOriginY y-coordinate of the store's arena in the whole simulation
+	 * @return the dog's state
+	 */
+	public static Migrant capture(DogStore aStore, int aSlot, int aTag, long aRandom, double aOriginX,
+			double aOriginY) {
+		return new Migrant(aTag, aStore.fX[aSlot] + aOriginX, aStore.fY[aSlot] + aOriginY,
+				aStore.fDirection[aSlot], aStore.fVelocity[aSlot], aStore.fTemp[aSlot],
+				aStore.fMaxSpeed[aSlot], aStore.fHR[aSlot], aStore.fTimeRested[aSlot],
+				aStore.fChasing[aSlot] != 0, aStore.fResting[aSlot] != 0, aRandom);
+	}
+
+	/**
+	 * Writes the state into a slot of another store.
+	 *
+	 * @param aStore store to write to
+	 * @param aSlot slot to write
+	 * @param aOriginX x-coordinate of the store's arena in the whole simulation
+	 * @param aOriginY y-coordinate of the store's arena in the whole simulation
+	 */
+	public void restore(DogStore aStore, int aSlot, double aOriginX, double aOriginY) {
+		aStore.fX[aSlot] = fX - aOriginX;
+		aStore.fY[aSlot] = fY - aOriginY;
+		aStore.fPrevX[aSlot] = aStore.fX[aSlot];
+		aStore.fPrevY[aSlot] = aStore.fY[aSlot];
+		aStore.fDirection[aSlot] = fDirection;
+		aStore.fVelocity[aSlot] = fVelocity;
+		aStore.fTemp[aSlot] = fTemp;
+		aStore.fMaxSpeed[aSlot] = fMaxSpeed;
+		aStore.fHR[aSlot] = fHR;
+		aStore.fTimeRested[aSlot] = fTimeRested;
+		aStore.fChasing[aSlot] = (byte) (fChasing ? 1 : 0);
+		aStore.fResting[aSlot] = (byte) (fResting ? 1 : 0);
+	}
+
+	public void writeTo(DataOutput aOut) throws IOException {
+		aOut.writeInt(fTag);
+		aOut.writeDouble(fX);
+		aOut.writeDouble(fY);
+		aOut.writeDouble(fDirection);
+		aOut.writeDouble(fVelocity);
+		aOut.writeDouble(fTemp);
+		aOut.writeDouble(fMaxSpeed);
+		aOut.writeLong(fHR);
+		aOut.writeLong(fTimeRested);
+		aOut.writeBoolean(fChasing);
+		aOut.writeBoolean(fResting);
+		aOut.writeLong(fRandom);
+	}
+
+	public static Migrant readFrom(DataInput aIn) throws IOException {
+		return new Migrant(aIn.readInt(), aIn.readDouble(), aIn.readDouble(), aIn.readDouble(),
+				aIn.readDouble(), aIn.readDouble(), aIn.readDouble(), aIn.readLong(),
+				aIn.readLong(), aIn.readBoolean(), aIn.readBoolean(), aIn.readLong());
+	}
+}
@@ -0,0 +1,66 @@
+package dogsim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports failures to reach a server as outages rather than one by one,
+ * so that a server which is down doesn't flood the console.  The first
+ * failure after a success is logged as a single warning, further failures
+ * are only counted, and the next success logs how many failed in the
+ * meantime.  The cause of each failure is printed, with its stack trace,
+ * only at <code>DEBUG</code>.  An outage log can be shared between threads.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Log
+ * @see TelemetryUplink
+ * @see AsyncHttpSink
+ */
+public class OutageLog {
+	private final String fServer;	//server the failures are reported against
+	private final String fUnit;		//what failed, in the plural, such as "batches"
+	private final AtomicLong fFailures = new AtomicLong();	//failures since the outage began, 0 if the server is up
+
+	/**
+	 * @param aServer server the failures are reported against
+	 * @param aUnit what fails, in the plural, such as "batches"
+	 */
+	public OutageLog(String aServer, String aUnit) {
+		if (aServer == null || aUnit == null)
+			throw new IllegalArgumentException("aServer and aUnit must not be null.");
+		fServer = aServer;
+		fUnit = aUnit;
+	}
+
+	/**
+	 * Records a failure, warning if it starts an outage.
+	 *
+	 * @param aWhat what failed
+	 * @param aCause exception behind the failure, or null for none.
+	 */
+	public void failed(String aWhat, Throwable aCause) {
+		if (fFailures.getAndIncrement() == 0)
+			Log.warn(fServer + " is unavailable: " + aWhat + (aCause != null ? ": " + aCause : "") +
+					".  Further failures are counted until it recovers.", null);
+		if (Log.isEnabled(Log.Level.DEBUG))
+			Log.debug(aWhat, aCause);
+	}
+
+	/**
+	 * Records a success, reporting the end of an outage if there was one.
+	 */
+	public void succeeded() {
+		if (fFailures.get() == 0)
+			return;
+		long failed = fFailures.getAndSet(0);
+		if (failed > 0)
+			Log.info(fServer + " recovered after " + failed + " failed " + fUnit);
+	}
+
+	/**
+	 * @return number of failures since the outage began, 0 if the server is up.
+	 */
+	public long getFailures() {
+		return fFailures.get();
+	}
+}
@@ -0,0 +1,150 @@
+package dogsim;
+
+import java.util.Arrays;
+
+/**
+ * Timing wheel of the dogs sleeping through a rest, keyed by the tick on
+ * which each gets up.  A resting dog only needs looking at again when its
+ * rest is over, so rather than being stepped every tick it is put in the
+ * bucket of its wake-up tick, and the <code>SimulationEngine</code> takes
+ * the bucket of each tick as it starts.  Scheduling and waking a dog are
+ * constant time, so a tick costs nothing for the dogs still asleep.
+ *
+ * So that a long rest doesn't silence a dog downstream, a sleeping dog
+ * also comes up every <code>heartbeat</code> ticks without waking, and
+ * is listed as due for a heartbeat on that tick before going back into
+ * the wheel.
+ *
+ * The wheel has a bucket for every tick up to the longest rest ahead,
+ * so no bucket ever holds dogs for two different ticks.  Dogs which are
+ * killed while asleep are dropped when their bucket comes up.  A
+ * scheduler is used by the engine thread alone.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Dog#sleep(long)
+ * @see SimulationEngine
+ */
+public class RestScheduler {
+	private final Dog[][] fBuckets;	//dogs waking on each tick, indexed by tick modulo the wheel size
+	private final int[] fSizes;		//dogs in each bucket
+	private final int fMask;		//wheel size - 1
+	private final int fHeartbeat;	//ticks between heartbeats of a sleeping dog
+	private Dog[] fDue = new Dog[16];	//dogs due for a heartbeat on the latest tick woken
+	private int fDueCount;			//dogs in fDue
+	private int fAsleep;			//dogs in all buckets
+
+	/**
+	 * Constructor specifying how far ahead dogs may be scheduled, with
+	 * no heartbeats.
+	 *
+	 * @param aHorizon most ticks from now a dog may wake, must be greater than 0.
+	 */
+	public RestScheduler(int aHorizon) {
+		this(aHorizon, aHorizon);
+	}
+
+	/**
+	 * Constructor specifying how far ahead dogs may be scheduled, and
+	 * how often a sleeping dog comes up for a heartbeat.
+	 *
+	 * @param aHorizon most ticks from now a dog may wake, must be greater than 0.
+	 * @param aHeartbeat ticks between heartbeats, must be greater than 0.
+	 * 				A heartbeat as long as the horizon never comes up.
+	 */
+	public RestScheduler(int aHorizon, int aHeartbeat) {
+		if (aHorizon <= 0)
+			throw new IllegalArgumentException("aHorizon must be greater than 0.");
+		if (aHeartbeat <= 0)
+			throw new IllegalArgumentException("aHeartbeat must be greater than 0.");
+		fHeartbeat = Math.min(aHeartbeat, aHorizon);
+		int size = Integer.highestOneBit(aHorizon) << 1;
+		fBuckets = new Dog[size][];
+		fSizes = new int[size];
+		fMask = size - 1;
+		for (int i = 0; i < size; i++) {
+			fBuckets[i] = new Dog[16];
+		}
+	}
+
+	/**
+	 * Schedules a dog which has just fallen asleep to wake, or to come up
+	 * for a heartbeat first if its rest is longer than a heartbeat.
+	 *
+	 * @param aDog dog to wake, which wakes on a tick after <code>aTick</code>
+	 * 				and within the horizon.
+	 * @param aTick current tick
+	 * @see Dog#getWakeTick()
+	 */
+	public void schedule(Dog aDog, long aTick) {
+		long at = Math.min(aDog.getWakeTick(), aTick + fHeartbeat);
+		int b = (int) (at & fMask);
+		Dog[] bucket = fBuckets[b];
+		if (fSizes[b] == bucket.length) {
+			bucket = Arrays.copyOf(bucket, bucket.length * 2);
+			fBuckets[b] = bucket;
+		}
+		bucket[fSizes[b]++] = aDog;
+		fAsleep++;
+	}
+
+	/**
+	 * Wakes every dog scheduled to wake on a tick, and lists the dogs
+	 * which come up for a heartbeat instead, scheduling them again.  Must
+	 * be called for every tick in turn, before the dogs are stepped.
+	 *
+	 * @param aTick tick starting
+	 * @return number of dogs woken.
+	 * @see #getDue()
+	 */
+	public int wake(long aTick) {
+		Arrays.fill(fDue, 0, fDueCount, null);
+		fDueCount = 0;
+		int b = (int) (aTick & fMask);
+		Dog[] bucket = fBuckets[b];
+		int size = fSizes[b];
+		//rescheduled dogs go to later buckets, never this one
+		fSizes[b] = 0;
+		fAsleep -= size;
+		int woken = 0;
+		for (int i = 0; i < size; i++) {
+			Dog dog = bucket[i];
+			bucket[i] = null;
+			if (!dog.isActive())
+				continue;
+			if (dog.getWakeTick() <= aTick) {
+				dog.wake();
+				woken++;
+			}
+			else {
+				if (fDueCount == fDue.length)
+					fDue = Arrays.copyOf(fDue, fDueCount * 2);
+				fDue[fDueCount++] = dog;
+				schedule(dog, aTick);
+			}
+		}
+		return woken;
+	}
+
+	/**
+	 * @return the dogs due for a heartbeat on the latest tick woken, in
+	 * 				the first <code>getDueCount()</code> elements.
+	 */
+	public Dog[] getDue() {
+		return fDue;
+	}
+
+	/**
+	 * @return number of dogs due for a heartbeat on the latest tick woken.
+	 */
+	public int getDueCount() {
+		return fDueCount;
+	}
+
+	/**
+	 * @return number of dogs scheduled, including any killed since.
+	 */
+	public int getAsleep() {
+		return fAsleep;
+	}
+}
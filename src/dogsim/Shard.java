@@ -0,0 +1,340 @@
+package dogsim;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * One spatial shard of a larger simulation.  A shard owns an
+ * <code>Arena</code> covering a rectangle of the whole simulation, the
+ * dogs inside it, and a <code>SimulationEngine</code> which steps them,
+ * and is stepped by a worker of its own.  The arena's coordinates are
+ * local, offset from the whole simulation by the shard's origin.
+ *
+ * Shards are kept in step by exchanging a <code>ShardBatch</code> with
+ * every neighbour before each tick, through a <code>ShardTransport</code>.
+ * Dogs within <code>VISUAL_RANGE</code> of a neighbour are sent as ghosts,
+ * which the neighbour places in the ghost slots of its arena for the
+ * tick, so that dogs see across the border.  Dogs which have left
+ * the arena through an open edge are removed and sent, as
+ * <code>Migrant</code>s, to the neighbour whose rectangle they are in,
+ * which adds them with their state and tag intact.  A migrant the
+ * neighbour has no room for is handed back in the neighbour's next batch,
+ * and the dog bounces off the border as if it were a wall, so that no dog
+ * is lost when a shard fills up.
+ *
+ * @author Karel Bergmann
+ *
+ * @see ShardedSimulation
+ * @see ShardTransport
+ * @see Arena
+ */
+public class Shard {
+	private final int fIndex;				//index of the shard in the simulation
+	private final Arena fArena;				//the shard's part of the simulation
+	private final SimulationEngine fEngine;	//steps fArena
+	private final double fOriginX;			//x-coordinate of fArena's origin in the whole simulation
+	private final double fOriginY;			//y-coordinate of fArena's origin in the whole simulation
+	private final ShardTransport fTransport;	//carries batches to and from neighbours
+	private int[] fNeighbours;				//indices of neighbouring shards
+	private double[] fBounds;				//min x, min y, max x, max y of each neighbour
+	private ShardBatch[] fBatches;			//two batches for each neighbour, sent on alternate ticks
+	private ArrayList<ArrayList<Migrant>> fReturning;	//migrants to hand back to each neighbour
+	private Dog[] fDogs;					//reused copy of the dogs after a tick
+	private boolean fStarted;				//the first step has begun
+	private long fTick;						//ticks run
+	private volatile long fArrived;			//dogs received from neighbours
+	private volatile long fDeparted;		//dogs handed to neighbours
+	private volatile long fRejected;		//dogs handed back because the arena was full
+	private volatile long fLostGhosts;		//ghosts received while the ghost slots were full
+
+	/**
+	 * Constructor for a shard, whose neighbours are then added with
+	 * <code>addNeighbour</code>.
+	 *
+	 * @param aIndex index of the shard in the simulation
+	 * @param aArena the shard's arena, with ghost slots and open edges where
+	 * 				it borders other shards
+	 * @param aOriginX x-coordinate of the arena's origin in the whole simulation
+	 * @param aOriginY y-coordinate of the arena's origin in the whole simulation
+	 * @param aTransport carries batches to and from neighbours
+	 */
+	public Shard(int aIndex, Arena aArena, double aOriginX, double aOriginY, ShardTransport aTransport) {
+		if (aArena == null)
+			throw new IllegalArgumentException("aArena must not be null.");
+		if (aTransport == null)
+			throw new IllegalArgumentException("aTransport must not be null.");
+		fIndex = aIndex;
+		fArena = aArena;
+		fEngine = new SimulationEngine(aArena);
+		fOriginX = aOriginX;
+		fOriginY = aOriginY;
+		fTransport = aTransport;
+		fNeighbours = new int[0];
+		fBounds = new double[0];
+		fBatches = new ShardBatch[0];
+		fReturning = new ArrayList<ArrayList<Migrant>>();
+		fDogs = new Dog[aArena.getDogs().capacity()];
+	}
+
+	/**
+	 * Adds a neighbouring shard.  Must be called before the first step.
+	 *
+	 * @param aIndex index of the neighbour
+	 * @param aMinX left edge of the neighbour in the whole simulation
+	 * @param aMinY top edge of the neighbour in the whole simulation
+	 * @param aMaxX right edge of the neighbour in the whole simulation
+	 * @param aMaxY bottom edge of the neighbour in the whole simulation
+	 */
+	public void addNeighbour(int aIndex, double aMinX, double aMinY, double aMaxX, double aMaxY) {
+		if (fStarted)
+			throw new IllegalStateException("Neighbours must be added before the first step.");
+		int n = fNeighbours.length;
+		int[] neighbours = new int[n + 1];
+		double[] bounds = new double[(n + 1) * 4];
+		System.arraycopy(fNeighbours, 0, neighbours, 0, n);
+		System.arraycopy(fBounds, 0, bounds, 0, n * 4);
+		neighbours[n] = aIndex;
+		bounds[n * 4] = aMinX;
+		bounds[n * 4 + 1] = aMinY;
+		bounds[n * 4 + 2] = aMaxX;
+		bounds[n * 4 + 3] = aMaxY;
+		fNeighbours = neighbours;
+		fBounds = bounds;
+		ShardBatch[] batches = new ShardBatch[(n + 1) * 2];
+		System.arraycopy(fBatches, 0, batches, 0, n * 2);
+		batches[n * 2] = new ShardBatch(fIndex, 16);
+		batches[n * 2 + 1] = new ShardBatch(fIndex, 16);
+		fBatches = batches;
+		fReturning.add(new ArrayList<Migrant>());
+	}
+
+	/**
+	 * Adds a dog at a random position in the shard.
+	 *
+	 * @param aHR The dog's heart rate
+	 * @param aTemp The dog's temperature
+	 * @param aMaxSpeed The dog's maximum speed
+	 * @param aTag The dog's ID in the whole simulation
+	 * @param aRand generator used only by this dog
+	 * @return the dog, or null if the shard is full.
+	 */
+	public Dog addDog(long aHR, double aTemp, double aMaxSpeed, int aTag, DogRandom aRand) {
+		DogRegistry dogs = fArena.getDogs();
+		int id = dogs.acquireId();
+		if (id < 0)
+			return null;
+		Dog dog = new Dog(fArena, aHR, aTemp, aMaxSpeed, id, aTag, aRand);
+		dogs.add(dog);
+		return dog;
+	}
+
+	/**
+	 * Runs one tick.  A batch is sent to every neighbour, the batches
+	 * of the neighbours are taken in, and the arena is ticked.  Blocks
+	 * until every neighbour has sent its batch for this tick.  Dogs which
+	 * left the arena in a tick are handed over at the start of the next,
+	 * so no dog is in transit between steps.
+	 *
+	 * @throws IOException if the transport fails
+	 * @throws InterruptedException if interrupted while waiting for a neighbour
+	 */
+	public void step() throws IOException, InterruptedException {
+		fStarted = true;
+		sendBatches();
+		receiveBatches();
+		fEngine.tick();
+		fTick++;
+	}
+
+	/**
+	 * Takes the batch of every neighbour, placing ghosts in the ghost
+	 * slots of the arena and adding migrants as new dogs.
+	 */
+	private void receiveBatches() throws IOException, InterruptedException {
+		//the dogs which just left aren't stepped again, so their IDs can take in migrants
+		fArena.getDogs().recycleIds();
+		DogStore store = fArena.getStore();
+		int first = fArena.getFirstGhost();
+		int capacity = fArena.getGhostCapacity();
+		int ghosts = 0;
+
+		for (int n = 0; n < fNeighbours.length; n++) {
+			ShardBatch batch = fTransport.receive(fIndex, fNeighbours[n]);
+
+			//ghosts are only ever looked at, so only their position is needed
+			for (int g = 0; g < batch.fGhostCount; g++) {
+				if (ghosts == capacity) {
+					fLostGhosts += batch.fGhostCount - g;
+					break;
+				}
+				store.fX[first + ghosts] = batch.fGhostX[g] - fOriginX;
+				store.fY[first + ghosts] = batch.fGhostY[g] - fOriginY;
+				ghosts++;
+			}
+
+			//migrants become dogs of this shard, continuing where they left off
+			for (int i = 0; i < batch.fMigrants.size(); i++) {
+				accept(batch.fMigrants.get(i), n, false);
+			}
+			for (int i = 0; i < batch.fReturned.size(); i++) {
+				accept(batch.fReturned.get(i), n, true);
+			}
+		}
+		fArena.setGhostCount(ghosts);
+	}
+
+	/**
+	 * Adds a dog received from a neighbour, or hands it back to the
+	 * neighbour if the arena is full.
+	 *
+	 * @param aMigrant the dog
+	 * @param aFrom position in fNeighbours of the neighbour it came from
+	 * @param aReturned true if the dog was handed back after leaving this shard
+	 */
+	private void accept(Migrant aMigrant, int aFrom, boolean aReturned) {
+		DogRegistry dogs = fArena.getDogs();
+		int id = dogs.acquireId();
+		if (id < 0) {
+			fReturning.get(aFrom).add(aMigrant);
+			fRejected++;
+			return;
+		}
+		DogStore store = fArena.getStore();
+		aMigrant.restore(store, id, fOriginX, fOriginY);
+		if (aReturned) {
+			//it never got across, so it bounces off the border
+			store.fX[id] = Math.min(Math.max(store.fX[id], 0), Math.nextDown(fArena.MAX_X));
+			store.fY[id] = Math.min(Math.max(store.fY[id], 0), Math.nextDown(fArena.MAX_Y));
+			store.fPrevX[id] = store.fX[id];
+			store.fPrevY[id] = store.fY[id];
+			store.fDirection[id] = DogStore.reverse(store.fDirection[id]);
+		}
+		dogs.add(new Dog(fArena, id, aMigrant.fTag, new DogRandom(aMigrant.fRandom)));
+		fArrived++;
+	}
+
+	/**
+	 * Hands dogs which left the arena to the neighbour they moved into,
+	 * and sends every neighbour the dogs near its border.
+	 */
+	private void sendBatches() throws IOException {
+		int neighbours = fNeighbours.length;
+		if (neighbours == 0)
+			return;
+		DogRegistry dogs = fArena.getDogs();
+		DogStore store = fArena.getStore();
+		double range = Dog.getVISUAL_RANGE();
+		double range2 = range * range;
+		int count = dogs.copyTo(fDogs);
+
+		//the batches sent two ticks ago have been taken in, so they can be refilled
+		int turn = (int) (fTick & 1);
+		for (int n = 0; n < neighbours; n++) {
+			ShardBatch batch = fBatches[n * 2 + turn];
+			batch.reset(fTick);
+			ArrayList<Migrant> returning = fReturning.get(n);
+			batch.fReturned.addAll(returning);
+			returning.clear();
+		}
+
+		for (int i = 0; i < count; i++) {
+			Dog dog = fDogs[i];
+			fDogs[i] = null;
+			int slot = dog.getID();
+			double x = store.fX[slot];
+			double y = store.fY[slot];
+			double gx = x + fOriginX;
+			double gy = y + fOriginY;
+
+			//a dog outside the arena belongs to the neighbour it is in
+			if (!fArena.contains(x, y)) {
+				int to = owner(gx, gy);
+				if (to >= 0 && dogs.remove(dog)) {
+					fBatches[to * 2 + turn].fMigrants.add(Migrant.capture(store, slot, dog.getTag(), dog.getRandom().getState(),
+						fOriginX, fOriginY));
+					dog.kill();
+					dogs.releaseId(slot);
+					fDeparted++;
+					continue;
+				}
+			}
+
+			//a dog near a neighbour is a ghost there
+			for (int n = 0; n < neighbours; n++) {
+				double dx = Math.max(Math.max(fBounds[n * 4] - gx, gx - fBounds[n * 4 + 2]), 0);
+				double dy = Math.max(Math.max(fBounds[n * 4 + 1] - gy, gy - fBounds[n * 4 + 3]), 0);
+				if (dx * dx + dy * dy < range2)
+					fBatches[n * 2 + turn].addGhost(gx, gy);
+			}
+		}
+
+		for (int n = 0; n < neighbours; n++) {
+			fTransport.send(fNeighbours[n], fBatches[n * 2 + turn]);
+		}
+	}
+
+	/**
+	 * @return position in fNeighbours of the neighbour containing a
+	 * 				point of the whole simulation, or -1 if none.
+	 */
+	private int owner(double aX, double aY) {
+		for (int n = 0; n < fNeighbours.length; n++) {
+			if (aX >= fBounds[n * 4] && aX < fBounds[n * 4 + 2] &&
+					aY >= fBounds[n * 4 + 1] && aY < fBounds[n * 4 + 3])
+				return n;
+		}
+		return -1;
+	}
+
+	public int getIndex() {
+		return fIndex;
+	}
+
+	public Arena getArena() {
+		return fArena;
+	}
+
+	public SimulationEngine getEngine() {
+		return fEngine;
+	}
+
+	public double getOriginX() {
+		return fOriginX;
+	}
+
+	public double getOriginY() {
+		return fOriginY;
+	}
+
+	public long getTicks() {
+		return fTick;
+	}
+
+	public long getArrived() {
+		return fArrived;
+	}
+
+	public long getDeparted() {
+		return fDeparted;
+	}
+
+	public long getRejected() {
+		return fRejected;
+	}
+
+	/**
+	 * @return number of dogs waiting to be handed back to neighbours
+	 * 				at the next step, which are in none of the shards meanwhile.
+	 */
+	public int getReturning() {
+		int returning = 0;
+		for (ArrayList<Migrant> r : fReturning) {
+			returning += r.size();
+		}
+		return returning;
+	}
+
+	public long getLostGhosts() {
+		return fLostGhosts;
+	}
+}
@@ -0,0 +1,125 @@
+package dogsim;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Everything one shard sends a neighbouring shard before a tick: the
+ * positions of its dogs near their shared border, which the neighbour
+ * mirrors as ghosts, the dogs which crossed into the neighbour, and the
+ * dogs the neighbour sent but the shard had no room for, which go back.
+ * Positions are in the coordinates of the whole simulation.  A batch
+ * is sent before every tick even if it is empty, which keeps the shards
+ * in step.
+ *
+ * A batch is reused from tick to tick by the shard sending it, so that
+ * its buffers only grow to fit the busiest tick.  The receiver must have
+ * taken in a batch before the sender refills it, which holds when each
+ * neighbour is sent two batches in turn, as a shard can't get more than
+ * a tick ahead of its neighbours.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Shard
+ * @see ShardTransport
+ * @see Migrant
+ */
+public class ShardBatch {
+	public final int fFrom;				//index of the sending shard
+	public long fTick;					//ticks the sender had run
+	public int fGhostCount;				//number of ghosts
+	public double[] fGhostX;			//ghost x-coordinates, valid up to fGhostCount
+	public double[] fGhostY;			//ghost y-coordinates, valid up to fGhostCount
+	public final ArrayList<Migrant> fMigrants;	//dogs handed over
+	public final ArrayList<Migrant> fReturned;	//dogs handed back, which the sender had no room for
+
+	/**
+	 * Constructor for an empty batch.
+	 *
+	 * @param aFrom index of the sending shard
+	 * @param aCapacity ghosts the batch has room for before growing, must be greater than 0.
+	 */
+	public ShardBatch(int aFrom, int aCapacity) {
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException("aCapacity must be greater than 0.");
+		fFrom = aFrom;
+		fGhostX = new double[aCapacity];
+		fGhostY = new double[aCapacity];
+		fMigrants = new ArrayList<Migrant>();
+		fReturned = new ArrayList<Migrant>();
+	}
+
+	/**
+	 * Empties the batch for another tick.
+	 *
+	 * @param aTick ticks the sender has run
+	 */
+	public void reset(long aTick) {
+		fTick = aTick;
+		fGhostCount = 0;
+		fMigrants.clear();
+		fReturned.clear();
+	}
+
+	/**
+	 * Adds a ghost, growing the buffers if they are full.
+	 *
+	 * @param aX x-coordinate in the whole simulation
+	 * @param aY y-coordinate in the whole simulation
+	 */
+	public void addGhost(double aX, double aY) {
+		if (fGhostCount == fGhostX.length) {
+			double[] x = new double[fGhostCount * 2];
+			double[] y = new double[fGhostCount * 2];
+			System.arraycopy(fGhostX, 0, x, 0, fGhostCount);
+			System.arraycopy(fGhostY, 0, y, 0, fGhostCount);
+			fGhostX = x;
+			fGhostY = y;
+		}
+		fGhostX[fGhostCount] = aX;
+		fGhostY[fGhostCount] = aY;
+		fGhostCount++;
+	}
+
+	public void writeTo(DataOutput aOut) throws IOException {
+		aOut.writeInt(fFrom);
+		aOut.writeLong(fTick);
+		aOut.writeInt(fGhostCount);
+		for (int i = 0; i < fGhostCount; i++) {
+			aOut.writeDouble(fGhostX[i]);
+			aOut.writeDouble(fGhostY[i]);
+		}
+		writeMigrants(aOut, fMigrants);
+		writeMigrants(aOut, fReturned);
+	}
+
+	public static ShardBatch readFrom(DataInput aIn) throws IOException {
+		int from = aIn.readInt();
+		long tick = aIn.readLong();
+		int ghosts = aIn.readInt();
+		ShardBatch batch = new ShardBatch(from, Math.max(ghosts, 1));
+		batch.reset(tick);
+		for (int i = 0; i < ghosts; i++) {
+			batch.addGhost(aIn.readDouble(), aIn.readDouble());
+		}
+		readMigrants(aIn, batch.fMigrants);
+		readMigrants(aIn, batch.fReturned);
+		return batch;
+	}
+
+	private static void writeMigrants(DataOutput aOut, ArrayList<Migrant> aMigrants) throws IOException {
+		aOut.writeInt(aMigrants.size());
+		for (Migrant m : aMigrants) {
+			m.writeTo(aOut);
+		}
+	}
+
+	private static void readMigrants(DataInput aIn, ArrayList<Migrant> aInto) throws IOException {
+		int count = aIn.readInt();
+		for (int i = 0; i < count; i++) {
+			aInto.add(Migrant.readFrom(aIn));
+		}
+	}
+}
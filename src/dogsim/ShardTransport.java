@@ -0,0 +1,37 @@
+package dogsim;
+
+import java.io.IOException;
+
+/**
+ * Carries <code>ShardBatch</code>es between shards.  Batches from one
+ * shard to another must be received in the order they were sent.  The
+ * <code>LocalShardTransport</code> connects shards in one process; a
+ * transport between processes can frame batches with
+ * <code>ShardBatch.writeTo</code> and <code>readFrom</code>.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Shard
+ * @see LocalShardTransport
+ */
+public interface ShardTransport {
+	/**
+	 * Sends a batch to a shard.
+	 *
+	 * @param aTo index of the receiving shard
+	 * @param aBatch batch to send
+	 * @throws IOException if the batch can't be sent
+	 */
+	void send(int aTo, ShardBatch aBatch) throws IOException;
+
+	/**
+	 * Waits for the next batch from one shard to another.
+	 *
+	 * @param aTo index of the receiving shard
+	 * @param aFrom index of the sending shard
+	 * @return the batch
+	 * @throws IOException if the batch can't be received
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	ShardBatch receive(int aTo, int aFrom) throws IOException, InterruptedException;
+}
@@ -0,0 +1,231 @@
+package dogsim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One large arena split into a grid of <code>Shard</code>s.  Edges on
+ * the outside of the grid are walls, and edges between shards are open,
+ * so dogs wander from shard to shard.  Each shard is connected to the
+ * up to eight shards around it through a <code>ShardTransport</code>,
+ * and is stepped on a worker thread of its own.  The shards wait for
+ * each other's batches, so they advance tick by tick together.
+ *
+ * A network of separate parks is a set of shards without neighbours,
+ * which step entirely independently.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Shard
+ * @see LocalShardTransport
+ */
+public class ShardedSimulation {
+	private static int MAX_SPEED = 250;	//fastest a dog can be, as in DogManager
+	private static int MIN_SPEED = 20;	//slowest a dog can be, as in DogManager
+
+	private final int fColumns;			//shards across
+	private final int fRows;			//shards down
+	private final Shard[] fShards;		//shards, row by row
+	private final ExecutorService fWorkers;	//a thread for every shard
+	private int fTags;					//tags handed out so far
+
+	/**
+	 * Constructor for shards in one process.
+	 *
+	 * @param aWidth horizontal extent of the whole arena
+	 * @param aHeight vertical extent of the whole arena
+	 * @param aColumns shards across, must be greater than 0.
+	 * @param aRows shards down, must be greater than 0.
+	 * @param aCapacity most dogs in a shard, and most ghosts mirrored into it.
+	 */
+	public ShardedSimulation(double aWidth, double aHeight, int aColumns, int aRows, int aCapacity) {
+		this(aWidth, aHeight, aColumns, aRows, aCapacity, new LocalShardTransport());
+	}
+
+	/**
+	 * Constructor specifying the transport between shards.
+	 *
+	 * @param aWidth horizontal extent of the whole arena
+	 * @param aHeight vertical extent of the whole arena
+	 * @param aColumns shards across, must be greater than 0.
+	 * @param aRows shards down, must be greater than 0.
+	 * @param aCapacity most dogs in a shard, and most ghosts mirrored into it.
+	 * @param aTransport carries batches between shards
+	 */
+	public ShardedSimulation(double aWidth, double aHeight, int aColumns, int aRows, int aCapacity,
+			ShardTransport aTransport) {
+		if (aColumns <= 0)
+			throw new IllegalArgumentException("aColumns must be greater than 0.");
+		if (aRows <= 0)
+			throw new IllegalArgumentException("aRows must be greater than 0.");
+		fColumns = aColumns;
+		fRows = aRows;
+		fShards = new Shard[aColumns * aRows];
+		double w = aWidth / aColumns;
+		double h = aHeight / aRows;
+
+		for (int r = 0; r < aRows; r++) {
+			for (int c = 0; c < aColumns; c++) {
+				//only the outside of the grid is walled
+				int walls = (c == 0 ? Arena.WEST : 0) | (c == aColumns - 1 ? Arena.EAST : 0) |
+						(r == 0 ? Arena.NORTH : 0) | (r == aRows - 1 ? Arena.SOUTH : 0);
+				int ghosts = aColumns * aRows > 1 ? aCapacity : 0;
+				Arena arena = new Arena(w, h, aCapacity, ghosts, walls);
+				fShards[r * aColumns + c] = new Shard(r * aColumns + c, arena, c * w, r * h, aTransport);
+			}
+		}
+
+		//connect every shard to the shards around it
+		for (int r = 0; r < aRows; r++) {
+			for (int c = 0; c < aColumns; c++) {
+				for (int nr = Math.max(r - 1, 0); nr <= Math.min(r + 1, aRows - 1); nr++) {
+					for (int nc = Math.max(c - 1, 0); nc <= Math.min(c + 1, aColumns - 1); nc++) {
+						if (nr != r || nc != c)
+							fShards[r * aColumns + c].addNeighbour(nr * aColumns + nc,
+									nc * w, nr * h, (nc + 1) * w, (nr + 1) * h);
+					}
+				}
+			}
+		}
+		fWorkers = Executors.newFixedThreadPool(fShards.length);
+	}
+
+	/**
+	 * Adds dogs spread evenly over the shards, with the speed and HR
+	 * ranges <code>DogManager</code> uses.
+	 *
+	 * @param aDogs number of dogs to add
+	 * @param aSeed seed for the dogs' properties and behaviour
+	 * @return number of dogs added, fewer than <code>aDogs</code> if the shards are full.
+	 */
+	public int populate(int aDogs, long aSeed) {
+		DogRandom rand = new DogRandom(aSeed);
+		int added = 0;
+		for (int i = 0; i < aDogs; i++) {
+			double speed = rand.nextInt(MAX_SPEED - MIN_SPEED) + MIN_SPEED;
+			long hr = rand.nextInt((int) (Dog.getMAX_HR() - Dog.getNORMAL_HR())) + Dog.getNORMAL_HR();
+			int tag = fTags;
+			Shard shard = fShards[tag % fShards.length];
+			if (shard.addDog(hr, 25, speed, tag, new DogRandom(Dog.seedFor(aSeed, tag))) != null) {
+				fTags++;
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Runs <code>aTicks</code> ticks in every shard, each shard on its
+	 * own worker, and waits for all of them to finish.
+	 *
+	 * @param aTicks number of ticks to run
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void runTicks(final long aTicks) throws InterruptedException {
+		List<Future<Void>> done = new ArrayList<Future<Void>>(fShards.length);
+		for (final Shard shard : fShards) {
+			done.add(fWorkers.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (long t = 0; t < aTicks; t++) {
+						shard.step();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> f : done) {
+			try {
+				f.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("A shard failed.", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Stops the shard workers.
+	 */
+	public void shutdown() {
+		fWorkers.shutdownNow();
+	}
+
+	/**
+	 * @return number of dogs in all shards.
+	 */
+	public int size() {
+		int size = 0;
+		for (Shard shard : fShards) {
+			size += shard.getArena().getDogs().size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of dogs being handed back to the shard they came
+	 * 				from, which are counted by no shard until the next tick.
+	 */
+	public int getInTransit() {
+		int transit = 0;
+		for (Shard shard : fShards) {
+			transit += shard.getReturning();
+		}
+		return transit;
+	}
+
+	/**
+	 * @return number of dogs handed from one shard to another.
+	 */
+	public long getMigrations() {
+		long migrations = 0;
+		for (Shard shard : fShards) {
+			migrations += shard.getDeparted();
+		}
+		return migrations;
+	}
+
+	public Shard getShard(int aColumn, int aRow) {
+		return fShards[aRow * fColumns + aColumn];
+	}
+
+	public int getColumns() {
+		return fColumns;
+	}
+
+	public int getRows() {
+		return fRows;
+	}
+
+	/**
+	 * Runs a sharded simulation headless and prints its throughput.
+	 *
+	 * @param args columns, rows, dogs and ticks, defaulting to 2, 2, 10000 and 100.
+	 * @throws InterruptedException if interrupted while running
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int columns = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int dogs = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		long ticks = args.length > 3 ? Long.parseLong(args[3]) : 100;
+
+		//keep the density of the default arena, 100 dogs in 1500x1000
+		double scale = Math.sqrt(dogs / 100.0);
+		int capacity = 2 * dogs / (columns * rows) + 1;
+		TelemetryUplink uplink = new TelemetryUplink(FitBit.getSERVER_URL());
+		FitBit.setSink(new SuppressingSink(uplink, dogs));
+		ShardedSimulation sim = new ShardedSimulation(1500 * scale, 1000 * scale, columns, rows, capacity);
+		sim.populate(dogs, System.currentTimeMillis());
+
+		long start = System.nanoTime();
+		sim.runTicks(ticks);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(columns + "x" + rows + " shards, " + sim.size() + " dogs: " +
+				(long) (ticks / seconds) + " ticks/s, " + sim.getMigrations() + " migrations");
+		sim.shutdown();
+		uplink.close();
+	}
+}
@@ -0,0 +1,226 @@
+package dogsim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Typed view of the simulation's configuration, so that a load test can
+ * be varied without recompiling.  Values are layered, each layer
+ * overriding the ones before it: the defaults in the code, a properties
+ * file, system properties prefixed with <code>dogsim.</code>, and
+ * <code>--set key=value</code> options on the command line.  A key which
+ * is not set in any layer keeps the value in the code.
+ *
+ * A configuration is immutable.  Each class reads the keys it owns from
+ * a configuration in a static <code>configure</code> method, such as
+ * <code>Dog.configure</code>, before the simulation is built.  The keys in
+ * <code>HOT_KEYS</code> are read on every use and can be changed while the
+ * simulation runs, by editing the file under a <code>ConfigWatcher</code>;
+ * the rest only take effect on a restart.
+ *
+ * @author Karel Bergmann
+ *
+ * @see ConfigWatcher
+ * @see DogManager
+ */
+public class SimConfig {
+	public static final String PREFIX = "dogsim.";	//prefix of the system properties read
+
+	/**
+	 * Keys which can be changed without a restart.
+	 */
+	public static final Set<String> HOT_KEYS = new HashSet<String>(Arrays.asList(
+			"tickInterval", "maxCatchUp", "dogIntro", "dogRemove", "batchSize", "visualRange", "accel",
+			"logLevel"));
+
+	/**
+	 * Called by a <code>ConfigWatcher</code> when the configuration
+	 * changes.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the watcher's thread with the new configuration.
+		 *
+		 * @param aOld configuration before the change
+		 * @param aNew configuration after the change
+		 */
+		public void configChanged(SimConfig aOld, SimConfig aNew);
+	}
+
+	private final File fFile;				//properties file, null for none
+	private final Properties fOverrides;	//values from the command line
+	private final Properties fValues;		//every layer merged
+
+	/**
+	 * Constructor for the defaults in the code alone.
+	 */
+	public SimConfig() {
+		fFile = null;
+		fOverrides = new Properties();
+		fValues = new Properties();
+	}
+
+	/**
+	 * Constructor merging a properties file, the system properties and
+	 * the command line overrides.
+	 *
+	 * @param aFile properties file, or null for none.
+	 * @param aOverrides values from the command line, overriding all others.
+	 * @throws IOException if the file can't be read.
+	 */
+	public SimConfig(File aFile, Properties aOverrides) throws IOException {
+		if (aOverrides == null)
+			throw new IllegalArgumentException("aOverrides must not be null.");
+		fFile = aFile;
+		fOverrides = aOverrides;
+		fValues = new Properties();
+		if (aFile != null) {
+			InputStream in = new FileInputStream(aFile);
+			try {
+				fValues.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		for (String name : System.getProperties().stringPropertyNames()) {
+			if (name.startsWith(PREFIX))
+				fValues.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+		}
+		fValues.putAll(aOverrides);
+	}
+
+	/**
+	 * Reads the configuration from the command line.  The file is named
+	 * by <code>--config file</code>, and <code>--set key=value</code> may be
+	 * given any number of times.  Other arguments are ignored.
+	 *
+	 * @param args command line arguments
+	 * @return the configuration
+	 * @throws IOException if the file can't be read.
+	 */
+	public static SimConfig fromArgs(String[] args) throws IOException {
+		File file = null;
+		Properties overrides = new Properties();
+		for (int i = 0; i < args.length - 1; i++) {
+			if (args[i].equals("--config"))
+				file = new File(args[++i]);
+			else if (args[i].equals("--set")) {
+				String setting = args[++i];
+				int eq = setting.indexOf('=');
+				if (eq <= 0)
+					throw new IllegalArgumentException("--set expects key=value, not " + setting);
+				overrides.setProperty(setting.substring(0, eq).trim(), setting.substring(eq + 1).trim());
+			}
+		}
+		return new SimConfig(file, overrides);
+	}
+
+	/**
+	 * Reads the file and the system properties again, keeping the
+	 * command line overrides.
+	 *
+	 * @return the new configuration
+	 * @throws IOException if the file can't be read.
+	 */
+	public SimConfig reload() throws IOException {
+		return new SimConfig(fFile, fOverrides);
+	}
+
+	public File getFile() {
+		return fFile;
+	}
+
+	/**
+	 * @param aKey key to look up
+	 * @return true if any layer sets the key.
+	 */
+	public boolean isSet(String aKey) {
+		return fValues.getProperty(aKey) != null;
+	}
+
+	public String getString(String aKey, String aDefault) {
+		String value = fValues.getProperty(aKey);
+		return value == null ? aDefault : value.trim();
+	}
+
+	public int getInt(String aKey, int aDefault) {
+		String value = getString(aKey, null);
+		try {
+			return value == null ? aDefault : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(aKey + " must be an integer, not " + value, e);
+		}
+	}
+
+	public long getLong(String aKey, long aDefault) {
+		String value = getString(aKey, null);
+		try {
+			return value == null ? aDefault : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(aKey + " must be an integer, not " + value, e);
+		}
+	}
+
+	public double getDouble(String aKey, double aDefault) {
+		String value = getString(aKey, null);
+		try {
+			return value == null ? aDefault : Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(aKey + " must be a number, not " + value, e);
+		}
+	}
+
+	public boolean getBoolean(String aKey, boolean aDefault) {
+		String value = getString(aKey, null);
+		if (value == null)
+			return aDefault;
+		if (value.equalsIgnoreCase("true"))
+			return true;
+		if (value.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException(aKey + " must be true or false, not " + value);
+	}
+
+	/**
+	 * @param aKey key to look up
+	 * @param aDefault value if the key isn't set, which may be null, or
+	 * 				any constant of the enum otherwise
+	 * @param aType enum the value names a constant of, case-insensitively
+	 * @return the constant named by the key.
+	 */
+	public <E extends Enum<E>> E getEnum(String aKey, E aDefault, Class<E> aType) {
+		String value = getString(aKey, null);
+		if (value == null)
+			return aDefault;
+		try {
+			return Enum.valueOf(aType, value.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(aKey + " must be one of " +
+					Arrays.toString(aType.getEnumConstants()) + ", not " + value, e);
+		}
+	}
+
+	/**
+	 * @param aOther an earlier configuration
+	 * @return keys whose values differ between the two, in order.
+	 */
+	public Set<String> changedKeys(SimConfig aOther) {
+		Set<String> keys = new TreeSet<String>(fValues.stringPropertyNames());
+		keys.addAll(aOther.fValues.stringPropertyNames());
+		Set<String> changed = new TreeSet<String>();
+		for (String key : keys) {
+			String value = getString(key, null);
+			if (value == null ? aOther.getString(key, null) != null : !value.equals(aOther.getString(key, null)))
+				changed.add(key);
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,579 @@
+package dogsim;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Central fixed-timestep simulation loop.  Rather than every
+ * <code>Dog</code> sleeping in its own <code>Thread</code>, a single
+ * engine thread steps every dog in the <code>Arena</code> once per tick.
+ * Ticks are scheduled against an absolute deadline so that time spent
+ * stepping dogs does not accumulate as drift.  When the engine falls
+ * behind it runs ticks back-to-back to catch up, and if it falls more
+ * than <code>MAX_CATCH_UP</code> ticks behind the backlog is dropped and
+ * counted as an overrun.
+ *
+ * Every tick advances the arena's simulated clock by
+ * <code>TICK_INTERVAL</code>.  An engine that is not in real time runs ticks
+ * back-to-back without sleeping, so simulated time runs as fast as the
+ * machine allows.  A <code>TickListener</code> can act on the simulated
+ * clock at the start of each tick, for example to introduce dogs.
+ *
+ * A tick can be partitioned across a <code>ForkJoinPool</code>.  Dogs only
+ * write their own <code>DogStore</code> slot and read other dogs from the
+ * start-of-tick position snapshot, so a tick gives the same result for any
+ * number of threads, and a seeded population is reproducible.
+ *
+ * Resting dogs sleep through their rest in a <code>RestScheduler</code>.
+ * A sleeping dog is neither stepped, updated, moved nor transmitted, and
+ * is woken on the tick it gets up, so the per-dog passes of a tick are
+ * only paid for the dogs awake.  It is still seen by other dogs, and its
+ * vitals are caught up with the rest when it wakes.  A dog transmits as
+ * it falls asleep and as it wakes, and every <code>SLEEP_HEARTBEAT</code>
+ * in between, so that it doesn't fall silent downstream.  With
+ * <code>skipResting</code> turned off, every dog is stepped every tick as
+ * before.
+ *
+ * The duration of every tick and of each of its phases is recorded in
+ * the default <code>Metrics</code> registry.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see Dog
+ * @see DogManager
+ * @see DogStore
+ * @see TickListener
+ * @see RestScheduler
+ * @see Metrics
+ */
+public class SimulationEngine implements Runnable, Metrics.Source {
+	private static volatile long TICK_INTERVAL = 500;	//milliseconds between ticks
+	private static volatile int MAX_CATCH_UP = 5;		//ticks allowed to run late before dropping the backlog
+	private static int SPLIT_THRESHOLD = 1024;	//dogs or slots stepped by one fork/join task
+	private static boolean SKIP_RESTING = true;	//let resting dogs sleep, in engines created after
+	private static long SLEEP_HEARTBEAT = 5000;	//simulated milliseconds between transmissions of a sleeping dog
+
+	private static final int VITALS = 0;	//phase updating temp, HR and rest in the DogStore
+	private static final int THINK = 1;		//phase updating heading and velocity
+	private static final int MOVE = 2;		//phase moving dogs in the DogStore
+	private static final int TRANSMIT = 3;	//phase transmitting dog states
+
+	private static final String PHASE_METRIC = "dogsim_tick_phase_seconds";
+	private static final String PHASE_HELP = "Duration of each phase of a simulation tick.";
+	private static final LatencyHistogram TICK_TIME = Metrics.getDefault().histogram(
+			"dogsim_tick_seconds", null, "Duration of a simulation tick.");
+	private static final LatencyHistogram INDEX_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"index\"", PHASE_HELP);	//listener, copy, snapshot and grid
+	private static final LatencyHistogram VITALS_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"vitals\"", PHASE_HELP);	//temp, HR and rest
+	private static final LatencyHistogram THINK_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"think\"", PHASE_HELP);	//heading and velocity
+	private static final LatencyHistogram MOVE_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"move\"", PHASE_HELP);	//positions
+	private static final LatencyHistogram CLUSTER_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"cluster\"", PHASE_HELP);	//clusters and snapshot
+	private static final LatencyHistogram TRANSMIT_TIME = Metrics.getDefault().histogram(
+			PHASE_METRIC, "phase=\"transmit\"", PHASE_HELP);	//dog states
+
+	private Arena fArena;				//arena whose dogs are stepped
+	private ForkJoinPool fPool;			//workers for a parallel tick, null for sequential
+	private Dog[] fTickDogs;			//reused copy of the arena's dogs for a tick
+	private int[] fTickSlots;			//store slots of the active dogs in fTickDogs
+	private Dog[] fAwakeDogs;			//dogs in fTickDogs stepped this tick
+	private int[] fAwakeSlots;			//store slots of fAwakeDogs
+	private final RestScheduler fRest;	//sleeping dogs, null if every dog is stepped
+	private Thread fThread;				//engine thread, null when stopped
+	private volatile boolean fRunning;	//state variable for the engine loop
+	private volatile boolean fRealTime = true;	//pace ticks to the wall clock
+	private volatile boolean fLive;		//dogs step themselves, ticks only index and publish
+	private volatile TickListener fListener;	//called at the start of each tick
+	private volatile long fTicks;		//number of ticks completed
+	private volatile long fLastTickNanos;	//duration of the most recent tick
+	private volatile long fOverruns;	//number of times the backlog was dropped
+	private volatile int fAsleep;		//dogs sleeping after the most recent tick
+
+	/**
+	 * Constructor with the <code>Arena</code> to simulate.  Ticks
+	 * run sequentially on the engine thread.
+	 *
+	 * @param aArena The arena whose dogs are stepped every tick.
+	 *
+	 * @see Arena
+	 */
+	public SimulationEngine(Arena aArena) {
+		this(aArena, 1);
+	}
+
+	/**
+	 * Constructor with the <code>Arena</code> to simulate and the
+	 * number of threads to divide each tick between.
+	 *
+	 * @param aArena The arena whose dogs are stepped every tick.
+	 * @param aThreads threads stepping dogs, 1 to step on the engine
+	 * 				thread alone, must be greater than 0.
+	 *
+	 * @see Arena
+	 */
+	public SimulationEngine(Arena aArena, int aThreads) {
+		if (aArena == null)
+			throw new IllegalArgumentException("aArena must not be null.");
+		if (aThreads <= 0)
+			throw new IllegalArgumentException("aThreads must be greater than 0.");
+		fArena = aArena;
+		fTickDogs = new Dog[aArena.getDogs().capacity()];
+		fTickSlots = new int[aArena.getStore().capacity()];
+		fAwakeDogs = new Dog[aArena.getDogs().capacity()];
+		fAwakeSlots = new int[aArena.getDogs().capacity()];
+		fRest = SKIP_RESTING ? new RestScheduler((int) Dog.getNEEDED_REST(),
+				(int) Math.max(1, Math.min(Integer.MAX_VALUE, SLEEP_HEARTBEAT / TICK_INTERVAL))) : null;
+		if (aThreads > 1)
+			fPool = new ForkJoinPool(aThreads);
+	}
+
+	/**
+	 * Starts the engine thread.  Has no effect if the engine is
+	 * already running.
+	 */
+	public synchronized void start() {
+		if (fThread != null)
+			return;
+		fRunning = true;
+		fThread = new Thread(this, "SimulationEngine");
+		fThread.start();
+	}
+
+	/**
+	 * Stops the engine thread after the current tick and waits
+	 * for it to finish.
+	 */
+	public synchronized void stop() {
+		if (fThread == null)
+			return;
+		fRunning = false;
+		fThread.interrupt();
+		try {
+			fThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		fThread = null;
+	}
+
+	/**
+	 * Stops the engine and shuts down the workers of a parallel
+	 * engine.
+	 */
+	public synchronized void shutdown() {
+		stop();
+		if (fPool != null)
+			fPool.shutdown();
+	}
+
+	/**
+	 * Runs <code>aTicks</code> ticks back-to-back on the calling
+	 * thread, regardless of real time.
+	 *
+	 * @param aTicks number of ticks to run
+	 */
+	public void runTicks(long aTicks) {
+		for (long i = 0; i < aTicks; i++) {
+			tick();
+		}
+	}
+
+	/**
+	 * Fixed-timestep loop.  Every <code>TICK_INTERVAL</code> milliseconds
+	 * all dogs in the arena are stepped once, or as fast as possible
+	 * when the engine is not in real time.
+	 */
+	@Override
+	public void run() {
+		long next = System.nanoTime();
+
+		while (fRunning) {
+			tick();
+			if (!fRealTime) {
+				next = System.nanoTime();
+				continue;
+			}
+			//read every tick, as the interval can be reconfigured while running
+			long interval = TICK_INTERVAL * 1000000L;
+			next += interval;
+			long wait = next - System.nanoTime();
+
+			//ahead of schedule, sleep until the next deadline
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					//keep going, fRunning decides
+				}
+			}
+			//too far behind to catch up, drop the backlog
+			else if (-wait > MAX_CATCH_UP * interval) {
+				next = System.nanoTime();
+				fOverruns++;
+			}
+		}
+	}
+
+	/**
+	 * Runs a single simulation tick.  The dogs in the arena's
+	 * <code>DogRegistry</code> are copied without locking, and the copy is
+	 * stepped so that dogs can be added and removed while a tick is in
+	 * progress.  The current positions are
+	 * snapshotted and the arena's spatial index is rebuilt from the
+	 * snapshot before any dog is stepped.  The index includes the ghosts
+	 * of a sharded arena, which are seen but never stepped.
+	 *
+	 * The vitals of the dogs awake are first updated in a single pass over
+	 * their slots of the arena's <code>DogStore</code>, then every dog awake
+	 * updates its heading and velocity, or falls asleep if it is resting,
+	 * then the same dogs are moved in another pass over the store, and
+	 * finally every dog awake at the start of the tick transmits its new
+	 * state, as do sleeping dogs due for a heartbeat.  As a dog's vitals
+	 * depend on nothing but its own state, this gives the same result as
+	 * each dog thinking in turn.  In a parallel engine
+	 * each phase is split by index range across the pool.  The arena's
+	 * <code>ClusterTracker</code> is updated once the dogs have moved, and,
+	 * if a reader is registered with the arena, an
+	 * <code>ArenaSnapshot</code> of the moved dogs is published for it.
+	 * A headless tick, with no reader registered, captures none at all.
+	 *
+	 * In live mode the dogs are not stepped at all, as each steps itself
+	 * on its own thread.  The tick only snapshots the positions, publishes
+	 * a newly built index, updates the clusters and publishes any snapshot.
+	 *
+	 * @see Arena#updateVitals(int[], int, int)
+	 * @see Dog#steer()
+	 * @see Dog#sleep(long)
+	 * @see RestScheduler
+	 * @see DogRegistry#copyTo(Dog[])
+	 * @see DogStore#snapshotPositions()
+	 * @see Arena#moveDogs(int[], int, int)
+	 * @see SpatialGrid
+	 * @see ClusterTracker
+	 * @see ArenaSnapshot
+	 * @see LiveRunner
+	 */
+	public void tick() {
+		long start = System.nanoTime();
+
+		//the dogs of released IDs were stepped for the last time in the previous tick
+		fArena.getDogs().recycleIds();
+
+		//advance the simulated clock, and let the listener act on it
+		long time = fArena.getTime() + TICK_INTERVAL;
+		fArena.setTime(time);
+		TickListener listener = fListener;
+		if (listener != null)
+			listener.beforeTick(fTicks, time);
+
+		//copy the dogs present at the start of the tick, and wake those whose rest ends
+		Dog[] dogs = fTickDogs;
+		int count = fArena.getDogs().copyTo(dogs);
+		if (fRest != null && !fLive)
+			fRest.wake(fTicks);
+
+		//index the active dogs by their position at the start of the tick
+		int indexed = 0;
+		int awake = 0;
+		for (int i = 0; i < count; i++) {
+			if (dogs[i].isActive()) {
+				fTickSlots[indexed++] = dogs[i].getID();
+				if (!dogs[i].isAsleep()) {
+					fAwakeSlots[awake] = dogs[i].getID();
+					fAwakeDogs[awake++] = dogs[i];
+				}
+			}
+		}
+		//ghosts of a shard's neighbours are seen, but not stepped
+		int ghosts = fArena.getGhostCount();
+		int firstGhost = fArena.getFirstGhost();
+		for (int g = 0; g < ghosts; g++) {
+			fTickSlots[indexed + g] = firstGhost + g;
+		}
+		DogStore store = fArena.getStore();
+		store.snapshotPositions();
+		if (fLive) {
+			//live dogs query the grid at any time, so a new one is published rather than rebuilt in place
+			SpatialGrid grid = new SpatialGrid(fArena.MAX_X, fArena.MAX_Y, Dog.getVISUAL_RANGE());
+			grid.rebuild(fTickSlots, indexed + ghosts, store.fPrevX, store.fPrevY);
+			fArena.setGrid(grid);
+		}
+		else {
+			//a reconfigured visual range needs cells as wide as the new range
+			SpatialGrid grid = fArena.getGrid();
+			if (grid.getCellSize() != Dog.getVISUAL_RANGE()) {
+				grid = new SpatialGrid(fArena.MAX_X, fArena.MAX_Y, Dog.getVISUAL_RANGE());
+				fArena.setGrid(grid);
+			}
+			grid.rebuild(fTickSlots, indexed + ghosts, store.fPrevX, store.fPrevY);
+		}
+		long phase = INDEX_TIME.recordSince(start);
+
+		if (!fLive) {
+			runPhase(VITALS, awake);
+			phase = VITALS_TIME.recordSince(phase);
+			runPhase(THINK, awake);
+			if (fRest != null) {
+				//schedule the dogs which fell asleep
+				for (int i = 0; i < awake; i++) {
+					if (fAwakeDogs[i].isAsleep())
+						fRest.schedule(fAwakeDogs[i], fTicks);
+				}
+				fAsleep = fRest.getAsleep();
+			}
+			phase = THINK_TIME.recordSince(phase);
+			runPhase(MOVE, awake);
+			phase = MOVE_TIME.recordSince(phase);
+		}
+		ClusterTracker clusters = fArena.getClusters();
+		if (fLive)
+			clusters.update(fTickSlots, indexed, store.fPrevX, store.fPrevY);
+		else
+			clusters.update(fTickSlots, indexed);
+		if (fArena.hasSnapshotReaders())
+			fArena.publish(ArenaSnapshot.capture(fTicks, time, store, fTickSlots, indexed, clusters.getDensest()));
+		phase = CLUSTER_TIME.recordSince(phase);
+		if (!fLive) {
+			runPhase(TRANSMIT, awake);
+			if (fRest != null) {
+				//sleeping dogs due for a heartbeat transmit without waking
+				Dog[] due = fRest.getDue();
+				for (int i = 0, n = fRest.getDueCount(); i < n; i++) {
+					if (due[i].isActive()) {
+						due[i].restUntil(fTicks);
+						due[i].transmit();
+					}
+				}
+			}
+			phase = TRANSMIT_TIME.recordSince(phase);
+		}
+		
+		Arrays.fill(dogs, 0, count, null);
+		Arrays.fill(fAwakeDogs, 0, awake, null);
+		fTicks++;
+		fLastTickNanos = phase - start;
+		TICK_TIME.record(fLastTickNanos);
+	}
+
+	/**
+	 * Runs a phase of the tick over indices 0 to <code>aSize</code>,
+	 * across the pool in a parallel engine.
+	 *
+	 * @param aPhase VITALS, THINK, MOVE or TRANSMIT
+	 * @param aSize dogs awake in the tick
+	 */
+	private void runPhase(int aPhase, int aSize) {
+		if (fPool == null || aSize <= SPLIT_THRESHOLD)
+			runPhase(aPhase, 0, aSize);
+		else
+			fPool.invoke(new PhaseTask(aPhase, 0, aSize));
+	}
+
+	/**
+	 * Runs a phase of the tick over indices <code>aFrom</code>
+	 * (inclusive) to <code>aTo</code> (exclusive).
+	 *
+	 * @param aPhase VITALS, THINK, MOVE or TRANSMIT
+	 * @param aFrom first index
+	 * @param aTo index after the last index
+	 */
+	private void runPhase(int aPhase, int aFrom, int aTo) {
+		Dog[] dogs = fAwakeDogs;
+		switch (aPhase) {
+		case VITALS:
+			//update the vitals of each awake dog
+			fArena.updateVitals(fAwakeSlots, aFrom, aTo);
+			break;
+		case THINK:
+			//update each dog's heading and velocity, unless it falls asleep
+			long tick = fTicks;
+			for (int i = aFrom; i < aTo; i++) {
+				if (dogs[i].isActive() && (fRest == null || dogs[i].sleep(tick) < 0))
+					dogs[i].steer();
+			}
+			break;
+		case MOVE:
+			//move each awake dog
+			fArena.moveDogs(fAwakeSlots, aFrom, aTo);
+			break;
+		default:
+			//transmit each dog's new state
+			for (int i = aFrom; i < aTo; i++) {
+				if (dogs[i].isActive())
+					dogs[i].transmit();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Fork/join task running one phase of a tick over an index range,
+	 * splitting it in half until it is no larger than
+	 * <code>SPLIT_THRESHOLD</code>.
+	 */
+	private class PhaseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int fPhase;	//VITALS, THINK, MOVE or TRANSMIT
+		private final int fFrom;	//first index
+		private final int fTo;		//index after the last index
+
+		PhaseTask(int aPhase, int aFrom, int aTo) {
+			fPhase = aPhase;
+			fFrom = aFrom;
+			fTo = aTo;
+		}
+
+		@Override
+		protected void compute() {
+			if (fTo - fFrom <= SPLIT_THRESHOLD) {
+				runPhase(fPhase, fFrom, fTo);
+				return;
+			}
+			int mid = (fFrom + fTo) >>> 1;
+			invokeAll(new PhaseTask(fPhase, fFrom, mid), new PhaseTask(fPhase, mid, fTo));
+		}
+	}
+
+	/**
+	 * Brings the rest counters of the sleeping dogs up to date, so that
+	 * the <code>DogStore</code> can be read, such as by a checkpoint.  Must
+	 * be called between ticks.
+	 *
+	 * @see Dog#settleRest(long)
+	 * @see ArenaCheckpoint
+	 */
+	public void settleRest() {
+		if (fRest == null)
+			return;
+		Dog[] dogs = fTickDogs;
+		int count = fArena.getDogs().copyTo(dogs);
+		for (int i = 0; i < count; i++) {
+			dogs[i].settleRest(fTicks - 1);
+		}
+		Arrays.fill(dogs, 0, count, null);
+	}
+
+	/**
+	 * Sets the number of ticks completed, when resuming a simulation
+	 * from a checkpoint.  Must not be called while the engine is running.
+	 *
+	 * @param aTicks ticks completed before the checkpoint
+	 *
+	 * @see ArenaCheckpoint
+	 */
+	public void setTicks(long aTicks) {
+		fTicks = aTicks;
+	}
+
+	/**
+	 * Chooses between pacing ticks to the wall clock and running them
+	 * as fast as possible.
+	 *
+	 * @param aRealTime true to run one tick every <code>TICK_INTERVAL</code>
+	 * 				milliseconds, false to run ticks back-to-back.
+	 */
+	public void setRealTime(boolean aRealTime) {
+		fRealTime = aRealTime;
+	}
+
+	public boolean isRealTime() {
+		return fRealTime;
+	}
+
+	/**
+	 * Chooses between stepping the dogs every tick and leaving them to
+	 * a <code>LiveRunner</code>, which steps each dog on its own thread.
+	 *
+	 * @param aLive true if dogs step themselves, and ticks only index
+	 * 				and publish the arena.
+	 * @see LiveRunner
+	 */
+	public void setLive(boolean aLive) {
+		fLive = aLive;
+	}
+
+	public boolean isLive() {
+		return fLive;
+	}
+
+	/**
+	 * Installs the listener called at the start of every tick.
+	 *
+	 * @param aListener listener, or null for none.
+	 * @see TickListener
+	 */
+	public void setTickListener(TickListener aListener) {
+		fListener = aListener;
+	}
+
+	public long getTicks() {
+		return fTicks;
+	}
+
+	public long getLastTickNanos() {
+		return fLastTickNanos;
+	}
+
+	public long getOverruns() {
+		return fOverruns;
+	}
+
+	/**
+	 * Reports the ticks run and the overruns.  The tick and phase
+	 * durations are recorded as they happen.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.counter("dogsim_ticks_total", "Simulation ticks completed.", fTicks);
+		aOut.counter("dogsim_tick_overruns_total", "Times the engine dropped its backlog of late ticks.", fOverruns);
+		aOut.gauge("dogsim_dogs", "Dogs in the arena.", fArena.getDogs().size());
+		aOut.gauge("dogsim_dogs_asleep", "Resting dogs not stepped.", fAsleep);
+	}
+
+	/**
+	 * Reads <code>tickInterval</code> and <code>maxCatchUp</code>, which
+	 * take effect from the next tick of a running engine, and
+	 * <code>skipResting</code> and <code>sleepHeartbeat</code>, which take
+	 * effect in engines created after.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		long interval = aConfig.getLong("tickInterval", TICK_INTERVAL);
+		int catchUp = aConfig.getInt("maxCatchUp", MAX_CATCH_UP);
+		boolean skipResting = aConfig.getBoolean("skipResting", SKIP_RESTING);
+		long heartbeat = aConfig.getLong("sleepHeartbeat", SLEEP_HEARTBEAT);
+		if (interval <= 0)
+			throw new IllegalArgumentException("tickInterval must be greater than 0.");
+		if (catchUp < 0)
+			throw new IllegalArgumentException("maxCatchUp must not be negative.");
+		if (heartbeat <= 0)
+			throw new IllegalArgumentException("sleepHeartbeat must be greater than 0.");
+		TICK_INTERVAL = interval;
+		MAX_CATCH_UP = catchUp;
+		SKIP_RESTING = skipResting;
+		SLEEP_HEARTBEAT = heartbeat;
+	}
+
+	/**
+	 * Chooses whether resting dogs sleep, in engines created after.
+	 *
+	 * @param aSkipResting true to leave sleeping dogs unstepped, false to
+	 * 				step every dog every tick.
+	 */
+	public static void setSkipResting(boolean aSkipResting) {
+		SKIP_RESTING = aSkipResting;
+	}
+
+	public static long getTICK_INTERVAL() {
+		return TICK_INTERVAL;
+	}
+}
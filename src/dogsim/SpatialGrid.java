@@ -0,0 +1,171 @@
+package dogsim;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid spatial index over the dogs in an <code>Arena</code>.
+ * The arena is divided into square cells, and dogs' <code>DogStore</code>
+ * slots are bucketed by the cell containing their position.  With a cell size equal to a query
+ * range, every dog within range of a point lies in the 3x3 block of cells
+ * around that point, so neighbour searches only touch nearby dogs.
+ *
+ * The grid is rebuilt from scratch once per tick with a counting sort,
+ * which is linear in the number of dogs and reuses its arrays between
+ * ticks.  It is built from the positions at the start of the tick and is
+ * read-only while dogs are being stepped, so queries from any number of
+ * threads need no locking.  Live dogs, which step themselves at any time,
+ * are instead given a new grid every tick.
+ *
+ * @author Karel Bergmann
+ *
+ * @see Arena
+ * @see DogStore
+ * @see SimulationEngine
+ */
+public class SpatialGrid {
+	private final double fCellSize;	//width and height of a cell
+	private final int fColumns;		//number of cells horizontally
+	private final int fRows;		//number of cells vertically
+
+	private int[] fCellStart;		//index into fCells of each cell's first dog
+	private int[] fCells;			//slots ordered by cell
+	private int[] fCellOf;			//scratch, cell of each slot being indexed
+	private int fCount;				//number of dogs indexed
+
+	/**
+	 * Constructor specifying the extent to index and the cell size.
+	 *
+	 * @param aX horizontal extent
+	 * @param aY vertical extent
+	 * @param aCellSize width and height of a cell, must be greater than 0.
+	 */
+	public SpatialGrid(double aX, double aY, double aCellSize) {
+		if (aCellSize <= 0)
+			throw new IllegalArgumentException("aCellSize must be greater than 0.");
+
+		fCellSize = aCellSize;
+		fColumns = Math.max(1, (int) Math.ceil(aX / aCellSize));
+		fRows = Math.max(1, (int) Math.ceil(aY / aCellSize));
+		fCellStart = new int[fColumns * fRows + 1];
+		fCells = new int[0];
+		fCellOf = new int[0];
+	}
+
+	/**
+	 * Rebuilds the index from the first <code>aCount</code> slots
+	 * of <code>aSlots</code>, positioned by the given coordinate columns.
+	 *
+	 * @param aSlots slots to index
+	 * @param aCount number of slots in <code>aSlots</code> to index
+	 * @param aX x-coordinate of each slot
+	 * @param aY y-coordinate of each slot
+	 */
+	public void rebuild(int[] aSlots, int aCount, double[] aX, double[] aY) {
+		if (fCells.length < aCount) {
+			fCells = new int[aCount];
+			fCellOf = new int[aCount];
+		}
+
+		//count the slots in each cell
+		int[] start = fCellStart;
+		Arrays.fill(start, 0);
+		for (int i = 0; i < aCount; i++) {
+			int slot = aSlots[i];
+			int cell = cell(column(aX[slot]), row(aY[slot]));
+			fCellOf[i] = cell;
+			start[cell + 1]++;
+		}
+
+		//turn counts into start offsets
+		for (int c = 1; c < start.length; c++) {
+			start[c] += start[c - 1];
+		}
+
+		//place each slot, advancing the start offset of its cell
+		for (int i = 0; i < aCount; i++) {
+			fCells[start[fCellOf[i]]++] = aSlots[i];
+		}
+
+		//placing shifted every offset forward by one cell, shift back
+		for (int c = start.length - 1; c > 0; c--) {
+			start[c] = start[c - 1];
+		}
+		start[0] = 0;
+		fCount = aCount;
+	}
+
+	/**
+	 * Column containing an x-coordinate, clamped to the grid.
+	 *
+	 * @param aX x-coordinate
+	 * @return column index
+	 */
+	public int column(double aX) {
+		int c = (int) (aX / fCellSize);
+		return c < 0 ? 0 : (c >= fColumns ? fColumns - 1 : c);
+	}
+
+	/**
+	 * Row containing a y-coordinate, clamped to the grid.
+	 *
+	 * @param aY y-coordinate
+	 * @return row index
+	 */
+	public int row(double aY) {
+		int r = (int) (aY / fCellSize);
+		return r < 0 ? 0 : (r >= fRows ? fRows - 1 : r);
+	}
+
+	/**
+	 * Index of the cell at a column and row.
+	 *
+	 * @param aColumn column index
+	 * @param aRow row index
+	 * @return cell index
+	 */
+	public int cell(int aColumn, int aRow) {
+		return aRow * fColumns + aColumn;
+	}
+
+	/**
+	 * @param aCell cell index
+	 * @return index of the first slot in the cell
+	 * @see SpatialGrid#slotAt(int)
+	 */
+	public int cellStart(int aCell) {
+		return fCellStart[aCell];
+	}
+
+	/**
+	 * @param aCell cell index
+	 * @return index one past the last slot in the cell
+	 * @see SpatialGrid#slotAt(int)
+	 */
+	public int cellEnd(int aCell) {
+		return fCellStart[aCell + 1];
+	}
+
+	/**
+	 * @param aIndex index between a cell's start and end
+	 * @return the <code>DogStore</code> slot at that index
+	 */
+	public int slotAt(int aIndex) {
+		return fCells[aIndex];
+	}
+
+	public int getColumns() {
+		return fColumns;
+	}
+
+	public int getRows() {
+		return fRows;
+	}
+
+	public double getCellSize() {
+		return fCellSize;
+	}
+
+	public int size() {
+		return fCount;
+	}
+}
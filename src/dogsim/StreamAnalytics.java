@@ -0,0 +1,438 @@
+package dogsim;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * <code>TelemetrySink</code> which aggregates the <code>DogState</code>
+ * stream as it passes, so that the server can be sent a summary every
+ * <code>INTERVAL</code> milliseconds of simulated time instead of every
+ * snapshot.  For each period it counts the snapshots taken in each cell
+ * of a heat map of the arena, the dogs hotter than <code>MAX_TEMP</code>
+ * and the time dogs spent chasing.  For each dog it keeps the highest HR
+ * over the last <code>WINDOW</code> milliseconds and its total time
+ * chasing.  When a period ends its <code>AnalyticsSummary</code> is handed
+ * to a <code>Listener</code>, normally an <code>HttpPublisher</code>.
+ *
+ * Everything is updated in place as snapshots arrive, in memory fixed at
+ * construction.  The highest HRs are kept in a ring of one bucket per
+ * period in the window for each dog, so the window slides by reusing the
+ * oldest bucket.  Each dog's chase time is the time between its snapshots
+ * while it was chasing.
+ *
+ * Periods are ended by <code>advance</code>, which the owner calls at the
+ * start of every tick, when no snapshots are being emitted.  A dog's
+ * snapshots must not be emitted concurrently, which holds for
+ * <code>FitBit</code>s, as each dog is stepped by one thread per tick.  Dogs
+ * stepping themselves in live mode may emit during <code>advance</code>, so
+ * their summaries are approximate.  Snapshots are keyed by
+ * <code>DogState.fId</code>; IDs outside the capacity only count towards the
+ * arena-wide figures.  Snapshots are passed on to the next sink unless the
+ * raw stream is turned off.
+ *
+ * @author Karel Bergmann
+ *
+ * @see AnalyticsSummary
+ * @see TelemetrySink
+ * @see DogManager
+ */
+public class StreamAnalytics implements TelemetrySink, Metrics.Source {
+	private static long INTERVAL = 10000;	//simulated milliseconds between summaries
+	private static long WINDOW = 300000;	//simulated milliseconds the highest HRs cover
+	private static double CELL_SIZE = 100;	//metres across a heat map cell
+	private static String URL = "http://localhost:8080/DogPark/webresources/DogPark/analytics";	//summaries PUT here
+	private static final long NONE = Long.MIN_VALUE;	//no period yet
+
+	/**
+	 * Receives the summary of every period.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread calling <code>advance</code> or
+		 * <code>close</code>, so must not block.
+		 *
+		 * @param aSummary summary of the period just ended
+		 */
+		public void summary(AnalyticsSummary aSummary);
+	}
+
+	private final TelemetrySink fNext;		//receives the raw snapshots, if forwarded
+	private final Listener fListener;		//receives the summaries
+	private final boolean fForward;			//pass raw snapshots on to fNext
+	private final long fInterval;			//milliseconds per period
+	private final int fBuckets;				//periods in the window
+	private final double fCellSize;			//metres across a heat map cell
+	private final int fColumns;				//heat map cells across
+	private final int fRows;				//heat map cells down
+	private volatile long fPeriod = NONE;	//period being counted
+
+	//arena-wide figures for the current period
+	private final AtomicIntegerArray fHeatMap;	//snapshots per cell
+	private final LongAdder fSnapshots = new LongAdder();	//snapshots received
+	private final LongAdder fHot = new LongAdder();			//dogs over MAX_TEMP
+	private final LongAdder fChase = new LongAdder();		//milliseconds chasing
+
+	//per dog, by ID
+	private final long[] fMaxHR;		//highest HR of each period in the window, fBuckets per dog
+	private final long[] fBucketPeriod;	//period of each bucket in fMaxHR
+	private final long[] fHotPeriod;	//last period the dog was counted as hot
+	private final long[] fLastTime;		//time of the dog's last snapshot
+	private final boolean[] fSeen;		//a snapshot of the dog has been received
+	private final boolean[] fChasing;	//the dog was chasing in its last snapshot
+	private final long[] fChaseTotal;	//milliseconds the dog has spent chasing
+
+	private final AtomicLong fReceived = new AtomicLong();	//snapshots emitted to the sink
+	private final AtomicLong fSummaries = new AtomicLong();	//summaries handed to the listener
+	private volatile long fLastHot;		//hot dogs in the last summary
+
+	/**
+	 * Constructor using the default interval, window and cell size.
+	 *
+	 * @param aNext sink raw snapshots go to
+	 * @param aListener receives the summaries
+	 * @param aCapacity IDs to keep state for, must be non-negative.
+	 * @param aWidth width of the arena in metres
+	 * @param aHeight height of the arena in metres
+	 * @param aForward pass the raw snapshots on to <code>aNext</code>
+	 */
+	public StreamAnalytics(TelemetrySink aNext, Listener aListener, int aCapacity, double aWidth, double aHeight,
+			boolean aForward) {
+		this(aNext, aListener, aCapacity, aWidth, aHeight, aForward, INTERVAL, WINDOW, CELL_SIZE);
+	}
+
+	/**
+	 * Constructor specifying the interval, window and cell size.
+	 *
+	 * @param aNext sink raw snapshots go to
+	 * @param aListener receives the summaries
+	 * @param aCapacity IDs to keep state for, must be non-negative.
+	 * @param aWidth width of the arena in metres, must be greater than 0.
+	 * @param aHeight height of the arena in metres, must be greater than 0.
+	 * @param aForward pass the raw snapshots on to <code>aNext</code>
+	 * @param aInterval simulated milliseconds per summary, must be greater than 0.
+	 * @param aWindow simulated milliseconds the highest HRs cover, rounded up
+	 * 				to whole intervals, must be greater than 0.
+	 * @param aCellSize metres across a heat map cell, must be greater than 0.
+	 */
+	public StreamAnalytics(TelemetrySink aNext, Listener aListener, int aCapacity, double aWidth, double aHeight,
+			boolean aForward, long aInterval, long aWindow, double aCellSize) {
+		if (aNext == null)
+			throw new IllegalArgumentException("aNext must not be null.");
+		if (aListener == null)
+			throw new IllegalArgumentException("aListener must not be null.");
+		if (aCapacity < 0)
+			throw new IllegalArgumentException("aCapacity must be non-negative.");
+		if (aWidth <= 0 || aHeight <= 0)
+			throw new IllegalArgumentException("aWidth and aHeight must be greater than 0.");
+		if (aInterval <= 0 || aWindow <= 0 || aCellSize <= 0)
+			throw new IllegalArgumentException("aInterval, aWindow and aCellSize must be greater than 0.");
+		long buckets = (aWindow + aInterval - 1) / aInterval;
+		if (buckets * aCapacity > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("aWindow is too many intervals for aCapacity dogs.");
+		fNext = aNext;
+		fListener = aListener;
+		fForward = aForward;
+		fInterval = aInterval;
+		fBuckets = (int) buckets;
+		fCellSize = aCellSize;
+		fColumns = Math.max(1, (int) Math.ceil(aWidth / aCellSize));
+		fRows = Math.max(1, (int) Math.ceil(aHeight / aCellSize));
+		fHeatMap = new AtomicIntegerArray(fColumns * fRows);
+
+		fMaxHR = new long[aCapacity * fBuckets];
+		fBucketPeriod = new long[aCapacity * fBuckets];
+		fHotPeriod = new long[aCapacity];
+		fLastTime = new long[aCapacity];
+		fSeen = new boolean[aCapacity];
+		fChasing = new boolean[aCapacity];
+		fChaseTotal = new long[aCapacity];
+		Arrays.fill(fBucketPeriod, NONE);
+		Arrays.fill(fHotPeriod, NONE);
+	}
+
+	/**
+	 * Adds the snapshot to the aggregates of the current period, and
+	 * passes it on if the raw stream is forwarded.
+	 *
+	 * @param aState snapshot of a dog's location and vital signs
+	 * @return true if the snapshot was accepted downstream, or aggregated
+	 * 				when the raw stream is not forwarded.
+	 */
+	@Override
+	public boolean emit(DogState aState) {
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		fReceived.incrementAndGet();
+		long period = fPeriod;
+		if (period == NONE)
+			period = Math.floorDiv(aState.fTime, fInterval);
+
+		fSnapshots.increment();
+		int col = Math.min(Math.max((int) (aState.fX / fCellSize), 0), fColumns - 1);
+		int row = Math.min(Math.max((int) (aState.fY / fCellSize), 0), fRows - 1);
+		fHeatMap.incrementAndGet(row * fColumns + col);
+
+		int id = aState.fId;
+		boolean hot = aState.fTemp > Dog.getMAX_TEMP();
+		if (id < 0 || id >= fSeen.length) {
+			if (hot)
+				fHot.increment();
+		}
+		else {
+			//time since the last snapshot counts as chasing if the dog was chasing then
+			if (fSeen[id] && fChasing[id]) {
+				long chased = aState.fTime - fLastTime[id];
+				fChaseTotal[id] += chased;
+				fChase.add(chased);
+			}
+			fSeen[id] = true;
+			fLastTime[id] = aState.fTime;
+			fChasing[id] = aState.fChasing;
+
+			if (hot && fHotPeriod[id] != period) {
+				fHotPeriod[id] = period;
+				fHot.increment();
+			}
+
+			//the bucket of this period, taking over the oldest one
+			int b = id * fBuckets + (int) Math.floorMod(period, (long) fBuckets);
+			if (fBucketPeriod[b] != period) {
+				fBucketPeriod[b] = period;
+				fMaxHR[b] = aState.fHR;
+			}
+			else if (aState.fHR > fMaxHR[b]) {
+				fMaxHR[b] = aState.fHR;
+			}
+		}
+		return fForward ? fNext.emit(aState) : true;
+	}
+
+	/**
+	 * Moves the analytics on to simulated time <code>aTime</code>.  If
+	 * that is in a later period, the current period is summarized and
+	 * the summary handed to the listener.  Must be called at the start
+	 * of every tick, before its snapshots are emitted.
+	 *
+	 * @param aTime simulated time of the tick starting
+	 */
+	public void advance(long aTime) {
+		long period = Math.floorDiv(aTime, fInterval);
+		long current = fPeriod;
+		if (current == NONE) {
+			fPeriod = period;
+			return;
+		}
+		if (period <= current)
+			return;
+		AnalyticsSummary summary = summarize(current);
+		fPeriod = period;
+		publish(summary);
+	}
+
+	/**
+	 * Builds the summary of a period, and clears the arena-wide
+	 * figures for the next one.
+	 *
+	 * @param aPeriod period to summarize
+	 * @return the summary
+	 */
+	private AnalyticsSummary summarize(long aPeriod) {
+		AnalyticsSummary s = new AnalyticsSummary();
+		s.fFrom = aPeriod * fInterval;
+		s.fTo = s.fFrom + fInterval;
+		s.fWindow = fBuckets * fInterval;
+		s.fSnapshots = fSnapshots.sumThenReset();
+		s.fHotDogs = fHot.sumThenReset();
+		s.fChaseMillis = fChase.sumThenReset();
+		s.fCellSize = fCellSize;
+		s.fColumns = fColumns;
+		s.fRows = fRows;
+		s.fHeatMap = new int[fHeatMap.length()];
+		for (int i = 0; i < s.fHeatMap.length; i++) {
+			s.fHeatMap[i] = fHeatMap.getAndSet(i, 0);
+		}
+
+		//highest HR of every dog seen in the window's periods
+		int capacity = fSeen.length;
+		int[] ids = new int[capacity];
+		long[] maxHR = new long[capacity];
+		long[] chase = new long[capacity];
+		int dogs = 0;
+		long oldest = aPeriod - fBuckets;
+		for (int id = 0; id < capacity; id++) {
+			long max = -1;
+			for (int b = id * fBuckets; b < (id + 1) * fBuckets; b++) {
+				long period = fBucketPeriod[b];
+				if (period > oldest && period <= aPeriod && fMaxHR[b] > max)
+					max = fMaxHR[b];
+			}
+			if (max >= 0) {
+				ids[dogs] = id;
+				maxHR[dogs] = max;
+				chase[dogs] = fChaseTotal[id];
+				dogs++;
+			}
+		}
+		s.fIds = Arrays.copyOf(ids, dogs);
+		s.fMaxHR = Arrays.copyOf(maxHR, dogs);
+		s.fChaseTotal = Arrays.copyOf(chase, dogs);
+		fLastHot = s.fHotDogs;
+		return s;
+	}
+
+	private void publish(AnalyticsSummary aSummary) {
+		fSummaries.incrementAndGet();
+		try {
+			fListener.summary(aSummary);
+		} catch (RuntimeException e) {
+			Log.warn("Analytics listener failed", e);
+		}
+	}
+
+	/**
+	 * Summarizes the period in progress, then closes the next sink.
+	 */
+	@Override
+	public void close() {
+		long current = fPeriod;
+		if (current != NONE)
+			publish(summarize(current));
+		fNext.close();
+	}
+
+	/**
+	 * Reports the snapshots aggregated, the summaries produced, and the
+	 * hot dogs of the last summary.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.counter("dogsim_analytics_snapshots_total", "Snapshots aggregated by the analytics.", fReceived.get());
+		aOut.counter("dogsim_analytics_summaries_total", "Summaries produced by the analytics.", fSummaries.get());
+		aOut.gauge("dogsim_analytics_hot_dogs", "Dogs over MAX_TEMP in the last summarized period.", fLastHot);
+	}
+
+	public long getReceived() {
+		return fReceived.get();
+	}
+
+	public long getSummaries() {
+		return fSummaries.get();
+	}
+
+	/**
+	 * Reads the defaults of new analytics: <code>analyticsInterval</code>,
+	 * <code>analyticsWindow</code>, <code>analyticsCell</code> and
+	 * <code>analyticsUrl</code>.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		long interval = aConfig.getLong("analyticsInterval", INTERVAL);
+		long window = aConfig.getLong("analyticsWindow", WINDOW);
+		double cell = aConfig.getDouble("analyticsCell", CELL_SIZE);
+		if (interval <= 0 || window <= 0 || cell <= 0)
+			throw new IllegalArgumentException("analyticsInterval, analyticsWindow and analyticsCell must be greater than 0.");
+		INTERVAL = interval;
+		WINDOW = window;
+		CELL_SIZE = cell;
+		URL = aConfig.getString("analyticsUrl", URL);
+	}
+
+	public static String getURL() {
+		return URL;
+	}
+
+	/**
+	 * <code>Listener</code> which PUTs each summary to the server as JSON,
+	 * asynchronously through a <code>java.net.http.HttpClient</code>.  One
+	 * summary is sent at a time.  As each summary stands on its own, one
+	 * arriving while the last is still being sent is dropped rather than
+	 * queued, so a slow server is never sent a backlog.
+	 */
+	public static class HttpPublisher implements Listener, Metrics.Source {
+		private static final long TIMEOUT = 5000;	//milliseconds to connect, and to wait for a response
+
+		private final URI fUri;				//endpoint summaries are sent to
+		private final HttpClient fClient;	//non-blocking client
+		private final AtomicBoolean fBusy = new AtomicBoolean();	//a summary is being sent
+		private final AtomicLong fSent = new AtomicLong();		//summaries delivered
+		private final AtomicLong fFailed = new AtomicLong();	//summaries which failed
+		private final AtomicLong fDropped = new AtomicLong();	//summaries dropped while busy
+		private final OutageLog fOutage;	//reports failed summaries
+
+		/**
+		 * @param aUrl endpoint to PUT summaries to
+		 */
+		public HttpPublisher(String aUrl) {
+			if (aUrl == null)
+				throw new IllegalArgumentException("aUrl must not be null.");
+			try {
+				fUri = URI.create(aUrl);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("aUrl is not a valid URL.", e);
+			}
+			fClient = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_1_1)
+					.connectTimeout(Duration.ofMillis(TIMEOUT))
+					.build();
+			fOutage = new OutageLog("Analytics server " + aUrl, "summaries");
+		}
+
+		@Override
+		public void summary(AnalyticsSummary aSummary) {
+			if (!fBusy.compareAndSet(false, true)) {
+				fDropped.incrementAndGet();
+				return;
+			}
+			HttpRequest request = HttpRequest.newBuilder(fUri)
+					.timeout(Duration.ofMillis(TIMEOUT))
+					.header("Content-Type", "application/json")
+					.PUT(HttpRequest.BodyPublishers.ofString(aSummary.toJSON()))
+					.build();
+			fClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+				.whenComplete(new BiConsumer<HttpResponse<Void>, Throwable>() {
+					public void accept(HttpResponse<Void> aResponse, Throwable aError) {
+						fBusy.set(false);
+						int status = aResponse == null ? 0 : aResponse.statusCode();
+						if (aError == null && status < 400) {
+							fSent.incrementAndGet();
+							fOutage.succeeded();
+							return;
+						}
+						fFailed.incrementAndGet();
+						fOutage.failed("Failed to send analytics" + (aError == null ? ", answered " + status : ""), aError);
+					}
+				});
+		}
+
+		/**
+		 * Reports the summaries sent, failed and dropped.
+		 *
+		 * @param aOut receives the values
+		 */
+		@Override
+		public void collect(Metrics.Collector aOut) {
+			aOut.counter("dogsim_analytics_sent_total", "Analytics summaries delivered.", fSent.get());
+			aOut.counter("dogsim_analytics_failed_total", "Analytics summaries which failed.", fFailed.get());
+			aOut.counter("dogsim_analytics_dropped_total", "Analytics summaries dropped while one was being sent.",
+					fDropped.get());
+		}
+
+		public long getSent() {
+			return fSent.get();
+		}
+	}
+}
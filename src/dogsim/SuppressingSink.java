@@ -0,0 +1,250 @@
+package dogsim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>TelemetrySink</code> which forwards a dog's snapshot to another
+ * sink only when it tells the server something new.  The last state
+ * sent for each dog is kept, and a snapshot is forwarded when the dog
+ * has moved more than <code>MOVE_THRESHOLD</code> metres, its HR or
+ * temperature has changed by at least <code>HR_THRESHOLD</code> or
+ * <code>TEMP_THRESHOLD</code>, or nothing has been sent for
+ * <code>MAX_SILENCE</code> milliseconds of simulated time.  The first
+ * snapshot of a dog is always forwarded.  A suppressed snapshot counts
+ * as accepted, since dropping it is the sink's purpose.
+ *
+ * In delta mode a forwarded snapshot carries only the fields which
+ * crossed their threshold, marked in <code>DogState.fFields</code>, and
+ * fields which were not sent stay as the server last saw them.  The
+ * heartbeat after <code>MAX_SILENCE</code> is always a full snapshot, so
+ * small drifts are eventually corrected.
+ *
+ * Snapshots are keyed by <code>DogState.fId</code>; IDs outside the
+ * capacity are passed through unfiltered.  A dog's snapshots must not be
+ * emitted concurrently, which holds for <code>FitBit</code>s, as each dog
+ * is stepped by one thread per tick.
+ *
+ * @author Karel Bergmann
+ *
+ * @see TelemetrySink
+ * @see DogState
+ * @see DogStateWriter
+ * @see Metrics
+ */
+public class SuppressingSink implements TelemetrySink, Metrics.Source {
+	private static double MOVE_THRESHOLD = 10;	//metres moved before a position is sent
+	private static long HR_THRESHOLD = 10;		//change in HR before it is sent
+	private static double TEMP_THRESHOLD = 3;	//change in temperature before it is sent
+	private static long MAX_SILENCE = 10000;	//simulated milliseconds between heartbeats
+	private static boolean DELTA = false;		//forward only the changed fields
+
+	private final TelemetrySink fNext;		//receives the snapshots which are forwarded
+	private final double fMove2;			//squared distance before a position is sent
+	private final long fHRThreshold;		//change in HR before it is sent
+	private final double fTempThreshold;	//change in temperature before it is sent
+	private final long fMaxSilence;			//milliseconds between heartbeats
+	private final boolean fDelta;			//forward only the changed fields
+	private final boolean[] fSeen;			//a snapshot has been sent for the ID
+	private final double[] fLastX;			//last x-coordinate sent, by ID
+	private final double[] fLastY;			//last y-coordinate sent, by ID
+	private final long[] fLastHR;			//last HR sent, by ID
+	private final double[] fLastTemp;		//last temperature sent, by ID
+	private final long[] fLastFull;			//time the last full snapshot was sent, by ID
+
+	private final AtomicLong fReceived = new AtomicLong();		//snapshots emitted to the sink
+	private final AtomicLong fForwarded = new AtomicLong();		//snapshots passed on
+	private final AtomicLong fHeartbeats = new AtomicLong();	//snapshots passed on only for silence
+	private final AtomicLong fDeltas = new AtomicLong();		//snapshots passed on as deltas
+
+	/**
+	 * Constructor using the default thresholds and mode.
+	 *
+	 * @param aNext sink forwarded snapshots go to
+	 * @param aCapacity IDs to keep state for, must be non-negative.
+	 */
+	public SuppressingSink(TelemetrySink aNext, int aCapacity) {
+		this(aNext, aCapacity, MOVE_THRESHOLD, HR_THRESHOLD, TEMP_THRESHOLD, MAX_SILENCE, DELTA);
+	}
+
+	/**
+	 * Constructor specifying the thresholds.
+	 *
+	 * @param aNext sink forwarded snapshots go to
+	 * @param aCapacity IDs to keep state for, must be non-negative.
+	 * @param aMove metres a dog must move before its position is sent
+	 * @param aHR change in HR before it is sent
+	 * @param aTemp change in temperature before it is sent
+	 * @param aMaxSilence simulated milliseconds between heartbeats, must be non-negative.
+	 * @param aDelta forward only the changed fields
+	 */
+	public SuppressingSink(TelemetrySink aNext, int aCapacity, double aMove, long aHR, double aTemp,
+			long aMaxSilence, boolean aDelta) {
+		if (aNext == null)
+			throw new IllegalArgumentException("aNext must not be null.");
+		if (aCapacity < 0)
+			throw new IllegalArgumentException("aCapacity must be non-negative.");
+		if (aMaxSilence < 0)
+			throw new IllegalArgumentException("aMaxSilence must be non-negative.");
+		fNext = aNext;
+		fMove2 = aMove * aMove;
+		fHRThreshold = aHR;
+		fTempThreshold = aTemp;
+		fMaxSilence = aMaxSilence;
+		fDelta = aDelta;
+		fSeen = new boolean[aCapacity];
+		fLastX = new double[aCapacity];
+		fLastY = new double[aCapacity];
+		fLastHR = new long[aCapacity];
+		fLastTemp = new double[aCapacity];
+		fLastFull = new long[aCapacity];
+	}
+
+	/**
+	 * Reads the defaults of new sinks: <code>suppressMove</code>,
+	 * <code>suppressHR</code>, <code>suppressTemp</code>,
+	 * <code>maxSilence</code> and <code>deltaTelemetry</code>.
+	 *
+	 * @param aConfig configuration to read
+	 */
+	public static void configure(SimConfig aConfig) {
+		double move = aConfig.getDouble("suppressMove", MOVE_THRESHOLD);
+		long hr = aConfig.getLong("suppressHR", HR_THRESHOLD);
+		double temp = aConfig.getDouble("suppressTemp", TEMP_THRESHOLD);
+		long silence = aConfig.getLong("maxSilence", MAX_SILENCE);
+		if (move < 0 || hr < 0 || temp < 0 || silence < 0)
+			throw new IllegalArgumentException("suppressMove, suppressHR, suppressTemp and maxSilence must be non-negative.");
+		MOVE_THRESHOLD = move;
+		HR_THRESHOLD = hr;
+		TEMP_THRESHOLD = temp;
+		MAX_SILENCE = silence;
+		DELTA = aConfig.getBoolean("deltaTelemetry", DELTA);
+	}
+
+	/**
+	 * Forgets what was sent for an ID, so that the next snapshot with it
+	 * is forwarded in full, as any dog's first is.  Called when the ID is
+	 * handed to a new dog, as the server must not be left with the last
+	 * values of the dog which held it before.  Must not be called while
+	 * snapshots with the ID may be emitted.
+	 *
+	 * @param aId ID to forget, ignored if outside the capacity.
+	 */
+	public void forget(int aId) {
+		if (aId >= 0 && aId < fSeen.length)
+			fSeen[aId] = false;
+	}
+
+	/**
+	 * Forwards the snapshot if it differs enough from the last one sent
+	 * for the dog.
+	 *
+	 * @param aState snapshot of a dog's location and vital signs
+	 * @return true if the snapshot was suppressed or accepted downstream.
+	 */
+	@Override
+	public boolean emit(DogState aState) {
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		fReceived.incrementAndGet();
+		int id = aState.fId;
+		if (id < 0 || id >= fSeen.length)
+			return forward(aState);
+
+		boolean full = !fSeen[id] || aState.fTime - fLastFull[id] >= fMaxSilence;
+		double dx = aState.fX - fLastX[id];
+		double dy = aState.fY - fLastY[id];
+		int changed = 0;
+		if (dx * dx + dy * dy > fMove2)
+			changed |= DogState.POSITION;
+		if (Math.abs(aState.fHR - fLastHR[id]) >= fHRThreshold)
+			changed |= DogState.HR;
+		if (Math.abs(aState.fTemp - fLastTemp[id]) >= fTempThreshold)
+			changed |= DogState.TEMP;
+
+		if (full) {
+			if (changed == 0 && fSeen[id])
+				fHeartbeats.incrementAndGet();
+			fSeen[id] = true;
+			fLastFull[id] = aState.fTime;
+			changed = DogState.ALL;
+		} else if (changed == 0) {
+			return true;
+		} else if (!fDelta) {
+			changed = DogState.ALL;
+		}
+
+		//remember what the server now knows
+		if ((changed & DogState.POSITION) != 0) {
+			fLastX[id] = aState.fX;
+			fLastY[id] = aState.fY;
+		}
+		if ((changed & DogState.HR) != 0)
+			fLastHR[id] = aState.fHR;
+		if ((changed & DogState.TEMP) != 0)
+			fLastTemp[id] = aState.fTemp;
+		if (changed != DogState.ALL)
+			fDeltas.incrementAndGet();
+
+		aState.fFields = changed;
+		return forward(aState);
+	}
+
+	private boolean forward(DogState aState) {
+		fForwarded.incrementAndGet();
+		return fNext.emit(aState);
+	}
+
+	/**
+	 * Closes the sink snapshots are forwarded to.
+	 */
+	@Override
+	public void close() {
+		fNext.close();
+	}
+
+	/**
+	 * Reports how many snapshots were received and forwarded, how many
+	 * of those were heartbeats or deltas, and the share suppressed.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.counter("dogsim_suppress_received_total", "Snapshots received by the suppressing sink.", fReceived.get());
+		aOut.counter("dogsim_suppress_forwarded_total", "Snapshots forwarded by the suppressing sink.", fForwarded.get());
+		aOut.counter("dogsim_suppress_heartbeats_total", "Snapshots forwarded only because the dog was silent too long.",
+				fHeartbeats.get());
+		aOut.counter("dogsim_suppress_deltas_total", "Snapshots forwarded with only their changed fields.", fDeltas.get());
+		aOut.gauge("dogsim_suppress_ratio_permille", "Snapshots suppressed per thousand received.",
+				Math.round(getSuppressionRatio() * 1000));
+	}
+
+	public long getReceived() {
+		return fReceived.get();
+	}
+
+	public long getForwarded() {
+		return fForwarded.get();
+	}
+
+	public long getSuppressed() {
+		return fReceived.get() - fForwarded.get();
+	}
+
+	public long getHeartbeats() {
+		return fHeartbeats.get();
+	}
+
+	public long getDeltas() {
+		return fDeltas.get();
+	}
+
+	/**
+	 * @return fraction of the snapshots received which were not
+	 * 				forwarded, 0 if none were received.
+	 */
+	public double getSuppressionRatio() {
+		long received = fReceived.get();
+		return received == 0 ? 0 : (double) (received - fForwarded.get()) / received;
+	}
+}
@@ -0,0 +1,223 @@
+package dogsim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of every <code>DogState</code> emitted, kept so
+ * that telemetry survives a DogPark outage and load patterns can be
+ * replayed exactly with <code>JournalReplay</code>.  The journal is a
+ * directory of segment files, each memory-mapped and filled in place, so
+ * writing a record is a copy into the page cache rather than a system
+ * call.  A segment is a single <code>DogStateCodec</code> frame whose
+ * record count in the header is updated after every record, so a reader
+ * sees a whole prefix of the records even if the process dies.
+ *
+ * When a segment is full, or its records would be too far in time from
+ * its base time, it is forced to disk, truncated to its records and a
+ * new segment is started.  Segments are named by sequence number, and a
+ * journal opened on an existing directory continues after its last
+ * segment.
+ *
+ * The journal passes every snapshot on to another sink, if it has one.
+ * Snapshots from different threads are written under the journal's lock.
+ *
+ * @author Karel Bergmann
+ *
+ * @see TelemetrySink
+ * @see DogStateCodec
+ * @see JournalReplay
+ */
+public class TelemetryJournal implements TelemetrySink {
+	public static final String SUFFIX = ".dsj";
+	private static final String PREFIX = "telemetry-";
+	private static int SEGMENT_SIZE = 64 << 20;	//bytes mapped for each segment
+
+	private final File fDir;				//directory holding the segments
+	private final int fSegmentSize;			//bytes mapped for each segment
+	private final TelemetrySink fNext;		//receives every snapshot after it is written, may be null
+	private int fSequence;					//sequence number of the current segment
+	private RandomAccessFile fFile;			//current segment file, null if none
+	private MappedByteBuffer fSegment;		//mapping of the current segment
+	private int fRecords;					//records in the current segment
+	private long fBase;						//base time of the current segment
+	private long fWritten;					//records written to all segments
+	private long fSegments;					//segments started
+	private boolean fClosed;				//no more records are accepted
+
+	/**
+	 * Constructor using the default segment size.
+	 *
+	 * @param aDir directory for the segments, created if missing
+	 * @param aNext sink to pass snapshots on to, or null for none
+	 * @throws IOException if the directory can't be created
+	 */
+	public TelemetryJournal(File aDir, TelemetrySink aNext) throws IOException {
+		this(aDir, aNext, SEGMENT_SIZE);
+	}
+
+	/**
+	 * Constructor specifying the segment size.
+	 *
+	 * @param aDir directory for the segments, created if missing
+	 * @param aNext sink to pass snapshots on to, or null for none
+	 * @param aSegmentSize bytes mapped for each segment, must hold a header and a record.
+	 * @throws IOException if the directory can't be created
+	 */
+	public TelemetryJournal(File aDir, TelemetrySink aNext, int aSegmentSize) throws IOException {
+		if (aDir == null)
+			throw new IllegalArgumentException("aDir must not be null.");
+		if (aSegmentSize < DogStateCodec.HEADER_SIZE + DogStateCodec.RECORD_SIZE)
+			throw new IllegalArgumentException("aSegmentSize must hold a header and a record.");
+		if (!aDir.isDirectory() && !aDir.mkdirs())
+			throw new IOException("Can't create journal directory " + aDir + ".");
+		fDir = aDir;
+		fNext = aNext;
+		fSegmentSize = aSegmentSize;
+
+		//continue after the last segment already there
+		File[] segments = segments(aDir);
+		if (segments.length > 0)
+			fSequence = sequenceOf(segments[segments.length - 1]) + 1;
+	}
+
+	/**
+	 * Writes the snapshot to the journal and passes it on.
+	 *
+	 * @param aState snapshot of a dog's location and vital signs
+	 * @return true if the snapshot was written, or accepted by the next sink.
+	 */
+	@Override
+	public boolean emit(DogState aState) {
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		boolean written = append(aState);
+		if (fNext != null)
+			return fNext.emit(aState) || written;
+		return written;
+	}
+
+	private synchronized boolean append(DogState aState) {
+		if (fClosed)
+			return false;
+		try {
+			long offset = aState.fTime - fBase;
+			if (fSegment == null || fSegment.remaining() < DogStateCodec.RECORD_SIZE ||
+					(fRecords > 0 && offset != (int) offset)) {
+				roll();
+			}
+			if (fRecords == 0) {
+				fBase = aState.fTime;
+				fSegment.putLong(8, fBase);
+			}
+			DogStateCodec.putRecord(fSegment, aState, fBase);
+			fRecords++;
+			fWritten++;
+			//the count is published after the record, so readers never see a partial one
+			fSegment.putInt(4, fRecords);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Finishes the current segment, if any, and maps a new one.
+	 */
+	private void roll() throws IOException {
+		finishSegment();
+		File file = new File(fDir, String.format("%s%08d%s", PREFIX, fSequence++, SUFFIX));
+		fFile = new RandomAccessFile(file, "rw");
+		fSegment = fFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fSegmentSize);
+		fRecords = 0;
+		fBase = 0;
+		DogStateCodec.putHeader(fSegment, 0, 0, 0);
+		fSegment.position(DogStateCodec.HEADER_SIZE);
+		fSegments++;
+	}
+
+	/**
+	 * Forces the current segment to disk and truncates the file to the
+	 * records written.
+	 */
+	private void finishSegment() throws IOException {
+		if (fFile == null)
+			return;
+		fSegment.force();
+		int length = fSegment.position();
+		fSegment = null;
+		fFile.getChannel().truncate(length);
+		fFile.close();
+		fFile = null;
+	}
+
+	/**
+	 * Forces the records written so far to disk.
+	 */
+	public synchronized void flush() {
+		if (fSegment != null)
+			fSegment.force();
+	}
+
+	/**
+	 * Finishes the current segment and closes the next sink.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			fClosed = true;
+			try {
+				finishSegment();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (fNext != null)
+			fNext.close();
+	}
+
+	public File getDirectory() {
+		return fDir;
+	}
+
+	public synchronized long getWritten() {
+		return fWritten;
+	}
+
+	public synchronized long getSegments() {
+		return fSegments;
+	}
+
+	/**
+	 * @param aDir journal directory
+	 * @return the segment files of a journal, in the order they were written.
+	 */
+	public static File[] segments(File aDir) {
+		File[] files = aDir.listFiles();
+		if (files == null)
+			return new File[0];
+		int n = 0;
+		for (File f : files) {
+			if (f.getName().startsWith(PREFIX) && f.getName().endsWith(SUFFIX) && sequenceOf(f) >= 0)
+				files[n++] = f;
+		}
+		File[] segments = Arrays.copyOf(files, n);
+		//names are zero-padded, so they sort by sequence number
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static int sequenceOf(File aSegment) {
+		String name = aSegment.getName();
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
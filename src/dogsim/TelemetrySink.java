@@ -0,0 +1,30 @@
+package dogsim;
+
+/**
+ * Destination for <code>DogState</code> snapshots emitted by
+ * <code>FitBit</code>s.  Implementations are called from the simulation
+ * thread, so <code>emit</code> must not block on I/O.
+ *
+ * @author Karel Bergmann
+ *
+ * @see FitBit
+ * @see DogState
+ */
+public interface TelemetrySink {
+
+	/**
+	 * Accepts a snapshot for delivery.  <code>aState</code> still belongs
+	 * to the caller, which reuses it once <code>emit</code> returns, so a
+	 * sink which keeps the snapshot any longer must copy it.
+	 *
+	 * @param aState snapshot of a dog's location and vital signs
+	 * @return true if the snapshot was accepted, false if it was dropped.
+	 */
+	public boolean emit(DogState aState);
+
+	/**
+	 * Delivers any snapshots already accepted and releases the
+	 * sink's resources.
+	 */
+	public void close();
+}
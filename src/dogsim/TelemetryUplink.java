@@ -0,0 +1,484 @@
+package dogsim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batching telemetry stage between the <code>FitBit</code>s and the
+ * DogPark web service.  Dogs enqueue <code>DogState</code> snapshots into a
+ * bounded queue, and a single sender thread coalesces them into batches of
+ * up to <code>BATCH_SIZE</code> snapshots, waiting at most
+ * <code>LINGER</code> milliseconds for a batch to fill.  Each batch is sent
+ * as one PUT with a JSON array payload.  A batch size of 1 sends the plain
+ * JSON object the server has always accepted.  With the
+ * <code>BINARY</code> encoding each batch is instead sent as one frame of
+ * a <code>DogStateCodec</code>, for servers which accept it.
+ *
+ * Requests go through <code>HttpURLConnection</code>, whose keep-alive
+ * cache reuses the underlying socket as long as every response is read to
+ * the end.  When the server lags and the queue fills up, the
+ * <code>DropPolicy</code> decides whether the newest snapshot is dropped,
+ * the oldest queued snapshot is dropped, or the caller waits up to
+ * <code>OFFER_TIMEOUT</code> milliseconds for room.
+ *
+ * Each snapshot is copied on the way in, into a record which goes back on
+ * a free list once its batch has been serialized, so that once the free
+ * list has grown to fit the queue the uplink allocates nothing per
+ * snapshot.
+ *
+ * The latency of every request is recorded in the default
+ * <code>Metrics</code> registry.  So is the time taken to enqueue one in
+ * every <code>OFFER_SAMPLE</code> snapshots, which shows how long dogs
+ * wait on the lock of the queue they all share.  Failed requests are
+ * reported through an <code>OutageLog</code>, once when the server goes
+ * down and once when it is back.
+ *
+ * @author Karel Bergmann
+ *
+ * @see TelemetrySink
+ * @see FitBit
+ * @see DogState
+ * @see Metrics
+ */
+public class TelemetryUplink implements TelemetrySink, Runnable, Metrics.Source {
+	private static int QUEUE_CAPACITY = 10000;	//snapshots buffered before the drop policy applies
+	private static int BATCH_SIZE = 100;		//most snapshots sent in one request
+	private static long LINGER = 50;			//milliseconds to wait for a batch to fill
+	private static long OFFER_TIMEOUT = 5;		//milliseconds to wait for room under BLOCK
+	private static volatile int CONNECT_TIMEOUT = 2000;	//milliseconds to connect to the server
+	private static volatile int READ_TIMEOUT = 5000;	//milliseconds to wait for a response
+	private static int OFFER_SAMPLE = 64;		//snapshots per timed enqueue, a power of 2
+
+	private static final LatencyHistogram SEND_TIME = Metrics.getDefault().histogram(
+			"dogsim_uplink_request_seconds", null, "Duration of a telemetry request, including failed ones.");
+	private static final LatencyHistogram OFFER_TIME = Metrics.getDefault().histogram(
+			"dogsim_uplink_offer_seconds", null, "Time taken to enqueue a sample of the telemetry snapshots.");
+
+	/**
+	 * Wire format of the batches.
+	 */
+	public enum Encoding {
+		JSON,	//text, as DogState.toJSON
+		BINARY	//fixed-width frames of a DogStateCodec
+	}
+
+	/**
+	 * What to do with a snapshot when the queue is full.
+	 */
+	public enum DropPolicy {
+		DROP_NEWEST,	//discard the snapshot being offered
+		DROP_OLDEST,	//discard the oldest queued snapshot
+		BLOCK			//wait up to OFFER_TIMEOUT, then discard the new snapshot
+	}
+
+	private final URL fUrl;						//endpoint batches are sent to
+	private volatile int fBatchSize;			//most snapshots per request
+	private final long fLingerNanos;			//wait for a batch to fill
+	private final DropPolicy fPolicy;			//behaviour when the queue is full
+	private final Encoding fEncoding;			//wire format of the batches
+	private final ArrayBlockingQueue<DogState> fQueue;	//snapshots awaiting delivery
+	private final ArrayBlockingQueue<DogState> fFree;	//records to copy snapshots into, reused
+	private final ArrayList<DogState> fBatch;	//batch being assembled, sender thread only
+	private final DogStateWriter fPayload;		//JSON payload being assembled, sender thread only
+	private final DogStateCodec fFrame;			//binary payload being assembled, sender thread only
+	private final byte[] fDiscard;				//scratch for reading responses, sender thread only
+	private final OutageLog fOutage;			//reports failed batches
+	private final Thread fSender;				//thread delivering batches
+	private volatile boolean fRunning;			//state variable for the sender loop
+
+	private final AtomicLong fOffered = new AtomicLong();	//snapshots emitted to the uplink
+	private final AtomicLong fDropped = new AtomicLong();	//snapshots discarded by the drop policy
+	private final AtomicLong fSent = new AtomicLong();		//snapshots delivered
+	private final AtomicLong fBatches = new AtomicLong();	//requests completed
+	private final AtomicLong fFailed = new AtomicLong();	//snapshots lost to failed requests
+
+	/**
+	 * Constructor using the default queue capacity, batch size,
+	 * linger and a <code>DROP_NEWEST</code> policy.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 */
+	public TelemetryUplink(String aUrl) {
+		this(aUrl, QUEUE_CAPACITY, BATCH_SIZE, LINGER, DropPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * Constructor using the default queue capacity, batch size,
+	 * linger and a <code>DROP_NEWEST</code> policy, with the given
+	 * wire format.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 * @param aEncoding wire format of the batches
+	 */
+	public TelemetryUplink(String aUrl, Encoding aEncoding) {
+		this(aUrl, QUEUE_CAPACITY, BATCH_SIZE, LINGER, DropPolicy.DROP_NEWEST, aEncoding);
+	}
+
+	/**
+	 * Constructor specifying the batching parameters.  The sender
+	 * thread is started immediately.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 * @param aCapacity snapshots buffered before the drop policy applies, must be greater than 0.
+	 * @param aBatchSize most snapshots per request, must be greater than 0.
+	 * @param aLinger milliseconds to wait for a batch to fill, must be non-negative.
+	 * @param aPolicy behaviour when the queue is full
+	 */
+	public TelemetryUplink(String aUrl, int aCapacity, int aBatchSize, long aLinger, DropPolicy aPolicy) {
+		this(aUrl, aCapacity, aBatchSize, aLinger, aPolicy, Encoding.JSON);
+	}
+
+	/**
+	 * Constructor specifying the batching parameters and the wire
+	 * format.  The sender thread is started immediately.
+	 *
+	 * @param aUrl endpoint to PUT batches to
+	 * @param aCapacity snapshots buffered before the drop policy applies, must be greater than 0.
+	 * @param aBatchSize most snapshots per request, must be greater than 0.
+	 * @param aLinger milliseconds to wait for a batch to fill, must be non-negative.
+	 * @param aPolicy behaviour when the queue is full
+	 * @param aEncoding wire format of the batches
+	 */
+	public TelemetryUplink(String aUrl, int aCapacity, int aBatchSize, long aLinger, DropPolicy aPolicy,
+			Encoding aEncoding) {
+		if (aUrl == null)
+			throw new IllegalArgumentException("aUrl must not be null.");
+		if (aCapacity <= 0)
+			throw new IllegalArgumentException("aCapacity must be greater than 0.");
+		if (aBatchSize <= 0)
+			throw new IllegalArgumentException("aBatchSize must be greater than 0.");
+		if (aLinger < 0)
+			throw new IllegalArgumentException("aLinger must be non-negative.");
+		if (aPolicy == null)
+			throw new IllegalArgumentException("aPolicy must not be null.");
+		if (aEncoding == null)
+			throw new IllegalArgumentException("aEncoding must not be null.");
+
+		try {
+			fUrl = new URL(aUrl);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("aUrl is not a valid URL.", e);
+		}
+		fBatchSize = aBatchSize;
+		fLingerNanos = TimeUnit.MILLISECONDS.toNanos(aLinger);
+		fPolicy = aPolicy;
+		fEncoding = aEncoding;
+		fQueue = new ArrayBlockingQueue<DogState>(aCapacity);
+		fFree = new ArrayBlockingQueue<DogState>(aCapacity + aBatchSize);
+		fBatch = new ArrayList<DogState>(aBatchSize);
+		fPayload = new DogStateWriter();
+		fFrame = new DogStateCodec();
+		fDiscard = new byte[512];
+		fOutage = new OutageLog("Telemetry server " + aUrl, "batches");
+
+		fRunning = true;
+		fSender = new Thread(this, "TelemetryUplink");
+		fSender.setDaemon(true);
+		fSender.start();
+	}
+
+	/**
+	 * Enqueues a copy of a snapshot for the sender thread, applying the
+	 * drop policy if the queue is full.  One in every
+	 * <code>OFFER_SAMPLE</code> snapshots is timed.
+	 *
+	 * @param aState snapshot to deliver
+	 * @return true if the snapshot was queued.
+	 */
+	@Override
+	public boolean emit(DogState aState) {
+		if (aState == null)
+			throw new IllegalArgumentException("aState must not be null.");
+		DogState copy = fFree.poll();
+		if (copy == null)
+			copy = new DogState();
+		copy.set(aState);
+		if ((fOffered.incrementAndGet() & (OFFER_SAMPLE - 1)) == 0) {
+			long start = System.nanoTime();
+			boolean queued = offer(copy);
+			OFFER_TIME.recordSince(start);
+			return queued;
+		}
+		return offer(copy);
+	}
+
+	/**
+	 * Enqueues a snapshot, applying the drop policy if the queue is full.
+	 */
+	private boolean offer(DogState aState) {
+		if (fQueue.offer(aState))
+			return true;
+
+		switch (fPolicy) {
+		case DROP_OLDEST:
+			//make room by discarding the oldest snapshot, retry once
+			DogState oldest = fQueue.poll();
+			if (oldest != null) {
+				fDropped.incrementAndGet();
+				fFree.offer(oldest);
+			}
+			if (fQueue.offer(aState))
+				return true;
+			break;
+		case BLOCK:
+			try {
+				if (fQueue.offer(aState, OFFER_TIMEOUT, TimeUnit.MILLISECONDS))
+					return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			break;
+		default:
+			break;
+		}
+		fDropped.incrementAndGet();
+		fFree.offer(aState);
+		return false;
+	}
+
+	/**
+	 * Stops the sender thread once the snapshots already queued
+	 * have been delivered.
+	 */
+	@Override
+	public void close() {
+		fRunning = false;
+		fSender.interrupt();
+		try {
+			fSender.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Sender loop.  Waits for a first snapshot, gathers more until the
+	 * batch is full or the linger time has passed, and sends the batch.
+	 */
+	@Override
+	public void run() {
+		while (fRunning || !fQueue.isEmpty()) {
+			try {
+				DogState first = fQueue.poll(LINGER, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				fBatch.add(first);
+
+				//fill the batch until it is full or the linger time expires
+				int batchSize = fBatchSize;
+				long deadline = System.nanoTime() + fLingerNanos;
+				while (fBatch.size() < batchSize) {
+					if (fQueue.drainTo(fBatch, batchSize - fBatch.size()) > 0)
+						continue;
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0 || !fRunning)
+						break;
+					DogState next = fQueue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					fBatch.add(next);
+				}
+			} catch (InterruptedException e) {
+				//keep going, fRunning decides
+			}
+
+			if (!fBatch.isEmpty()) {
+				send();
+				for (int i = 0; i < fBatch.size(); i++) {
+					fFree.offer(fBatch.get(i));
+				}
+				fBatch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Sends the current batch as a single PUT request.  The payload is
+	 * serialized into a reused buffer by a <code>DogStateWriter</code>, or
+	 * a <code>DogStateCodec</code> for the binary encoding.  The response
+	 * is read to the end so that the connection can be reused.
+	 *
+	 * @see DogStateWriter
+	 * @see DogStateCodec
+	 */
+	private void send() {
+		byte[] payload;
+		int length;
+		String type;
+		if (fEncoding == Encoding.BINARY) {
+			fFrame.reset();
+			for (int i = 0; i < fBatch.size(); i++) {
+				fFrame.write(fBatch.get(i));
+			}
+			fFrame.finish();
+			payload = fFrame.buffer();
+			length = fFrame.length();
+			type = DogStateCodec.CONTENT_TYPE;
+		}
+		else {
+			fPayload.reset();
+			if (fBatch.size() == 1) {
+				fPayload.write(fBatch.get(0));
+			}
+			else {
+				fPayload.beginArray();
+				for (int i = 0; i < fBatch.size(); i++) {
+					fPayload.write(fBatch.get(i));
+				}
+				fPayload.endArray();
+			}
+			payload = fPayload.buffer();
+			length = fPayload.length();
+			type = "text/plain; charset=UTF-8";
+		}
+
+		HttpURLConnection conn = null;
+		long start = System.nanoTime();
+		try {
+			conn = (HttpURLConnection) fUrl.openConnection();
+			conn.setRequestMethod("PUT");
+			conn.setDoOutput(true);
+			conn.setConnectTimeout(CONNECT_TIMEOUT);
+			conn.setReadTimeout(READ_TIMEOUT);
+			conn.setFixedLengthStreamingMode(length);
+			conn.setRequestProperty("Content-Type", type);
+			OutputStream out = conn.getOutputStream();
+			out.write(payload, 0, length);
+			out.close();
+
+			int status = conn.getResponseCode();
+			drain(status < 400 ? conn.getInputStream() : conn.getErrorStream());
+			if (status < 400) {
+				fSent.addAndGet(fBatch.size());
+				fBatches.incrementAndGet();
+				fOutage.succeeded();
+			}
+			else {
+				fFailed.addAndGet(fBatch.size());
+				fOutage.failed("Sending " + fBatch.size() + " snapshots was answered " + status, null);
+			}
+			if (Log.isEnabled(Log.Level.DEBUG))
+				Log.debug("Sent " + fBatch.size() + " snapshots: " + status);
+		} catch (IOException e) {
+			fFailed.addAndGet(fBatch.size());
+			//a broken connection can't be reused
+			if (conn != null)
+				conn.disconnect();
+			fOutage.failed("Failed to send " + fBatch.size() + " snapshots", e);
+		}
+		SEND_TIME.recordSince(start);
+	}
+
+	/**
+	 * Reads a response body to the end and closes it, which returns the
+	 * connection to the keep-alive cache.
+	 *
+	 * @param aIn response body, may be null
+	 */
+	private void drain(InputStream aIn) throws IOException {
+		if (aIn == null)
+			return;
+		while (aIn.read(fDiscard) >= 0) {
+			//discard
+		}
+		aIn.close();
+	}
+
+	/**
+	 * Reports the queue depth and what became of the snapshots.
+	 * Request latencies are recorded as they happen.
+	 *
+	 * @param aOut receives the values
+	 */
+	@Override
+	public void collect(Metrics.Collector aOut) {
+		aOut.gauge("dogsim_uplink_queue_depth", "Snapshots waiting to be sent.", fQueue.size());
+		aOut.counter("dogsim_uplink_offered_total", "Snapshots emitted to the uplink.", fOffered.get());
+		aOut.counter("dogsim_uplink_dropped_total", "Snapshots discarded because the queue was full.", fDropped.get());
+		aOut.counter("dogsim_uplink_sent_total", "Snapshots delivered.", fSent.get());
+		aOut.counter("dogsim_uplink_requests_total", "Requests completed.", fBatches.get());
+		aOut.counter("dogsim_uplink_failed_total", "Snapshots lost to failed requests.", fFailed.get());
+	}
+
+	/**
+	 * Reads the defaults of new uplinks, <code>queueCapacity</code>,
+	 * <code>batchSize</code> and <code>linger</code>, and the
+	 * <code>connectTimeout</code> and <code>readTimeout</code> of every
+	 * request.  The batch size of a running uplink is changed with
+	 * <code>setBatchSize</code>.
+	 *
+	 * @param aConfig configuration to read
+	 * @see SimConfig
+	 */
+	public static void configure(SimConfig aConfig) {
+		int capacity = aConfig.getInt("queueCapacity", QUEUE_CAPACITY);
+		int batchSize = aConfig.getInt("batchSize", BATCH_SIZE);
+		long linger = aConfig.getLong("linger", LINGER);
+		int connectTimeout = aConfig.getInt("connectTimeout", CONNECT_TIMEOUT);
+		int readTimeout = aConfig.getInt("readTimeout", READ_TIMEOUT);
+		if (capacity <= 0)
+			throw new IllegalArgumentException("queueCapacity must be greater than 0.");
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("batchSize must be greater than 0.");
+		if (linger < 0)
+			throw new IllegalArgumentException("linger must be non-negative.");
+		if (connectTimeout < 0 || readTimeout < 0)
+			throw new IllegalArgumentException("connectTimeout and readTimeout must be non-negative.");
+		QUEUE_CAPACITY = capacity;
+		BATCH_SIZE = batchSize;
+		LINGER = linger;
+		CONNECT_TIMEOUT = connectTimeout;
+		READ_TIMEOUT = readTimeout;
+	}
+
+	/**
+	 * Changes the most snapshots sent in one request, from the next
+	 * batch on.
+	 *
+	 * @param aBatchSize most snapshots per request, must be greater than 0.
+	 */
+	public void setBatchSize(int aBatchSize) {
+		if (aBatchSize <= 0)
+			throw new IllegalArgumentException("aBatchSize must be greater than 0.");
+		fBatchSize = aBatchSize;
+	}
+
+	public int getBatchSize() {
+		return fBatchSize;
+	}
+
+	public Encoding getEncoding() {
+		return fEncoding;
+	}
+
+	public int getQueueDepth() {
+		return fQueue.size();
+	}
+
+	public long getOffered() {
+		return fOffered.get();
+	}
+
+	public long getDropped() {
+		return fDropped.get();
+	}
+
+	public long getSent() {
+		return fSent.get();
+	}
+
+	public long getBatches() {
+		return fBatches.get();
+	}
+
+	public long getFailed() {
+		return fFailed.get();
+	}
+}
@@ -0,0 +1,22 @@
+package dogsim;
+
+/**
+ * Callback run by the <code>SimulationEngine</code> on the simulation
+ * thread at the start of every tick, after the arena's clock has been
+ * advanced and before any dog is stepped.  Dogs added or removed by a
+ * listener take part in the tick that follows.
+ *
+ * @author Karel Bergmann
+ *
+ * @see SimulationEngine
+ */
+public interface TickListener {
+
+	/**
+	 * Called at the start of a tick.
+	 *
+	 * @param aTick number of the tick about to run, starting at 0.
+	 * @param aTime simulated time of the tick in milliseconds.
+	 */
+	public void beforeTick(long aTick, long aTime);
+}
@@ -0,0 +1,93 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The <code>SimulationEngine</code> captures an <code>ArenaSnapshot</code>
+ * only while a reader is registered with the arena, and a snapshot a
+ * reader holds on to is never changed by later ticks.
+ *
+ * @author Karel Bergmann
+ */
+public class ArenaSnapshotTest {
+	private static final int DOGS = 50;
+
+	private Arena fArena;
+	private SimulationEngine fEngine;
+
+	@BeforeEach
+	public void setUp() {
+		FitBit.setSink(new TelemetrySink() {
+			public boolean emit(DogState aState) {
+				return true;
+			}
+
+			public void close() {
+			}
+		});
+		fArena = new Arena(1500, 1000, DOGS);
+		DogRandom rand = new DogRandom(3);
+		for (int i = 0; i < DOGS; i++) {
+			int id = fArena.getDogs().acquireId();
+			fArena.getDogs().add(new Dog(fArena, Dog.getNORMAL_HR(), 25, rand.nextInt(200) + 50, id,
+					new DogRandom(Dog.seedFor(3, i))));
+		}
+		fEngine = new SimulationEngine(fArena);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		fEngine.shutdown();
+		FitBit.setSink(null);
+	}
+
+	@Test
+	public void nothingIsCapturedWithoutAReader() {
+		fEngine.runTicks(10);
+		assertSame(ArenaSnapshot.EMPTY, fArena.getSnapshot());
+	}
+
+	@Test
+	public void aHeldSnapshotIsNotOverwritten() {
+		fArena.addSnapshotReader();
+		fEngine.runTicks(1);
+		ArenaSnapshot held = fArena.getSnapshot();
+		assertEquals(DOGS, held.fCount);
+		long tick = held.fTick;
+		double[] x = held.fX.clone();
+		long[] hr = held.fHR.clone();
+
+		//the snapshot matches the store it was captured from
+		DogStore store = fArena.getStore();
+		for (int i = 0; i < held.fCount; i++) {
+			int slot = held.fIds[i];
+			assertEquals(store.fX[slot], held.fX[i]);
+			assertEquals(store.fY[slot], held.fY[i]);
+			assertEquals(store.fHR[slot], held.fHR[i]);
+		}
+
+		//a reader slower than the engine still sees the tick it picked up
+		fEngine.runTicks(2);
+		ArenaSnapshot latest = fArena.getSnapshot();
+		assertNotSame(held, latest);
+		assertEquals(tick + 2, latest.fTick);
+		assertEquals(tick, held.fTick);
+		assertArrayEquals(x, held.fX);
+		assertArrayEquals(hr, held.fHR);
+		assertFalse(Arrays.equals(x, latest.fX), "no dog moved");
+
+		fArena.removeSnapshotReader();
+		fEngine.runTicks(1);
+		assertSame(latest, fArena.getSnapshot());
+	}
+}
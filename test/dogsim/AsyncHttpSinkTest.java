@@ -0,0 +1,101 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * An <code>AsyncHttpSink</code> against a slow <code>DogParkStub</code>
+ * which fails some of its requests: every state gets through, failed
+ * requests are retried after a growing backoff, and no more requests are
+ * outstanding than the sink allows.
+ *
+ * @author Karel Bergmann
+ */
+public class AsyncHttpSinkTest {
+	private static final int MAX_IN_FLIGHT = 4;
+	private static final int STUB_THREADS = 4 * MAX_IN_FLIGHT;
+
+	private DogParkStub fStub;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		fStub = new DogParkStub(0, STUB_THREADS);
+		fStub.start();
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException {
+		fStub.stop();
+		AsyncHttpSink.configure(config("maxInFlight", "16", "maxRetries", "5", "backoff", "100"));
+	}
+
+	private static SimConfig config(String... aValues) throws IOException {
+		Properties values = new Properties();
+		for (int i = 0; i < aValues.length; i += 2) {
+			values.setProperty(aValues[i], aValues[i + 1]);
+		}
+		return new SimConfig(null, values);
+	}
+
+	private static DogState state(int aId) {
+		DogState s = new DogState();
+		s.fId = aId;
+		s.fX = aId % 1500;
+		s.fY = aId % 1000;
+		s.fHR = 60;
+		s.fTemp = 25;
+		return s;
+	}
+
+	@Test
+	public void everyStateIsDelivered() throws IOException, InterruptedException {
+		AsyncHttpSink.configure(config("maxInFlight", String.valueOf(MAX_IN_FLIGHT), "backoff", "20"));
+		fStub.setDelay(10);
+		fStub.setFailEvery(7);
+		AsyncHttpSink sink = new AsyncHttpSink(fStub.getUrl(), TelemetryUplink.Encoding.BINARY);
+		int states = 20000;
+		for (int i = 0; i < states; i++) {
+			assertTrue(sink.emit(state(i)), "state " + i + " was dropped");
+			//about 20000 states a second, as the ticks of a large park would emit
+			if (i % 200 == 199)
+				Thread.sleep(10);
+		}
+		sink.close();
+
+		assertEquals(states, sink.getSent());
+		assertEquals(0, sink.getFailed());
+		assertEquals(0, sink.getDropped());
+		//the stub only counts the records of the requests it accepted
+		assertEquals(states, fStub.getFrameRecords());
+		assertTrue(fStub.getRejected() > 0, "the stub failed no request");
+		assertEquals(fStub.getRejected(), sink.getRetries());
+		assertTrue(fStub.getMaxActive() <= MAX_IN_FLIGHT,
+				fStub.getMaxActive() + " requests in flight, over the bound of " + MAX_IN_FLIGHT);
+		assertTrue(fStub.getMaxActive() > 1, "requests were never sent concurrently");
+	}
+
+	@Test
+	public void failedRequestsBackOff() throws IOException {
+		AsyncHttpSink.configure(config("maxRetries", "3", "backoff", "100"));
+		fStub.setFailEvery(1);
+		AsyncHttpSink sink = new AsyncHttpSink(fStub.getUrl());
+		long start = System.nanoTime();
+		sink.emit(state(1));
+		sink.close();
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		assertEquals(4, fStub.getRequests());
+		assertEquals(3, sink.getRetries());
+		assertEquals(1, sink.getFailed());
+		assertEquals(0, sink.getSent());
+		//backoffs of 100, 200 and 400 ms, each jittered down to no less than half
+		assertTrue(millis >= 50 + 100 + 200, "retried after " + millis + " ms");
+	}
+}
@@ -0,0 +1,122 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A <code>DogRegistry</code> picks dogs uniformly however their IDs are
+ * spread, and only hands out a released ID again once it is recycled.
+ *
+ * @author Karel Bergmann
+ */
+public class DogRegistryTest {
+	private static final int CAPACITY = 100;
+
+	private Arena fArena;
+	private DogRegistry fDogs;
+
+	@BeforeEach
+	public void setUp() {
+		fArena = new Arena(1500, 1000, CAPACITY);
+		fDogs = fArena.getDogs();
+	}
+
+	private Dog add() {
+		int id = fDogs.acquireId();
+		Dog dog = new Dog(fArena, Dog.getNORMAL_HR(), 25, 100, id);
+		fDogs.add(dog);
+		return dog;
+	}
+
+	@Test
+	public void picksAreUniform() {
+		//one dog after a long run of free IDs, the rest packed together
+		Dog[] dogs = new Dog[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++) {
+			dogs[i] = add();
+		}
+		for (int i = 0; i < 90; i++) {
+			fDogs.remove(dogs[i]);
+		}
+		int[] picked = new int[CAPACITY];
+		Random rand = new Random(17);
+		int picks = 100000;
+		for (int i = 0; i < picks; i++) {
+			picked[fDogs.pick(rand).getID()]++;
+		}
+		//each of the 10 dogs is picked a tenth of the time, within 5 standard deviations
+		double expected = picks / 10.0;
+		double sd = Math.sqrt(picks * 0.1 * 0.9);
+		for (int i = 90; i < CAPACITY; i++) {
+			assertTrue(Math.abs(picked[i] - expected) < 5 * sd, "dog " + i + " picked " + picked[i] + " times");
+		}
+	}
+
+	@Test
+	public void sparseAndEmptyRegistries() {
+		Random rand = new Random(3);
+		assertNull(fDogs.pick(rand));
+		Dog[] dogs = new Dog[CAPACITY];
+		for (int i = 0; i < CAPACITY; i++) {
+			dogs[i] = add();
+		}
+		for (int i = 0; i < CAPACITY; i++) {
+			if (i != 42)
+				fDogs.remove(dogs[i]);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertSame(dogs[42], fDogs.pick(rand));
+		}
+	}
+
+	@Test
+	public void releasedIdsWaitToBeRecycled() {
+		Dog dog = add();
+		int id = dog.getID();
+		fDogs.remove(dog);
+		fDogs.releaseId(id);
+		int[] acquired = new int[CAPACITY];
+		int count = 0;
+		for (int next = fDogs.acquireId(); next >= 0; next = fDogs.acquireId()) {
+			assertNotEquals(id, next);
+			acquired[count++] = next;
+		}
+		assertEquals(CAPACITY - 1, count);
+
+		assertEquals(1, fDogs.recycleIds());
+		assertEquals(0, fDogs.recycleIds());
+		assertEquals(id, fDogs.acquireId());
+		assertEquals(-1, fDogs.acquireId());
+	}
+
+	@Test
+	public void freeIdsIncludeThoseToRecycle() {
+		Dog[] dogs = new Dog[4];
+		for (int i = 0; i < dogs.length; i++) {
+			dogs[i] = add();
+		}
+		fDogs.remove(dogs[1]);
+		fDogs.releaseId(1);
+		fDogs.remove(dogs[3]);
+		fDogs.releaseId(3);
+		int[] free = new int[CAPACITY];
+		int count = fDogs.freeIds(free);
+		assertEquals(CAPACITY - 2, count);
+
+		//a registry restored from the list hands out IDs as this one will after recycling
+		DogRegistry restored = new DogRegistry(CAPACITY);
+		restored.setFreeIds(free, count);
+		fDogs.recycleIds();
+		for (int i = 0; i < count; i++) {
+			assertEquals(fDogs.acquireId(), restored.acquireId());
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Round trips of <code>DogState</code>s through a
+ * <code>DogStateCodec</code> frame, checked against the JSON a
+ * <code>DogStateWriter</code> writes for them.  A decoded state must
+ * serialize exactly as the original does once the original is rounded to
+ * the precision of the encoding: coordinates to a float, temperatures to
+ * a hundredth of a degree, and heart rates clamped to a short.
+ *
+ * @author Karel Bergmann
+ */
+public class DogStateCodecTest {
+
+	private static DogState state(int aId, double aX, double aY, long aHR, double aTemp, long aTime) {
+		DogState s = new DogState();
+		s.fId = aId;
+		s.fX = aX;
+		s.fY = aY;
+		s.fHR = aHR;
+		s.fTemp = aTemp;
+		s.fTime = aTime;
+		return s;
+	}
+
+	/**
+	 * @return a copy of the state at the precision of the encoding.
+	 */
+	private static DogState rounded(DogState aState) {
+		boolean position = (aState.fFields & DogState.POSITION) != 0;
+		boolean hr = (aState.fFields & DogState.HR) != 0;
+		boolean temp = (aState.fFields & DogState.TEMP) != 0;
+		DogState s = state(aState.fId,
+				position ? (float) aState.fX : 0,
+				position ? (float) aState.fY : 0,
+				hr ? clamp(aState.fHR) : 0,
+				temp ? clamp(Math.round(aState.fTemp * 100)) / 100.0 : 0,
+				aState.fTime);
+		s.fFields = aState.fFields;
+		return s;
+	}
+
+	private static long clamp(long aValue) {
+		return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, aValue));
+	}
+
+	private static String json(DogState... aStates) {
+		DogStateWriter writer = new DogStateWriter(16);
+		writer.beginArray();
+		for (DogState s : aStates) {
+			writer.write(s);
+		}
+		writer.endArray();
+		return writer.toString();
+	}
+
+	private static DogState[] roundTrip(DogState... aStates) throws IOException {
+		DogStateCodec codec = new DogStateCodec(DogStateCodec.HEADER_SIZE);
+		for (DogState s : aStates) {
+			codec.write(s);
+		}
+		codec.finish();
+		assertEquals(DogStateCodec.HEADER_SIZE + aStates.length * DogStateCodec.RECORD_SIZE, codec.length());
+		return DogStateCodec.decode(Arrays.copyOf(codec.buffer(), codec.length()));
+	}
+
+	private static void assertMalformed(byte[] aFrame) {
+		try {
+			DogStateCodec.decode(aFrame);
+			fail("Decoded a malformed frame.");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	private static void assertRoundTrip(DogState... aStates) throws IOException {
+		DogState[] expected = new DogState[aStates.length];
+		for (int i = 0; i < aStates.length; i++) {
+			expected[i] = rounded(aStates[i]);
+		}
+		DogState[] decoded = roundTrip(aStates);
+		assertEquals(json(expected), json(decoded));
+		for (int i = 0; i < aStates.length; i++) {
+			assertEquals(aStates[i].fTime, decoded[i].fTime);
+			assertEquals(aStates[i].fFields, decoded[i].fFields);
+		}
+	}
+
+	@Test
+	public void typicalStatesMatchTheirJson() throws IOException {
+		DogState[] states = {
+				state(0, 0, 0, 60, 38, 1000),
+				state(7, 1499.25, 999.5, 120, 39.5, 1010),
+				state(42, 733.1234, 12.5, 95, 38.27, 1020)
+		};
+		assertRoundTrip(states);
+		//values exact in a float and in hundredths are not rounded at all
+		assertEquals(json(states[0], states[1]), json(roundTrip(states[0], states[1])));
+	}
+
+	@Test
+	public void negativeValues() throws IOException {
+		assertRoundTrip(state(-1, -0.0, -1499.75, -60, -12.34, -5000),
+				state(Integer.MIN_VALUE, -1e-30, -3.4e38, Short.MIN_VALUE, -327.68, -4000));
+	}
+
+	@Test
+	public void maximumValues() throws IOException {
+		assertRoundTrip(state(Integer.MAX_VALUE, Float.MAX_VALUE, Double.MAX_VALUE, Long.MAX_VALUE, 327.67, Long.MAX_VALUE),
+				state(Integer.MAX_VALUE, Float.MIN_VALUE, 1e7, Short.MAX_VALUE, 1e9, Long.MAX_VALUE - Integer.MAX_VALUE));
+		//heart rates and temperatures beyond a short saturate
+		DogState decoded = roundTrip(state(1, 0, 0, Long.MIN_VALUE, -1e9, 0))[0];
+		assertEquals(Short.MIN_VALUE, decoded.fHR);
+		assertEquals(Short.MIN_VALUE / 100.0, decoded.fTemp);
+	}
+
+	@Test
+	public void notANumber() throws IOException {
+		DogState nan = state(3, Double.NaN, Double.POSITIVE_INFINITY, 80, Double.NaN, 0);
+		assertRoundTrip(nan, state(4, Double.NEGATIVE_INFINITY, Double.NaN, 80, Double.POSITIVE_INFINITY, 1));
+		DogState decoded = roundTrip(nan)[0];
+		assertEquals(Double.NaN, decoded.fX);
+		assertEquals(Double.POSITIVE_INFINITY, decoded.fY);
+		//a temperature which isn't a number can't be scaled, and is sent as 0
+		assertEquals(0.0, decoded.fTemp);
+	}
+
+	@Test
+	public void deltasCarryOnlyTheirFields() throws IOException {
+		DogState position = state(5, 10.5, 20.25, 99, 39.1, 100);
+		position.fFields = DogState.POSITION;
+		DogState vitals = state(6, 10.5, 20.25, 99, 39.1, 100);
+		vitals.fFields = DogState.HR | DogState.TEMP;
+		DogState none = state(7, 1, 2, 3, 4, 100);
+		none.fFields = 0;
+		assertRoundTrip(position, vitals, none);
+		DogState[] decoded = roundTrip(position, vitals);
+		assertEquals(0, decoded[0].fHR);
+		assertEquals(0.0, decoded[1].fX);
+	}
+
+	@Test
+	public void recordsAreTimedFromTheFirst() throws IOException {
+		long base = 1_700_000_000_000L;
+		assertRoundTrip(state(1, 1, 1, 70, 38, base),
+				state(2, 1, 1, 70, 38, base + Integer.MAX_VALUE),
+				state(3, 1, 1, 70, 38, base + Integer.MIN_VALUE));
+		DogStateCodec codec = new DogStateCodec();
+		codec.write(state(1, 1, 1, 70, 38, base));
+		try {
+			codec.write(state(2, 1, 1, 70, 38, base + Integer.MAX_VALUE + 1L));
+			fail("Encoded a record too far from the first.");
+		} catch (IllegalArgumentException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void decodesIntoExistingStates() throws IOException {
+		DogStateCodec codec = new DogStateCodec();
+		DogState[] states = new DogState[1000];
+		for (int i = 0; i < states.length; i++) {
+			states[i] = state(i, i * 1.5, i * 0.75, 60 + i % 100, 38 + i % 5 / 4.0, 10 * i);
+			codec.write(states[i]);
+		}
+		codec.finish();
+		byte[] frame = new byte[codec.length() + 8];
+		System.arraycopy(codec.buffer(), 0, frame, 8, codec.length());
+
+		DogState[] into = new DogState[states.length];
+		for (int i = 0; i < into.length; i++) {
+			into[i] = new DogState();
+		}
+		assertEquals(states.length, DogStateCodec.decode(frame, 8, codec.length(), into));
+		assertEquals(json(states), json(into));
+		try {
+			DogStateCodec.decode(frame, 8, codec.length(), Arrays.copyOf(into, 10));
+			fail("Decoded more records than there are states.");
+		} catch (IOException e) {
+			//expected
+		}
+	}
+
+	@Test
+	public void resetStartsAnEmptyFrame() throws IOException {
+		DogStateCodec codec = new DogStateCodec();
+		codec.write(state(1, 1, 1, 70, 38, 0));
+		codec.reset();
+		codec.finish();
+		assertArrayEquals(new DogState[0], DogStateCodec.decode(Arrays.copyOf(codec.buffer(), codec.length())));
+	}
+
+	@Test
+	public void malformedFramesAreRejected() throws IOException {
+		DogStateCodec codec = new DogStateCodec();
+		codec.write(state(1, 1, 1, 70, 38, 0));
+		codec.write(state(2, 1, 1, 70, 38, 0));
+		codec.finish();
+		byte[] frame = Arrays.copyOf(codec.buffer(), codec.length());
+
+		assertMalformed(Arrays.copyOf(frame, frame.length - 1));
+		assertMalformed(new byte[DogStateCodec.HEADER_SIZE - 1]);
+		byte[] magic = frame.clone();
+		magic[0] ^= 1;
+		assertMalformed(magic);
+		byte[] version = frame.clone();
+		version[2] = DogStateCodec.VERSION + 1;
+		assertMalformed(version);
+	}
+}
@@ -0,0 +1,135 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import us.monoid.json.JSONException;
+import us.monoid.json.JSONStringer;
+
+/**
+ * A <code>DogStateWriter</code> writes each record exactly as
+ * <code>DogState.toJSON()</code> does, and batches as the uplink used to
+ * build them from <code>toJSON</code>: a single record on its own, and
+ * several as a JSON array.  NaN and infinite numbers, which the JSON
+ * library refuses, are written as <code>null</code>.
+ *
+ * @author Karel Bergmann
+ */
+public class DogStateWriterTest {
+	private static final double[] DOUBLES = {
+		0, -0.0, 1, -1, 25, 0.5, -3.25, 0.1 + 0.2, 1.0 / 3, 1499.9999999,
+		9999999, 9999999.5, 1.0E7, -1.0E7, 1.0E-3, 1.0E-4, 123456789.125,
+		Double.MAX_VALUE, -Double.MAX_VALUE, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MIN_NORMAL
+	};
+	private static final long[] LONGS = {
+		0, 60, -1, -60, 1000000007, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1
+	};
+
+	private static DogState state(int aId, double aX, double aY, long aHR, double aTemp) {
+		DogState s = new DogState();
+		s.fId = aId;
+		s.fX = aX;
+		s.fY = aY;
+		s.fHR = aHR;
+		s.fTemp = aTemp;
+		return s;
+	}
+
+	private static String json(DogState aState) {
+		DogStateWriter writer = new DogStateWriter(16);
+		writer.write(aState);
+		return writer.toString();
+	}
+
+	@Test
+	public void recordsMatchToJSON() {
+		for (double x : DOUBLES) {
+			for (long hr : LONGS) {
+				DogState s = state((int) hr, x, -x, hr, x / 7);
+				assertEquals(s.toJSON(), json(s));
+			}
+		}
+		DogState s = state(Integer.MAX_VALUE, 750.25, 0, Long.MIN_VALUE, 38.5);
+		assertEquals(s.toJSON(), json(s));
+		s.fId = Integer.MIN_VALUE;
+		assertEquals(s.toJSON(), json(s));
+	}
+
+	@Test
+	public void nonFiniteNumbersAreNull() throws JSONException {
+		DogState s = state(3, Double.NaN, Double.POSITIVE_INFINITY, 70, Double.NEGATIVE_INFINITY);
+		//the JSON library refuses the numbers, so toJSON gives up
+		assertEquals("", s.toJSON());
+		String expected = new JSONStringer()
+			.object()
+				.key("id")
+				.value(3)
+				.key("active")
+				.value(true)
+				.key("xcoord")
+				.value(null)
+				.key("ycoord")
+				.value(null)
+				.key("hr")
+				.value(70)
+				.key("temp")
+				.value(null)
+			.endObject()
+			.toString();
+		assertEquals(expected, json(s));
+	}
+
+	@Test
+	public void batchesMatchToJSON() {
+		DogStateWriter writer = new DogStateWriter(16);
+		DogState one = state(7, 12.5, 800, 95, 39.25);
+		writer.write(one);
+		assertEquals(one.toJSON(), writer.toString());
+
+		//the writer is reused, and grows well past its initial size
+		writer.reset();
+		StringBuilder expected = new StringBuilder("[");
+		writer.beginArray();
+		for (int i = 0; i < 50; i++) {
+			DogState s = state(i, i * 29.75, 1000 - i * 0.125, 60 + i, 25 + i / 3.0);
+			if (i > 0)
+				expected.append(',');
+			expected.append(s.toJSON());
+			writer.write(s);
+		}
+		writer.endArray();
+		expected.append(']');
+		assertEquals(expected.toString(), writer.toString());
+		assertEquals(expected.length(), writer.length());
+
+		//an array of one starts its records afresh
+		writer.reset();
+		writer.beginArray();
+		writer.write(one);
+		writer.endArray();
+		assertEquals("[" + one.toJSON() + "]", writer.toString());
+	}
+
+	@Test
+	public void deltasCarryOnlyTheirFields() throws JSONException {
+		DogState s = state(4, 100.5, -0.0, Long.MIN_VALUE, 41);
+		s.fFields = DogState.POSITION | DogState.HR;
+		String expected = new JSONStringer()
+			.object()
+				.key("id")
+				.value(4)
+				.key("xcoord")
+				.value(100.5)
+				.key("ycoord")
+				.value(-0.0)
+				.key("hr")
+				.value(Long.MIN_VALUE)
+			.endObject()
+			.toString();
+		assertEquals(expected, json(s));
+
+		s.fFields = DogState.TEMP;
+		assertEquals("{\"id\":4,\"temp\":41}", json(s));
+	}
+}
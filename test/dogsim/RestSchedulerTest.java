@@ -0,0 +1,69 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Dogs sleeping in the <code>RestScheduler</code> aren't stepped, but still
+ * transmit at least every heartbeat, so they don't fall silent downstream.
+ *
+ * @author Karel Bergmann
+ */
+public class RestSchedulerTest {
+	private static final int DOGS = 500;
+	private static final int TICKS = 400;
+
+	@AfterEach
+	public void tearDown() {
+		FitBit.setSink(null);
+	}
+
+	private static SimConfig config(String aHeartbeat) throws IOException {
+		Properties values = new Properties();
+		values.setProperty("sleepHeartbeat", aHeartbeat);
+		return new SimConfig(null, values);
+	}
+
+	@Test
+	public void sleepingDogsKeepTransmitting() throws IOException {
+		final long[] last = new long[DOGS];
+		final long[] longest = new long[1];
+		Arrays.fill(last, -1);
+		FitBit.setSink(new TelemetrySink() {
+			public boolean emit(DogState aState) {
+				if (last[aState.fId] >= 0)
+					longest[0] = Math.max(longest[0], aState.fTime - last[aState.fId]);
+				last[aState.fId] = aState.fTime;
+				return true;
+			}
+
+			public void close() {
+			}
+		});
+		Arena arena = new Arena(1500, 1000, DOGS);
+		DogRandom rand = new DogRandom(5);
+		for (int i = 0; i < DOGS; i++) {
+			int id = arena.getDogs().acquireId();
+			arena.getDogs().add(new Dog(arena, Dog.getNORMAL_HR(), 25, rand.nextInt(200) + 50, id,
+					new DogRandom(Dog.seedFor(5, i))));
+		}
+		SimulationEngine engine;
+		try {
+			SimulationEngine.configure(config("2000"));
+			engine = new SimulationEngine(arena);
+		} finally {
+			SimulationEngine.configure(config("5000"));
+		}
+		engine.runTicks(TICKS);
+		engine.shutdown();
+		//rests are longer than a heartbeat, so only sleeping dogs are silent for over a tick
+		assertTrue(longest[0] > SimulationEngine.getTICK_INTERVAL(), "no dog slept");
+		assertTrue(longest[0] <= 2000, "a dog was silent for " + longest[0] + " ms");
+	}
+}
@@ -0,0 +1,114 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Dogs wandering between the shards of a <code>ShardedSimulation</code>
+ * are neither lost nor duplicated, even when a shard is full and turns
+ * them away.
+ *
+ * @author Karel Bergmann
+ */
+public class ShardedSimulationTest {
+	private static final long SEED = 13;
+	private static final int TICKS = 3000;
+
+	private ShardedSimulation fSim;
+
+	@BeforeEach
+	public void setUp() {
+		FitBit.setSink(new TelemetrySink() {
+			public boolean emit(DogState aState) {
+				return true;
+			}
+
+			public void close() {
+			}
+		});
+	}
+
+	@AfterEach
+	public void tearDown() {
+		if (fSim != null)
+			fSim.shutdown();
+	}
+
+	/**
+	 * Adds dogs to one shard.
+	 */
+	private static void fill(Shard aShard, int aDogs, int aFirstTag) {
+		DogRandom rand = new DogRandom(SEED + aFirstTag);
+		for (int i = 0; i < aDogs; i++) {
+			int tag = aFirstTag + i;
+			assertNotNull(aShard.addDog(Dog.getNORMAL_HR(), 25, rand.nextInt(200) + 50, tag,
+					new DogRandom(Dog.seedFor(SEED, tag))));
+		}
+	}
+
+	/**
+	 * Runs the simulation a tick at a time, checking that every dog is in
+	 * a shard or being handed back to one.
+	 */
+	private void assertConserved(int aDogs) throws InterruptedException {
+		for (int t = 0; t < TICKS; t++) {
+			fSim.runTicks(1);
+			assertEquals(aDogs, fSim.size() + fSim.getInTransit(), "dogs after tick " + t);
+		}
+	}
+
+	@Test
+	public void dogsAreConservedWhenAShardIsFull() throws InterruptedException {
+		fSim = new ShardedSimulation(600, 400, 2, 1, 20);
+		fill(fSim.getShard(0, 0), 20, 0);
+		fill(fSim.getShard(1, 0), 4, 20);
+		assertConserved(24);
+		assertTrue(fSim.getMigrations() > 0, "no dog crossed a border");
+		assertTrue(fSim.getShard(0, 0).getRejected() > 0, "the full shard turned no dog away");
+	}
+
+	@Test
+	public void dogsAreConservedWhenEveryShardIsFull() throws InterruptedException {
+		fSim = new ShardedSimulation(600, 400, 2, 1, 10);
+		fill(fSim.getShard(0, 0), 10, 0);
+		fill(fSim.getShard(1, 0), 10, 10);
+		assertConserved(20);
+		assertTrue(fSim.getShard(0, 0).getRejected() + fSim.getShard(1, 0).getRejected() > 0,
+				"no dog was turned away");
+		assertEquals(fSim.getShard(0, 0).getDeparted() + fSim.getShard(1, 0).getDeparted(),
+				fSim.getShard(0, 0).getArrived() + fSim.getShard(1, 0).getArrived() + fSim.getInTransit());
+	}
+
+	@Test
+	public void dogsAreConservedAcrossASerializingTransport() throws InterruptedException {
+		//batches go through writeTo and readFrom, as between processes
+		final LocalShardTransport local = new LocalShardTransport();
+		ShardTransport serializing = new ShardTransport() {
+			public void send(int aTo, ShardBatch aBatch) throws IOException {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				aBatch.writeTo(new DataOutputStream(bytes));
+				local.send(aTo, ShardBatch.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+			}
+
+			public ShardBatch receive(int aTo, int aFrom) throws InterruptedException {
+				return local.receive(aTo, aFrom);
+			}
+		};
+		fSim = new ShardedSimulation(600, 600, 2, 2, 12, serializing);
+		fill(fSim.getShard(0, 0), 12, 0);
+		fill(fSim.getShard(1, 1), 6, 12);
+		assertConserved(18);
+		assertTrue(fSim.getShard(0, 0).getRejected() > 0, "the full shard turned no dog away");
+	}
+}
@@ -0,0 +1,168 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A <code>SuppressingSink</code> forwards a dog's snapshot only once it
+ * crosses a threshold or has been silent too long, marks the fields which
+ * changed in delta mode, and treats a recycled ID as a new dog.
+ *
+ * @author Karel Bergmann
+ */
+public class SuppressingSinkTest {
+	private static final int CAPACITY = 10;
+
+	private List<DogState> fForwarded;
+	private TelemetrySink fNext;
+
+	@BeforeEach
+	public void setUp() {
+		fForwarded = new ArrayList<DogState>();
+		fNext = new TelemetrySink() {
+			public boolean emit(DogState aState) {
+				DogState copy = new DogState();
+				copy.set(aState);
+				fForwarded.add(copy);
+				return true;
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	private SuppressingSink sink(boolean aDelta) {
+		return new SuppressingSink(fNext, CAPACITY, 10, 10, 3, 10000, aDelta);
+	}
+
+	private static DogState state(int aId, long aTime, double aX, double aY, long aHR, double aTemp) {
+		DogState s = new DogState();
+		s.fId = aId;
+		s.fTime = aTime;
+		s.fX = aX;
+		s.fY = aY;
+		s.fHR = aHR;
+		s.fTemp = aTemp;
+		return s;
+	}
+
+	@Test
+	public void movesPastTheThresholdAreForwarded() {
+		SuppressingSink sink = sink(false);
+		assertTrue(sink.emit(state(1, 0, 100, 100, 80, 25)));
+		assertEquals(1, fForwarded.size());
+		//a dog moving 10 metres hasn't moved more than the threshold
+		assertTrue(sink.emit(state(1, 100, 106, 108, 80, 25)));
+		assertEquals(1, fForwarded.size());
+		assertTrue(sink.emit(state(1, 200, 106, 108.5, 80, 25)));
+		assertEquals(2, fForwarded.size());
+		assertEquals(108.5, fForwarded.get(1).fY);
+		assertEquals(DogState.ALL, fForwarded.get(1).fFields);
+		assertEquals(3, sink.getReceived());
+		assertEquals(1, sink.getSuppressed());
+	}
+
+	@Test
+	public void vitalsAtTheThresholdAreForwarded() {
+		SuppressingSink sink = sink(false);
+		sink.emit(state(1, 0, 100, 100, 80, 25));
+		sink.emit(state(1, 100, 100, 100, 89, 27.9));
+		assertEquals(1, fForwarded.size());
+		sink.emit(state(1, 200, 100, 100, 90, 25));
+		assertEquals(2, fForwarded.size());
+		assertEquals(90, fForwarded.get(1).fHR);
+		sink.emit(state(1, 300, 100, 100, 90, 22));
+		assertEquals(3, fForwarded.size());
+		assertEquals(22, fForwarded.get(2).fTemp);
+	}
+
+	@Test
+	public void silentDogsSendAHeartbeat() {
+		SuppressingSink sink = sink(true);
+		sink.emit(state(1, 0, 100, 100, 80, 25));
+		sink.emit(state(1, 9999, 100, 100, 80, 25));
+		assertEquals(1, fForwarded.size());
+		assertEquals(0, sink.getHeartbeats());
+		sink.emit(state(1, 10000, 100, 100, 80, 25));
+		assertEquals(2, fForwarded.size());
+		assertEquals(DogState.ALL, fForwarded.get(1).fFields);
+		assertEquals(1, sink.getHeartbeats());
+	}
+
+	@Test
+	public void deltasCarryOnlyTheChangedFields() {
+		SuppressingSink sink = sink(true);
+		sink.emit(state(1, 0, 100, 100, 80, 25));
+		assertEquals(DogState.ALL, fForwarded.get(0).fFields);
+		sink.emit(state(1, 100, 120, 100, 85, 25));
+		assertEquals(DogState.POSITION, fForwarded.get(1).fFields);
+		//the HR is compared with the last one sent, not the last one seen
+		sink.emit(state(1, 200, 120, 100, 90, 29));
+		assertEquals(DogState.HR | DogState.TEMP, fForwarded.get(2).fFields);
+		assertEquals(2, sink.getDeltas());
+	}
+
+	@Test
+	public void idsOutsideTheCapacityPassThrough() {
+		SuppressingSink sink = sink(false);
+		sink.emit(state(CAPACITY, 0, 100, 100, 80, 25));
+		sink.emit(state(CAPACITY, 100, 100, 100, 80, 25));
+		sink.emit(state(-1, 100, 100, 100, 80, 25));
+		assertEquals(3, fForwarded.size());
+		assertEquals(0, sink.getSuppressed());
+	}
+
+	@Test
+	public void aRecycledIdStartsOver() {
+		SuppressingSink sink = sink(true);
+		sink.emit(state(1, 0, 100, 100, 80, 25));
+		//a new dog given the ID, close to where the old one last was
+		sink.forget(1);
+		sink.emit(state(1, 100, 102, 100, 80, 25));
+		assertEquals(2, fForwarded.size());
+		assertEquals(102, fForwarded.get(1).fX);
+		assertEquals(DogState.ALL, fForwarded.get(1).fFields);
+		assertEquals(0, sink.getHeartbeats());
+		sink.forget(CAPACITY);
+		sink.forget(-1);
+	}
+
+	@Test
+	public void thresholdsAreConfigured() throws IOException {
+		Properties values = new Properties();
+		values.setProperty("suppressMove", "50");
+		values.setProperty("deltaTelemetry", "true");
+		Properties restore = new Properties();
+		restore.setProperty("suppressMove", "10");
+		restore.setProperty("deltaTelemetry", "false");
+		try {
+			SuppressingSink.configure(new SimConfig(null, values));
+			SuppressingSink sink = new SuppressingSink(fNext, CAPACITY);
+			sink.emit(state(1, 0, 100, 100, 80, 25));
+			sink.emit(state(1, 100, 140, 100, 80, 25));
+			assertEquals(1, fForwarded.size());
+			sink.emit(state(1, 200, 160, 100, 80, 25));
+			assertEquals(DogState.POSITION, fForwarded.get(1).fFields);
+
+			values.setProperty("maxSilence", "-1");
+			try {
+				SuppressingSink.configure(new SimConfig(null, values));
+				fail("a negative maxSilence was accepted");
+			} catch (IllegalArgumentException e) {
+				//expected
+			}
+		} finally {
+			SuppressingSink.configure(new SimConfig(null, restore));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package dogsim;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Transmitting every dog's state, through the sinks the
+ * <code>DogManager</code> installs, allocates nothing once the sinks have
+ * warmed up.  The server is a <code>DogParkStub</code> slow enough that the
+ * queues fill up, so that both queued and dropped snapshots are covered.
+ *
+ * @author Karel Bergmann
+ */
+public class TransmitAllocationTest {
+	private static final int DOGS = 1000;
+	private static final int WARMUP_TICKS = 300;
+	private static final int TICKS = 200;
+
+	private DogParkStub fStub;
+	private Arena fArena;
+	private Dog[] fDogs;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		fStub = new DogParkStub(0, 4);
+		fStub.setDelay(5);
+		fStub.start();
+		fArena = new Arena(4500, 3000, DOGS);
+		DogRandom rand = new DogRandom(7);
+		for (int i = 0; i < DOGS; i++) {
+			int id = fArena.getDogs().acquireId();
+			fArena.getDogs().add(new Dog(fArena, Dog.getNORMAL_HR(), 25, rand.nextInt(200) + 50, id,
+					new DogRandom(Dog.seedFor(7, i))));
+		}
+		fDogs = new Dog[DOGS];
+		fArena.getDogs().copyTo(fDogs);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		FitBit.setSink(null);
+		fStub.stop();
+	}
+
+	/**
+	 * Moves the dogs and transmits all of them, a tick at a time.
+	 */
+	private void run(int aTicks) {
+		for (int t = 0; t < aTicks; t++) {
+			fArena.setTime(fArena.getTime() + SimulationEngine.getTICK_INTERVAL());
+			fArena.updateVitals(0, DOGS);
+			fArena.moveDogs(0, DOGS);
+			for (Dog dog : fDogs) {
+				dog.transmit();
+			}
+		}
+	}
+
+	/**
+	 * @return bytes allocated by the calling thread in <code>TICKS</code>
+	 * 				ticks, after warming up.
+	 */
+	private long measure(TelemetrySink aSink) {
+		FitBit.setSink(aSink);
+		run(WARMUP_TICKS);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		run(TICKS);
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		aSink.close();
+		return allocated;
+	}
+
+	private static void assertNoAllocation(long aBytes) {
+		//a few bytes, for the odd contended lock, but nothing per dog
+		assertTrue(aBytes < DOGS * TICKS / 10, aBytes + " bytes allocated transmitting " + DOGS * TICKS + " states");
+	}
+
+	@Test
+	public void uplinkAllocatesNothingPerDog() {
+		TelemetryUplink uplink = new TelemetryUplink(fStub.getUrl());
+		assertNoAllocation(measure(new SuppressingSink(uplink, DOGS)));
+		assertTrue(uplink.getSent() > 0, "nothing was sent");
+		assertTrue(uplink.getDropped() > 0, "the queue never filled up");
+	}
+
+	@Test
+	public void binaryUplinkAllocatesNothingPerDog() {
+		TelemetryUplink uplink = new TelemetryUplink(fStub.getUrl(), TelemetryUplink.Encoding.BINARY);
+		assertNoAllocation(measure(uplink));
+		assertTrue(uplink.getSent() > 0, "nothing was sent");
+	}
+
+	@Test
+	public void asyncSinkAllocatesNothingPerDog() {
+		AsyncHttpSink async = new AsyncHttpSink(fStub.getUrl());
+		assertNoAllocation(measure(new SuppressingSink(async, DOGS)));
+		assertTrue(async.getSent() > 0, "nothing was sent");
+	}
+}